@@ -0,0 +1,201 @@
+/**
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.android.gms.location.sample.geofencing;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Evaluates locally, from raw fixes, the fences inside the registrations the device is in: the
+ * children of parent regions and the members of clusters (see
+ * {@link FenceHierarchy#getLocalFences}). Entering a registration loads its fences and checks
+ * them against the fix that triggered it; exiting unloads them and reports EXIT only for the
+ * fences an ENTER was reported for.
+ *
+ * Uses no Android classes, so {@link HierarchicalFenceMonitor} and {@code TraceReplaySimulator}
+ * share it. Not thread safe.
+ */
+public class ActiveRegionEvaluator {
+
+    private final FenceHierarchy mHierarchy;
+    private final LocalFenceEvaluator mEvaluator;
+    private final TreeSet<String> mActiveRegions = new TreeSet<String>();
+    private int[] mLoadedFences = new int[0];
+
+    private final LocationBatch mFix = new LocationBatch(1);
+    private boolean mHasLastFix;
+    private long mLastTime;
+    private double mLastLatitude;
+    private double mLastLongitude;
+
+    /**
+     * @param loiteringDelay Time in milliseconds a device must stay inside a fence before DWELL
+     *                       is reported, or 0 to never report DWELL.
+     */
+    public ActiveRegionEvaluator(FenceHierarchy hierarchy, long loiteringDelay) {
+        mHierarchy = hierarchy;
+        mEvaluator = new LocalFenceEvaluator(hierarchy.getChildCatalog(), loiteringDelay);
+    }
+
+    public FenceHierarchy getHierarchy() {
+        return mHierarchy;
+    }
+
+    /**
+     * Returns the evaluator of the child catalog, holding which fences the device is inside.
+     */
+    public LocalFenceEvaluator getEvaluator() {
+        return mEvaluator;
+    }
+
+    /**
+     * Returns the request ids of the registrations the device is in, sorted.
+     */
+    public Set<String> getActiveRegions() {
+        return Collections.unmodifiableSet(mActiveRegions);
+    }
+
+    public boolean isEmpty() {
+        return mActiveRegions.isEmpty();
+    }
+
+    /**
+     * Returns the fences currently evaluated, as sorted child catalog indices.
+     */
+    public int[] getLoadedFences() {
+        return mLoadedFences;
+    }
+
+    /**
+     * Loads the fences of a registration the device entered or dwells in, and evaluates them
+     * against the triggering fix if there is one.
+     *
+     * @return false if the registration was already active or has no local fences.
+     */
+    public boolean enter(String registrationId, long time, boolean hasLocation, double latitude,
+            double longitude, LocalFenceEvaluator.TransitionListener listener) {
+        int[] fences = mHierarchy.getLocalFences(registrationId);
+        if (fences == null || !mActiveRegions.add(registrationId)) {
+            return false;
+        }
+        reload();
+        if (hasLocation) {
+            mFix.clear();
+            mFix.add(latitude, longitude, 0, time);
+            mEvaluator.evaluate(mFix, fences, listener);
+            remember(time, latitude, longitude);
+        }
+        return true;
+    }
+
+    /**
+     * Unloads the fences of a registration the device left. Fences no longer loaded report
+     * EXIT if the device was reported inside them, at the triggering fix or else the last one.
+     *
+     * @return false if the registration was not active.
+     */
+    public boolean exit(String registrationId, long time, boolean hasLocation, double latitude,
+            double longitude, LocalFenceEvaluator.TransitionListener listener) {
+        if (!mActiveRegions.remove(registrationId)) {
+            return false;
+        }
+        if (hasLocation) {
+            remember(time, latitude, longitude);
+        }
+        int[] previous = mLoadedFences;
+        reload();
+        for (int fence : previous) {
+            if (Arrays.binarySearch(mLoadedFences, fence) < 0) {
+                mEvaluator.exit(fence, mLastTime, mLastLatitude, mLastLongitude, listener);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Evaluates a batch of fixes against the loaded fences.
+     */
+    public void evaluate(LocationBatch batch, LocalFenceEvaluator.TransitionListener listener) {
+        if (batch.size() == 0) {
+            return;
+        }
+        mEvaluator.evaluate(batch, mLoadedFences, listener);
+        int last = batch.size() - 1;
+        remember(batch.getTimes()[last], batch.getLatitudes()[last],
+                batch.getLongitudes()[last]);
+    }
+
+    /**
+     * Returns true if the last fix is within {@code distanceMeters} of the boundary of a loaded
+     * fence, inside or out, or if fences are loaded but no fix is known yet.
+     */
+    public boolean isNearBoundary(double distanceMeters) {
+        if (mLoadedFences.length == 0) {
+            return false;
+        }
+        if (!mHasLastFix) {
+            return true;
+        }
+        FenceCatalog catalog = mHierarchy.getChildCatalog();
+        for (int fence : mLoadedFences) {
+            double distance = catalog.distanceToCenter(fence, mLastLatitude, mLastLongitude);
+            if (Math.abs(distance - catalog.getRadius(fence)) <= distanceMeters) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Makes registrations active without evaluating anything, for example when restoring saved
+     * state. Unknown registrations are skipped.
+     */
+    public void restore(Collection<String> registrationIds) {
+        for (String registrationId : registrationIds) {
+            if (mHierarchy.getLocalFences(registrationId) != null) {
+                mActiveRegions.add(registrationId);
+            }
+        }
+        reload();
+    }
+
+    private void remember(long time, double latitude, double longitude) {
+        mHasLastFix = true;
+        mLastTime = time;
+        mLastLatitude = latitude;
+        mLastLongitude = longitude;
+    }
+
+    private void reload() {
+        TreeSet<Integer> fences = new TreeSet<Integer>();
+        for (String registrationId : mActiveRegions) {
+            for (int fence : mHierarchy.getLocalFences(registrationId)) {
+                fences.add(fence);
+            }
+        }
+        int[] loaded = new int[fences.size()];
+        int i = 0;
+        for (int fence : fences) {
+            loaded[i++] = fence;
+        }
+        mLoadedFences = loaded;
+    }
+}
@@ -0,0 +1,281 @@
+/**
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.location.sample.geofencing;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The changes that take a fence catalog from one version to another: fences added, fences
+ * updated and tombstones for fences removed. A delta from version 0 is a full snapshot.
+ *
+ * The wire format is compact: every integer is a varint, coordinates are in microdegrees and
+ * stored as the zigzag-encoded difference from the previous entry, and radii are in
+ * decimeters. {@link #between} sorts entries by center, so nearby fences cost two or three
+ * bytes per coordinate.
+ */
+public final class CatalogDelta {
+
+    public static final int OP_ADD = 0;
+    public static final int OP_UPDATE = 1;
+    public static final int OP_TOMBSTONE = 2;
+
+    private static final byte[] MAGIC = {'G', 'F', 'D'};
+    private static final int FORMAT_VERSION = 1;
+
+    private static final double MICRODEGREES = 1e6;
+    private static final float DECIMETERS = 10f;
+
+    private static final FenceCatalog EMPTY = new FenceCatalog.Builder(0).build();
+
+    private static final Comparator<Entry> CENTER_ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            int byLatitude = Double.compare(a.latitude, b.latitude);
+            return byLatitude != 0 ? byLatitude : Double.compare(a.longitude, b.longitude);
+        }
+    };
+
+    /**
+     * One change to a fence. Tombstones only carry the request id.
+     */
+    public static final class Entry {
+        public final int op;
+        public final String id;
+        public final double latitude;
+        public final double longitude;
+        public final float radius;
+
+        public Entry(int op, String id, double latitude, double longitude, float radius) {
+            this.op = op;
+            this.id = id;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.radius = radius;
+        }
+    }
+
+    private final long mFromVersion;
+    private final long mToVersion;
+    private final List<Entry> mEntries;
+
+    public CatalogDelta(long fromVersion, long toVersion, List<Entry> entries) {
+        mFromVersion = fromVersion;
+        mToVersion = toVersion;
+        mEntries = Collections.unmodifiableList(new ArrayList<Entry>(entries));
+    }
+
+    /**
+     * Returns the delta that takes {@code previous} to {@code current}, or a snapshot of
+     * {@code current} when {@code previous} is null.
+     */
+    public static CatalogDelta between(FenceCatalog previous, FenceCatalog current) {
+        FenceCatalog base = previous != null ? previous : EMPTY;
+        List<Entry> entries = new ArrayList<Entry>();
+        for (int index : current.changedSince(base)) {
+            String id = current.getId(index);
+            entries.add(new Entry(base.indexOf(id) >= 0 ? OP_UPDATE : OP_ADD, id,
+                    current.getLatitude(index), current.getLongitude(index),
+                    current.getRadius(index)));
+        }
+        Collections.sort(entries, CENTER_ORDER);
+        for (String id : current.removedSince(base)) {
+            entries.add(new Entry(OP_TOMBSTONE, id, 0, 0, 0));
+        }
+        return new CatalogDelta(base.getVersion(), current.getVersion(), entries);
+    }
+
+    /**
+     * Returns the version the delta applies to; 0 for a full snapshot.
+     */
+    public long getFromVersion() {
+        return mFromVersion;
+    }
+
+    public long getToVersion() {
+        return mToVersion;
+    }
+
+    public boolean isSnapshot() {
+        return mFromVersion == 0;
+    }
+
+    public List<Entry> getEntries() {
+        return mEntries;
+    }
+
+    /**
+     * Returns the delta in wire format.
+     */
+    public byte[] encode() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16 + mEntries.size() * 16);
+        out.write(MAGIC, 0, MAGIC.length);
+        out.write(FORMAT_VERSION);
+        writeVarint(out, mFromVersion);
+        writeVarint(out, mToVersion);
+        writeVarint(out, mEntries.size());
+
+        long lastLatitude = 0;
+        long lastLongitude = 0;
+        for (Entry entry : mEntries) {
+            out.write(entry.op);
+            byte[] id = utf8(entry.id);
+            writeVarint(out, id.length);
+            out.write(id, 0, id.length);
+            if (entry.op == OP_TOMBSTONE) {
+                continue;
+            }
+            long latitude = Math.round(entry.latitude * MICRODEGREES);
+            long longitude = Math.round(entry.longitude * MICRODEGREES);
+            writeVarint(out, zigzag(latitude - lastLatitude));
+            writeVarint(out, zigzag(longitude - lastLongitude));
+            writeVarint(out, Math.round(entry.radius * DECIMETERS));
+            lastLatitude = latitude;
+            lastLongitude = longitude;
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns true if a fence id starts with one of the prefixes of the registrations the app
+     * derives from the catalog, {@link FenceHierarchy#REGION_ID_PREFIX} and
+     * {@link FenceClusters#CLUSTER_ID_PREFIX}. A catalog fence with such an id would be taken
+     * for a parent region or cluster.
+     */
+    public static boolean isReservedId(String id) {
+        return id.startsWith(FenceHierarchy.REGION_ID_PREFIX)
+                || id.startsWith(FenceClusters.CLUSTER_ID_PREFIX);
+    }
+
+    /**
+     * Parses a delta in wire format.
+     *
+     * @throws IOException If the payload is truncated or not a catalog delta, or a fence uses a
+     *                     reserved id (see {@link #isReservedId(String)}).
+     */
+    public static CatalogDelta decode(byte[] payload) throws IOException {
+        Reader in = new Reader(payload);
+        for (byte b : MAGIC) {
+            if (in.readByte() != b) {
+                throw new IOException("Not a catalog delta");
+            }
+        }
+        int format = in.readByte();
+        if (format != FORMAT_VERSION) {
+            throw new IOException("Unsupported catalog delta format " + format);
+        }
+        long fromVersion = in.readVarint();
+        long toVersion = in.readVarint();
+        long count = in.readVarint();
+        if (count > payload.length) {
+            throw new IOException("Corrupt catalog delta: " + count + " entries");
+        }
+
+        List<Entry> entries = new ArrayList<Entry>((int) count);
+        long lastLatitude = 0;
+        long lastLongitude = 0;
+        for (int i = 0; i < count; i++) {
+            int op = in.readByte();
+            String id = in.readString((int) in.readVarint());
+            if (isReservedId(id)) {
+                throw new IOException("Reserved fence id " + id + " in catalog delta");
+            }
+            if (op == OP_TOMBSTONE) {
+                entries.add(new Entry(op, id, 0, 0, 0));
+                continue;
+            }
+            if (op != OP_ADD && op != OP_UPDATE) {
+                throw new IOException("Unknown catalog delta op " + op);
+            }
+            lastLatitude += unzigzag(in.readVarint());
+            lastLongitude += unzigzag(in.readVarint());
+            float radius = in.readVarint() / DECIMETERS;
+            entries.add(new Entry(op, id, lastLatitude / MICRODEGREES,
+                    lastLongitude / MICRODEGREES, radius));
+        }
+        return new CatalogDelta(fromVersion, toVersion, entries);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Bounds-checked cursor over a payload.
+     */
+    private static final class Reader {
+        private final byte[] mBuffer;
+        private int mPosition;
+
+        Reader(byte[] buffer) {
+            mBuffer = buffer;
+        }
+
+        int readByte() throws IOException {
+            if (mPosition >= mBuffer.length) {
+                throw new IOException("Truncated catalog delta");
+            }
+            return mBuffer[mPosition++] & 0xFF;
+        }
+
+        long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint in catalog delta");
+        }
+
+        String readString(int length) throws IOException {
+            if (length < 0 || length > mBuffer.length - mPosition) {
+                throw new IOException("Truncated catalog delta");
+            }
+            String s = new String(mBuffer, mPosition, length, "UTF-8");
+            mPosition += length;
+            return s;
+        }
+    }
+}
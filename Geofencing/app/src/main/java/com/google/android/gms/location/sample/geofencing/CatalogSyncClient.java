@@ -0,0 +1,115 @@
+/**
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.location.sample.geofencing;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Pulls fence catalog changes into a {@link FenceStore}.
+ *
+ * The client asks for the changes since the version it holds, {@code GET <url>?since=<version>},
+ * with the ETag of the last response in {@code If-None-Match}. The server answers 304 when
+ * nothing changed, or 200 with a {@link CatalogDelta}: the changes since that version, or a
+ * full snapshot if it no longer has that version. {@code LocalCatalogServer} implements the
+ * server side.
+ *
+ * Calls block; run them off the main thread.
+ */
+public class CatalogSyncClient {
+
+    private static final int TIMEOUT_IN_MILLISECONDS = 15 * 1000;
+
+    private final String mUrl;
+    private final FenceStore mStore;
+
+    /**
+     * ETag of the last 200 response, recorded in the store once its delta has been applied.
+     */
+    private String mResponseETag;
+
+    public CatalogSyncClient(String url, FenceStore store) {
+        mUrl = url;
+        mStore = store;
+    }
+
+    /**
+     * Brings the store up to date with the server and saves it.
+     *
+     * @return True if the catalog changed.
+     * @throws IOException If the server could not be reached, sent a bad payload, or the
+     *                     store could not be saved. The store is left as it was.
+     */
+    public synchronized boolean sync() throws IOException {
+        CatalogDelta delta = fetch(mStore.getVersion(), mStore.getETag());
+        if (delta == null) {
+            return false;
+        }
+        if (!mStore.applyAndSave(delta, mResponseETag)) {
+            // The server answered for a version other than ours; start over from a snapshot.
+            delta = fetch(0, null);
+            if (delta == null || !mStore.applyAndSave(delta, mResponseETag)) {
+                throw new IOException("Server did not send a catalog snapshot");
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The delta sent by the server, or null if the catalog has not changed.
+     */
+    private CatalogDelta fetch(long sinceVersion, String eTag) throws IOException {
+        URL url = new URL(mUrl + (mUrl.indexOf('?') < 0 ? '?' : '&') + "since=" + sinceVersion);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try {
+            connection.setConnectTimeout(TIMEOUT_IN_MILLISECONDS);
+            connection.setReadTimeout(TIMEOUT_IN_MILLISECONDS);
+            if (eTag != null) {
+                connection.setRequestProperty("If-None-Match", eTag);
+            }
+            int responseCode = connection.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                return null;
+            }
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Catalog sync failed: HTTP " + responseCode);
+            }
+            CatalogDelta delta = CatalogDelta.decode(readFully(connection.getInputStream()));
+            mResponseETag = connection.getHeaderField("ETag");
+            return delta;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
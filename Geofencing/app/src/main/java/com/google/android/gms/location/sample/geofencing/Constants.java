@@ -31,9 +31,43 @@ public final class Constants {
     public static final String BROADCAST_ACTION =
             "com.example.android.threadsample.BROADCAST";
 
-    // Defines the key for the status "extra" in an Intent
-    public static final String ID_TO_BE_DELETED =
-            "id.to.be.deleted";
+    // Defines the key for the TransitionBatch "extra" in an Intent
+    public static final String TRANSITION_BATCH =
+            "transition.batch";
+
+    /**
+     * Action of the Intents carrying transitions of locally evaluated child fences to
+     * {@link GeofenceTransitionsIntentService}.
+     */
+    public static final String ACTION_LOCAL_TRANSITION =
+            "com.google.android.gms.location.sample.geofencing.LOCAL_TRANSITION";
+
+    /**
+     * Action of the Intents carrying the raw fixes {@link HierarchicalFenceMonitor} evaluates
+     * child fences against.
+     */
+    public static final String ACTION_CHILD_LOCATION =
+            "com.google.android.gms.location.sample.geofencing.CHILD_LOCATION";
+
+    /**
+     * Action of the alarm that publishes transitions {@link TransitionFilter} deferred, once
+     * they have stood for the hold time.
+     */
+    public static final String ACTION_PUBLISH_DEFERRED_TRANSITIONS =
+            "com.google.android.gms.location.sample.geofencing.PUBLISH_DEFERRED_TRANSITIONS";
+
+    public static final String EXTRA_REQUEST_ID = "request.id";
+
+    /**
+     * Action prefix of the PendingIntents {@link GeofenceGroups} registers groups with; the group
+     * name follows.
+     */
+    public static final String ACTION_GEOFENCE_GROUP_EVENT =
+            "com.google.android.gms.location.sample.geofencing.GEOFENCE_GROUP_EVENT";
+
+    public static final String EXTRA_GEOFENCE_GROUP = "geofence.group";
+
+    public static final String EXTRA_TRANSITION = "transition";
 
     public static final String PACKAGE_NAME = "com.google.android.gms.location.Geofence";
 
@@ -54,6 +88,183 @@ public final class Constants {
             GEOFENCE_EXPIRATION_IN_HOURS * 60 * 60 * 1000;
     public static final float GEOFENCE_RADIUS_IN_METERS = 1609; // 1 mile, 1.6 km
 
+    /**
+     * Time a device must stay inside a geofence before a DWELL transition is reported.
+     */
+    public static final int GEOFENCE_LOITERING_DELAY_IN_MILLISECONDS = 10 * 60 * 1000;
+
+    /**
+     * Overlapping geofences are merged into enclosing circles no larger than this for
+     * registration with Location Services.
+     */
+    public static final float CLUSTER_MAX_RADIUS_IN_METERS = 5000;
+
+    /**
+     * Desired interval between raw location fixes used for local fence evaluation.
+     */
+    public static final long LOCATION_UPDATE_INTERVAL_IN_MILLISECONDS = 30 * 1000;
+
+    /**
+     * Fixes are batched and delivered together at most this often, so evaluation runs once per
+     * batch instead of once per fix.
+     */
+    public static final long LOCATION_MAX_WAIT_TIME_IN_MILLISECONDS =
+            5 * LOCATION_UPDATE_INTERVAL_IN_MILLISECONDS;
+
+    /**
+     * Interval between high-accuracy raw fixes while child fences are evaluated locally and the
+     * device is within {@link #CHILD_NEAR_BOUNDARY_DISTANCE_IN_METERS} of one's boundary.
+     */
+    public static final long CHILD_LOCATION_UPDATE_INTERVAL_IN_MILLISECONDS = 10 * 1000;
+
+    /**
+     * Batching delay for child fence evaluation. Kept short, since transitions are only
+     * reported once a batch arrives.
+     */
+    public static final long CHILD_LOCATION_MAX_WAIT_TIME_IN_MILLISECONDS =
+            3 * CHILD_LOCATION_UPDATE_INTERVAL_IN_MILLISECONDS;
+
+    /**
+     * Interval between balanced power fixes while child fences are evaluated locally but the
+     * device is far from all their boundaries.
+     */
+    public static final long CHILD_FAR_LOCATION_UPDATE_INTERVAL_IN_MILLISECONDS = 60 * 1000;
+
+    /**
+     * Batching delay of the balanced power fixes.
+     */
+    public static final long CHILD_FAR_LOCATION_MAX_WAIT_TIME_IN_MILLISECONDS =
+            2 * CHILD_FAR_LOCATION_UPDATE_INTERVAL_IN_MILLISECONDS;
+
+    /**
+     * Distance from the boundary of a child fence within which its fixes switch to high
+     * accuracy. Covers the error of a balanced power fix plus the ground a car covers between
+     * two of them.
+     */
+    public static final float CHILD_NEAR_BOUNDARY_DISTANCE_IN_METERS = 3000;
+
+    /**
+     * Interval between the low-power fixes {@link GeofencePolicyUpdater} keeps fence policies up
+     * to date with, in the background.
+     */
+    public static final long POLICY_LOCATION_UPDATE_INTERVAL_IN_MILLISECONDS = 5 * 60 * 1000;
+
+    /**
+     * Batching delay for policy updates. Buckets are kilometres wide, so a late update costs
+     * little.
+     */
+    public static final long POLICY_LOCATION_MAX_WAIT_TIME_IN_MILLISECONDS =
+            3 * POLICY_LOCATION_UPDATE_INTERVAL_IN_MILLISECONDS;
+
+    /**
+     * Fixes closer than this to the previous one are not delivered for policy updates; it is
+     * the boundary margin of the nearest bucket.
+     */
+    public static final float POLICY_LOCATION_SMALLEST_DISPLACEMENT_IN_METERS = 100;
+
+    public static final String ACTION_POLICY_LOCATION =
+            "com.google.android.gms.location.sample.geofencing.POLICY_LOCATION";
+
+    /**
+     * Radius of the parent regions in {@link #PARENT_REGIONS}.
+     */
+    public static final float PARENT_REGION_RADIUS_IN_METERS = 25000;
+
+    /**
+     * Geohash characters of the tiles {@link TileCandidateCache} caches candidate fences for.
+     * 6 characters are about 1.2 km by 0.6 km.
+     */
+    public static final int TILE_GEOHASH_PRECISION = 6;
+
+    /**
+     * Estimated memory the tile candidate cache of local fence evaluation may take.
+     */
+    public static final long TILE_CACHE_MAX_BYTES = 256 * 1024;
+
+    /**
+     * Worker threads handling geofence transitions. Transitions of different geofences run in
+     * parallel; transitions of the same geofence are kept in order.
+     */
+    public static final int TRANSITION_WORKER_THREADS = 3;
+
+    /**
+     * Serial lanes that geofence request ids are striped over.
+     */
+    public static final int TRANSITION_LANES = 16;
+
+    /**
+     * Maximum number of transitions queued or in progress before new ones are dropped.
+     */
+    public static final int TRANSITION_QUEUE_CAPACITY = 256;
+
+    /**
+     * Fraction of a fence's radius that its inner and outer hysteresis radii are set apart from
+     * the boundary, see {@link TransitionFilter}.
+     */
+    public static final float TRANSITION_HYSTERESIS_FRACTION = 0.05f;
+
+    /**
+     * Minimum time a fence stays entered or exited before a transition back is believed.
+     */
+    public static final long TRANSITION_MIN_HOLD_TIME_IN_MILLISECONDS = 60 * 1000;
+
+    /**
+     * Maximum number of transitions waiting to be notified. Once full, the oldest are dropped
+     * so the latest transitions are the ones shown.
+     */
+    public static final int TRANSITION_NOTIFICATION_QUEUE_CAPACITY = 32;
+
+    /**
+     * Longest a publisher waits for room in a full {@link GeofenceEventStream#BLOCK}
+     * subscription before dropping the event.
+     */
+    public static final long EVENT_STREAM_MAX_BLOCK_TIME_IN_MILLISECONDS = 2 * 1000;
+
+    /**
+     * Maximum number of GeofencingApi calls outstanding at once.
+     */
+    public static final int GEOFENCE_API_MAX_IN_FLIGHT = 2;
+
+    /**
+     * Attempts made for a GeofencingApi call that keeps failing with a retryable status.
+     */
+    public static final int GEOFENCE_API_MAX_ATTEMPTS = 6;
+
+    /**
+     * Backoff before the first retry of a failed GeofencingApi call. Doubles on every retry.
+     */
+    public static final long GEOFENCE_API_RETRY_BASE_DELAY_IN_MILLISECONDS = 2 * 1000;
+
+    /**
+     * Upper bound of the backoff between retries.
+     */
+    public static final long GEOFENCE_API_RETRY_MAX_DELAY_IN_MILLISECONDS = 5 * 60 * 1000;
+
+    /**
+     * How long before a geofence expires that it is renewed.
+     */
+    public static final long GEOFENCE_RENEWAL_LEAD_TIME_IN_MILLISECONDS = 60 * 60 * 1000;
+
+    /**
+     * Maximum number of geofences renewed by one GeofencingApi call.
+     */
+    public static final int GEOFENCE_RENEWAL_BATCH_SIZE = 10;
+
+    /**
+     * Minimum time between two renewal batches, so fences that were added together are not
+     * all renewed at once.
+     */
+    public static final long GEOFENCE_RENEWAL_BATCH_INTERVAL_IN_MILLISECONDS = 30 * 1000;
+
+    public static final String ACTION_RENEW_GEOFENCES =
+            "com.google.android.gms.location.sample.geofencing.RENEW_GEOFENCES";
+
+    /**
+     * Endpoint fence catalog changes are pulled from, see {@link CatalogSyncClient}. Empty
+     * disables syncing and the built-in landmarks below are used.
+     */
+    public static final String CATALOG_SYNC_URL = "";
+
     /**
      * Map for storing information about airports in the San Francisco bay area.
      */
@@ -65,4 +276,13 @@ public final class Constants {
         // Googleplex.
         BAY_AREA_LANDMARKS.put("Home", new LatLng(13.030114, 77.590618));
     }
+
+    /**
+     * Coarse regions registered with Location Services in place of the fences they contain.
+     * The fences inside a region are only evaluated while the device is in it, so a region
+     * only pays off where it holds more fences than Location Services can register. Empty in
+     * this sample: its two fences are cheaper to register directly than to evaluate while the
+     * device is anywhere in the city around them.
+     */
+    public static final HashMap<String, LatLng> PARENT_REGIONS = new HashMap<String, LatLng>();
 }
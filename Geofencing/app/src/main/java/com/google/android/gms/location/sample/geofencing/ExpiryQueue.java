@@ -0,0 +1,130 @@
+/**
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.location.sample.geofencing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Deadlines of registered geofences, such as when each one is due for renewal, ordered by
+ * deadline.
+ *
+ * Rescheduling or removing a fence leaves its old entry in the heap; stale entries are
+ * recognised by their deadline no longer matching and skipped, and the heap is rebuilt once they
+ * outnumber the live ones.
+ */
+final class ExpiryQueue {
+
+    private static final class Deadline implements Comparable<Deadline> {
+        final String mRequestId;
+        final long mTime;
+
+        Deadline(String requestId, long time) {
+            mRequestId = requestId;
+            mTime = time;
+        }
+
+        @Override
+        public int compareTo(Deadline other) {
+            return mTime < other.mTime ? -1 : (mTime == other.mTime ? 0 : 1);
+        }
+    }
+
+    private final PriorityQueue<Deadline> mHeap = new PriorityQueue<Deadline>();
+    private final HashMap<String, Long> mDeadlines = new HashMap<String, Long>();
+
+    /**
+     * Sets the deadline of a fence, replacing any previous one.
+     */
+    public void schedule(String requestId, long deadline) {
+        mDeadlines.put(requestId, deadline);
+        mHeap.add(new Deadline(requestId, deadline));
+        if (mHeap.size() > 2 * mDeadlines.size() + 16) {
+            compact();
+        }
+    }
+
+    public void remove(String requestId) {
+        mDeadlines.remove(requestId);
+    }
+
+    public void clear() {
+        mDeadlines.clear();
+        mHeap.clear();
+    }
+
+    public int size() {
+        return mDeadlines.size();
+    }
+
+    public boolean isEmpty() {
+        return mDeadlines.isEmpty();
+    }
+
+    /**
+     * Returns the earliest deadline, or {@link Long#MAX_VALUE} if no fence is scheduled.
+     */
+    public long peekDeadline() {
+        Deadline head = peekLive();
+        return head != null ? head.mTime : Long.MAX_VALUE;
+    }
+
+    /**
+     * Removes and returns up to {@code max} fences whose deadline is at or before
+     * {@code time}, earliest first.
+     */
+    public List<String> pollDue(long time, int max) {
+        List<String> due = new ArrayList<String>(Math.min(max, mDeadlines.size()));
+        Deadline head;
+        while (due.size() < max && (head = peekLive()) != null && head.mTime <= time) {
+            mHeap.poll();
+            mDeadlines.remove(head.mRequestId);
+            due.add(head.mRequestId);
+        }
+        return due;
+    }
+
+    /**
+     * Returns the deadline of every scheduled fence.
+     */
+    public Map<String, Long> getDeadlines() {
+        return Collections.unmodifiableMap(mDeadlines);
+    }
+
+    private Deadline peekLive() {
+        Deadline head;
+        while ((head = mHeap.peek()) != null) {
+            Long deadline = mDeadlines.get(head.mRequestId);
+            if (deadline != null && deadline == head.mTime) {
+                return head;
+            }
+            mHeap.poll();
+        }
+        return null;
+    }
+
+    private void compact() {
+        mHeap.clear();
+        for (Map.Entry<String, Long> entry : mDeadlines.entrySet()) {
+            mHeap.add(new Deadline(entry.getKey(), entry.getValue()));
+        }
+    }
+}
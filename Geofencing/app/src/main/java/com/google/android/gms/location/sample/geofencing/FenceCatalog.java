@@ -0,0 +1,219 @@
+/**
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.android.gms.location.sample.geofencing;
+
+import com.google.android.gms.maps.model.LatLng;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable set of circular fences stored as parallel primitive arrays, so local evaluation can
+ * walk the whole catalog without touching a {@link com.google.android.gms.location.Geofence}
+ * object per fence. Fences are addressed by their index in the catalog.
+ */
+public final class FenceCatalog {
+
+    private static FenceCatalog sDefault;
+
+    private final String[] mIds;
+    private final double[] mLatitudes;
+    private final double[] mLongitudes;
+    private final float[] mRadii;
+    private final long mVersion;
+    private final HashMap<String, Integer> mIndexById;
+
+    private FenceCatalog(String[] ids, double[] latitudes, double[] longitudes, float[] radii,
+            long version) {
+        mVersion = version;
+        mIds = ids;
+        mLatitudes = latitudes;
+        mLongitudes = longitudes;
+        mRadii = radii;
+        mIndexById = new HashMap<String, Integer>(ids.length * 2);
+        for (int i = 0; i < ids.length; i++) {
+            mIndexById.put(ids[i], i);
+        }
+    }
+
+    /**
+     * Returns the catalog the app monitors: the last one set with {@link #setDefault}, or the
+     * catalog built from {@link Constants#BAY_AREA_LANDMARKS} until one is.
+     */
+    public static synchronized FenceCatalog getDefault() {
+        if (sDefault == null) {
+            sDefault = fromLandmarks(Constants.BAY_AREA_LANDMARKS, Constants.GEOFENCE_RADIUS_IN_METERS);
+        }
+        return sDefault;
+    }
+
+    /**
+     * Replaces the catalog the app monitors, e.g. after a catalog sync. Components built from
+     * the default catalog rebuild themselves when they notice the change.
+     */
+    public static synchronized void setDefault(FenceCatalog catalog) {
+        sDefault = catalog;
+    }
+
+    /**
+     * Builds a catalog from a map of request ids to fence centers, all sharing the same radius.
+     */
+    public static FenceCatalog fromLandmarks(Map<String, LatLng> landmarks, float radius) {
+        Builder builder = new Builder(landmarks.size());
+        for (Map.Entry<String, LatLng> entry : landmarks.entrySet()) {
+            builder.add(entry.getKey(), entry.getValue().latitude, entry.getValue().longitude,
+                    radius);
+        }
+        return builder.build();
+    }
+
+    public int size() {
+        return mIds.length;
+    }
+
+    /**
+     * Returns the version of the catalog this was built from; 0 for the built-in catalog.
+     */
+    public long getVersion() {
+        return mVersion;
+    }
+
+    public String getId(int index) {
+        return mIds[index];
+    }
+
+    public double getLatitude(int index) {
+        return mLatitudes[index];
+    }
+
+    public double getLongitude(int index) {
+        return mLongitudes[index];
+    }
+
+    public float getRadius(int index) {
+        return mRadii[index];
+    }
+
+    /**
+     * Returns the index of the fence with the given request id, or -1 if it is not in the
+     * catalog.
+     */
+    public int indexOf(String id) {
+        Integer index = mIndexById.get(id);
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * Returns the distance in meters from the given point to the center of a fence.
+     */
+    public double distanceToCenter(int index, double latitude, double longitude) {
+        return GeoMath.distanceMeters(latitude, longitude, mLatitudes[index], mLongitudes[index]);
+    }
+
+    /**
+     * Returns true if the given point lies inside a fence.
+     */
+    public boolean contains(int index, double latitude, double longitude) {
+        return distanceToCenter(index, latitude, longitude) <= mRadii[index];
+    }
+
+    /**
+     * Returns the indices of the fences in this catalog that are not in {@code previous}, or are
+     * there with a different center or radius.
+     */
+    public int[] changedSince(FenceCatalog previous) {
+        int[] changed = new int[size()];
+        int count = 0;
+        for (int i = 0; i < size(); i++) {
+            int old = previous.indexOf(mIds[i]);
+            if (old < 0 || previous.mLatitudes[old] != mLatitudes[i]
+                    || previous.mLongitudes[old] != mLongitudes[i]
+                    || previous.mRadii[old] != mRadii[i]) {
+                changed[count++] = i;
+            }
+        }
+        return Arrays.copyOf(changed, count);
+    }
+
+    /**
+     * Returns the request ids of the fences in {@code previous} that are not in this catalog.
+     */
+    public List<String> removedSince(FenceCatalog previous) {
+        List<String> removed = new ArrayList<String>();
+        for (int i = 0; i < previous.size(); i++) {
+            if (indexOf(previous.mIds[i]) < 0) {
+                removed.add(previous.mIds[i]);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Accumulates fences for a {@link FenceCatalog}. Request ids must be unique.
+     */
+    public static final class Builder {
+        private final List<String> mIds;
+        private double[] mLatitudes;
+        private double[] mLongitudes;
+        private float[] mRadii;
+        private long mVersion;
+
+        public Builder() {
+            this(16);
+        }
+
+        public Builder(int expectedSize) {
+            int capacity = Math.max(expectedSize, 1);
+            mIds = new ArrayList<String>(capacity);
+            mLatitudes = new double[capacity];
+            mLongitudes = new double[capacity];
+            mRadii = new float[capacity];
+        }
+
+        public Builder add(String id, double latitude, double longitude, float radius) {
+            int index = mIds.size();
+            if (index == mLatitudes.length) {
+                int capacity = index * 2;
+                mLatitudes = Arrays.copyOf(mLatitudes, capacity);
+                mLongitudes = Arrays.copyOf(mLongitudes, capacity);
+                mRadii = Arrays.copyOf(mRadii, capacity);
+            }
+            mIds.add(id);
+            mLatitudes[index] = latitude;
+            mLongitudes[index] = longitude;
+            mRadii[index] = radius;
+            return this;
+        }
+
+        public Builder setVersion(long version) {
+            mVersion = version;
+            return this;
+        }
+
+        public FenceCatalog build() {
+            int size = mIds.size();
+            return new FenceCatalog(mIds.toArray(new String[size]),
+                    Arrays.copyOf(mLatitudes, size),
+                    Arrays.copyOf(mLongitudes, size),
+                    Arrays.copyOf(mRadii, size), mVersion);
+        }
+    }
+}
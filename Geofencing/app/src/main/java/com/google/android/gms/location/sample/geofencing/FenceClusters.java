@@ -0,0 +1,297 @@
+/**
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.android.gms.location.sample.geofencing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Groups overlapping fences into enclosing super-circles so a dense area uses a handful of
+ * Location Services registrations instead of one per fence. A fence that overlaps nothing stays
+ * a cluster of one and is registered as itself.
+ *
+ * A super-circle only reports crossing its own boundary, so while the device is inside one its
+ * members are evaluated locally by {@link ActiveRegionEvaluator}.
+ * {@link #resolve(int, double, double)} finds the members containing a single location.
+ */
+public final class FenceClusters {
+
+    /**
+     * Prefix of the request ids used to register super-circles. Reserved: catalog fences may
+     * not use it, see {@link CatalogDelta#isReservedId(String)}.
+     */
+    public static final String CLUSTER_ID_PREFIX = "cluster:";
+
+    private static final double METERS_PER_DEGREE = GeoMath.EARTH_RADIUS_IN_METERS * Math.PI / 180;
+
+    private final FenceCatalog mCatalog;
+    private final int[][] mMembers;
+    private final int[] mClusterOf;
+    private final FenceCatalog mRegistrations;
+
+    private FenceClusters(FenceCatalog catalog, int[][] members, FenceCatalog registrations) {
+        mCatalog = catalog;
+        mMembers = members;
+        mRegistrations = registrations;
+        mClusterOf = new int[catalog.size()];
+        for (int c = 0; c < members.length; c++) {
+            for (int fence : members[c]) {
+                mClusterOf[fence] = c;
+            }
+        }
+    }
+
+    /**
+     * Returns the clustering of the fences of {@link FenceCatalog#getDefault()} that are not
+     * inside any parent region.
+     */
+    public static FenceClusters getDefault() {
+        return FenceHierarchy.getDefault().getClusters();
+    }
+
+    /**
+     * Clusters a catalog greedily. Each unassigned fence seeds a cluster, which then takes in
+     * unassigned fences that overlap it, nearest first, as long as the enclosing circle stays
+     * within {@code maxRadiusMeters}. The result depends only on the catalog, so every component
+     * computing it agrees on cluster ids. A cluster's id is derived from the ids of its members,
+     * see {@link #clusterId}, so it keeps its id across rebuilds as long as its members stay the
+     * same.
+     */
+    public static FenceClusters build(FenceCatalog catalog, float maxRadiusMeters) {
+        int size = catalog.size();
+        double cellDegrees = maxRadiusMeters / METERS_PER_DEGREE;
+        HashMap<Long, List<Integer>> grid = new HashMap<Long, List<Integer>>();
+        for (int i = 0; i < size; i++) {
+            Long cell = cellKey((int) Math.floor(catalog.getLatitude(i) / cellDegrees),
+                    (int) Math.floor(catalog.getLongitude(i) / cellDegrees));
+            List<Integer> fences = grid.get(cell);
+            if (fences == null) {
+                fences = new ArrayList<Integer>(4);
+                grid.put(cell, fences);
+            }
+            fences.add(i);
+        }
+
+        boolean[] assigned = new boolean[size];
+        List<int[]> members = new ArrayList<int[]>();
+        FenceCatalog.Builder registrations = new FenceCatalog.Builder(size);
+        HashSet<String> clusterIds = new HashSet<String>();
+        double[] enclosing = new double[3];
+        for (int seed = 0; seed < size; seed++) {
+            if (assigned[seed]) {
+                continue;
+            }
+            assigned[seed] = true;
+            List<Integer> cluster = new ArrayList<Integer>();
+            cluster.add(seed);
+            enclose(catalog, cluster, enclosing);
+
+            for (int candidate : nearbyUnassigned(catalog, grid, cellDegrees, seed, assigned)) {
+                double distance = GeoMath.distanceMeters(enclosing[0], enclosing[1],
+                        catalog.getLatitude(candidate), catalog.getLongitude(candidate));
+                if (distance >= enclosing[2] + catalog.getRadius(candidate)) {
+                    continue;
+                }
+                // Adding the candidate moves the center towards it by distance / (k + 1), so the
+                // new radius is at least what remains of the distance plus the candidate's radius.
+                int k = cluster.size();
+                if (distance * k / (k + 1) + catalog.getRadius(candidate) > maxRadiusMeters) {
+                    continue;
+                }
+                cluster.add(candidate);
+                double[] grown = new double[3];
+                enclose(catalog, cluster, grown);
+                if (grown[2] > maxRadiusMeters) {
+                    cluster.remove(cluster.size() - 1);
+                    continue;
+                }
+                assigned[candidate] = true;
+                enclosing = grown;
+            }
+
+            int[] clusterMembers = new int[cluster.size()];
+            for (int i = 0; i < clusterMembers.length; i++) {
+                clusterMembers[i] = cluster.get(i);
+            }
+            Arrays.sort(clusterMembers);
+            if (clusterMembers.length == 1) {
+                registrations.add(catalog.getId(seed), catalog.getLatitude(seed),
+                        catalog.getLongitude(seed), catalog.getRadius(seed));
+            } else {
+                registrations.add(clusterId(catalog, clusterMembers, clusterIds), enclosing[0],
+                        enclosing[1], (float) Math.ceil(enclosing[2]));
+            }
+            members.add(clusterMembers);
+        }
+        return new FenceClusters(catalog, members.toArray(new int[members.size()][]),
+                registrations.build());
+    }
+
+    public FenceCatalog getCatalog() {
+        return mCatalog;
+    }
+
+    /**
+     * Returns what to register with Location Services: one entry per cluster, in cluster order.
+     * Clusters of one keep the fence's own request id.
+     */
+    public FenceCatalog getRegistrationCatalog() {
+        return mRegistrations;
+    }
+
+    public int size() {
+        return mMembers.length;
+    }
+
+    /**
+     * Returns the catalog indices of the fences in a cluster, in ascending order.
+     */
+    public int[] getMembers(int cluster) {
+        return mMembers[cluster];
+    }
+
+    public int getClusterOf(int fenceIndex) {
+        return mClusterOf[fenceIndex];
+    }
+
+    /**
+     * Returns the cluster registered under a request id, or -1 for an unknown id.
+     */
+    public int indexOfRegistration(String requestId) {
+        return mRegistrations.indexOf(requestId);
+    }
+
+    /**
+     * Returns the members of a cluster that contain the given point.
+     */
+    public int[] resolve(int cluster, double latitude, double longitude) {
+        int[] members = mMembers[cluster];
+        int[] inside = new int[members.length];
+        int count = 0;
+        for (int fence : members) {
+            if (mCatalog.contains(fence, latitude, longitude)) {
+                inside[count++] = fence;
+            }
+        }
+        return Arrays.copyOf(inside, count);
+    }
+
+    /**
+     * Returns the request id of a cluster: {@link #CLUSTER_ID_PREFIX} followed by a 64-bit
+     * FNV-1a hash of its members' ids in sorted order. In the unlikely event of a collision
+     * with an id already used, the hash is incremented until it is free.
+     */
+    private static String clusterId(FenceCatalog catalog, int[] members, HashSet<String> used) {
+        String[] ids = new String[members.length];
+        for (int i = 0; i < members.length; i++) {
+            ids[i] = catalog.getId(members[i]);
+        }
+        Arrays.sort(ids);
+        long hash = 0xcbf29ce484222325L;
+        for (String id : ids) {
+            for (int i = 0; i < id.length(); i++) {
+                hash = (hash ^ id.charAt(i)) * 0x100000001b3L;
+            }
+            // Separates the ids, so "ab","c" and "a","bc" hash differently.
+            hash = (hash ^ 0xffff) * 0x100000001b3L;
+        }
+        String id = CLUSTER_ID_PREFIX + Long.toHexString(hash);
+        while (!used.add(id)) {
+            id = CLUSTER_ID_PREFIX + Long.toHexString(++hash);
+        }
+        return id;
+    }
+
+    /**
+     * Computes an enclosing circle for the fences: centered on the mean of their centers, with a
+     * radius reaching the far edge of every fence. Not minimal, but cheap and stable.
+     */
+    private static void enclose(FenceCatalog catalog, List<Integer> fences, double[] out) {
+        double latitude = 0;
+        double longitude = 0;
+        for (int fence : fences) {
+            latitude += catalog.getLatitude(fence);
+            longitude += catalog.getLongitude(fence);
+        }
+        latitude /= fences.size();
+        longitude /= fences.size();
+        double radius = 0;
+        for (int fence : fences) {
+            radius = Math.max(radius, catalog.distanceToCenter(fence, latitude, longitude)
+                    + catalog.getRadius(fence));
+        }
+        out[0] = latitude;
+        out[1] = longitude;
+        out[2] = radius;
+    }
+
+    /**
+     * Returns the unassigned fences within two grid cells of the seed, nearest first.
+     */
+    private static List<Integer> nearbyUnassigned(final FenceCatalog catalog,
+            HashMap<Long, List<Integer>> grid, double cellDegrees, final int seed,
+            boolean[] assigned) {
+        double latitude = catalog.getLatitude(seed);
+        int row = (int) Math.floor(latitude / cellDegrees);
+        int column = (int) Math.floor(catalog.getLongitude(seed) / cellDegrees);
+        // Longitude degrees shrink towards the poles, so more columns cover the same distance.
+        int columnSpan = (int) Math.ceil(2 / Math.max(Math.cos(Math.toRadians(latitude)), 0.01));
+        List<Integer> nearby = new ArrayList<Integer>();
+        for (int r = row - 2; r <= row + 2; r++) {
+            for (int c = column - columnSpan; c <= column + columnSpan; c++) {
+                List<Integer> fences = grid.get(cellKey(r, c));
+                if (fences == null) {
+                    continue;
+                }
+                for (int fence : fences) {
+                    if (!assigned[fence]) {
+                        nearby.add(fence);
+                    }
+                }
+            }
+        }
+        final double[] distances = new double[nearby.size()];
+        Integer[] order = new Integer[nearby.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+            distances[i] = catalog.distanceToCenter(nearby.get(i), latitude,
+                    catalog.getLongitude(seed));
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Double.compare(distances[a], distances[b]);
+            }
+        });
+        // Grid cells are scanned in a fixed order and the sort is stable, so ties resolve the
+        // same way every time.
+        List<Integer> sorted = new ArrayList<Integer>(order.length);
+        for (Integer position : order) {
+            sorted.add(nearby.get(position));
+        }
+        return sorted;
+    }
+
+    private static Long cellKey(int row, int column) {
+        return ((long) row << 32) | (column & 0xffffffffL);
+    }
+}
@@ -0,0 +1,201 @@
+/**
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.android.gms.location.sample.geofencing;
+
+import com.google.android.gms.maps.model.LatLng;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Splits fences into coarse parent regions registered with Location Services and child fences
+ * that are evaluated locally, from raw fixes, only while the device is inside their parent. A
+ * child belongs to every parent that fully contains it.
+ *
+ * Children not contained by any parent are registered directly, merged by
+ * {@link FenceClusters} where they overlap. A cluster registration is a region too: while the
+ * device is inside it, its members are evaluated locally like the children of a parent.
+ */
+public final class FenceHierarchy {
+
+    /**
+     * Prefix of the request ids used to register parent regions. Reserved: catalog fences may
+     * not use it, see {@link CatalogDelta#isReservedId(String)}.
+     */
+    public static final String REGION_ID_PREFIX = "region:";
+
+    private static FenceHierarchy sDefault;
+
+    private final FenceCatalog mParents;
+    private final FenceCatalog mChildren;
+    private final int[][] mChildrenOf;
+    private final FenceClusters mClusters;
+    private final int[][] mClusterMembers;
+    private final FenceCatalog mRegistrations;
+
+    private FenceHierarchy(FenceCatalog parents, FenceCatalog children, int[][] childrenOf,
+            FenceClusters clusters, FenceCatalog registrations) {
+        mParents = parents;
+        mChildren = children;
+        mChildrenOf = childrenOf;
+        mClusters = clusters;
+        mRegistrations = registrations;
+        // Cluster members as child catalog indices, so clusters and parents share one index
+        // space. Members are sorted in the clustered catalog, which keeps the children's order.
+        mClusterMembers = new int[clusters.size()][];
+        FenceCatalog clustered = clusters.getCatalog();
+        for (int c = 0; c < clusters.size(); c++) {
+            int[] members = clusters.getMembers(c);
+            mClusterMembers[c] = new int[members.length];
+            for (int i = 0; i < members.length; i++) {
+                mClusterMembers[c][i] = children.indexOf(clustered.getId(members[i]));
+            }
+        }
+    }
+
+    /**
+     * Returns the hierarchy of {@link Constants#PARENT_REGIONS} over
+     * {@link FenceCatalog#getDefault()}, rebuilt whenever the default catalog is replaced.
+     */
+    public static synchronized FenceHierarchy getDefault() {
+        if (sDefault == null || sDefault.mChildren != FenceCatalog.getDefault()) {
+            FenceCatalog.Builder parents = new FenceCatalog.Builder(
+                    Constants.PARENT_REGIONS.size());
+            for (Map.Entry<String, LatLng> entry : Constants.PARENT_REGIONS.entrySet()) {
+                parents.add(REGION_ID_PREFIX + entry.getKey(), entry.getValue().latitude,
+                        entry.getValue().longitude, Constants.PARENT_REGION_RADIUS_IN_METERS);
+            }
+            sDefault = build(parents.build(), FenceCatalog.getDefault(),
+                    Constants.CLUSTER_MAX_RADIUS_IN_METERS);
+        }
+        return sDefault;
+    }
+
+    /**
+     * @param parents                Parent regions; request ids must not clash with children.
+     * @param children               Fences to place under the parents.
+     * @param clusterMaxRadiusMeters Cluster size limit for children outside every parent.
+     */
+    public static FenceHierarchy build(FenceCatalog parents, FenceCatalog children,
+            float clusterMaxRadiusMeters) {
+        List<List<Integer>> childrenOf = new ArrayList<List<Integer>>(parents.size());
+        for (int p = 0; p < parents.size(); p++) {
+            childrenOf.add(new ArrayList<Integer>());
+        }
+        FenceCatalog.Builder uncovered = new FenceCatalog.Builder(children.size());
+        for (int c = 0; c < children.size(); c++) {
+            boolean covered = false;
+            for (int p = 0; p < parents.size(); p++) {
+                double distance = parents.distanceToCenter(p, children.getLatitude(c),
+                        children.getLongitude(c));
+                if (distance + children.getRadius(c) <= parents.getRadius(p)) {
+                    childrenOf.get(p).add(c);
+                    covered = true;
+                }
+            }
+            if (!covered) {
+                uncovered.add(children.getId(c), children.getLatitude(c),
+                        children.getLongitude(c), children.getRadius(c));
+            }
+        }
+
+        int[][] childIndices = new int[parents.size()][];
+        for (int p = 0; p < parents.size(); p++) {
+            List<Integer> list = childrenOf.get(p);
+            childIndices[p] = new int[list.size()];
+            for (int i = 0; i < list.size(); i++) {
+                childIndices[p][i] = list.get(i);
+            }
+        }
+
+        FenceClusters clusters = FenceClusters.build(uncovered.build(), clusterMaxRadiusMeters);
+        FenceCatalog clustered = clusters.getRegistrationCatalog();
+        FenceCatalog.Builder registrations = new FenceCatalog.Builder(
+                parents.size() + clustered.size());
+        for (int p = 0; p < parents.size(); p++) {
+            registrations.add(parents.getId(p), parents.getLatitude(p), parents.getLongitude(p),
+                    parents.getRadius(p));
+        }
+        for (int i = 0; i < clustered.size(); i++) {
+            registrations.add(clustered.getId(i), clustered.getLatitude(i),
+                    clustered.getLongitude(i), clustered.getRadius(i));
+        }
+        return new FenceHierarchy(parents, children, childIndices, clusters,
+                registrations.setVersion(children.getVersion()).build());
+    }
+
+    public FenceCatalog getParents() {
+        return mParents;
+    }
+
+    /**
+     * Returns the catalog the child indices refer to.
+     */
+    public FenceCatalog getChildCatalog() {
+        return mChildren;
+    }
+
+    /**
+     * Returns the indices, in the child catalog, of the children of a parent.
+     */
+    public int[] getChildren(int parent) {
+        return mChildrenOf[parent];
+    }
+
+    /**
+     * Returns the parent registered under a request id, or -1 if it is not a parent.
+     */
+    public int indexOfParent(String requestId) {
+        return mParents.indexOf(requestId);
+    }
+
+    /**
+     * Returns the child fences evaluated locally while the device is inside a registration: the
+     * children of a parent region, or the members of a cluster. They are child catalog indices
+     * in increasing order.
+     *
+     * @return Null if the registration is a fence of its own, or unknown.
+     */
+    public int[] getLocalFences(String registrationId) {
+        if (registrationId.startsWith(REGION_ID_PREFIX)) {
+            int parent = mParents.indexOf(registrationId);
+            return parent >= 0 ? mChildrenOf[parent] : null;
+        }
+        if (registrationId.startsWith(FenceClusters.CLUSTER_ID_PREFIX)) {
+            int cluster = mClusters.indexOfRegistration(registrationId);
+            return cluster >= 0 ? mClusterMembers[cluster] : null;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the clustering of the children that are outside every parent.
+     */
+    public FenceClusters getClusters() {
+        return mClusters;
+    }
+
+    /**
+     * Returns what to register with Location Services: the parents, then the clustered
+     * uncovered children. It carries the version of the child catalog.
+     */
+    public FenceCatalog getRegistrationCatalog() {
+        return mRegistrations;
+    }
+}
@@ -0,0 +1,207 @@
+/**
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.location.sample.geofencing;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+/**
+ * The fence catalog downloaded by {@link CatalogSyncClient}, kept on disk so it survives
+ * restarts. The store tracks the catalog version and the ETag of the response it came from, and
+ * applies {@link CatalogDelta}s incrementally.
+ */
+public class FenceStore {
+
+    protected static final String TAG = "FenceStore";
+
+    private static final String FILE_NAME = "fence_catalog.bin";
+
+    private static FenceStore sInstance;
+
+    private final File mFile;
+    private final LinkedHashMap<String, CatalogDelta.Entry> mFences =
+            new LinkedHashMap<String, CatalogDelta.Entry>();
+    private long mVersion;
+    private String mETag;
+
+    /**
+     * Returns the store in the app's files directory. The first call loads it and, if a catalog
+     * has been synced before, makes it the {@link FenceCatalog#getDefault() default catalog}.
+     */
+    public static synchronized FenceStore getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new FenceStore(new File(context.getFilesDir(), FILE_NAME));
+            try {
+                sInstance.load();
+            } catch (IOException e) {
+                Log.e(TAG, "Discarding unreadable fence catalog", e);
+                sInstance.clear();
+            }
+            if (sInstance.getVersion() > 0) {
+                FenceCatalog.setDefault(sInstance.snapshot());
+            }
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param file Where the store is saved; it is not read until {@link #load()}.
+     */
+    public FenceStore(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Returns the catalog version held; 0 if nothing has been synced.
+     */
+    public synchronized long getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Returns the ETag of the response the catalog came from, or null.
+     */
+    public synchronized String getETag() {
+        return mETag;
+    }
+
+    public synchronized void setETag(String eTag) {
+        mETag = eTag;
+    }
+
+    /**
+     * Applies a delta. A snapshot replaces the catalog; any other delta must start at the
+     * version held.
+     *
+     * @return False, leaving the store unchanged, if the delta does not apply to this version.
+     */
+    public synchronized boolean apply(CatalogDelta delta) {
+        if (!delta.isSnapshot() && delta.getFromVersion() != mVersion) {
+            return false;
+        }
+        if (delta.isSnapshot()) {
+            mFences.clear();
+        }
+        for (CatalogDelta.Entry entry : delta.getEntries()) {
+            if (entry.op == CatalogDelta.OP_TOMBSTONE) {
+                mFences.remove(entry.id);
+            } else {
+                mFences.put(entry.id, entry);
+            }
+        }
+        mVersion = delta.getToVersion();
+        return true;
+    }
+
+    /**
+     * Applies a delta, records the ETag of the response it came in and saves the store. If the
+     * save fails, the store is left as it was.
+     *
+     * @return False, leaving the store unchanged, if the delta does not apply to this version.
+     * @throws IOException If the store could not be saved.
+     */
+    public synchronized boolean applyAndSave(CatalogDelta delta, String eTag) throws IOException {
+        LinkedHashMap<String, CatalogDelta.Entry> fences =
+                new LinkedHashMap<String, CatalogDelta.Entry>(mFences);
+        long version = mVersion;
+        String previousETag = mETag;
+        if (!apply(delta)) {
+            return false;
+        }
+        mETag = eTag;
+        boolean saved = false;
+        try {
+            save();
+            saved = true;
+        } finally {
+            if (!saved) {
+                mFences.clear();
+                mFences.putAll(fences);
+                mVersion = version;
+                mETag = previousETag;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the catalog held, tagged with its version.
+     */
+    public synchronized FenceCatalog snapshot() {
+        FenceCatalog.Builder builder = new FenceCatalog.Builder(mFences.size());
+        for (CatalogDelta.Entry entry : mFences.values()) {
+            builder.add(entry.id, entry.latitude, entry.longitude, entry.radius);
+        }
+        return builder.setVersion(mVersion).build();
+    }
+
+    /**
+     * Writes the store to its file, replacing the previous copy atomically.
+     */
+    public synchronized void save() throws IOException {
+        CatalogDelta snapshot = new CatalogDelta(0, mVersion,
+                new ArrayList<CatalogDelta.Entry>(mFences.values()));
+        byte[] payload = snapshot.encode();
+        File temp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(temp));
+        try {
+            out.writeUTF(mETag != null ? mETag : "");
+            out.writeInt(payload.length);
+            out.write(payload);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(mFile)) {
+            throw new IOException("Could not replace " + mFile);
+        }
+    }
+
+    /**
+     * Replaces the contents of the store with those of its file, if there is one.
+     */
+    public synchronized void load() throws IOException {
+        if (!mFile.exists()) {
+            return;
+        }
+        DataInputStream in = new DataInputStream(new FileInputStream(mFile));
+        try {
+            String eTag = in.readUTF();
+            byte[] payload = new byte[in.readInt()];
+            in.readFully(payload);
+            clear();
+            apply(CatalogDelta.decode(payload));
+            mETag = eTag.length() > 0 ? eTag : null;
+        } finally {
+            in.close();
+        }
+    }
+
+    private void clear() {
+        mFences.clear();
+        mVersion = 0;
+        mETag = null;
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.android.gms.location.sample.geofencing;
+
+import android.location.Location;
+import android.os.Looper;
+import android.util.Log;
+
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.location.LocationCallback;
+import com.google.android.gms.location.LocationRequest;
+import com.google.android.gms.location.LocationResult;
+import com.google.android.gms.location.LocationServices;
+
+import java.util.List;
+
+/**
+ * {@link LocationSource} backed by the fused location provider. Requests batched updates via
+ * {@link LocationRequest#setMaxWaitTime(long)}, so fixes gathered every {@code interval} are
+ * handed over together at most every {@code maxWaitTime}.
+ */
+public class FusedLocationSource implements LocationSource {
+
+    protected static final String TAG = "FusedLocationSource";
+
+    private final GoogleApiClient mGoogleApiClient;
+    private final LocationRequest mLocationRequest;
+    private final LocationBatch mBatch = new LocationBatch(16);
+    private Listener mListener;
+    private boolean mStarted;
+
+    private final LocationCallback mLocationCallback = new LocationCallback() {
+        @Override
+        public void onLocationResult(LocationResult result) {
+            Listener listener = mListener;
+            List<Location> locations = result.getLocations();
+            if (listener == null || locations == null || locations.isEmpty()) {
+                return;
+            }
+            mBatch.clear();
+            for (int i = 0; i < locations.size(); i++) {
+                Location location = locations.get(i);
+                mBatch.add(location.getLatitude(), location.getLongitude(),
+                        location.hasAccuracy() ? location.getAccuracy() : 0f, location.getTime());
+            }
+            listener.onLocationBatch(mBatch);
+        }
+    };
+
+    /**
+     * @param googleApiClient A client with the LocationServices API added.
+     * @param interval        Desired interval between fixes, in milliseconds.
+     * @param maxWaitTime     Longest time fixes may be held back before delivery, in
+     *                        milliseconds.
+     */
+    public FusedLocationSource(GoogleApiClient googleApiClient, long interval, long maxWaitTime) {
+        mGoogleApiClient = googleApiClient;
+        mLocationRequest = LocationRequest.create()
+                .setPriority(LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY)
+                .setInterval(interval)
+                .setFastestInterval(interval)
+                .setMaxWaitTime(maxWaitTime);
+    }
+
+    @Override
+    public void start(Listener listener) {
+        mListener = listener;
+        if (mStarted) {
+            return;
+        }
+        if (!mGoogleApiClient.isConnected()) {
+            Log.w(TAG, "GoogleApiClient not connected, location updates not requested");
+            return;
+        }
+        try {
+            // Callbacks run on the main looper; delivery is batched so this is rare.
+            LocationServices.FusedLocationApi.requestLocationUpdates(mGoogleApiClient,
+                    mLocationRequest, mLocationCallback, Looper.getMainLooper());
+            mStarted = true;
+        } catch (SecurityException securityException) {
+            Log.e(TAG, "Invalid location permission. " +
+                    "You need to use ACCESS_FINE_LOCATION for location updates", securityException);
+        }
+    }
+
+    @Override
+    public void stop() {
+        mListener = null;
+        if (!mStarted) {
+            return;
+        }
+        mStarted = false;
+        if (mGoogleApiClient.isConnected()) {
+            LocationServices.FusedLocationApi.removeLocationUpdates(mGoogleApiClient,
+                    mLocationCallback);
+        }
+    }
+}
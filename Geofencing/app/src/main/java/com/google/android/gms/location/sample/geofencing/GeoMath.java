@@ -0,0 +1,85 @@
+/**
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.android.gms.location.sample.geofencing;
+
+/**
+ * Spherical geometry helpers used when fences are evaluated locally rather than by Location
+ * Services.
+ */
+public final class GeoMath {
+
+    /**
+     * Mean radius of the earth, in meters.
+     */
+    public static final double EARTH_RADIUS_IN_METERS = 6371008.8;
+
+    /**
+     * Factor by which {@link #latitudeExtentDegrees} and {@link #longitudeExtentDegrees} widen
+     * a circle's bounding box, so rounding never leaves a point of the circle outside it.
+     */
+    private static final double BOX_PADDING = 1.001;
+
+    /**
+     * Prevents instantiation.
+     */
+    private GeoMath() {}
+
+    /**
+     * Returns the great-circle distance between two points using the haversine formula.
+     *
+     * @return The distance in meters.
+     */
+    public static double distanceMeters(double lat1, double lng1, double lat2, double lng2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLng = Math.toRadians(lng2 - lng1);
+        double sinLat = Math.sin(dLat / 2);
+        double sinLng = Math.sin(dLng / 2);
+        double a = sinLat * sinLat
+                + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * sinLng * sinLng;
+        return 2 * EARTH_RADIUS_IN_METERS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    /**
+     * Returns how far, in degrees of latitude, a circle reaches north and south of its center,
+     * padded slightly.
+     */
+    public static double latitudeExtentDegrees(double radiusMeters) {
+        return Math.toDegrees(radiusMeters * BOX_PADDING / EARTH_RADIUS_IN_METERS);
+    }
+
+    /**
+     * Returns how far, in degrees of longitude, a circle reaches east and west of its center,
+     * padded slightly; 180 if the circle covers a pole.
+     */
+    public static double longitudeExtentDegrees(double latitude, double radiusMeters) {
+        double angle = radiusMeters * BOX_PADDING / EARTH_RADIUS_IN_METERS;
+        double cosLatitude = Math.cos(Math.toRadians(latitude));
+        if (Math.abs(latitude) + Math.toDegrees(angle) >= 90 || Math.sin(angle) >= cosLatitude) {
+            return 180;
+        }
+        return Math.toDegrees(Math.asin(Math.sin(angle) / cosLatitude));
+    }
+
+    /**
+     * Returns a longitude in [-180, 180).
+     */
+    public static double wrapLongitude(double longitude) {
+        double wrapped = (longitude + 180) % 360;
+        return (wrapped < 0 ? wrapped + 360 : wrapped) - 180;
+    }
+}
@@ -19,6 +19,7 @@ package com.google.android.gms.location.sample.geofencing;
 import android.content.Context;
 import android.content.res.Resources;
 
+import com.google.android.gms.common.api.CommonStatusCodes;
 import com.google.android.gms.location.GeofenceStatusCodes;
 
 /**
@@ -46,4 +47,23 @@ public class GeofenceErrorMessages {
                 return mResources.getString(R.string.unknown_geofence_error);
         }
     }
+
+    /**
+     * Returns true if a call that failed with this error code may succeed when retried later.
+     * Only the geofence service being unavailable (for example while location is turned off)
+     * and transient transport failures qualify. Everything else, including registration limits,
+     * developer errors, a disconnected client and codes not listed here, is fatal; retrying it
+     * only wastes calls.
+     */
+    public static boolean isRetryable(int errorCode) {
+        switch (errorCode) {
+            case GeofenceStatusCodes.GEOFENCE_NOT_AVAILABLE:
+            case CommonStatusCodes.TIMEOUT:
+            case CommonStatusCodes.NETWORK_ERROR:
+            case CommonStatusCodes.INTERNAL_ERROR:
+                return true;
+            default:
+                return false;
+        }
+    }
 }
@@ -0,0 +1,82 @@
+/**
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.android.gms.location.sample.geofencing;
+
+/**
+ * Maps a geofence event reported for a registration to what it means for the fences: a plain
+ * fence stands for itself, while a parent region or a cluster super-circle switches local
+ * evaluation of the fences inside it on or off.
+ *
+ * A super-circle cannot say which of its members the device is in, nor report member
+ * transitions while the device stays inside it, so its members are evaluated locally from raw
+ * fixes, like the children of a parent region; see {@link ActiveRegionEvaluator}.
+ *
+ * Uses no Android classes, so the same routing runs in {@link GeofenceTransitionsIntentService}
+ * and, on the JVM, in {@code TraceReplaySimulator}.
+ */
+public class GeofenceEventRouter {
+
+    /**
+     * Receives the outcome of routing an event.
+     */
+    public interface Sink {
+        /**
+         * A fence transitioned.
+         *
+         * @param registrationId The registration that fired, which is the fence itself. Null
+         *                       for fences evaluated locally.
+         */
+        void onFenceTransition(String requestId, int transition, String registrationId);
+
+        /**
+         * A parent region or a cluster was entered, dwelled in or exited.
+         *
+         * @param registrationId Its request id, see {@link FenceHierarchy#getLocalFences}.
+         */
+        void onRegionTransition(String registrationId, int transition);
+
+        /**
+         * An event could not be mapped to any fence.
+         */
+        void onUnresolved(String registrationId, String reason);
+    }
+
+    private final FenceHierarchy mHierarchy;
+
+    public GeofenceEventRouter(FenceHierarchy hierarchy) {
+        mHierarchy = hierarchy;
+    }
+
+    public FenceHierarchy getHierarchy() {
+        return mHierarchy;
+    }
+
+    /**
+     * Routes one triggering registration of an event.
+     */
+    public void route(int transition, String registrationId, Sink sink) {
+        boolean region = registrationId.startsWith(FenceHierarchy.REGION_ID_PREFIX);
+        if (!region && !registrationId.startsWith(FenceClusters.CLUSTER_ID_PREFIX)) {
+            sink.onFenceTransition(registrationId, transition, registrationId);
+        } else if (mHierarchy.getLocalFences(registrationId) == null) {
+            sink.onUnresolved(registrationId, region ? "unknown region" : "unknown cluster");
+        } else {
+            sink.onRegionTransition(registrationId, transition);
+        }
+    }
+}
@@ -0,0 +1,489 @@
+/**
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.location.sample.geofencing;
+
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes the fence transitions handled by {@link GeofenceTransitionsIntentService} to any
+ * number of subscribers, such as notifications, analytics or a journal.
+ *
+ * Every subscription has its own bounded queue and delivery thread, so publishing only enqueues
+ * and a slow subscriber delays no one but itself. What happens when its queue is full is chosen
+ * per subscription: {@link #DROP_NEWEST} drops the new event, {@link #DROP_OLDEST} drops the
+ * oldest queued one so the latest events are kept, and {@link #BLOCK} makes the publisher wait
+ * for room, for subscribers that should see every event. The wait is bounded: a publisher
+ * blocked longer than {@link Constants#EVENT_STREAM_MAX_BLOCK_TIME_IN_MILLISECONDS} drops the
+ * event, so a stuck subscriber cannot stall the transition lanes publishing to it, or the
+ * subscriptions after it.
+ *
+ * A subscription may also be awaited: {@link #publish(TransitionEvent, Runnable)} then reports
+ * completion only once every awaited subscription has delivered or dropped the event, so a
+ * service can stay started until, for example, its notification is posted.
+ */
+public final class GeofenceEventStream {
+
+    protected static final String TAG = "GeofenceEventStream";
+
+    public static final int DROP_NEWEST = 0;
+    public static final int DROP_OLDEST = 1;
+    public static final int BLOCK = 2;
+
+    /**
+     * How often a publisher blocked by a {@link #BLOCK} subscription checks whether it was
+     * cancelled.
+     */
+    private static final long BLOCK_POLL_MILLIS = 100;
+
+    private static final GeofenceEventStream sInstance = new GeofenceEventStream();
+
+    private final long mMaxBlockMillis;
+
+    /**
+     * A transition of one fence.
+     */
+    public static final class TransitionEvent {
+        private final String mRequestId;
+        private final int mTransition;
+        private final long mTime;
+        private final boolean mHasLocation;
+        private final double mLatitude;
+        private final double mLongitude;
+        private final float mAccuracy;
+
+        /**
+         * @param transition  One of the {@code Geofence.GEOFENCE_TRANSITION_*} constants.
+         * @param hasLocation Whether there was a triggering location; if not, the coordinates
+         *                    and accuracy are ignored.
+         * @param accuracy    Accuracy of the triggering location in meters, or 0 if unknown.
+         */
+        public TransitionEvent(String requestId, int transition, long time, boolean hasLocation,
+                double latitude, double longitude, float accuracy) {
+            mRequestId = requestId;
+            mTransition = transition;
+            mTime = time;
+            mHasLocation = hasLocation;
+            mLatitude = latitude;
+            mLongitude = longitude;
+            mAccuracy = accuracy;
+        }
+
+        public String getRequestId() {
+            return mRequestId;
+        }
+
+        public int getTransition() {
+            return mTransition;
+        }
+
+        public long getTime() {
+            return mTime;
+        }
+
+        public boolean hasLocation() {
+            return mHasLocation;
+        }
+
+        public double getLatitude() {
+            return mLatitude;
+        }
+
+        public double getLongitude() {
+            return mLongitude;
+        }
+
+        public float getAccuracy() {
+            return mAccuracy;
+        }
+
+        @Override
+        public String toString() {
+            return "TransitionEvent{" + mRequestId + ", transition=" + mTransition + ", time="
+                    + mTime + "}";
+        }
+    }
+
+    /**
+     * Receives events on the delivery thread of its subscription, one at a time and in the
+     * order they were published.
+     */
+    public interface Subscriber {
+        void onEvent(TransitionEvent event);
+    }
+
+    /**
+     * Selects the events a subscription receives. Runs on the publishing thread; keep it cheap.
+     */
+    public interface Filter {
+        boolean accept(TransitionEvent event);
+    }
+
+    /**
+     * Accepts every event.
+     */
+    public static final Filter ALL = new Filter() {
+        @Override
+        public boolean accept(TransitionEvent event) {
+            return true;
+        }
+    };
+
+    /**
+     * Returns a filter accepting only events of the given transition types.
+     */
+    public static Filter forTransitions(int... transitions) {
+        int mask = 0;
+        for (int transition : transitions) {
+            mask |= transition;
+        }
+        final int transitionMask = mask;
+        return new Filter() {
+            @Override
+            public boolean accept(TransitionEvent event) {
+                return (event.getTransition() & transitionMask) != 0;
+            }
+        };
+    }
+
+    /**
+     * Returns a filter accepting only events of the given fences.
+     */
+    public static Filter forFences(Collection<String> requestIds) {
+        final HashSet<String> fences = new HashSet<String>(requestIds);
+        return new Filter() {
+            @Override
+            public boolean accept(TransitionEvent event) {
+                return fences.contains(event.getRequestId());
+            }
+        };
+    }
+
+    public static Filter forFences(String... requestIds) {
+        return forFences(Arrays.asList(requestIds));
+    }
+
+    /**
+     * Counts the awaited deliveries of one published event still outstanding, plus one for the
+     * publisher until it has offered the event everywhere, and runs a callback when none are
+     * left.
+     */
+    private static final class Completion {
+        private final AtomicInteger mRemaining = new AtomicInteger(1);
+        private final Runnable mDone;
+
+        Completion(Runnable done) {
+            mDone = done;
+        }
+
+        void acquire() {
+            mRemaining.incrementAndGet();
+        }
+
+        void release() {
+            if (mRemaining.decrementAndGet() == 0) {
+                mDone.run();
+            }
+        }
+    }
+
+    /**
+     * An event queued for a subscription, with the completion to release once it is delivered
+     * or dropped; null if the subscription is not awaited.
+     */
+    private static final class Delivery {
+        final TransitionEvent mEvent;
+        final Completion mCompletion;
+
+        Delivery(TransitionEvent event, Completion completion) {
+            mEvent = event;
+            mCompletion = completion;
+        }
+
+        void finish() {
+            if (mCompletion != null) {
+                mCompletion.release();
+            }
+        }
+    }
+
+    /**
+     * A subscriber's queue and delivery thread.
+     */
+    public static final class Subscription implements Runnable {
+        private final String mName;
+        private final Filter mFilter;
+        private final int mPolicy;
+        private final boolean mAwaited;
+        private final Subscriber mSubscriber;
+        private final ArrayBlockingQueue<Delivery> mQueue;
+        private final Thread mThread;
+        private final long mMaxBlockMillis;
+        private final AtomicLong mAccepted = new AtomicLong();
+        private final AtomicLong mDelivered = new AtomicLong();
+        private final AtomicLong mDropped = new AtomicLong();
+        private volatile boolean mCancelled;
+
+        private Subscription(String name, Filter filter, int capacity, int policy,
+                boolean awaited, long maxBlockMillis, Subscriber subscriber) {
+            mName = name;
+            mFilter = filter;
+            mPolicy = policy;
+            mAwaited = awaited;
+            mSubscriber = subscriber;
+            mQueue = new ArrayBlockingQueue<Delivery>(capacity);
+            mThread = new Thread(this, TAG + "-" + name);
+            mThread.setDaemon(true);
+            mMaxBlockMillis = maxBlockMillis;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * Returns the number of events published that passed the filter. Each is eventually
+         * delivered or dropped.
+         */
+        public long getAcceptedCount() {
+            return mAccepted.get();
+        }
+
+        public long getDeliveredCount() {
+            return mDelivered.get();
+        }
+
+        public long getDroppedCount() {
+            return mDropped.get();
+        }
+
+        public int getQueuedCount() {
+            return mQueue.size();
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        public boolean isAwaited() {
+            return mAwaited;
+        }
+
+        /**
+         * Enqueues an event according to the overflow policy.
+         *
+         * @param completion Released once the event is delivered or dropped, if it is accepted
+         *                   and the subscription is awaited; may be null.
+         */
+        void offer(TransitionEvent event, Completion completion) {
+            if (mCancelled || !mFilter.accept(event)) {
+                return;
+            }
+            mAccepted.incrementAndGet();
+            if (!mAwaited) {
+                completion = null;
+            } else if (completion != null) {
+                completion.acquire();
+            }
+            Delivery delivery = new Delivery(event, completion);
+            switch (mPolicy) {
+                case DROP_NEWEST:
+                    if (!mQueue.offer(delivery)) {
+                        drop(delivery);
+                    }
+                    break;
+                case DROP_OLDEST:
+                    while (!mQueue.offer(delivery)) {
+                        Delivery oldest = mQueue.poll();
+                        if (oldest != null) {
+                            drop(oldest);
+                        }
+                    }
+                    break;
+                default:
+                    try {
+                        long deadline = System.nanoTime()
+                                + TimeUnit.MILLISECONDS.toNanos(mMaxBlockMillis);
+                        long remaining = mMaxBlockMillis;
+                        while (!mQueue.offer(delivery, Math.min(remaining, BLOCK_POLL_MILLIS),
+                                TimeUnit.MILLISECONDS)) {
+                            if (mCancelled) {
+                                drop(delivery);
+                                return;
+                            }
+                            remaining = TimeUnit.NANOSECONDS.toMillis(
+                                    deadline - System.nanoTime());
+                            if (remaining <= 0) {
+                                Log.w(TAG, mName + " still full after " + mMaxBlockMillis
+                                        + " ms, dropping " + event);
+                                drop(delivery);
+                                break;
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        drop(delivery);
+                        Thread.currentThread().interrupt();
+                    }
+                    break;
+            }
+            if (mCancelled) {
+                // The delivery thread may have stopped before the event was queued.
+                discardQueued();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (!mCancelled) {
+                Delivery delivery;
+                try {
+                    delivery = mQueue.take();
+                } catch (InterruptedException e) {
+                    break;
+                }
+                try {
+                    mSubscriber.onEvent(delivery.mEvent);
+                    mDelivered.incrementAndGet();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, mName + " failed on " + delivery.mEvent, e);
+                } finally {
+                    delivery.finish();
+                }
+            }
+            discardQueued();
+        }
+
+        private void drop(Delivery delivery) {
+            mDropped.incrementAndGet();
+            delivery.finish();
+        }
+
+        private void discardQueued() {
+            Delivery delivery;
+            while ((delivery = mQueue.poll()) != null) {
+                delivery.finish();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return mName + "{delivered=" + mDelivered + ", dropped=" + mDropped + ", queued="
+                    + mQueue.size() + "}";
+        }
+    }
+
+    private final CopyOnWriteArrayList<Subscription> mSubscriptions =
+            new CopyOnWriteArrayList<Subscription>();
+
+    public GeofenceEventStream() {
+        this(Constants.EVENT_STREAM_MAX_BLOCK_TIME_IN_MILLISECONDS);
+    }
+
+    /**
+     * @param maxBlockMillis Longest a publisher waits for room in a full {@link #BLOCK}
+     *                       subscription before dropping the event.
+     */
+    GeofenceEventStream(long maxBlockMillis) {
+        mMaxBlockMillis = maxBlockMillis;
+    }
+
+    public static GeofenceEventStream getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Subscribes to the events accepted by a filter, delivered on a new thread.
+     *
+     * @param name     Names the delivery thread and the subscription in logs.
+     * @param capacity The most events queued for the subscriber.
+     * @param policy   {@link #DROP_NEWEST}, {@link #DROP_OLDEST} or {@link #BLOCK}.
+     */
+    public Subscription subscribe(String name, Filter filter, int capacity, int policy,
+            Subscriber subscriber) {
+        return subscribe(name, filter, capacity, policy, false, subscriber);
+    }
+
+    /**
+     * Subscribes to the events accepted by a filter, delivered on a new thread.
+     *
+     * @param awaited Whether {@link #publish(TransitionEvent, Runnable)} waits for this
+     *                subscription to deliver or drop the event before reporting completion.
+     */
+    public Subscription subscribe(String name, Filter filter, int capacity, int policy,
+            boolean awaited, Subscriber subscriber) {
+        if (policy != DROP_NEWEST && policy != DROP_OLDEST && policy != BLOCK) {
+            throw new IllegalArgumentException("Unknown overflow policy " + policy);
+        }
+        Subscription subscription =
+                new Subscription(name, filter, capacity, policy, awaited, mMaxBlockMillis,
+                        subscriber);
+        subscription.mThread.start();
+        mSubscriptions.add(subscription);
+        return subscription;
+    }
+
+    /**
+     * Stops delivering to a subscription. Events still queued are discarded, and publishers
+     * blocked by it give up within {@link #BLOCK_POLL_MILLIS}.
+     */
+    public void unsubscribe(Subscription subscription) {
+        mSubscriptions.remove(subscription);
+        subscription.mCancelled = true;
+        subscription.mThread.interrupt();
+    }
+
+    /**
+     * Hands an event to every subscription. Returns once it is queued or dropped everywhere,
+     * which only waits if a {@link #BLOCK} subscription is full, and then for at most the
+     * maximum block time per full subscription.
+     */
+    public void publish(TransitionEvent event) {
+        for (Subscription subscription : mSubscriptions) {
+            subscription.offer(event, null);
+        }
+    }
+
+    /**
+     * Hands an event to every subscription, and runs {@code done} once every awaited
+     * subscription that accepted it has delivered or dropped it. {@code done} runs exactly once:
+     * on the calling thread if no awaited subscription accepted the event, otherwise on the
+     * delivery thread that finishes last.
+     */
+    public void publish(TransitionEvent event, Runnable done) {
+        Completion completion = new Completion(done);
+        try {
+            for (Subscription subscription : mSubscriptions) {
+                subscription.offer(event, completion);
+            }
+        } finally {
+            completion.release();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return TAG + mSubscriptions;
+    }
+}
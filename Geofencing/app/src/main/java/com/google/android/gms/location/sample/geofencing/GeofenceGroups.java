@@ -0,0 +1,452 @@
+/**
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.location.sample.geofencing;
+
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.location.Location;
+import android.util.Log;
+
+import com.google.android.gms.common.api.CommonStatusCodes;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.common.api.PendingResult;
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.common.api.Status;
+import com.google.android.gms.location.Geofence;
+import com.google.android.gms.location.GeofencingRequest;
+import com.google.android.gms.location.LocationServices;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Named groups of geofences registered separately from the app's main catalog, for example one
+ * group per product. Each group is registered with its own PendingIntent, so a whole group is
+ * paused, resumed or removed with a single GeofencingApi call and never touches the
+ * registrations of another group.
+ *
+ * Events of a group reach {@link GeofenceTransitionsIntentService} with the group name in
+ * {@link Constants#EXTRA_GEOFENCE_GROUP}, and are handed to the {@link Handler} set for the group
+ * without looking up request ids.
+ *
+ * Request ids must be unique across the main catalog and every group. Group geofences never
+ * expire; they stay registered until their group is paused or removed. The groups' fences and
+ * paused flags are saved to a file after every change, so a group can still be pruned, paused
+ * or removed after the process restarts; handlers are not saved and must be set again.
+ *
+ * Pause, resume, remove and the add of a swap share one key per group in the
+ * {@link GeofenceRetryScheduler}, so the latest supersedes a pending one. The prunes of a swap
+ * are keyed by the fences they remove and tracked per group; adding a fence back cancels any
+ * pending prune of it, so a late prune never removes a fence the group has again.
+ *
+ * Call from the main thread.
+ */
+public class GeofenceGroups {
+
+    protected static final String TAG = "GeofenceGroups";
+
+    private static final String FILE_NAME = "fence_groups.bin";
+
+    private static GeofenceGroups sInstance;
+
+    /**
+     * Handles the transitions of one group.
+     */
+    public interface Handler {
+        /**
+         * @param requestIds The fences of the group that triggered.
+         * @param location   The triggering location, or null.
+         */
+        void onGroupTransition(String group, int transition, List<String> requestIds,
+                Location location);
+    }
+
+    private static final class Group {
+        final String mName;
+        GeofencePolicyEngine mPolicyEngine;
+        boolean mPaused;
+        Handler mHandler;
+
+        /**
+         * The request ids each pending prune removes, by scheduler key.
+         */
+        final HashMap<String, List<String>> mPrunes = new HashMap<String, List<String>>();
+
+        Group(String name) {
+            mName = name;
+        }
+    }
+
+    private final Context mContext;
+    private final File mFile;
+    private final GeofenceRetryScheduler mScheduler;
+    private final HashMap<String, Group> mGroups = new HashMap<String, Group>();
+
+    public static synchronized GeofenceGroups getInstance(Context context) {
+        if (sInstance == null) {
+            Context appContext = context.getApplicationContext();
+            sInstance = new GeofenceGroups(appContext,
+                    new File(appContext.getFilesDir(), FILE_NAME),
+                    GeofenceRetryScheduler.getInstance());
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param file      Where the groups are saved.
+     * @param scheduler Runs the GeofencingApi calls.
+     */
+    GeofenceGroups(Context context, File file, GeofenceRetryScheduler scheduler) {
+        mContext = context;
+        mFile = file;
+        mScheduler = scheduler;
+        try {
+            load();
+        } catch (IOException e) {
+            Log.e(TAG, "Discarding unreadable fence groups", e);
+            mGroups.clear();
+        }
+    }
+
+    /**
+     * Returns the names of the groups, sorted.
+     */
+    public synchronized Set<String> getGroupNames() {
+        return new TreeSet<String>(mGroups.keySet());
+    }
+
+    /**
+     * Returns the fences of a group, or null if there is no such group.
+     */
+    public synchronized FenceCatalog getFences(String group) {
+        Group g = mGroups.get(group);
+        return g != null ? g.mPolicyEngine.getCatalog() : null;
+    }
+
+    public synchronized boolean isPaused(String group) {
+        Group g = mGroups.get(group);
+        return g != null && g.mPaused;
+    }
+
+    /**
+     * Sets the handler for the transitions of a group. Without one, they are handled like the
+     * transitions of the main catalog.
+     */
+    public synchronized void setHandler(String group, Handler handler) {
+        getOrCreate(group).mHandler = handler;
+    }
+
+    /**
+     * Returns the handler set for a group, or null.
+     */
+    public synchronized Handler getHandler(String group) {
+        Group g = mGroups.get(group);
+        return g != null ? g.mHandler : null;
+    }
+
+    /**
+     * Replaces the fences of a group, creating the group if needed. Fences that stay or change
+     * are re-added in one call; fences no longer in the group are removed in another. A paused
+     * group stays paused and is not re-added, but dropped fences are still removed: resuming
+     * supersedes the pause's call if it has not gone through yet.
+     *
+     * @throws IllegalArgumentException If a request id is already used outside the group.
+     */
+    public synchronized void swap(GoogleApiClient googleApiClient, String group,
+            FenceCatalog fences, ResultCallback<Status> callback) {
+        checkIdsAreFree(group, fences);
+        Group g = getOrCreate(group);
+        FenceCatalog previous = g.mPolicyEngine.getCatalog();
+        g.mPolicyEngine = new GeofencePolicyEngine(fences, GeofencePolicyEngine.DEFAULT_BUCKETS);
+        for (int i = 0; i < fences.size(); i++) {
+            g.mPolicyEngine.setExpirationDuration(i, Geofence.NEVER_EXPIRE);
+        }
+        save();
+        if (fences.size() == 0 && !g.mPaused) {
+            submitRemoveAll(googleApiClient, group, callback);
+            return;
+        }
+        List<String> removed = fences.removedSince(previous);
+        if (!removed.isEmpty()) {
+            submitRemoveIds(googleApiClient, g, removed);
+        }
+        if (!g.mPaused) {
+            submitAdd(googleApiClient, g, callback);
+        }
+    }
+
+    /**
+     * Unregisters every fence of a group in one call, keeping the group so it can be resumed.
+     * The call is made even for a group that is unknown or already paused, so registrations
+     * left behind by an earlier process are cleared too.
+     */
+    public synchronized void pause(GoogleApiClient googleApiClient, String group,
+            ResultCallback<Status> callback) {
+        Group g = mGroups.get(group);
+        if (g != null && !g.mPaused) {
+            g.mPaused = true;
+            save();
+        }
+        submitRemoveAll(googleApiClient, group, callback);
+    }
+
+    /**
+     * Registers every fence of a paused group again in one call.
+     */
+    public synchronized void resume(GoogleApiClient googleApiClient, String group,
+            ResultCallback<Status> callback) {
+        Group g = mGroups.get(group);
+        if (g == null || !g.mPaused) {
+            return;
+        }
+        g.mPaused = false;
+        save();
+        if (g.mPolicyEngine.getCatalog().size() > 0) {
+            submitAdd(googleApiClient, g, callback);
+        }
+    }
+
+    /**
+     * Unregisters every fence of a group in one call and forgets the group. Like
+     * {@link #pause}, the call is made even for a group that is unknown or paused.
+     */
+    public synchronized void remove(GoogleApiClient googleApiClient, String group,
+            ResultCallback<Status> callback) {
+        if (mGroups.remove(group) != null) {
+            save();
+        }
+        submitRemoveAll(googleApiClient, group, callback);
+    }
+
+    /**
+     * Returns the PendingIntent a group is registered with. Each group gets its own action and
+     * request code, so the intents of two groups are never equal, and carries its name in
+     * {@link Constants#EXTRA_GEOFENCE_GROUP}.
+     */
+    public PendingIntent getPendingIntent(String group) {
+        Intent intent = new Intent(mContext, GeofenceTransitionsIntentService.class)
+                .setAction(Constants.ACTION_GEOFENCE_GROUP_EVENT + "." + group)
+                .putExtra(Constants.EXTRA_GEOFENCE_GROUP, group);
+        return PendingIntent.getService(mContext, group.hashCode(), intent,
+                PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    private Group getOrCreate(String group) {
+        Group g = mGroups.get(group);
+        if (g == null) {
+            g = new Group(group);
+            g.mPolicyEngine = new GeofencePolicyEngine(new FenceCatalog.Builder(0).build(),
+                    GeofencePolicyEngine.DEFAULT_BUCKETS);
+            mGroups.put(group, g);
+        }
+        return g;
+    }
+
+    /**
+     * Writes the groups to their file, replacing the previous copy atomically. A failure is
+     * logged; the groups stay as they are in memory.
+     */
+    private void save() {
+        File temp = new File(mFile.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(temp));
+            try {
+                out.writeInt(mGroups.size());
+                for (Group g : mGroups.values()) {
+                    FenceCatalog fences = g.mPolicyEngine.getCatalog();
+                    out.writeUTF(g.mName);
+                    out.writeBoolean(g.mPaused);
+                    out.writeInt(fences.size());
+                    for (int i = 0; i < fences.size(); i++) {
+                        out.writeUTF(fences.getId(i));
+                        out.writeDouble(fences.getLatitude(i));
+                        out.writeDouble(fences.getLongitude(i));
+                        out.writeFloat(fences.getRadius(i));
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(mFile)) {
+                throw new IOException("Could not replace " + mFile);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not save fence groups", e);
+        }
+    }
+
+    /**
+     * Reads the groups saved by {@link #save}, if there are any.
+     */
+    private void load() throws IOException {
+        if (!mFile.exists()) {
+            return;
+        }
+        DataInputStream in = new DataInputStream(new FileInputStream(mFile));
+        try {
+            int groups = in.readInt();
+            for (int n = 0; n < groups; n++) {
+                Group g = getOrCreate(in.readUTF());
+                g.mPaused = in.readBoolean();
+                int size = in.readInt();
+                FenceCatalog.Builder builder = new FenceCatalog.Builder(size);
+                for (int i = 0; i < size; i++) {
+                    builder.add(in.readUTF(), in.readDouble(), in.readDouble(), in.readFloat());
+                }
+                g.mPolicyEngine = new GeofencePolicyEngine(builder.build(),
+                        GeofencePolicyEngine.DEFAULT_BUCKETS);
+                for (int i = 0; i < size; i++) {
+                    g.mPolicyEngine.setExpirationDuration(i, Geofence.NEVER_EXPIRE);
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void checkIdsAreFree(String group, FenceCatalog fences) {
+        FenceCatalog main = GeofencePolicyEngine.getInstance().getCatalog();
+        for (int i = 0; i < fences.size(); i++) {
+            String requestId = fences.getId(i);
+            if (main.indexOf(requestId) >= 0) {
+                throw new IllegalArgumentException(requestId + " is in the main catalog");
+            }
+            for (Group other : mGroups.values()) {
+                if (!other.mName.equals(group)
+                        && other.mPolicyEngine.getCatalog().indexOf(requestId) >= 0) {
+                    throw new IllegalArgumentException(requestId + " is in group " + other.mName);
+                }
+            }
+        }
+    }
+
+    /**
+     * Registers every fence of a group, after cancelling the pending prunes of any of them.
+     */
+    private void submitAdd(final GoogleApiClient googleApiClient, Group g,
+            ResultCallback<Status> callback) {
+        final List<Geofence> geofences = new ArrayList<Geofence>();
+        HashSet<String> requestIds = new HashSet<String>();
+        for (int i = 0; i < g.mPolicyEngine.getCatalog().size(); i++) {
+            geofences.add(g.mPolicyEngine.buildGeofence(i));
+            requestIds.add(g.mPolicyEngine.getCatalog().getId(i));
+        }
+        cancelPrunes(googleApiClient, g, requestIds);
+        final PendingIntent pendingIntent = getPendingIntent(g.mName);
+        mScheduler.submit("group:" + g.mName,
+                new GeofenceRetryScheduler.Call() {
+                    @Override
+                    public PendingResult<Status> start() {
+                        GeofencingRequest.Builder builder = new GeofencingRequest.Builder();
+                        builder.setInitialTrigger(GeofencingRequest.INITIAL_TRIGGER_DWELL);
+                        builder.addGeofences(geofences);
+                        return LocationServices.GeofencingApi.addGeofences(googleApiClient,
+                                builder.build(), pendingIntent);
+                    }
+                }, callback != null ? callback : mLogFailureCallback);
+    }
+
+    /**
+     * Unregisters every geofence of a group through its PendingIntent. Shares its key with
+     * {@link #submitAdd}, so the latest lifecycle call of a group supersedes a pending one.
+     */
+    private void submitRemoveAll(final GoogleApiClient googleApiClient, String group,
+            ResultCallback<Status> callback) {
+        final PendingIntent pendingIntent = getPendingIntent(group);
+        mScheduler.submit("group:" + group,
+                new GeofenceRetryScheduler.Call() {
+                    @Override
+                    public PendingResult<Status> start() {
+                        return LocationServices.GeofencingApi.removeGeofences(googleApiClient,
+                                pendingIntent);
+                    }
+                }, callback != null ? callback : mLogFailureCallback);
+    }
+
+    /**
+     * Unregisters some geofences of a group by request id, tracking the call in the group's
+     * pending prunes until it finishes.
+     */
+    private void submitRemoveIds(final GoogleApiClient googleApiClient, final Group g,
+            final List<String> requestIds) {
+        final String key = GeofenceRetryScheduler.key("group-prune:" + g.mName, requestIds);
+        g.mPrunes.put(key, requestIds);
+        mScheduler.submit(key,
+                new GeofenceRetryScheduler.Call() {
+                    @Override
+                    public PendingResult<Status> start() {
+                        return LocationServices.GeofencingApi.removeGeofences(googleApiClient,
+                                requestIds);
+                    }
+                }, new ResultCallback<Status>() {
+                    @Override
+                    public void onResult(Status status) {
+                        synchronized (GeofenceGroups.this) {
+                            if (g.mPrunes.get(key) == requestIds) {
+                                g.mPrunes.remove(key);
+                            }
+                        }
+                        mLogFailureCallback.onResult(status);
+                    }
+                });
+    }
+
+    /**
+     * Cancels the pending prunes of a group that would remove any of {@code requestIds}. The
+     * fences a cancelled prune removes besides those are pruned again in a new call.
+     */
+    private void cancelPrunes(GoogleApiClient googleApiClient, Group g,
+            HashSet<String> requestIds) {
+        List<String> keys = new ArrayList<String>();
+        for (String key : g.mPrunes.keySet()) {
+            if (!Collections.disjoint(g.mPrunes.get(key), requestIds)) {
+                keys.add(key);
+            }
+        }
+        for (String key : keys) {
+            List<String> remaining = new ArrayList<String>(g.mPrunes.remove(key));
+            remaining.removeAll(requestIds);
+            Log.i(TAG, "Cancelling " + key + ", its fences are being added back");
+            mScheduler.cancel(key);
+            if (!remaining.isEmpty()) {
+                submitRemoveIds(googleApiClient, g, remaining);
+            }
+        }
+    }
+
+    private final ResultCallback<Status> mLogFailureCallback = new ResultCallback<Status>() {
+        @Override
+        public void onResult(Status status) {
+            if (!status.isSuccess() && status.getStatusCode() != CommonStatusCodes.CANCELED) {
+                Log.e(TAG, GeofenceErrorMessages.getErrorString(mContext,
+                        status.getStatusCode()));
+            }
+        }
+    };
+}
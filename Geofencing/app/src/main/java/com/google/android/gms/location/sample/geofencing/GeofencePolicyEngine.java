@@ -0,0 +1,202 @@
+/**
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.android.gms.location.sample.geofencing;
+
+import com.google.android.gms.location.Geofence;
+
+import java.util.Arrays;
+
+/**
+ * Assigns each fence a notification responsiveness and loitering delay based on how far the
+ * device is from it. Nearby fences get tight responsiveness; fences kilometres away get coarse
+ * responsiveness, so Location Services can batch their checks instead of waking the device for
+ * them.
+ *
+ * {@link #update(double, double)} reports only the fences whose bucket changed, so callers
+ * re-register those and leave the others alone.
+ */
+public class GeofencePolicyEngine {
+
+    /**
+     * Fraction of a bucket boundary a fence must move past before it changes bucket. Keeps a
+     * device sitting near a boundary from re-registering the fence on every fix.
+     */
+    private static final float BOUNDARY_MARGIN = 0.1f;
+
+    private static GeofencePolicyEngine sInstance;
+
+    /**
+     * Responsiveness and loitering delay for fences whose edge is closer than
+     * {@code maxDistanceMeters}.
+     */
+    public static final class Bucket {
+        final float mMaxDistanceMeters;
+        final int mResponsivenessMillis;
+        final int mLoiteringDelayMillis;
+
+        public Bucket(float maxDistanceMeters, int responsivenessMillis, int loiteringDelayMillis) {
+            mMaxDistanceMeters = maxDistanceMeters;
+            mResponsivenessMillis = responsivenessMillis;
+            mLoiteringDelayMillis = loiteringDelayMillis;
+        }
+    }
+
+    /**
+     * Buckets in increasing order of distance. The last bucket catches everything beyond.
+     */
+    public static final Bucket[] DEFAULT_BUCKETS = {
+            new Bucket(1000, 5 * 1000, Constants.GEOFENCE_LOITERING_DELAY_IN_MILLISECONDS),
+            new Bucket(5000, 60 * 1000, Constants.GEOFENCE_LOITERING_DELAY_IN_MILLISECONDS),
+            new Bucket(20000, 5 * 60 * 1000, Constants.GEOFENCE_LOITERING_DELAY_IN_MILLISECONDS),
+            new Bucket(Float.MAX_VALUE, 15 * 60 * 1000,
+                    Constants.GEOFENCE_LOITERING_DELAY_IN_MILLISECONDS),
+    };
+
+    private final FenceCatalog mCatalog;
+    private final Bucket[] mBucketDefinitions;
+    private final int[] mBuckets;
+    private final long[] mExpirations;
+
+    /**
+     * Returns the engine for the registrations of {@link FenceHierarchy#getDefault()}, shared so
+     * the activity and the receiver register fences with the same policy. A new engine, with
+     * every fence back in bucket 0, replaces it when the registrations change.
+     */
+    public static synchronized GeofencePolicyEngine getInstance() {
+        FenceCatalog registrations = FenceHierarchy.getDefault().getRegistrationCatalog();
+        if (sInstance == null || sInstance.mCatalog != registrations) {
+            sInstance = new GeofencePolicyEngine(registrations, DEFAULT_BUCKETS);
+        }
+        return sInstance;
+    }
+
+    public GeofencePolicyEngine(FenceCatalog catalog, Bucket[] buckets) {
+        mCatalog = catalog;
+        mBucketDefinitions = buckets;
+        // Until the device position is known every fence stays in bucket 0, the tightest
+        // policy, which is what every fence used to get.
+        mBuckets = new int[catalog.size()];
+        mExpirations = new long[catalog.size()];
+        Arrays.fill(mExpirations, Constants.GEOFENCE_EXPIRATION_IN_MILLISECONDS);
+    }
+
+    public FenceCatalog getCatalog() {
+        return mCatalog;
+    }
+
+    /**
+     * Returns the bucket index currently assigned to a fence; 0 is the nearest bucket.
+     */
+    public synchronized int getBucket(int fenceIndex) {
+        return mBuckets[fenceIndex];
+    }
+
+    /**
+     * Returns how long a fence stays registered before Location Services drops it, or
+     * {@link Geofence#NEVER_EXPIRE}.
+     */
+    public synchronized long getExpirationDuration(int fenceIndex) {
+        return mExpirations[fenceIndex];
+    }
+
+    /**
+     * Overrides {@link Constants#GEOFENCE_EXPIRATION_IN_MILLISECONDS} for one fence. Takes
+     * effect the next time the fence is registered.
+     */
+    public synchronized void setExpirationDuration(int fenceIndex, long durationMillis) {
+        mExpirations[fenceIndex] = durationMillis;
+    }
+
+    /**
+     * Reassigns buckets for a new device position.
+     *
+     * @return The indices of the fences whose bucket changed.
+     */
+    public synchronized int[] update(double latitude, double longitude) {
+        int[] changed = new int[mBuckets.length];
+        int count = 0;
+        for (int i = 0; i < mBuckets.length; i++) {
+            double edgeDistance = Math.max(0,
+                    mCatalog.distanceToCenter(i, latitude, longitude) - mCatalog.getRadius(i));
+            int bucket = bucketFor(edgeDistance, mBuckets[i]);
+            if (bucket != mBuckets[i]) {
+                mBuckets[i] = bucket;
+                changed[count++] = i;
+            }
+        }
+        return Arrays.copyOf(changed, count);
+    }
+
+    /**
+     * Builds the geofence for a fence with its current policy.
+     */
+    public Geofence buildGeofence(int fenceIndex) {
+        Bucket bucket = mBucketDefinitions[getBucket(fenceIndex)];
+        return new Geofence.Builder()
+                // Set the request ID of the geofence. This is a string to identify this
+                // geofence.
+                .setRequestId(mCatalog.getId(fenceIndex))
+
+                // Set the circular region of this geofence.
+                .setCircularRegion(
+                        mCatalog.getLatitude(fenceIndex),
+                        mCatalog.getLongitude(fenceIndex),
+                        mCatalog.getRadius(fenceIndex)
+                )
+
+                // Set the expiration duration of the geofence. This geofence gets automatically
+                // removed after this period of time unless GeofenceRenewalScheduler renews it.
+                .setExpirationDuration(getExpirationDuration(fenceIndex))
+
+                // Set the transition types of interest. Alerts are only generated for these
+                // transitions.
+                .setTransitionTypes(Geofence.GEOFENCE_TRANSITION_DWELL |
+                        Geofence.GEOFENCE_TRANSITION_ENTER |
+                        Geofence.GEOFENCE_TRANSITION_EXIT)
+                .setLoiteringDelay(bucket.mLoiteringDelayMillis)
+                .setNotificationResponsiveness(bucket.mResponsivenessMillis)
+                // Create the geofence.
+                .build();
+    }
+
+    /**
+     * Returns the bucket for a distance, favouring the current bucket within the boundary
+     * margin.
+     */
+    private int bucketFor(double distance, int current) {
+        int bucket = 0;
+        while (bucket < mBucketDefinitions.length - 1
+                && distance >= mBucketDefinitions[bucket].mMaxDistanceMeters) {
+            bucket++;
+        }
+        if (bucket > current) {
+            // Moving away: must clear the boundary of the current bucket by the margin.
+            float boundary = mBucketDefinitions[current].mMaxDistanceMeters;
+            if (distance < boundary * (1 + BOUNDARY_MARGIN)) {
+                return current;
+            }
+        } else if (bucket < current) {
+            // Moving closer: must come inside the boundary of the next-nearer bucket by the margin.
+            float boundary = mBucketDefinitions[current - 1].mMaxDistanceMeters;
+            if (distance > boundary * (1 - BOUNDARY_MARGIN)) {
+                return current;
+            }
+        }
+        return bucket;
+    }
+}
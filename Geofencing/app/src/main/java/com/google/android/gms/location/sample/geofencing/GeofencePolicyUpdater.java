@@ -0,0 +1,267 @@
+/**
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.android.gms.location.sample.geofencing;
+
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.util.Log;
+
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.api.CommonStatusCodes;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.common.api.PendingResult;
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.common.api.Status;
+import com.google.android.gms.location.Geofence;
+import com.google.android.gms.location.GeofencingRequest;
+import com.google.android.gms.location.LocationRequest;
+import com.google.android.gms.location.LocationServices;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Keeps the {@link GeofencePolicyEngine} bucket of every registered fence matched to the
+ * device's position, whether or not the app is in the foreground.
+ *
+ * While geofences are added, low-power batched location updates are requested with a
+ * PendingIntent that starts {@link GeofenceTransitionsIntentService} with
+ * {@link Constants#ACTION_POLICY_LOCATION}. The service passes each fix to
+ * {@link #onLocation}, which re-registers only the fences whose bucket changed. The request
+ * is held by Location Services, so it outlives the activity and the process.
+ *
+ * Call from the main thread.
+ */
+public class GeofencePolicyUpdater implements GoogleApiClient.ConnectionCallbacks,
+        GoogleApiClient.OnConnectionFailedListener {
+
+    protected static final String TAG = "GeofencePolicyUpdater";
+
+    private static GeofencePolicyUpdater sInstance;
+
+    private final Context mContext;
+
+    private GoogleApiClient mGoogleApiClient;
+
+    /**
+     * Fences whose bucket changed while Google Play services was not connected, by request id.
+     */
+    private final LinkedHashMap<String, Geofence> mPendingGeofences =
+            new LinkedHashMap<String, Geofence>();
+
+    /**
+     * Completion callbacks of {@link #onLocation} calls waiting for the connection.
+     */
+    private final List<Runnable> mPendingDone = new ArrayList<Runnable>();
+
+    public static synchronized GeofencePolicyUpdater getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new GeofencePolicyUpdater(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private GeofencePolicyUpdater(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Requests location updates if geofences are added, or removes the request if they are
+     * not. Call whenever the added state changes.
+     */
+    public synchronized void refresh() {
+        if (connect()) {
+            applyLocationRequest();
+        }
+    }
+
+    /**
+     * Moves fences into the buckets matching a new device position and re-registers the fences
+     * whose bucket changed, if geofences are added.
+     *
+     * @param done Runs once the re-registration has finished, or right away if there is none;
+     *             may be null.
+     * @return The indices, in {@link GeofencePolicyEngine#getCatalog()}, of the fences whose
+     *         bucket changed.
+     */
+    public synchronized int[] onLocation(double latitude, double longitude, Runnable done) {
+        GeofencePolicyEngine policyEngine = GeofencePolicyEngine.getInstance();
+        int[] changed = policyEngine.update(latitude, longitude);
+        if (changed.length == 0 || !isGeofencesAdded()) {
+            // Changed fences are picked up by the next addGeofences() call.
+            run(done);
+            return changed;
+        }
+        for (int fenceIndex : changed) {
+            Geofence geofence = policyEngine.buildGeofence(fenceIndex);
+            mPendingGeofences.put(geofence.getRequestId(), geofence);
+        }
+        if (done != null) {
+            mPendingDone.add(done);
+        }
+        if (connect()) {
+            registerPending();
+        }
+        return changed;
+    }
+
+    @Override
+    public synchronized void onConnected(Bundle connectionHint) {
+        applyLocationRequest();
+        registerPending();
+    }
+
+    @Override
+    public void onConnectionSuspended(int cause) {
+        // onConnected() will be called again automatically when the service reconnects.
+    }
+
+    @Override
+    public synchronized void onConnectionFailed(ConnectionResult result) {
+        Log.e(TAG, "Connection failed: " + result.getErrorCode());
+        mGoogleApiClient = null;
+        // The fences keep their previous policy until their bucket changes again.
+        mPendingGeofences.clear();
+        runPendingDone();
+    }
+
+    /**
+     * Connects to Google Play services if needed.
+     *
+     * @return true if already connected; otherwise {@link #onConnected} follows.
+     */
+    private boolean connect() {
+        if (mGoogleApiClient == null) {
+            mGoogleApiClient = new GoogleApiClient.Builder(mContext)
+                    .addConnectionCallbacks(this)
+                    .addOnConnectionFailedListener(this)
+                    .addApi(LocationServices.API)
+                    .build();
+        }
+        if (mGoogleApiClient.isConnected()) {
+            return true;
+        }
+        mGoogleApiClient.connect();
+        return false;
+    }
+
+    private void applyLocationRequest() {
+        try {
+            if (isGeofencesAdded()) {
+                LocationRequest request = LocationRequest.create()
+                        .setPriority(LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY)
+                        .setInterval(Constants.POLICY_LOCATION_UPDATE_INTERVAL_IN_MILLISECONDS)
+                        .setFastestInterval(
+                                Constants.POLICY_LOCATION_UPDATE_INTERVAL_IN_MILLISECONDS)
+                        .setMaxWaitTime(Constants.POLICY_LOCATION_MAX_WAIT_TIME_IN_MILLISECONDS)
+                        .setSmallestDisplacement(
+                                Constants.POLICY_LOCATION_SMALLEST_DISPLACEMENT_IN_METERS);
+                LocationServices.FusedLocationApi.requestLocationUpdates(mGoogleApiClient,
+                        request, getLocationPendingIntent());
+            } else {
+                LocationServices.FusedLocationApi.removeLocationUpdates(mGoogleApiClient,
+                        getLocationPendingIntent());
+            }
+        } catch (SecurityException securityException) {
+            Log.e(TAG, "Invalid location permission. " +
+                    "You need to use ACCESS_FINE_LOCATION for location updates", securityException);
+        }
+    }
+
+    /**
+     * Re-registers the fences in {@link #mPendingGeofences} in one call.
+     */
+    private void registerPending() {
+        if (mPendingGeofences.isEmpty()) {
+            runPendingDone();
+            return;
+        }
+        final List<Geofence> geofences = new ArrayList<Geofence>(mPendingGeofences.values());
+        mPendingGeofences.clear();
+        final List<Runnable> done = new ArrayList<Runnable>(mPendingDone);
+        mPendingDone.clear();
+
+        final GoogleApiClient googleApiClient = mGoogleApiClient;
+        List<String> requestIds = MainActivity.getRequestIds(geofences);
+        GeofenceRenewalScheduler renewalScheduler = GeofenceRenewalScheduler.getInstance(mContext);
+        GeofenceRetryScheduler.getInstance().submitRegistration("policy", requestIds,
+                new GeofenceRetryScheduler.Call() {
+                    @Override
+                    public PendingResult<Status> start() {
+                        GeofencingRequest.Builder builder = new GeofencingRequest.Builder();
+                        builder.setInitialTrigger(GeofencingRequest.INITIAL_TRIGGER_DWELL);
+                        builder.addGeofences(geofences);
+                        return LocationServices.GeofencingApi.addGeofences(googleApiClient,
+                                builder.build(), getGeofencePendingIntent());
+                    }
+                }, renewalScheduler.recordOnSuccess(requestIds, new ResultCallback<Status>() {
+                    @Override
+                    public void onResult(Status status) {
+                        if (!status.isSuccess()
+                                && status.getStatusCode() != CommonStatusCodes.CANCELED) {
+                            Log.e(TAG, "Policy update failed: "
+                                    + GeofenceErrorMessages.getErrorString(mContext,
+                                            status.getStatusCode()));
+                        }
+                        for (Runnable runnable : done) {
+                            runnable.run();
+                        }
+                    }
+                }));
+        Log.i(TAG, "Re-registering " + requestIds + " with new policies");
+    }
+
+    private void runPendingDone() {
+        List<Runnable> done = new ArrayList<Runnable>(mPendingDone);
+        mPendingDone.clear();
+        for (Runnable runnable : done) {
+            runnable.run();
+        }
+    }
+
+    private static void run(Runnable runnable) {
+        if (runnable != null) {
+            runnable.run();
+        }
+    }
+
+    private boolean isGeofencesAdded() {
+        return mContext.getSharedPreferences(Constants.SHARED_PREFERENCES_NAME,
+                Context.MODE_PRIVATE).getBoolean(Constants.GEOFENCES_ADDED_KEY, false);
+    }
+
+    /**
+     * Returns the PendingIntent location updates are delivered with.
+     */
+    private PendingIntent getLocationPendingIntent() {
+        Intent intent = new Intent(mContext, GeofenceTransitionsIntentService.class)
+                .setAction(Constants.ACTION_POLICY_LOCATION);
+        return PendingIntent.getService(mContext, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    /**
+     * Returns the same PendingIntent the app registers geofences with.
+     */
+    private PendingIntent getGeofencePendingIntent() {
+        Intent intent = new Intent(mContext, GeofenceTransitionsIntentService.class);
+        return PendingIntent.getService(mContext, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+}
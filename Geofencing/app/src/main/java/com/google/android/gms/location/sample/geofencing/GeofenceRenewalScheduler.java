@@ -0,0 +1,335 @@
+/**
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.location.sample.geofencing;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.Bundle;
+import android.util.Log;
+
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.api.CommonStatusCodes;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.common.api.PendingResult;
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.common.api.Status;
+import com.google.android.gms.location.Geofence;
+import com.google.android.gms.location.GeofencingRequest;
+import com.google.android.gms.location.LocationServices;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Renews registered geofences before Location Services expires them.
+ *
+ * Every registration that succeeds reports the fences it sent through
+ * {@link #onRegistered(Collection)}, usually by wrapping its callback with
+ * {@link #recordOnSuccess}, which schedules each one's renewal
+ * {@link Constants#GEOFENCE_RENEWAL_LEAD_TIME_IN_MILLISECONDS} before it expires, or halfway
+ * through its lifetime if that is sooner. An alarm starts
+ * {@link GeofenceTransitionsIntentService} with {@link Constants#ACTION_RENEW_GEOFENCES} when
+ * the earliest renewal is due. The fences due are re-added at most
+ * {@link Constants#GEOFENCE_RENEWAL_BATCH_SIZE} at a time, in batches at least
+ * {@link Constants#GEOFENCE_RENEWAL_BATCH_INTERVAL_IN_MILLISECONDS} apart, so fences added
+ * together do not all come up for renewal together. Renewal times are kept in shared
+ * preferences so renewals survive the process being killed.
+ *
+ * Call from the main thread.
+ */
+public class GeofenceRenewalScheduler implements GoogleApiClient.ConnectionCallbacks,
+        GoogleApiClient.OnConnectionFailedListener {
+
+    protected static final String TAG = "GeofenceRenewal";
+
+    private static final String PREFERENCES_NAME =
+            Constants.PACKAGE_NAME + ".GEOFENCE_EXPIRY";
+
+    private static GeofenceRenewalScheduler sInstance;
+
+    private final Context mContext;
+    private final SharedPreferences mPreferences;
+    private final ExpiryQueue mQueue = new ExpiryQueue();
+
+    private GoogleApiClient mGoogleApiClient;
+    private long mLastBatchTime;
+
+    /**
+     * Completion callbacks of {@link #renewDue} calls waiting for the connection.
+     */
+    private final List<Runnable> mPendingDone = new ArrayList<Runnable>();
+
+    public static synchronized GeofenceRenewalScheduler getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new GeofenceRenewalScheduler(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private GeofenceRenewalScheduler(Context context) {
+        mContext = context;
+        mPreferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        for (Map.Entry<String, ?> entry : mPreferences.getAll().entrySet()) {
+            if (entry.getValue() instanceof Long) {
+                mQueue.schedule(entry.getKey(), (Long) entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Records that geofences were just added with their current expiration durations (see
+     * {@link GeofencePolicyEngine#getExpirationDuration(int)}), and schedules their renewal.
+     */
+    public synchronized void onRegistered(Collection<String> requestIds) {
+        GeofencePolicyEngine policyEngine = GeofencePolicyEngine.getInstance();
+        long now = System.currentTimeMillis();
+        SharedPreferences.Editor editor = mPreferences.edit();
+        for (String requestId : requestIds) {
+            int index = policyEngine.getCatalog().indexOf(requestId);
+            long duration = index >= 0
+                    ? policyEngine.getExpirationDuration(index) : Geofence.NEVER_EXPIRE;
+            if (duration == Geofence.NEVER_EXPIRE) {
+                mQueue.remove(requestId);
+                editor.remove(requestId);
+            } else {
+                long renewAt = now + duration - Math.min(
+                        Constants.GEOFENCE_RENEWAL_LEAD_TIME_IN_MILLISECONDS, duration / 2);
+                mQueue.schedule(requestId, renewAt);
+                editor.putLong(requestId, renewAt);
+            }
+        }
+        editor.apply();
+        scheduleAlarm();
+    }
+
+    /**
+     * Returns a callback that records the registration of {@code requestIds} with
+     * {@link #onRegistered(Collection)} once the call adding them succeeds, then passes the
+     * status on to {@code callback}. A failed or cancelled call records nothing, so fences that
+     * were never added are not scheduled for renewal.
+     */
+    public ResultCallback<Status> recordOnSuccess(final Collection<String> requestIds,
+            final ResultCallback<Status> callback) {
+        return new ResultCallback<Status>() {
+            @Override
+            public void onResult(Status status) {
+                if (status.isSuccess()) {
+                    onRegistered(requestIds);
+                }
+                callback.onResult(status);
+            }
+        };
+    }
+
+    /**
+     * Records that geofences were removed; they are no longer renewed.
+     */
+    public synchronized void onRemoved(Collection<String> requestIds) {
+        SharedPreferences.Editor editor = mPreferences.edit();
+        for (String requestId : requestIds) {
+            mQueue.remove(requestId);
+            editor.remove(requestId);
+        }
+        editor.apply();
+        scheduleAlarm();
+    }
+
+    /**
+     * Records that every geofence was removed.
+     */
+    public synchronized void onRemovedAll() {
+        mQueue.clear();
+        mPreferences.edit().clear().apply();
+        scheduleAlarm();
+    }
+
+    /**
+     * Renews the next batch of geofences that are due, connecting to Google Play services
+     * first if needed. Called when the renewal alarm goes off.
+     *
+     * @param done Runs once the renewal has been answered, or right away if nothing is due;
+     *             may be null.
+     */
+    public synchronized void renewDue(Runnable done) {
+        if (done != null) {
+            mPendingDone.add(done);
+        }
+        long now = System.currentTimeMillis();
+        if (mQueue.peekDeadline() > now) {
+            scheduleAlarm();
+            runPendingDone();
+            return;
+        }
+        if (mGoogleApiClient == null) {
+            mGoogleApiClient = new GoogleApiClient.Builder(mContext)
+                    .addConnectionCallbacks(this)
+                    .addOnConnectionFailedListener(this)
+                    .addApi(LocationServices.API)
+                    .build();
+        }
+        if (!mGoogleApiClient.isConnected()) {
+            // onConnected() comes back here. Should the process die first, the alarm tries
+            // again after the batch interval.
+            setAlarm(now + Constants.GEOFENCE_RENEWAL_BATCH_INTERVAL_IN_MILLISECONDS);
+            mGoogleApiClient.connect();
+            return;
+        }
+
+        List<String> due = mQueue.pollDue(now, Constants.GEOFENCE_RENEWAL_BATCH_SIZE);
+        GeofencePolicyEngine policyEngine = GeofencePolicyEngine.getInstance();
+        final List<Geofence> geofences = new ArrayList<Geofence>(due.size());
+        List<String> dropped = new ArrayList<String>();
+        for (String requestId : due) {
+            int index = policyEngine.getCatalog().indexOf(requestId);
+            if (index >= 0) {
+                geofences.add(policyEngine.buildGeofence(index));
+            } else {
+                // No longer in the catalog; let it expire.
+                dropped.add(requestId);
+            }
+        }
+        mLastBatchTime = now;
+        if (!dropped.isEmpty()) {
+            onRemoved(dropped);
+        }
+        if (geofences.isEmpty()) {
+            scheduleAlarm();
+            runPendingDone();
+            return;
+        }
+
+        final GoogleApiClient googleApiClient = mGoogleApiClient;
+        final List<Runnable> renewed = new ArrayList<Runnable>(mPendingDone);
+        mPendingDone.clear();
+        final List<String> requestIds = MainActivity.getRequestIds(geofences);
+        GeofenceRetryScheduler.getInstance().submitRegistration("renew", requestIds,
+                new GeofenceRetryScheduler.Call() {
+                    @Override
+                    public PendingResult<Status> start() {
+                        GeofencingRequest.Builder builder = new GeofencingRequest.Builder();
+                        builder.setInitialTrigger(GeofencingRequest.INITIAL_TRIGGER_DWELL);
+                        builder.addGeofences(geofences);
+                        return LocationServices.GeofencingApi.addGeofences(googleApiClient,
+                                builder.build(), getGeofencePendingIntent());
+                    }
+                }, new ResultCallback<Status>() {
+                    @Override
+                    public void onResult(Status status) {
+                        if (status.isSuccess()) {
+                            onRegistered(requestIds);
+                        } else if (status.getStatusCode() != CommonStatusCodes.CANCELED) {
+                            Log.e(TAG, "Renewal failed: " + GeofenceErrorMessages.getErrorString(
+                                    mContext, status.getStatusCode()));
+                            // Still registered until they expire; try again with a later batch.
+                            onRenewalFailed(requestIds);
+                        }
+                        // A cancelled renewal was superseded by a registration or removal of
+                        // the same fences, which records them itself.
+                        for (Runnable runnable : renewed) {
+                            runnable.run();
+                        }
+                    }
+                });
+        Log.i(TAG, "Renewing " + requestIds);
+        // Schedules the next batch.
+        scheduleAlarm();
+    }
+
+    /**
+     * Puts fences whose renewal failed back in the queue, due right away. The alarm still
+     * keeps batches {@link Constants#GEOFENCE_RENEWAL_BATCH_INTERVAL_IN_MILLISECONDS} apart.
+     */
+    private synchronized void onRenewalFailed(Collection<String> requestIds) {
+        long now = System.currentTimeMillis();
+        SharedPreferences.Editor editor = mPreferences.edit();
+        for (String requestId : requestIds) {
+            mQueue.schedule(requestId, now);
+            editor.putLong(requestId, now);
+        }
+        editor.apply();
+        scheduleAlarm();
+    }
+
+    @Override
+    public synchronized void onConnected(Bundle connectionHint) {
+        renewDue(null);
+    }
+
+    @Override
+    public void onConnectionSuspended(int cause) {
+        // onConnected() will be called again automatically when the service reconnects.
+    }
+
+    @Override
+    public synchronized void onConnectionFailed(ConnectionResult result) {
+        Log.e(TAG, "Connection failed: " + result.getErrorCode());
+        mGoogleApiClient = null;
+        // Try again with the next alarm.
+        mLastBatchTime = System.currentTimeMillis();
+        scheduleAlarm();
+        runPendingDone();
+    }
+
+    /**
+     * Sets the alarm for the next renewal batch, or cancels it if nothing is registered.
+     */
+    private void scheduleAlarm() {
+        if (mQueue.isEmpty()) {
+            AlarmManager alarmManager =
+                    (AlarmManager) mContext.getSystemService(Context.ALARM_SERVICE);
+            alarmManager.cancel(getAlarmIntent());
+            return;
+        }
+        setAlarm(Math.max(mQueue.peekDeadline(),
+                mLastBatchTime + Constants.GEOFENCE_RENEWAL_BATCH_INTERVAL_IN_MILLISECONDS));
+    }
+
+    private void setAlarm(long wakeTime) {
+        AlarmManager alarmManager =
+                (AlarmManager) mContext.getSystemService(Context.ALARM_SERVICE);
+        alarmManager.set(AlarmManager.RTC_WAKEUP, wakeTime, getAlarmIntent());
+    }
+
+    private PendingIntent getAlarmIntent() {
+        return PendingIntent.getService(mContext, 0,
+                new Intent(mContext, GeofenceTransitionsIntentService.class)
+                        .setAction(Constants.ACTION_RENEW_GEOFENCES),
+                PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    private void runPendingDone() {
+        List<Runnable> done = new ArrayList<Runnable>(mPendingDone);
+        mPendingDone.clear();
+        for (Runnable runnable : done) {
+            runnable.run();
+        }
+    }
+
+    /**
+     * Returns the same PendingIntent the app registers geofences with, so renewed geofences
+     * keep reporting to {@link GeofenceTransitionsIntentService}.
+     */
+    private PendingIntent getGeofencePendingIntent() {
+        Intent intent = new Intent(mContext, GeofenceTransitionsIntentService.class);
+        return PendingIntent.getService(mContext, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+}
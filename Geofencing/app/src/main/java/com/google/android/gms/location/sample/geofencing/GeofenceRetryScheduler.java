@@ -0,0 +1,317 @@
+/**
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.android.gms.location.sample.geofencing;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.google.android.gms.common.api.CommonStatusCodes;
+import com.google.android.gms.common.api.PendingResult;
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.common.api.Status;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Runs GeofencingApi calls and retries the ones that fail with a retryable status (see
+ * {@link GeofenceErrorMessages#isRetryable(int)}) using exponential backoff with jitter.
+ *
+ * Operations are keyed by operation name and fence set, see {@link #key(String, Collection)}.
+ * Submitting an operation under a key that is still pending supersedes it: the older call is
+ * never retried and its callback receives {@link CommonStatusCodes#CANCELED}. Every callback is
+ * therefore invoked exactly once, so callers holding a service started until a call finishes
+ * can always release it. At most {@code maxInFlight} calls are outstanding at once; the rest
+ * wait their turn.
+ *
+ * Calls that register fences are submitted with {@link #submitRegistration} and calls that
+ * remove them with {@link #submitRemoval}. A removal cancels every pending registration of any
+ * of the fences it removes, so a registration waiting out its backoff can never put back a
+ * fence the user removed. The whole registration is cancelled, not just the removed fences.
+ *
+ * Everything runs on the main looper; call {@link #submit} from the main thread.
+ */
+public class GeofenceRetryScheduler {
+
+    protected static final String TAG = "GeofenceRetryScheduler";
+
+    private static GeofenceRetryScheduler sInstance;
+
+    /**
+     * Starts one attempt of a GeofencingApi call.
+     */
+    public interface Call {
+        PendingResult<Status> start();
+    }
+
+    private final Handler mHandler;
+    private final int mMaxInFlight;
+    private final int mMaxAttempts;
+    private final long mBaseDelayMillis;
+    private final long mMaxDelayMillis;
+    private final Random mRandom;
+
+    private final HashMap<String, Operation> mOperations = new HashMap<String, Operation>();
+    private final ArrayDeque<Operation> mReady = new ArrayDeque<Operation>();
+    private int mInFlight;
+
+    /**
+     * Returns the scheduler shared by the activity and the receiver, so an operation submitted
+     * by one supersedes the same operation submitted by the other.
+     */
+    public static synchronized GeofenceRetryScheduler getInstance() {
+        if (sInstance == null) {
+            sInstance = new GeofenceRetryScheduler(new Handler(Looper.getMainLooper()),
+                    Constants.GEOFENCE_API_MAX_IN_FLIGHT, Constants.GEOFENCE_API_MAX_ATTEMPTS,
+                    Constants.GEOFENCE_API_RETRY_BASE_DELAY_IN_MILLISECONDS,
+                    Constants.GEOFENCE_API_RETRY_MAX_DELAY_IN_MILLISECONDS, new Random());
+        }
+        return sInstance;
+    }
+
+    public GeofenceRetryScheduler(Handler handler, int maxInFlight, int maxAttempts,
+            long baseDelayMillis, long maxDelayMillis, Random random) {
+        mHandler = handler;
+        mMaxInFlight = maxInFlight;
+        mMaxAttempts = maxAttempts;
+        mBaseDelayMillis = baseDelayMillis;
+        mMaxDelayMillis = maxDelayMillis;
+        mRandom = random;
+    }
+
+    /**
+     * Builds an operation key from an operation name and the request ids it affects. The key
+     * does not depend on the order of the ids.
+     */
+    public static String key(String operation, Collection<String> requestIds) {
+        List<String> sorted = new ArrayList<String>(requestIds);
+        Collections.sort(sorted);
+        StringBuilder key = new StringBuilder(operation).append(':');
+        for (int i = 0; i < sorted.size(); i++) {
+            if (i > 0) {
+                key.append(',');
+            }
+            key.append(sorted.get(i));
+        }
+        return key.toString();
+    }
+
+    /**
+     * Runs a call, retrying it until it succeeds, fails with a fatal status or runs out of
+     * attempts. The callback receives the final status only.
+     */
+    public void submit(String key, Call call, ResultCallback<Status> callback) {
+        submit(key, null, call, callback);
+    }
+
+    /**
+     * Runs a call that registers fences, under {@code key(operation, requestIds)}. It is
+     * cancelled if any of the fences is removed through {@link #submitRemoval} while the call
+     * is still pending.
+     */
+    public void submitRegistration(String operation, Collection<String> requestIds, Call call,
+            ResultCallback<Status> callback) {
+        submit(key(operation, requestIds), new HashSet<String>(requestIds), call, callback);
+    }
+
+    /**
+     * Runs a call that removes fences, after cancelling every pending registration of any of
+     * them.
+     *
+     * @param requestIds The fences removed, or null if the call removes every fence registered
+     *                   through {@link #submitRegistration}.
+     */
+    public void submitRemoval(Collection<String> requestIds, Call call,
+            ResultCallback<Status> callback) {
+        List<Operation> cancelled = new ArrayList<Operation>();
+        for (Operation operation : mOperations.values()) {
+            if (operation.mRequestIds != null && (requestIds == null
+                    || !Collections.disjoint(operation.mRequestIds, requestIds))) {
+                cancelled.add(operation);
+            }
+        }
+        for (Operation operation : cancelled) {
+            Log.i(TAG, "Cancelling pending operation " + operation.mKey + ", its fences are "
+                    + "being removed");
+            cancel(operation.mKey);
+        }
+        submit(requestIds == null ? "remove:all" : key("remove", requestIds), null, call,
+                callback);
+    }
+
+    /**
+     * Drops a pending operation. A call already in flight completes but is not retried; the
+     * callback receives {@link CommonStatusCodes#CANCELED} right away.
+     */
+    public void cancel(String key) {
+        Operation operation = mOperations.remove(key);
+        if (operation != null) {
+            drop(operation);
+        }
+    }
+
+    private void submit(String key, HashSet<String> requestIds, Call call,
+            ResultCallback<Status> callback) {
+        Operation operation = new Operation(key, requestIds, call, callback);
+        Operation previous = mOperations.put(key, operation);
+        if (previous != null) {
+            Log.i(TAG, "Superseding pending operation " + key);
+            drop(previous);
+        }
+        mReady.addLast(operation);
+        drain();
+    }
+
+    /**
+     * Stops retrying an operation that is no longer in {@link #mOperations}.
+     */
+    private void drop(Operation operation) {
+        operation.mSuperseded = true;
+        mHandler.removeCallbacks(operation);
+        mReady.remove(operation);
+        operation.mCallback.onResult(new Status(CommonStatusCodes.CANCELED));
+    }
+
+    /**
+     * Returns true if an operation is pending under a key: waiting for its turn, in flight or
+     * backing off.
+     */
+    public boolean isPending(String key) {
+        return mOperations.containsKey(key);
+    }
+
+    /**
+     * Returns the number of calls currently outstanding.
+     */
+    public int getInFlightCount() {
+        return mInFlight;
+    }
+
+    private void drain() {
+        while (mInFlight < mMaxInFlight && !mReady.isEmpty()) {
+            start(mReady.pollFirst());
+        }
+    }
+
+    private void start(final Operation operation) {
+        operation.mAttempt++;
+        PendingResult<Status> result;
+        try {
+            result = operation.mCall.start();
+        } catch (SecurityException securityException) {
+            // Missing permission is not going to fix itself; give up.
+            Log.e(TAG, "Invalid location permission. " +
+                    "You need to use ACCESS_FINE_LOCATION with geofences", securityException);
+            finish(operation);
+            operation.mCallback.onResult(new Status(CommonStatusCodes.DEVELOPER_ERROR));
+            return;
+        } catch (IllegalStateException notConnected) {
+            // The client is suspended or not connected yet. It reconnects by itself, so back off
+            // like any transient failure, and give up once the attempts run out.
+            Log.w(TAG, "Client not connected for " + operation.mKey, notConnected);
+            if (operation.mAttempt >= mMaxAttempts) {
+                finish(operation);
+                operation.mCallback.onResult(new Status(CommonStatusCodes.API_NOT_CONNECTED));
+            } else {
+                mHandler.postDelayed(operation, backoffDelay(operation.mAttempt));
+            }
+            return;
+        }
+        mInFlight++;
+        result.setResultCallback(new ResultCallback<Status>() {
+            @Override
+            public void onResult(Status status) {
+                mInFlight--;
+                onAttemptFinished(operation, status);
+                drain();
+            }
+        });
+    }
+
+    private void onAttemptFinished(Operation operation, Status status) {
+        if (operation.mSuperseded) {
+            return;
+        }
+        if (status.isSuccess()
+                || !GeofenceErrorMessages.isRetryable(status.getStatusCode())
+                || operation.mAttempt >= mMaxAttempts) {
+            finish(operation);
+            operation.mCallback.onResult(status);
+            return;
+        }
+        long delay = backoffDelay(operation.mAttempt);
+        Log.w(TAG, "Attempt " + operation.mAttempt + " of " + operation.mKey + " failed with "
+                + status.getStatusCode() + ", retrying in " + delay + " ms");
+        mHandler.postDelayed(operation, delay);
+    }
+
+    /**
+     * Returns an "equal jitter" delay: half of the capped exponential delay, plus a random
+     * amount up to the other half. Retries stay spread out without ever dropping to zero.
+     */
+    private long backoffDelay(int attempt) {
+        long exponential = mBaseDelayMillis << Math.min(attempt - 1, 30);
+        long capped = Math.min(mMaxDelayMillis, exponential < 0 ? mMaxDelayMillis : exponential);
+        long half = capped / 2;
+        return half + (long) (mRandom.nextDouble() * (capped - half));
+    }
+
+    private void finish(Operation operation) {
+        if (mOperations.get(operation.mKey) == operation) {
+            mOperations.remove(operation.mKey);
+        }
+    }
+
+    /**
+     * A pending operation. Posted to the handler when its backoff delay elapses.
+     */
+    private final class Operation implements Runnable {
+        final String mKey;
+        final HashSet<String> mRequestIds;
+        final Call mCall;
+        final ResultCallback<Status> mCallback;
+        int mAttempt;
+        boolean mSuperseded;
+
+        /**
+         * @param requestIds The fences the call registers, or null if it registers none.
+         */
+        Operation(String key, HashSet<String> requestIds, Call call,
+                ResultCallback<Status> callback) {
+            mKey = key;
+            mRequestIds = requestIds;
+            mCall = call;
+            mCallback = callback;
+        }
+
+        @Override
+        public void run() {
+            if (!mSuperseded) {
+                mReady.addLast(this);
+                drain();
+            }
+        }
+    }
+}
@@ -0,0 +1,331 @@
+/**
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.location.sample.geofencing;
+
+import com.google.android.gms.location.Geofence;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Handles the fence transitions {@link GeofenceTransitionsIntentService} receives: routes each
+ * triggering registration through {@link GeofenceEventRouter}, holds back boundary flapping with
+ * a {@link TransitionFilter}, and publishes the remaining transitions on a
+ * {@link GeofenceEventStream} from a {@link KeyedSerialExecutor} lane per fence. Registrations
+ * that reported DWELL are collected and handed back to be re-armed.
+ *
+ * Transitions the filter defers are re-checked against every fix the handler is given, through
+ * {@link #onLocation} or the triggering location of an event, and published by
+ * {@link #publishDue} once they have stood for the hold time. The host is told when the next
+ * one is due.
+ *
+ * Uses no Android classes: the {@code GeofencingEvent} and the service are reached through
+ * {@link Event} and {@link Host}, so {@code TraceReplaySimulator} drives the same code on the
+ * JVM.
+ *
+ * A handler keeps the event it is handling, so it is not thread safe; create one per call. The
+ * filter, executor and stream it is given are thread safe and may be shared by handlers on
+ * different threads. Their deferred transitions can then be reported to
+ * {@link Host#onDeferredChanged} out of order, which at worst publishes one late.
+ */
+public class GeofenceTransitionHandler {
+
+    /**
+     * What the handler needs of a {@code GeofencingEvent}.
+     */
+    public interface Event {
+        /**
+         * Returns one of the {@code Geofence.GEOFENCE_TRANSITION_*} constants.
+         */
+        int getTransition();
+
+        /**
+         * Returns the request ids of the triggering registrations.
+         */
+        List<String> getRequestIds();
+
+        boolean hasLocation();
+
+        /**
+         * Returns the time of the triggering location, or the current time if there is none.
+         */
+        long getTime();
+
+        double getLatitude();
+
+        double getLongitude();
+
+        /**
+         * Returns the accuracy of the triggering location in meters, or 0 if unknown.
+         */
+        float getAccuracy();
+    }
+
+    /**
+     * The side of the service the handler calls back into.
+     */
+    public interface Host {
+        /**
+         * Keeps the host running until the returned Runnable runs. Running it more than once
+         * has no further effect.
+         */
+        Runnable holdUntilDone();
+
+        /**
+         * A parent region or cluster was entered, dwelled in or exited; see
+         * {@link GeofenceEventRouter.Sink#onRegionTransition}.
+         */
+        void onRegionTransition(String registrationId, int transition, Event event);
+
+        /**
+         * Registrations that reported DWELL, to be re-armed so DWELL fires again on the next
+         * visit.
+         */
+        void onRearm(TransitionBatch batch);
+
+        /**
+         * A transition was not handled: suppressed by the filter, rejected by a full executor
+         * or not mapped to any fence.
+         */
+        void onDropped(String requestId, int transition, String reason);
+
+        /**
+         * The set of deferred transitions changed. The host should call
+         * {@link #publishDue} at {@code nextDueTime}, and stay running until then.
+         *
+         * @param nextDueTime When the earliest deferred transition is due, or
+         *                    {@link Long#MAX_VALUE} if none is deferred.
+         */
+        void onDeferredChanged(long nextDueTime);
+    }
+
+    private final FenceHierarchy mHierarchy;
+    private final GeofenceEventRouter mRouter;
+    private final TransitionFilter mFilter;
+    private final KeyedSerialExecutor mExecutor;
+    private final GeofenceEventStream mStream;
+    private final Host mHost;
+
+    /**
+     * The event being handled.
+     */
+    private Event mEvent;
+
+    /**
+     * Registrations that reported DWELL in the event being handled.
+     */
+    private final LinkedHashSet<String> mRearmRegistrations = new LinkedHashSet<String>();
+
+    public GeofenceTransitionHandler(FenceHierarchy hierarchy, TransitionFilter filter,
+            KeyedSerialExecutor executor, GeofenceEventStream stream, Host host) {
+        mHierarchy = hierarchy;
+        mRouter = new GeofenceEventRouter(hierarchy);
+        mFilter = filter;
+        mExecutor = executor;
+        mStream = stream;
+        mHost = host;
+    }
+
+    /**
+     * Handles an event Location Services reported for registrations of the hierarchy.
+     *
+     * @return false if the transition type was not ENTER, EXIT or DWELL.
+     */
+    public boolean handle(Event event) {
+        int transition = event.getTransition();
+        if (transition != Geofence.GEOFENCE_TRANSITION_ENTER
+                && transition != Geofence.GEOFENCE_TRANSITION_EXIT
+                && transition != Geofence.GEOFENCE_TRANSITION_DWELL) {
+            return false;
+        }
+        recheckDeferred(event);
+        mEvent = event;
+        try {
+            for (String registrationId : event.getRequestIds()) {
+                mRouter.route(transition, registrationId, mSink);
+            }
+            if (!mRearmRegistrations.isEmpty()) {
+                dispatchRearmBatch();
+            }
+        } finally {
+            mEvent = null;
+            mRearmRegistrations.clear();
+        }
+        return true;
+    }
+
+    /**
+     * Handles transitions of fences that need no routing: fences evaluated locally and fences
+     * of a group without a handler. Nothing is re-armed.
+     */
+    public void handleFences(Event event) {
+        recheckDeferred(event);
+        mEvent = event;
+        try {
+            for (String requestId : event.getRequestIds()) {
+                mSink.onFenceTransition(requestId, event.getTransition(), null);
+            }
+        } finally {
+            mEvent = null;
+        }
+    }
+
+    /**
+     * Re-checks the deferred transitions against a fix, publishing those it confirms and those
+     * due by its time.
+     */
+    public void onLocation(long time, double latitude, double longitude,
+            float accuracy) {
+        List<String> deferred = mFilter.getDeferredFences();
+        if (deferred.isEmpty()) {
+            return;
+        }
+        FenceCatalog fences = mHierarchy.getChildCatalog();
+        for (String requestId : deferred) {
+            int fence = fences.indexOf(requestId);
+            if (fence < 0) {
+                continue;
+            }
+            TransitionFilter.Deferred accepted = mFilter.recheck(requestId, time,
+                    fences.distanceToCenter(fence, latitude, longitude), fences.getRadius(fence),
+                    accuracy);
+            if (accepted != null) {
+                publish(new GeofenceEventStream.TransitionEvent(requestId, accepted.transition,
+                        accepted.time, true, latitude, longitude, accuracy));
+            }
+        }
+        publishDue(time);
+    }
+
+    /**
+     * Publishes the deferred transitions that have stood for the hold time by {@code now}.
+     */
+    public void publishDue(long now) {
+        for (TransitionFilter.Deferred due : mFilter.pollDue(now)) {
+            publish(new GeofenceEventStream.TransitionEvent(due.requestId, due.transition,
+                    due.time, false, 0, 0, 0));
+        }
+        mHost.onDeferredChanged(mFilter.getNextDueTime());
+    }
+
+    private void recheckDeferred(Event event) {
+        if (event.hasLocation()) {
+            onLocation(event.getTime(), event.getLatitude(), event.getLongitude(),
+                    event.getAccuracy());
+        }
+    }
+
+    /**
+     * Publishes an event from the executor lane of its fence. The host is held until every
+     * awaited subscription has delivered or dropped it.
+     */
+    private void publish(final GeofenceEventStream.TransitionEvent event) {
+        final Runnable done = mHost.holdUntilDone();
+        boolean queued = mExecutor.execute(event.getRequestId(), new Runnable() {
+            @Override
+            public void run() {
+                mStream.publish(event, done);
+            }
+        });
+        if (!queued) {
+            done.run();
+            mHost.onDropped(event.getRequestId(), event.getTransition(),
+                    "transition queue full: " + mExecutor);
+        }
+    }
+
+    private final GeofenceEventRouter.Sink mSink = new GeofenceEventRouter.Sink() {
+        @Override
+        public void onFenceTransition(String requestId, int transition, String registrationId) {
+            switch (check(requestId, transition)) {
+                case TransitionFilter.SUPPRESS:
+                    mHost.onDropped(requestId, transition, "suppressed ("
+                            + mFilter.getSuppressedCount(requestId) + " so far)");
+                    return;
+                case TransitionFilter.DEFER:
+                    mHost.onDeferredChanged(mFilter.getNextDueTime());
+                    return;
+                default:
+                    break;
+            }
+            // Local evaluation has no registration and re-arms on the next entry by itself.
+            if (transition == Geofence.GEOFENCE_TRANSITION_DWELL && registrationId != null) {
+                mRearmRegistrations.add(registrationId);
+            }
+            publish(new GeofenceEventStream.TransitionEvent(requestId, transition,
+                    mEvent.getTime(), mEvent.hasLocation(), mEvent.getLatitude(),
+                    mEvent.getLongitude(), mEvent.getAccuracy()));
+        }
+
+        /**
+         * DWELL counts as being inside, since a registration added while the device is
+         * already in it only reports DWELL.
+         */
+        @Override
+        public void onRegionTransition(String registrationId, int transition) {
+            mHost.onRegionTransition(registrationId, transition, mEvent);
+        }
+
+        @Override
+        public void onUnresolved(String registrationId, String reason) {
+            mHost.onDropped(registrationId, mEvent.getTransition(), reason);
+        }
+    };
+
+    /**
+     * Runs a fence transition through the filter, using the triggering location of the event
+     * if there is one. Fences outside the hierarchy, such as group fences, are not filtered.
+     *
+     * @return One of the {@link TransitionFilter#check} results.
+     */
+    private int check(String requestId, int transition) {
+        FenceCatalog fences = mHierarchy.getChildCatalog();
+        int fence = fences.indexOf(requestId);
+        if (fence < 0) {
+            return TransitionFilter.ACCEPT;
+        }
+        Event event = mEvent;
+        boolean hasLocation = event.hasLocation();
+        return mFilter.check(requestId, transition, event.getTime(), hasLocation,
+                hasLocation ? fences.distanceToCenter(fence, event.getLatitude(),
+                        event.getLongitude()) : 0,
+                fences.getRadius(fence), hasLocation ? event.getAccuracy() : 0);
+    }
+
+    /**
+     * Hands every registration collected in {@link #mRearmRegistrations} to the host in one
+     * batch.
+     */
+    private void dispatchRearmBatch() {
+        FenceCatalog registrations = mHierarchy.getRegistrationCatalog();
+        TransitionBatch batch = new TransitionBatch(registrations.getVersion());
+        Event event = mEvent;
+        boolean hasLocation = event.hasLocation();
+        for (String registrationId : mRearmRegistrations) {
+            int index = registrations.indexOf(registrationId);
+            if (index >= 0) {
+                batch.add(index, Geofence.GEOFENCE_TRANSITION_DWELL, event.getTime(),
+                        hasLocation ? event.getLatitude() : Double.NaN,
+                        hasLocation ? event.getLongitude() : Double.NaN,
+                        event.getAccuracy());
+            }
+        }
+        if (!batch.isEmpty()) {
+            mHost.onRearm(batch);
+        }
+    }
+}
@@ -16,64 +16,225 @@
 
 package com.google.android.gms.location.sample.geofencing;
 
-import android.app.IntentService;
+import android.app.AlarmManager;
 import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
+import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
-import android.graphics.BitmapFactory;
-import android.graphics.Color;
 import android.location.Location;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Looper;
 import android.support.v4.app.NotificationCompat;
-import android.support.v4.app.TaskStackBuilder;
 import android.support.v4.content.LocalBroadcastManager;
 import android.text.TextUtils;
 import android.util.Log;
 
 import com.google.android.gms.location.Geofence;
 import com.google.android.gms.location.GeofencingEvent;
+import com.google.android.gms.location.LocationResult;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Listener for geofence transition changes.
  *
  * Receives geofence transition events from Location Services in the form of an Intent containing
- * the transition type and geofence id(s) that triggered the transition. Creates a notification
- * as the output.
+ * the transition type and geofence id(s) that triggered the transition, and publishes each
+ * transition on the {@link GeofenceEventStream}, where {@link TransitionNotifier} turns it into a
+ * notification.
+ *
+ * The handling itself is done by a {@link GeofenceTransitionHandler}. Transitions are handled on
+ * a {@link KeyedSerialExecutor} keyed by geofence request id, so different geofences are
+ * processed in parallel while each geofence sees its transitions in order. A
+ * {@link TransitionFilter} drops boundary flapping before anything is queued.
+ *
+ * Intents are taken in order on an intake thread, like an IntentService does, so loading the
+ * fence catalog, building the hierarchy and filtering never run on the main thread. Work for
+ * components that must be called from the main thread is posted there.
  */
-public class GeofenceTransitionsIntentService extends IntentService {
+public class GeofenceTransitionsIntentService extends Service {
 
     protected static final String TAG = "GeofenceTransitionsIS";
+
+    /**
+     * Shared by every instance of the service so queued transitions survive the service being
+     * stopped and recreated.
+     */
+    private static final KeyedSerialExecutor sTransitionExecutor = new KeyedSerialExecutor(TAG,
+            Constants.TRANSITION_WORKER_THREADS, Constants.TRANSITION_LANES,
+            Constants.TRANSITION_QUEUE_CAPACITY);
+
+    /**
+     * Drops boundary flapping before any work is queued for it. Shared by the handlers
+     * {@link #newTransitionHandler()} creates, one per intent.
+     */
+    private static final TransitionFilter sTransitionFilter = new TransitionFilter(
+            Constants.TRANSITION_HYSTERESIS_FRACTION,
+            Constants.TRANSITION_MIN_HOLD_TIME_IN_MILLISECONDS);
+
+    private static final String DEFERRED_PREFERENCES_NAME =
+            Constants.PACKAGE_NAME + ".DEFERRED_TRANSITIONS";
+
+    /**
+     * The transitions {@link #sTransitionFilter} deferred, one per line as request id,
+     * transition and time, separated by tabs. Saved after every intent that changed them, so
+     * they are still published if the process is killed before they are due.
+     */
+    private static final String DEFERRED_KEY = "deferred";
+
+    /**
+     * The value of {@link #DEFERRED_KEY} last saved or restored, or null before the saved
+     * transitions were restored in this process.
+     */
+    private static String sSavedDeferred;
+
     NotificationManager notificationMgr;
 
     /**
-     * This constructor is required, and calls the super IntentService(String)
-     * constructor with the name for a worker thread.
+     * Number of transition tasks started by this service that have not finished yet.
      */
-    public GeofenceTransitionsIntentService( ) {
-        // Use the TAG to name the worker thread.
-        super(TAG);
+    private final AtomicInteger mPendingTasks = new AtomicInteger();
 
-    }
+    private volatile int mLastStartId;
+
+    private HandlerThread mIntakeThread;
+    private Handler mIntakeHandler;
+    private Handler mMainHandler;
 
     @Override
     public void onCreate() {
         super.onCreate();
+        // Receives the DWELL batches this service dispatches.
+        MainActivity.ResponseReceiver.register(this);
+        TransitionNotifier.subscribe(this);
         notificationMgr = (NotificationManager)getSystemService(
                 NOTIFICATION_SERVICE);
+
+        mMainHandler = new Handler(Looper.getMainLooper());
+        mIntakeThread = new HandlerThread(TAG);
+        mIntakeThread.start();
+        mIntakeHandler = new Handler(mIntakeThread.getLooper());
+        // Runs before the first intent is taken.
+        mIntakeHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                // Transitions are routed against the last synced fence catalog, if any.
+                FenceStore.getInstance(GeofenceTransitionsIntentService.this);
+                // Publishes transitions deferred before the process was killed once they are
+                // due.
+                if (restoreDeferred(GeofenceTransitionsIntentService.this)) {
+                    mHost.onDeferredChanged(sTransitionFilter.getNextDueTime());
+                }
+                // Resumes evaluating child fences if the process was killed inside a parent
+                // region.
+                HierarchicalFenceMonitor.getInstance(GeofenceTransitionsIntentService.this);
+            }
+        });
+    }
+
+    /**
+     * Hands the intent to the intake thread; the service stays started until it is handled.
+     */
+    @Override
+    public int onStartCommand(final Intent intent, int flags, int startId) {
+        mLastStartId = startId;
+        mPendingTasks.incrementAndGet();
+        mIntakeHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    onHandleIntent(intent);
+                } finally {
+                    saveDeferred(GeofenceTransitionsIntentService.this);
+                    onTaskFinished();
+                }
+            }
+        });
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        // Only stopped once every intent has been handled, so nothing is left queued.
+        mIntakeThread.quit();
+        super.onDestroy();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
     }
 
     /**
-     * Handles incoming intents.
+     * Handles incoming intents on the intake thread and hands each triggering geofence to the
+     * transition executor.
      * @param intent sent by Location Services. This Intent is provided to Location
      *               Services (inside a PendingIntent) when addGeofences() is called.
      */
-    @Override
     protected void onHandleIntent(Intent intent) {
+        if (Constants.ACTION_RENEW_GEOFENCES.equals(intent.getAction())) {
+            final Runnable done = holdUntilDone();
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    GeofenceRenewalScheduler.getInstance(GeofenceTransitionsIntentService.this)
+                            .renewDue(done);
+                }
+            });
+            return;
+        }
+        if (Constants.ACTION_POLICY_LOCATION.equals(intent.getAction())) {
+            final Location location = LocationResult.hasResult(intent)
+                    ? LocationResult.extractResult(intent).getLastLocation() : null;
+            if (location != null) {
+                final Runnable done = holdUntilDone();
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        GeofencePolicyUpdater.getInstance(GeofenceTransitionsIntentService.this)
+                                .onLocation(location.getLatitude(), location.getLongitude(),
+                                        done);
+                    }
+                });
+                recheckDeferred(location);
+            }
+            return;
+        }
+        if (Constants.ACTION_CHILD_LOCATION.equals(intent.getAction())) {
+            List<Location> locations = LocationResult.hasResult(intent)
+                    ? LocationResult.extractResult(intent).getLocations() : null;
+            if (locations != null && !locations.isEmpty()) {
+                LocationBatch batch = new LocationBatch(locations.size());
+                for (Location location : locations) {
+                    batch.add(location.getLatitude(), location.getLongitude(),
+                            location.getAccuracy(), location.getTime());
+                }
+                HierarchicalFenceMonitor.getInstance(this).onLocationBatch(batch);
+                recheckDeferred(locations.get(locations.size() - 1));
+            }
+            return;
+        }
+        if (Constants.ACTION_PUBLISH_DEFERRED_TRANSITIONS.equals(intent.getAction())) {
+            newTransitionHandler().publishDue(System.currentTimeMillis());
+            return;
+        }
+        if (Constants.ACTION_LOCAL_TRANSITION.equals(intent.getAction())) {
+            // A child fence evaluated by HierarchicalFenceMonitor. There is no registration to
+            // re-arm on DWELL; local evaluation re-arms on the next entry.
+            newTransitionHandler().handleFences(new LocalTransitionEvent(
+                    intent.getStringExtra(Constants.EXTRA_REQUEST_ID),
+                    intent.getIntExtra(Constants.EXTRA_TRANSITION, -1)));
+            return;
+        }
+
         GeofencingEvent geofencingEvent = GeofencingEvent.fromIntent(intent);
         if (geofencingEvent.hasError()) {
             String errorMessage = GeofenceErrorMessages.getErrorString(this,
@@ -85,227 +246,337 @@ public class GeofenceTransitionsIntentService extends IntentService {
         // Get the transition type.
         int geofenceTransition = geofencingEvent.getGeofenceTransition();
 
-        // Test that the reported transition was of interest.
-        if (geofenceTransition == Geofence.GEOFENCE_TRANSITION_ENTER ||
-                geofenceTransition == Geofence.GEOFENCE_TRANSITION_EXIT ) {
-
-            // Get the geofences that were triggered. A single event can trigger multiple geofences.
-            List<Geofence> triggeringGeofences = geofencingEvent.getTriggeringGeofences();
-
-            // Get the transition details as a String.
-            String geofenceTransitionDetails = getGeofenceTransitionDetails(
-                    this,
-                    geofenceTransition,
-                    triggeringGeofences
-            );
-
-            // Send notification and log the transition details.
-            sendNotification(geofenceTransitionDetails,false);
-            Log.i(TAG, geofenceTransitionDetails);
-        }else if( geofenceTransition == Geofence.GEOFENCE_TRANSITION_DWELL){
-            // Get the geofences that were triggered. A single event can trigger multiple geofences.
-            List<Geofence> triggeringGeofences = geofencingEvent.getTriggeringGeofences();
-
-            String toBeDeletedId=triggeringGeofences.get(0).getRequestId();
-
-            // Get the transition details as a String.
-            String geofenceTransitionDetails = getGeofenceTransitionDetails(
-                    this,
-                    geofenceTransition,
-                    triggeringGeofences
-            );
-
-            // Send notification and log the transition details.
-            sendNotification(geofenceTransitionDetails,true);
-
-            Intent localIntent = new Intent(Constants.BROADCAST_ACTION)
-                            // Puts the status into the Intent
-                            .putExtra(Constants.ID_TO_BE_DELETED, toBeDeletedId)
-                            .addCategory(Intent.CATEGORY_DEFAULT);
-            // Broadcasts the Intent to receivers in this app.
-            sendBroadcast(localIntent);
-
-
-
-            Log.i(TAG, geofenceTransitionDetails);
-            //Recreate this geofence.
-
-
+        String group = intent.getStringExtra(Constants.EXTRA_GEOFENCE_GROUP);
+        if (group != null) {
+            handleGroupEvent(group, geofenceTransition, geofencingEvent);
+            return;
         }
-         else {
+
+        // Get the geofences that were triggered. A single event can trigger multiple
+        // geofences; each one is handled on its own serial lane so a slow fence does not hold
+        // up the others.
+        if (!newTransitionHandler().handle(new GeofencingEventAdapter(geofencingEvent))) {
             // Log the error.
             Log.e(TAG, getString(R.string.geofence_transition_invalid_type, geofenceTransition));
         }
+        Log.v(TAG, sTransitionExecutor.toString());
+        Log.v(TAG, sTransitionFilter.toString());
+    }
 
+    /**
+     * Re-checks the transitions {@link #sTransitionFilter} deferred against a fix.
+     */
+    private void recheckDeferred(Location location) {
+        newTransitionHandler().onLocation(location.getTime(), location.getLatitude(),
+                location.getLongitude(), location.hasAccuracy() ? location.getAccuracy() : 0);
+    }
 
-        int transitionType =
-                geofencingEvent.getGeofenceTransition();
-        String tranTypeStr = "UNKNOWN(" + transitionType + ")";
-        switch(transitionType) {
-            case Geofence.GEOFENCE_TRANSITION_ENTER:
-                tranTypeStr = "ENTER";
-                break;
-            case Geofence.GEOFENCE_TRANSITION_EXIT:
-                tranTypeStr = "EXIT";
-                break;
-            case Geofence.GEOFENCE_TRANSITION_DWELL:
-                tranTypeStr = "DWELL";
-                break;
+    /**
+     * Restores the deferred transitions saved by {@link #saveDeferred} into
+     * {@link #sTransitionFilter}, once per process.
+     *
+     * @return true if any transition was restored.
+     */
+    private static synchronized boolean restoreDeferred(Context context) {
+        if (sSavedDeferred != null) {
+            return false;
+        }
+        sSavedDeferred = context.getSharedPreferences(DEFERRED_PREFERENCES_NAME,
+                Context.MODE_PRIVATE).getString(DEFERRED_KEY, "");
+        boolean restored = false;
+        for (String line : sSavedDeferred.split("\n")) {
+            String[] fields = line.split("\t");
+            if (fields.length != 3) {
+                continue;
+            }
+            try {
+                sTransitionFilter.restoreDeferred(fields[0], Integer.parseInt(fields[1]),
+                        Long.parseLong(fields[2]));
+                restored = true;
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Skipping malformed deferred transition: " + line);
+            }
         }
+        return restored;
+    }
 
+    /**
+     * Saves the transitions {@link #sTransitionFilter} deferred, if they changed since they
+     * were last saved.
+     */
+    private static synchronized void saveDeferred(Context context) {
+        if (sSavedDeferred == null) {
+            // Not restored yet; saving now would overwrite them.
+            return;
+        }
+        List<String> lines = new ArrayList<String>();
+        for (TransitionFilter.Deferred deferred : sTransitionFilter.getDeferred()) {
+            lines.add(deferred.requestId + "\t" + deferred.transition + "\t" + deferred.time);
+        }
+        String saved = TextUtils.join("\n", lines);
+        if (!saved.equals(sSavedDeferred)) {
+            context.getSharedPreferences(DEFERRED_PREFERENCES_NAME, Context.MODE_PRIVATE)
+                    .edit()
+                    .putString(DEFERRED_KEY, saved)
+                    .apply();
+            sSavedDeferred = saved;
+        }
+    }
 
+    /**
+     * Returns a handler over the current hierarchy, reporting back to this service.
+     */
+    private GeofenceTransitionHandler newTransitionHandler() {
+        return new GeofenceTransitionHandler(FenceHierarchy.getDefault(), sTransitionFilter,
+                sTransitionExecutor, GeofenceEventStream.getInstance(), mHost);
+    }
 
-        Location triggerLoc = geofencingEvent.getTriggeringLocation();
-        Log.v(TAG, "triggering location is " + triggerLoc);
-        List <Geofence> triggerList =
-                geofencingEvent.getTriggeringGeofences();
-        String[] triggerIds = new String[triggerList.size()];
-        for (int i = 0; i < triggerIds.length; i++) {
-            // Grab the Id of each geofence
-            triggerIds[i] = triggerList.get(i).getRequestId();
-            String msg = tranTypeStr + ": " + triggerLoc.getLatitude() +
-                    ", " + triggerLoc.getLongitude();
-            String title = triggerIds[i];
-         //   displayNotificationMessage(title, msg);
+    private final GeofenceTransitionHandler.Host mHost = new GeofenceTransitionHandler.Host() {
+        @Override
+        public Runnable holdUntilDone() {
+            return GeofenceTransitionsIntentService.this.holdUntilDone();
         }
 
+        /**
+         * Loads or unloads the fences of a parent region or cluster.
+         */
+        @Override
+        public void onRegionTransition(String registrationId, int transition,
+                GeofenceTransitionHandler.Event event) {
+            HierarchicalFenceMonitor monitor =
+                    HierarchicalFenceMonitor.getInstance(GeofenceTransitionsIntentService.this);
+            if (transition == Geofence.GEOFENCE_TRANSITION_EXIT) {
+                monitor.onRegionExit(registrationId, event.getTime(), event.hasLocation(),
+                        event.getLatitude(), event.getLongitude(), holdUntilDone());
+            } else {
+                monitor.onRegionEnter(registrationId, event.getTime(), event.hasLocation(),
+                        event.getLatitude(), event.getLongitude(), holdUntilDone());
+            }
+        }
 
-    }
+        /**
+         * Sends the batch to {@link MainActivity.ResponseReceiver} in a single in-process
+         * broadcast, which re-arms the registrations.
+         */
+        @Override
+        public void onRearm(TransitionBatch batch) {
+            Intent localIntent = new Intent(Constants.BROADCAST_ACTION)
+                    .putExtra(Constants.TRANSITION_BATCH, batch.toByteArray());
+            LocalBroadcastManager.getInstance(GeofenceTransitionsIntentService.this)
+                    .sendBroadcast(localIntent);
+        }
 
+        @Override
+        public void onDropped(String requestId, int transition, String reason) {
+            Log.w(TAG, "Dropped transition " + transition + " of " + requestId + ": " + reason);
+        }
 
-    private void displayNotificationMessage(String title, String message)
-    {
-        int notif_id = (int) (System.currentTimeMillis() & 0xFFL);
-        Notification notification = new NotificationCompat.Builder(this)
-                .setContentTitle(title)
-                .setContentText(message)
-                .setSmallIcon(android.R.drawable.ic_menu_compass)
-                .setOngoing(false)
-                .build();
-        notificationMgr.notify(notif_id, notification);
-    }
+        /**
+         * Sets an alarm for the next deferred transition, and keeps the service started until
+         * none is left, so the filter holding them is not lost with the process.
+         */
+        @Override
+        public void onDeferredChanged(long nextDueTime) {
+            GeofenceTransitionsIntentService service = GeofenceTransitionsIntentService.this;
+            AlarmManager alarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+            PendingIntent alarmIntent = PendingIntent.getService(service, 0,
+                    new Intent(service, GeofenceTransitionsIntentService.class)
+                            .setAction(Constants.ACTION_PUBLISH_DEFERRED_TRANSITIONS),
+                    PendingIntent.FLAG_UPDATE_CURRENT);
+            if (nextDueTime == Long.MAX_VALUE) {
+                alarmManager.cancel(alarmIntent);
+                if (mDeferredHold != null) {
+                    mDeferredHold.run();
+                    mDeferredHold = null;
+                }
+                return;
+            }
+            alarmManager.set(AlarmManager.RTC_WAKEUP, nextDueTime, alarmIntent);
+            if (mDeferredHold == null) {
+                mDeferredHold = holdUntilDone();
+            }
+        }
+    };
 
     /**
-     * Gets transition details and returns them as a formatted string.
-     *
-     * @param context               The app context.
-     * @param geofenceTransition    The ID of the geofence transition.
-     * @param triggeringGeofences   The geofence(s) triggered.
-     * @return                      The transition details formatted as String.
+     * Keeps the service started while transitions are deferred, or null.
      */
-    private String getGeofenceTransitionDetails(
-            Context context,
-            int geofenceTransition,
-            List<Geofence> triggeringGeofences) {
+    private Runnable mDeferredHold;
 
-        String geofenceTransitionString = getTransitionString(geofenceTransition);
+    /**
+     * A {@link GeofencingEvent} as the transition handler sees it.
+     */
+    private static final class GeofencingEventAdapter
+            implements GeofenceTransitionHandler.Event {
+        private final GeofencingEvent mEvent;
+        private final Location mLocation;
+        private final long mTime;
+
+        GeofencingEventAdapter(GeofencingEvent event) {
+            mEvent = event;
+            mLocation = event.getTriggeringLocation();
+            mTime = mLocation != null ? mLocation.getTime() : System.currentTimeMillis();
+        }
 
-        // Get the Ids of each geofence that was triggered.
-        ArrayList triggeringGeofencesIdsList = new ArrayList();
-        for (Geofence geofence : triggeringGeofences) {
-            triggeringGeofencesIdsList.add(geofence.getRequestId());
+        @Override
+        public int getTransition() {
+            return mEvent.getGeofenceTransition();
         }
-        String triggeringGeofencesIdsString = TextUtils.join(", ",  triggeringGeofencesIdsList);
 
-        return geofenceTransitionString + ": " + triggeringGeofencesIdsString;
-    }
+        @Override
+        public List<String> getRequestIds() {
+            List<String> requestIds = new ArrayList<String>();
+            for (Geofence geofence : mEvent.getTriggeringGeofences()) {
+                requestIds.add(geofence.getRequestId());
+            }
+            return requestIds;
+        }
 
-    /**
-     * Posts a notification in the notification bar when a transition is detected.
-     * If the user clicks the notification, control goes to the MainActivity.
-     */
-    private void sendNotification(String notificationDetails, boolean isDwell) {
-        // Create an explicit content Intent that starts the main Activity.
-        Intent notificationIntent = new Intent(getApplicationContext(), MainActivity.class);
+        @Override
+        public boolean hasLocation() {
+            return mLocation != null;
+        }
 
-        // Construct a task stack.
-        TaskStackBuilder stackBuilder = TaskStackBuilder.create(this);
+        @Override
+        public long getTime() {
+            return mTime;
+        }
 
-        // Add the main Activity to the task stack as the parent.
-        stackBuilder.addParentStack(MainActivity.class);
+        @Override
+        public double getLatitude() {
+            return mLocation != null ? mLocation.getLatitude() : 0;
+        }
 
-        // Push the content Intent onto the stack.
-        stackBuilder.addNextIntent(notificationIntent);
+        @Override
+        public double getLongitude() {
+            return mLocation != null ? mLocation.getLongitude() : 0;
+        }
 
-        // Get a PendingIntent containing the entire back stack.
-        PendingIntent notificationPendingIntent =
-                stackBuilder.getPendingIntent(0, PendingIntent.FLAG_UPDATE_CURRENT);
+        @Override
+        public float getAccuracy() {
+            return mLocation != null && mLocation.hasAccuracy() ? mLocation.getAccuracy() : 0;
+        }
+    }
 
-        int notif_id = (int) (System.currentTimeMillis() & 0xFFL);
+    /**
+     * A transition of a fence evaluated by {@link HierarchicalFenceMonitor}, which carries no
+     * location.
+     */
+    private static final class LocalTransitionEvent implements GeofenceTransitionHandler.Event {
+        private final String mRequestId;
+        private final int mTransition;
+        private final long mTime = System.currentTimeMillis();
+
+        LocalTransitionEvent(String requestId, int transition) {
+            mRequestId = requestId;
+            mTransition = transition;
+        }
 
+        @Override
+        public int getTransition() {
+            return mTransition;
+        }
 
-        // Get a notification builder that's compatible with platform versions >= 4
-        NotificationCompat.Builder builder = new NotificationCompat.Builder(this);
-        if(isDwell){
-            builder.setSmallIcon(R.drawable.common_signin_btn_icon_disabled_focus_dark)
-                    // In a real app, you may want to use a library like Volley
-                    // to decode the Bitmap.
-                    .setLargeIcon(BitmapFactory.decodeResource(getResources(),
-                            R.drawable.common_signin_btn_icon_disabled_focus_dark))
-                    .setColor(Color.RED)
-                    .setContentTitle(notificationDetails)
+        @Override
+        public List<String> getRequestIds() {
+            return Collections.singletonList(mRequestId);
+        }
 
-                    .setContentText(getString(R.string.geofence_transition_notification_text))
-                    .setContentIntent(notificationPendingIntent);
+        @Override
+        public boolean hasLocation() {
+            return false;
+        }
 
-        }else{
-            builder.setSmallIcon(R.drawable.ic_launcher)
-                    // In a real app, you may want to use a library like Volley
-                    // to decode the Bitmap.
-                    .setLargeIcon(BitmapFactory.decodeResource(getResources(),
-                            R.drawable.ic_launcher))
-                    .setColor(Color.RED)
-                    .setContentTitle(notificationDetails)
-                    .setContentText(getString(R.string.geofence_transition_notification_text))
-                    .setContentIntent(notificationPendingIntent);
+        @Override
+        public long getTime() {
+            return mTime;
         }
-        // Define the notification settings.
 
-        // Dismiss notification once the user touches it.
-        builder.setAutoCancel(true);
-        builder.setOngoing(false);
+        @Override
+        public double getLatitude() {
+            return 0;
+        }
 
-        // Get an instance of the Notification manager
-        NotificationManager mNotificationManager =
-                (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        @Override
+        public double getLongitude() {
+            return 0;
+        }
 
-        // Issue the notification
-        Random random=new Random();
+        @Override
+        public float getAccuracy() {
+            return 0;
+        }
+    }
 
-        mNotificationManager.notify(notif_id, builder.build());
+    /**
+     * Hands an event of a {@link GeofenceGroups} group to the group's handler, or, if it has
+     * none, notifies about each fence like a fence of the main catalog. Group fences are not in
+     * the hierarchy, so there is nothing to route.
+     */
+    private void handleGroupEvent(final String group, final int transition,
+            final GeofencingEvent geofencingEvent) {
+        final List<String> requestIds = new ArrayList<String>();
+        for (Geofence geofence : geofencingEvent.getTriggeringGeofences()) {
+            requestIds.add(geofence.getRequestId());
+        }
+        final GeofenceGroups.Handler handler =
+                GeofenceGroups.getInstance(this).getHandler(group);
+        if (handler != null) {
+            final Runnable done = holdUntilDone();
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        handler.onGroupTransition(group, transition, requestIds,
+                                geofencingEvent.getTriggeringLocation());
+                    } finally {
+                        done.run();
+                    }
+                }
+            });
+            return;
+        }
+        newTransitionHandler().handleFences(new GeofencingEventAdapter(geofencingEvent));
+    }
 
-/*
+    /**
+     * Keeps the service started until the returned Runnable runs, for work that finishes in a
+     * callback. Running it more than once has no further effect.
+     */
+    private Runnable holdUntilDone() {
+        mPendingTasks.incrementAndGet();
+        final AtomicBoolean done = new AtomicBoolean();
+        return new Runnable() {
+            @Override
+            public void run() {
+                if (done.compareAndSet(false, true)) {
+                    onTaskFinished();
+                }
+            }
+        };
+    }
 
+    /**
+     * Stops the service once every task started by it has finished.
+     */
+    private void onTaskFinished() {
+        if (mPendingTasks.decrementAndGet() == 0) {
+            stopSelf(mLastStartId);
+        }
+    }
 
+    private void displayNotificationMessage(String title, String message)
+    {
+        int notif_id = (int) (System.currentTimeMillis() & 0xFFL);
         Notification notification = new NotificationCompat.Builder(this)
                 .setContentTitle(title)
                 .setContentText(message)
                 .setSmallIcon(android.R.drawable.ic_menu_compass)
                 .setOngoing(false)
                 .build();
-        notificationMgr.notify(notif_id, notification);*/
-    }
-
-    /**
-     * Maps geofence transition types to their human-readable equivalents.
-     *
-     * @param transitionType    A transition type constant defined in Geofence
-     * @return                  A String indicating the type of transition
-     */
-    private String getTransitionString(int transitionType) {
-        switch (transitionType) {
-            case Geofence.GEOFENCE_TRANSITION_ENTER:
-                return getString(R.string.geofence_transition_entered);
-            case Geofence.GEOFENCE_TRANSITION_EXIT:
-                return getString(R.string.geofence_transition_exited);
-            case Geofence.GEOFENCE_TRANSITION_DWELL:
-                return "Dwelling:";
-            default:
-                return getString(R.string.unknown_geofence_transition);
-        }
+        notificationMgr.notify(notif_id, notification);
     }
 
-
     public interface ServiceCallbacks{
         public void deletePOI(String id);
     }
@@ -0,0 +1,372 @@
+/**
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.location.sample.geofencing;
+
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.Bundle;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.location.LocationRequest;
+import com.google.android.gms.location.LocationServices;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Evaluates the child fences of the parent regions, and the member fences of the clusters, the
+ * device is in. Entering such a registration loads its fences and starts raw location updates;
+ * exiting unloads them, and once no registration is active location updates stop. Memory and
+ * CPU therefore follow the local neighbourhood rather than the whole catalog.
+ *
+ * Updates use balanced power accuracy at
+ * {@link Constants#CHILD_FAR_LOCATION_UPDATE_INTERVAL_IN_MILLISECONDS} while the device is far
+ * from every loaded fence, and switch to high accuracy at
+ * {@link Constants#CHILD_LOCATION_UPDATE_INTERVAL_IN_MILLISECONDS} only within
+ * {@link Constants#CHILD_NEAR_BOUNDARY_DISTANCE_IN_METERS} of a fence's boundary, where a
+ * transition can happen soon.
+ *
+ * Location updates are requested with a PendingIntent that starts
+ * {@link GeofenceTransitionsIntentService} with {@link Constants#ACTION_CHILD_LOCATION}, so
+ * they keep arriving after the process is killed. The active registrations and the fences the
+ * device is inside are saved after every change and restored by {@link #getInstance}, since
+ * Location Services does not report ENTER again while the device stays inside a registration.
+ * Saved state is only restored for the catalog version it was saved with; after a sync it is
+ * dropped, since registrations and fences may no longer mean what they did.
+ *
+ * Child transitions are handed to {@link GeofenceTransitionsIntentService} the same way
+ * Location Services hands over its own, so they are handled identically.
+ *
+ * Thread safe; the service calls it from its intake thread, and connection callbacks arrive on
+ * the main thread.
+ */
+public class HierarchicalFenceMonitor implements LocalFenceEvaluator.TransitionListener,
+        GoogleApiClient.ConnectionCallbacks, GoogleApiClient.OnConnectionFailedListener {
+
+    protected static final String TAG = "HierarchicalMonitor";
+
+    private static final String PREFERENCES_NAME =
+            Constants.PACKAGE_NAME + ".HIERARCHY_MONITOR";
+
+    /**
+     * Request ids of the active registrations, one per line.
+     */
+    private static final String REGIONS_KEY = "regions";
+
+    /**
+     * Fences the device is inside, one per line as request id, entry time and whether DWELL was
+     * reported, separated by tabs.
+     */
+    private static final String INSIDE_KEY = "inside";
+
+    /**
+     * Version of the registration catalog the state was saved with.
+     */
+    private static final String VERSION_KEY = "version";
+
+    private static HierarchicalFenceMonitor sInstance;
+
+    private final Context mContext;
+    private final SharedPreferences mPreferences;
+    private final ActiveRegionEvaluator mRegions;
+
+    private GoogleApiClient mGoogleApiClient;
+
+    /**
+     * Whether {@link #restore()} dropped state saved for another catalog version, whose
+     * location request may still be active.
+     */
+    private boolean mDroppedStaleState;
+
+    /**
+     * Whether the location request last applied asks for high-accuracy fixes.
+     */
+    private boolean mHighAccuracy;
+
+    /**
+     * Completion callbacks waiting for the location request to be updated.
+     */
+    private final List<Runnable> mPendingDone = new ArrayList<Runnable>();
+
+    /**
+     * Returns the monitor for {@link FenceHierarchy#getDefault()}, restoring the saved state
+     * when the process has just started. When the hierarchy has been rebuilt, the old monitor
+     * is disconnected and the new one takes over the saved state.
+     */
+    public static synchronized HierarchicalFenceMonitor getInstance(Context context) {
+        FenceHierarchy hierarchy = FenceHierarchy.getDefault();
+        if (sInstance == null || sInstance.mRegions.getHierarchy() != hierarchy) {
+            if (sInstance != null) {
+                sInstance.disconnect();
+            }
+            sInstance = new HierarchicalFenceMonitor(context.getApplicationContext(), hierarchy);
+            if (!sInstance.mRegions.isEmpty() || sInstance.mDroppedStaleState) {
+                sInstance.updateLocationRequest(null);
+            }
+        }
+        return sInstance;
+    }
+
+    private HierarchicalFenceMonitor(Context context, FenceHierarchy hierarchy) {
+        mContext = context;
+        mPreferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        mRegions = new ActiveRegionEvaluator(hierarchy,
+                Constants.GEOFENCE_LOITERING_DELAY_IN_MILLISECONDS);
+        restore();
+    }
+
+    /**
+     * Loads the fences of a parent region or cluster the device is inside, and evaluates them
+     * against the triggering location if there is one. Safe to call again for an active
+     * registration, e.g. on DWELL.
+     *
+     * @param done Runs once location updates have been requested, or right away if nothing
+     *             changed; may be null.
+     */
+    public synchronized void onRegionEnter(String registrationId, long time, boolean hasLocation,
+            double latitude, double longitude, Runnable done) {
+        if (!mRegions.enter(registrationId, time, hasLocation, latitude, longitude, this)) {
+            run(done);
+            return;
+        }
+        Log.i(TAG, "Entered " + registrationId + ", evaluating "
+                + mRegions.getLoadedFences().length + " fences");
+        save();
+        updateLocationRequest(done);
+    }
+
+    /**
+     * Unloads the fences of a parent region or cluster the device has left. Fences that are no
+     * longer loaded report EXIT if the device was reported inside them.
+     *
+     * @param done Runs once location updates have been updated, or right away if nothing
+     *             changed; may be null.
+     */
+    public synchronized void onRegionExit(String registrationId, long time, boolean hasLocation,
+            double latitude, double longitude, Runnable done) {
+        if (!mRegions.exit(registrationId, time, hasLocation, latitude, longitude, this)) {
+            run(done);
+            return;
+        }
+        Log.i(TAG, "Exited " + registrationId);
+        save();
+        if (mRegions.isEmpty() || isNearBoundary() != mHighAccuracy) {
+            updateLocationRequest(done);
+        } else {
+            run(done);
+        }
+    }
+
+    /**
+     * Evaluates fixes delivered with {@link Constants#ACTION_CHILD_LOCATION}.
+     */
+    public synchronized void onLocationBatch(LocationBatch batch) {
+        mRegions.evaluate(batch, this);
+        save();
+        if (!mRegions.isEmpty() && isNearBoundary() != mHighAccuracy) {
+            updateLocationRequest(null);
+        }
+    }
+
+    /**
+     * Returns the fences currently evaluated, as sorted child catalog indices.
+     */
+    public synchronized int[] getLoadedChildren() {
+        return mRegions.getLoadedFences();
+    }
+
+    @Override
+    public synchronized void onConnected(Bundle connectionHint) {
+        applyLocationRequest();
+    }
+
+    @Override
+    public void onConnectionSuspended(int cause) {
+        // onConnected() will be called again automatically when the service reconnects.
+    }
+
+    @Override
+    public synchronized void onConnectionFailed(ConnectionResult result) {
+        Log.i(TAG, "Connection failed: ConnectionResult.getErrorCode() = " + result.getErrorCode());
+        mGoogleApiClient = null;
+        runPendingDone();
+    }
+
+    @Override
+    public void onTransition(int fenceIndex, int transition, long time, double latitude,
+            double longitude) {
+        Intent intent = new Intent(mContext, GeofenceTransitionsIntentService.class)
+                .setAction(Constants.ACTION_LOCAL_TRANSITION)
+                .putExtra(Constants.EXTRA_REQUEST_ID,
+                        mRegions.getHierarchy().getChildCatalog().getId(fenceIndex))
+                .putExtra(Constants.EXTRA_TRANSITION, transition);
+        mContext.startService(intent);
+    }
+
+    /**
+     * Requests location updates if a registration is active, or removes the request if none
+     * is, connecting first if needed.
+     */
+    private void updateLocationRequest(Runnable done) {
+        if (done != null) {
+            mPendingDone.add(done);
+        }
+        if (mGoogleApiClient == null) {
+            mGoogleApiClient = new GoogleApiClient.Builder(mContext)
+                    .addConnectionCallbacks(this)
+                    .addOnConnectionFailedListener(this)
+                    .addApi(LocationServices.API)
+                    .build();
+        }
+        if (mGoogleApiClient.isConnected()) {
+            applyLocationRequest();
+        } else {
+            mGoogleApiClient.connect();
+        }
+    }
+
+    private void applyLocationRequest() {
+        try {
+            if (!mRegions.isEmpty()) {
+                mHighAccuracy = isNearBoundary();
+                LocationRequest request = mHighAccuracy
+                        ? createLocationRequest(LocationRequest.PRIORITY_HIGH_ACCURACY,
+                                Constants.CHILD_LOCATION_UPDATE_INTERVAL_IN_MILLISECONDS,
+                                Constants.CHILD_LOCATION_MAX_WAIT_TIME_IN_MILLISECONDS)
+                        : createLocationRequest(LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY,
+                                Constants.CHILD_FAR_LOCATION_UPDATE_INTERVAL_IN_MILLISECONDS,
+                                Constants.CHILD_FAR_LOCATION_MAX_WAIT_TIME_IN_MILLISECONDS);
+                LocationServices.FusedLocationApi.requestLocationUpdates(mGoogleApiClient,
+                        request, getLocationPendingIntent());
+            } else {
+                LocationServices.FusedLocationApi.removeLocationUpdates(mGoogleApiClient,
+                        getLocationPendingIntent());
+            }
+        } catch (SecurityException securityException) {
+            Log.e(TAG, "Invalid location permission. " +
+                    "You need to use ACCESS_FINE_LOCATION for location updates", securityException);
+        }
+        runPendingDone();
+    }
+
+    private static LocationRequest createLocationRequest(int priority, long interval,
+            long maxWaitTime) {
+        return LocationRequest.create()
+                .setPriority(priority)
+                .setInterval(interval)
+                .setFastestInterval(interval)
+                .setMaxWaitTime(maxWaitTime);
+    }
+
+    /**
+     * Returns true if the device is close enough to a loaded fence's boundary for
+     * high-accuracy fixes.
+     */
+    private boolean isNearBoundary() {
+        return mRegions.isNearBoundary(Constants.CHILD_NEAR_BOUNDARY_DISTANCE_IN_METERS);
+    }
+
+    private void disconnect() {
+        if (mGoogleApiClient != null) {
+            mGoogleApiClient.disconnect();
+            mGoogleApiClient = null;
+        }
+        runPendingDone();
+    }
+
+    /**
+     * Returns the PendingIntent location updates are delivered with.
+     */
+    private PendingIntent getLocationPendingIntent() {
+        Intent intent = new Intent(mContext, GeofenceTransitionsIntentService.class)
+                .setAction(Constants.ACTION_CHILD_LOCATION);
+        return PendingIntent.getService(mContext, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    /**
+     * Saves the active registrations and the fences the device is inside.
+     */
+    private void save() {
+        FenceCatalog children = mRegions.getHierarchy().getChildCatalog();
+        LocalFenceEvaluator evaluator = mRegions.getEvaluator();
+        List<String> inside = new ArrayList<String>();
+        for (int fence : evaluator.getInsideFences()) {
+            inside.add(children.getId(fence) + "\t" + evaluator.getEnteredAt(fence) + "\t"
+                    + evaluator.hasDwelled(fence));
+        }
+        long version = mRegions.getHierarchy().getRegistrationCatalog().getVersion();
+        mPreferences.edit()
+                .putLong(VERSION_KEY, version)
+                .putString(REGIONS_KEY, TextUtils.join("\n", mRegions.getActiveRegions()))
+                .putString(INSIDE_KEY, TextUtils.join("\n", inside))
+                .apply();
+    }
+
+    /**
+     * Restores the state saved by {@link #save()}. Registrations and fences no longer in the
+     * hierarchy are dropped, and so is everything saved for another catalog version.
+     */
+    private void restore() {
+        String regions = mPreferences.getString(REGIONS_KEY, "");
+        if (regions.length() == 0) {
+            return;
+        }
+        long version = mRegions.getHierarchy().getRegistrationCatalog().getVersion();
+        if (mPreferences.getLong(VERSION_KEY, -1) != version) {
+            Log.i(TAG, "Dropping state saved for another catalog version");
+            mPreferences.edit().clear().apply();
+            mDroppedStaleState = true;
+            return;
+        }
+        mRegions.restore(Arrays.asList(regions.split("\n")));
+        FenceCatalog children = mRegions.getHierarchy().getChildCatalog();
+        int[] loaded = mRegions.getLoadedFences();
+        for (String line : mPreferences.getString(INSIDE_KEY, "").split("\n")) {
+            String[] fields = line.split("\t");
+            if (fields.length != 3) {
+                continue;
+            }
+            int fence = children.indexOf(fields[0]);
+            if (fence >= 0 && Arrays.binarySearch(loaded, fence) >= 0) {
+                mRegions.getEvaluator().restoreInside(fence, Long.parseLong(fields[1]),
+                        Boolean.parseBoolean(fields[2]));
+            }
+        }
+        Log.i(TAG, "Restored " + mRegions.getActiveRegions() + ", evaluating "
+                + loaded.length + " fences");
+    }
+
+    private void runPendingDone() {
+        List<Runnable> done = new ArrayList<Runnable>(mPendingDone);
+        mPendingDone.clear();
+        for (Runnable runnable : done) {
+            runnable.run();
+        }
+    }
+
+    private static void run(Runnable runnable) {
+        if (runnable != null) {
+            runnable.run();
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/**
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.android.gms.location.sample.geofencing;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs tasks on a bounded pool of worker threads while keeping tasks that share a key in
+ * submission order. Keys are striped over a fixed number of serial lanes: tasks in one lane run
+ * one at a time, different lanes run in parallel. Two keys may share a lane, which costs
+ * parallelism but never ordering.
+ *
+ * At most {@code capacity} tasks may be queued or running at once; further submissions are
+ * rejected rather than queued without bound.
+ */
+public class KeyedSerialExecutor {
+
+    private final Lane[] mLanes;
+    private final ExecutorService mWorkers;
+    private final int mCapacity;
+
+    private final AtomicInteger mQueueDepth = new AtomicInteger();
+    private final AtomicLong mSubmitted = new AtomicLong();
+    private final AtomicLong mCompleted = new AtomicLong();
+    private final AtomicLong mRejected = new AtomicLong();
+    private final AtomicLong mTotalLagNanos = new AtomicLong();
+    private final AtomicLong mMaxLagNanos = new AtomicLong();
+
+    /**
+     * @param name     Prefix for worker thread names.
+     * @param threads  Number of worker threads.
+     * @param lanes    Number of serial lanes keys are striped over; should exceed {@code threads}.
+     * @param capacity Maximum number of tasks queued or running at once.
+     */
+    public KeyedSerialExecutor(final String name, int threads, int lanes, int capacity) {
+        if (threads < 1 || lanes < 1 || capacity < 1) {
+            throw new IllegalArgumentException("threads, lanes and capacity must be positive");
+        }
+        mLanes = new Lane[lanes];
+        for (int i = 0; i < lanes; i++) {
+            mLanes[i] = new Lane();
+        }
+        mCapacity = capacity;
+        ThreadPoolExecutor workers = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        return new Thread(runnable, name + "-" + mCount.incrementAndGet());
+                    }
+                });
+        workers.allowCoreThreadTimeOut(true);
+        mWorkers = workers;
+    }
+
+    /**
+     * Queues a task behind every earlier task submitted with the same key.
+     *
+     * @return false if the executor is at capacity and the task was rejected.
+     */
+    public boolean execute(String key, Runnable task) {
+        if (mQueueDepth.incrementAndGet() > mCapacity) {
+            mQueueDepth.decrementAndGet();
+            mRejected.incrementAndGet();
+            return false;
+        }
+        mSubmitted.incrementAndGet();
+        Lane lane = mLanes[(key.hashCode() & 0x7fffffff) % mLanes.length];
+        boolean schedule;
+        synchronized (lane) {
+            lane.mTasks.addLast(new QueuedTask(task, System.nanoTime()));
+            schedule = !lane.mScheduled;
+            lane.mScheduled = true;
+        }
+        if (schedule) {
+            mWorkers.execute(lane);
+        }
+        return true;
+    }
+
+    /**
+     * Stops accepting work; tasks already handed to the workers still run.
+     */
+    public void shutdown() {
+        mWorkers.shutdown();
+    }
+
+    /**
+     * Returns the number of tasks queued or running.
+     */
+    public int getQueueDepth() {
+        return mQueueDepth.get();
+    }
+
+    public long getSubmittedCount() {
+        return mSubmitted.get();
+    }
+
+    public long getCompletedCount() {
+        return mCompleted.get();
+    }
+
+    public long getRejectedCount() {
+        return mRejected.get();
+    }
+
+    /**
+     * Returns the mean time tasks waited between submission and start, in milliseconds.
+     */
+    public long getAverageLagMillis() {
+        long completed = mCompleted.get();
+        return completed == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(mTotalLagNanos.get() / completed);
+    }
+
+    /**
+     * Returns the longest time a task waited between submission and start, in milliseconds.
+     */
+    public long getMaxLagMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mMaxLagNanos.get());
+    }
+
+    @Override
+    public String toString() {
+        return "KeyedSerialExecutor{depth=" + getQueueDepth()
+                + ", submitted=" + getSubmittedCount()
+                + ", completed=" + getCompletedCount()
+                + ", rejected=" + getRejectedCount()
+                + ", avgLagMs=" + getAverageLagMillis()
+                + ", maxLagMs=" + getMaxLagMillis() + "}";
+    }
+
+    private void recordLag(long lagNanos) {
+        mTotalLagNanos.addAndGet(lagNanos);
+        long max;
+        do {
+            max = mMaxLagNanos.get();
+        } while (lagNanos > max && !mMaxLagNanos.compareAndSet(max, lagNanos));
+    }
+
+    private static final class QueuedTask {
+        final Runnable mTask;
+        final long mEnqueuedNanos;
+
+        QueuedTask(Runnable task, long enqueuedNanos) {
+            mTask = task;
+            mEnqueuedNanos = enqueuedNanos;
+        }
+    }
+
+    /**
+     * A serial queue. Runs one task per turn on a worker and then yields the worker, so a busy
+     * lane cannot starve the others.
+     */
+    private final class Lane implements Runnable {
+        final ArrayDeque<QueuedTask> mTasks = new ArrayDeque<QueuedTask>();
+        boolean mScheduled;
+
+        @Override
+        public void run() {
+            QueuedTask next;
+            synchronized (this) {
+                next = mTasks.pollFirst();
+            }
+            try {
+                if (next != null) {
+                    recordLag(System.nanoTime() - next.mEnqueuedNanos);
+                    next.mTask.run();
+                }
+            } finally {
+                if (next != null) {
+                    mQueueDepth.decrementAndGet();
+                    mCompleted.incrementAndGet();
+                }
+                boolean more;
+                synchronized (this) {
+                    more = !mTasks.isEmpty();
+                    mScheduled = more;
+                }
+                if (more) {
+                    mWorkers.execute(this);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/**
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.android.gms.location.sample.geofencing;
+
+import com.google.android.gms.location.Geofence;
+
+import java.util.Arrays;
+
+/**
+ * Evaluates batches of raw fixes against a {@link FenceCatalog} on the device, reporting the
+ * same ENTER, EXIT and DWELL transitions Location Services would. Each batch is processed in a
+ * single pass over the primitive arrays of the batch and the catalog, or, given a
+ * {@link TileCandidateCache}, over the candidates of each fix's tile and the fences the device
+ * is inside.
+ *
+ * Not thread safe; feed it from one thread.
+ */
+public class LocalFenceEvaluator {
+
+    /**
+     * Receives transitions detected by the evaluator.
+     */
+    public interface TransitionListener {
+        /**
+         * @param fenceIndex Index of the fence in the evaluator's catalog.
+         * @param transition One of the {@code Geofence.GEOFENCE_TRANSITION_*} constants.
+         * @param time       Time of the fix that caused the transition.
+         */
+        void onTransition(int fenceIndex, int transition, long time, double latitude,
+                double longitude);
+    }
+
+    private final FenceCatalog mCatalog;
+    private final long mLoiteringDelay;
+    private final boolean[] mInside;
+    private final boolean[] mDwelled;
+    private final long[] mEnteredAt;
+    private final TileCandidateCache mTileCache;
+
+    /**
+     * Fences that {@link #mInside} is set for, in no particular order.
+     */
+    private int[] mInsideFences = new int[8];
+    private int mInsideCount;
+
+    /**
+     * Creates an evaluator that reports ENTER and EXIT only.
+     */
+    public LocalFenceEvaluator(FenceCatalog catalog) {
+        this(catalog, 0);
+    }
+
+    /**
+     * @param loiteringDelay Time in milliseconds a device must stay inside a fence before DWELL
+     *                       is reported, or 0 to never report DWELL.
+     */
+    public LocalFenceEvaluator(FenceCatalog catalog, long loiteringDelay) {
+        this(catalog, loiteringDelay, null);
+    }
+
+    /**
+     * @param tileCache Narrows {@link #evaluate(LocationBatch, TransitionListener)} down to the
+     *                  fences near each fix, or null to test every fence. May be shared with
+     *                  evaluators of later catalog versions, which invalidate it.
+     */
+    public LocalFenceEvaluator(FenceCatalog catalog, long loiteringDelay,
+            TileCandidateCache tileCache) {
+        mCatalog = catalog;
+        mTileCache = tileCache;
+        mLoiteringDelay = loiteringDelay;
+        mInside = new boolean[catalog.size()];
+        mDwelled = new boolean[catalog.size()];
+        mEnteredAt = new long[catalog.size()];
+    }
+
+    public FenceCatalog getCatalog() {
+        return mCatalog;
+    }
+
+    /**
+     * Returns true if the last evaluated fix was inside the fence.
+     */
+    public boolean isInside(int fenceIndex) {
+        return mInside[fenceIndex];
+    }
+
+    /**
+     * Returns the fences the last evaluated fixes were inside, in no particular order.
+     */
+    public int[] getInsideFences() {
+        return Arrays.copyOf(mInsideFences, mInsideCount);
+    }
+
+    /**
+     * Returns the time of the fix that entered a fence the device is inside.
+     */
+    public long getEnteredAt(int fenceIndex) {
+        return mEnteredAt[fenceIndex];
+    }
+
+    /**
+     * Returns true if DWELL has been reported for a fence the device is inside.
+     */
+    public boolean hasDwelled(int fenceIndex) {
+        return mDwelled[fenceIndex];
+    }
+
+    /**
+     * Puts back the state of a fence the device was inside, as saved from
+     * {@link #getInsideFences()}, {@link #getEnteredAt(int)} and {@link #hasDwelled(int)}, for
+     * example after the process was restarted. Reports nothing.
+     */
+    public void restoreInside(int fenceIndex, long enteredAt, boolean dwelled) {
+        if (!mInside[fenceIndex]) {
+            setInside(fenceIndex, true);
+        }
+        mEnteredAt[fenceIndex] = enteredAt;
+        mDwelled[fenceIndex] = dwelled;
+    }
+
+    /**
+     * Runs every fix of the batch, in order, against every fence and reports each change of
+     * inside/outside state. With a tile cache, only the candidates of the fix's tile and the
+     * fences the device was inside are tested; every other fence is known to be outside.
+     */
+    public void evaluate(LocationBatch batch, TransitionListener listener) {
+        double[] latitudes = batch.getLatitudes();
+        double[] longitudes = batch.getLongitudes();
+        long[] times = batch.getTimes();
+        int fences = mCatalog.size();
+        for (int i = 0; i < batch.size(); i++) {
+            if (mTileCache == null) {
+                for (int f = 0; f < fences; f++) {
+                    evaluateFence(f, latitudes[i], longitudes[i], times[i], listener);
+                }
+                continue;
+            }
+            int[] candidates = mTileCache.getCandidates(mCatalog, latitudes[i], longitudes[i]);
+            for (int f : candidates) {
+                evaluateFence(f, latitudes[i], longitudes[i], times[i], listener);
+            }
+            // Inside fences that are not candidates were left; their EXIT removes them from
+            // mInsideFences by moving the last one into their place, hence the reverse order.
+            for (int k = mInsideCount - 1; k >= 0; k--) {
+                int f = mInsideFences[k];
+                if (Arrays.binarySearch(candidates, f) < 0) {
+                    evaluateFence(f, latitudes[i], longitudes[i], times[i], listener);
+                }
+            }
+        }
+    }
+
+    /**
+     * Like {@link #evaluate(LocationBatch, TransitionListener)}, but only looks at the given
+     * fences. Fences left out keep their state.
+     */
+    public void evaluate(LocationBatch batch, int[] fenceIndices, TransitionListener listener) {
+        double[] latitudes = batch.getLatitudes();
+        double[] longitudes = batch.getLongitudes();
+        long[] times = batch.getTimes();
+        for (int i = 0; i < batch.size(); i++) {
+            for (int f : fenceIndices) {
+                evaluateFence(f, latitudes[i], longitudes[i], times[i], listener);
+            }
+        }
+    }
+
+    /**
+     * Marks a fence as left without a fix, for example when it stops being evaluated. Reports
+     * EXIT if the device was inside.
+     */
+    public void exit(int fenceIndex, long time, double latitude, double longitude,
+            TransitionListener listener) {
+        if (mInside[fenceIndex]) {
+            setInside(fenceIndex, false);
+            listener.onTransition(fenceIndex, Geofence.GEOFENCE_TRANSITION_EXIT, time, latitude,
+                    longitude);
+        }
+    }
+
+    private void evaluateFence(int f, double latitude, double longitude, long time,
+            TransitionListener listener) {
+        boolean inside = mCatalog.contains(f, latitude, longitude);
+        if (inside != mInside[f]) {
+            setInside(f, inside);
+            mDwelled[f] = false;
+            mEnteredAt[f] = time;
+            listener.onTransition(f, inside ? Geofence.GEOFENCE_TRANSITION_ENTER
+                    : Geofence.GEOFENCE_TRANSITION_EXIT, time, latitude, longitude);
+        } else if (inside && mLoiteringDelay > 0 && !mDwelled[f]
+                && time - mEnteredAt[f] >= mLoiteringDelay) {
+            mDwelled[f] = true;
+            listener.onTransition(f, Geofence.GEOFENCE_TRANSITION_DWELL, time, latitude,
+                    longitude);
+        }
+    }
+
+    private void setInside(int f, boolean inside) {
+        mInside[f] = inside;
+        if (inside) {
+            if (mInsideCount == mInsideFences.length) {
+                mInsideFences = Arrays.copyOf(mInsideFences, 2 * mInsideCount);
+            }
+            mInsideFences[mInsideCount++] = f;
+            return;
+        }
+        for (int k = 0; k < mInsideCount; k++) {
+            if (mInsideFences[k] == f) {
+                mInsideFences[k] = mInsideFences[--mInsideCount];
+                return;
+            }
+        }
+    }
+}
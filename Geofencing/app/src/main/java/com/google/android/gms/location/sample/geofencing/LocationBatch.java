@@ -0,0 +1,93 @@
+/**
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.android.gms.location.sample.geofencing;
+
+import java.util.Arrays;
+
+/**
+ * A batch of location fixes held in parallel primitive arrays. A {@link LocationSource} reuses
+ * the same batch for every delivery, so listeners must copy anything they want to keep beyond
+ * the callback.
+ *
+ * The arrays returned by the getters are the backing arrays; only the first {@link #size()}
+ * entries are valid.
+ */
+public final class LocationBatch {
+
+    private double[] mLatitudes;
+    private double[] mLongitudes;
+    private float[] mAccuracies;
+    private long[] mTimes;
+    private int mSize;
+
+    public LocationBatch(int capacity) {
+        int initial = Math.max(capacity, 1);
+        mLatitudes = new double[initial];
+        mLongitudes = new double[initial];
+        mAccuracies = new float[initial];
+        mTimes = new long[initial];
+    }
+
+    /**
+     * Appends a fix, growing the arrays if needed.
+     *
+     * @param accuracy Horizontal accuracy in meters, or 0 if unknown.
+     * @param time     UTC time of the fix in milliseconds since epoch.
+     */
+    public void add(double latitude, double longitude, float accuracy, long time) {
+        if (mSize == mLatitudes.length) {
+            int capacity = mSize * 2;
+            mLatitudes = Arrays.copyOf(mLatitudes, capacity);
+            mLongitudes = Arrays.copyOf(mLongitudes, capacity);
+            mAccuracies = Arrays.copyOf(mAccuracies, capacity);
+            mTimes = Arrays.copyOf(mTimes, capacity);
+        }
+        mLatitudes[mSize] = latitude;
+        mLongitudes[mSize] = longitude;
+        mAccuracies[mSize] = accuracy;
+        mTimes[mSize] = time;
+        mSize++;
+    }
+
+    /**
+     * Empties the batch without releasing its arrays.
+     */
+    public void clear() {
+        mSize = 0;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public double[] getLatitudes() {
+        return mLatitudes;
+    }
+
+    public double[] getLongitudes() {
+        return mLongitudes;
+    }
+
+    public float[] getAccuracies() {
+        return mAccuracies;
+    }
+
+    public long[] getTimes() {
+        return mTimes;
+    }
+}
@@ -0,0 +1,43 @@
+/**
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.android.gms.location.sample.geofencing;
+
+/**
+ * Supplies raw location fixes for local fence evaluation. Fixes are delivered in batches so a
+ * listener does a single pass, and the device a single wake-up, per delivery instead of per fix.
+ */
+public interface LocationSource {
+
+    /**
+     * Receives batches of fixes, oldest first.
+     */
+    interface Listener {
+        void onLocationBatch(LocationBatch batch);
+    }
+
+    /**
+     * Starts delivering fixes to the listener. Calling start() on a running source replaces the
+     * listener.
+     */
+    void start(Listener listener);
+
+    /**
+     * Stops delivering fixes. Safe to call on a source that is not running.
+     */
+    void stop();
+}
@@ -31,20 +31,22 @@ import android.widget.Button;
 import android.widget.Toast;
 
 import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.api.CommonStatusCodes;
 import com.google.android.gms.common.api.GoogleApiClient;
 import com.google.android.gms.common.api.GoogleApiClient.ConnectionCallbacks;
 import com.google.android.gms.common.api.GoogleApiClient.OnConnectionFailedListener;
+import com.google.android.gms.common.api.PendingResult;
 import com.google.android.gms.common.api.ResultCallback;
 import com.google.android.gms.common.api.Status;
 import com.google.android.gms.location.Geofence;
 import com.google.android.gms.location.GeofencingRequest;
 import com.google.android.gms.location.LocationServices;
 import com.google.android.gms.location.GeofencingApi;
-import com.google.android.gms.maps.model.LatLng;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Map;
 
 /**
  * Demonstrates how to create and remove geofences using the GeofencingApi. Uses an IntentService
@@ -54,17 +56,29 @@ import java.util.Map;
  * This sample requires a device's Location settings to be turned on. It also requires
  * the ACCESS_FINE_LOCATION permission, as specified in AndroidManifest.xml.
  *
- * Note that this Activity implements ResultCallback<Status>, requiring that
- * {@code onResult} must be defined. The {@code onResult} runs when the result of calling
+ * The results of calling
  * {@link GeofencingApi#addGeofences(GoogleApiClient, GeofencingRequest, PendingIntent)}  addGeofences()} or
  * {@link com.google.android.gms.location.GeofencingApi#removeGeofences(GoogleApiClient, java.util.List)}  removeGeofences()}
- * becomes available.
+ * are handled by an application scoped {@link GeofencesAddedCallback}, since a call retried
+ * with backoff can outlive the activity that made it.
  */
 public class MainActivity extends ActionBarActivity implements
-        ConnectionCallbacks, OnConnectionFailedListener, ResultCallback<Status> {
+        ConnectionCallbacks, OnConnectionFailedListener {
 
     protected static final String TAG = "MainActivity";
 
+    /**
+     * Shared by every instance of this activity and built with the application context, so
+     * calls still being retried after a rotation keep a connected client without holding on to
+     * the destroyed activity.
+     */
+    private static GoogleApiClient sGoogleApiClient;
+
+    /**
+     * The instance currently created, if any; told when the added state changes.
+     */
+    private static MainActivity sCurrent;
+
     /**
      * Provides the entry point to Google Play services.
      */
@@ -93,12 +107,34 @@ public class MainActivity extends ActionBarActivity implements
     // Buttons for kicking off the process of adding or removing geofences.
     private Button mAddGeofencesButton;
     private Button mRemoveGeofencesButton;
-    ResponseReceiver responseReceiver;
+
+    /**
+     * Supplies batched raw fixes once the GoogleApiClient is connected.
+     */
+    private LocationSource mLocationSource;
+
+    /**
+     * Evaluates raw fixes against the fences locally.
+     */
+    private LocalFenceEvaluator mLocalFenceEvaluator;
+
+    /**
+     * Candidate fences near recent fixes, kept across catalog versions; a new version clears it.
+     */
+    private final TileCandidateCache mTileCache = new TileCandidateCache(
+            Constants.TILE_GEOHASH_PRECISION, Constants.TILE_CACHE_MAX_BYTES);
+
+    /**
+     * Whether a catalog sync is in progress.
+     */
+    private boolean mCatalogSyncRunning;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.main_activity);
+        sCurrent = this;
+        mLogFailureCallback = new LogFailureCallback(getApplicationContext());
 
         // Get the UI widgets.
         mAddGeofencesButton = (Button) findViewById(R.id.add_geofences_button);
@@ -118,30 +154,34 @@ public class MainActivity extends ActionBarActivity implements
         mGeofencesAdded = mSharedPreferences.getBoolean(Constants.GEOFENCES_ADDED_KEY, false);
         setButtonsEnabledState();
 
+        // Use the last synced fence catalog, if any, in place of the hard coded one.
+        FenceStore.getInstance(this);
+
         // Get the geofences used. Geofence data is hard coded in this sample.
         populateGeofenceList();
 
+        mLocalFenceEvaluator = new LocalFenceEvaluator(FenceCatalog.getDefault(), 0, mTileCache);
+
         // Kick off the request to build GoogleApiClient.
         buildGoogleApiClient();
 
-         IntentFilter filter = new IntentFilter(Constants.BROADCAST_ACTION);
-        filter.addCategory(Intent.CATEGORY_DEFAULT);
-        responseReceiver = new ResponseReceiver();
-        registerReceiver(responseReceiver, filter);
-
-
-
+        ResponseReceiver.register(this);
     }
 
     /**
-     * Builds a GoogleApiClient. Uses the {@code #addApi} method to request the LocationServices API.
+     * Builds a GoogleApiClient, unless an earlier instance already did. Uses the
+     * {@code #addApi} method to request the LocationServices API. If the client is already
+     * connected, {@link #onConnected} runs right away.
      */
     protected synchronized void buildGoogleApiClient() {
-        mGoogleApiClient = new GoogleApiClient.Builder(this)
-                .addConnectionCallbacks(this)
-                .addOnConnectionFailedListener(this)
-                .addApi(LocationServices.API)
-                .build();
+        if (sGoogleApiClient == null) {
+            sGoogleApiClient = new GoogleApiClient.Builder(getApplicationContext())
+                    .addApi(LocationServices.API)
+                    .build();
+        }
+        mGoogleApiClient = sGoogleApiClient;
+        mGoogleApiClient.registerConnectionCallbacks(this);
+        mGoogleApiClient.registerConnectionFailedListener(this);
         mGoogleApiClient.connect();
     }
 
@@ -152,6 +192,51 @@ public class MainActivity extends ActionBarActivity implements
     public void onConnected(Bundle connectionHint) {
         Log.i(TAG, "Connected to GoogleApiClient");
 
+        if (mLocationSource == null) {
+            mLocationSource = new FusedLocationSource(mGoogleApiClient,
+                    Constants.LOCATION_UPDATE_INTERVAL_IN_MILLISECONDS,
+                    Constants.LOCATION_MAX_WAIT_TIME_IN_MILLISECONDS);
+        }
+        mLocationSource.start(new LocationSource.Listener() {
+            @Override
+            public void onLocationBatch(LocationBatch batch) {
+                mLocalFenceEvaluator.evaluate(batch, mLocalTransitionListener);
+                int last = batch.size() - 1;
+                updateGeofencePolicies(batch.getLatitudes()[last], batch.getLongitudes()[last]);
+            }
+        });
+        // Requests the background location updates that keep policies current once this
+        // activity is gone.
+        GeofencePolicyUpdater.getInstance(this).refresh();
+
+        syncCatalog();
+    }
+
+    /**
+     * Logs transitions detected by local evaluation of raw fixes.
+     */
+    private final LocalFenceEvaluator.TransitionListener mLocalTransitionListener =
+            new LocalFenceEvaluator.TransitionListener() {
+                @Override
+                public void onTransition(int fenceIndex, int transition, long time,
+                        double latitude, double longitude) {
+                    Log.i(TAG, "Local transition " + transition + ": "
+                            + mLocalFenceEvaluator.getCatalog().getId(fenceIndex));
+                }
+            };
+
+    @Override
+    protected void onDestroy() {
+        if (mLocationSource != null) {
+            mLocationSource.stop();
+        }
+        // Calls still pending keep the shared client; results go to the next instance.
+        mGoogleApiClient.unregisterConnectionCallbacks(this);
+        mGoogleApiClient.unregisterConnectionFailedListener(this);
+        if (sCurrent == this) {
+            sCurrent = null;
+        }
+        super.onDestroy();
     }
 
     @Override
@@ -198,61 +283,49 @@ public class MainActivity extends ActionBarActivity implements
             return;
         }
 
-       try {
-            LocationServices.GeofencingApi.addGeofences(
-                    mGoogleApiClient,
-                    // The GeofenceRequest object.
-                    getGeofencingRequest(),
-                    // A pending intent that that is reused when calling removeGeofences(). This
-                    // pending intent is used to generate an intent when a matched geofence
-                    // transition is observed.
-                    getGeofencePendingIntent()
-            ).setResultCallback(this); // Result processed in onResult().
-        } catch (SecurityException securityException) {
-            // Catch exception generated if the app does not use ACCESS_FINE_LOCATION permission.
-            logSecurityException(securityException);
-        }
+        addGeoFence();
     }
 
     public void addGeoFence(){
-        try {
-            LocationServices.GeofencingApi.addGeofences(
-                    mGoogleApiClient,
-                    // The GeofenceRequest object.
-                    getGeofencingRequest(),
-                    // A pending intent that that is reused when calling removeGeofences(). This
-                    // pending intent is used to generate an intent when a matched geofence
-                    // transition is observed.
-                    getGeofencePendingIntent()
-            ).setResultCallback(this); // Result processed in onResult().
-        } catch (SecurityException securityException) {
-            // Catch exception generated if the app does not use ACCESS_FINE_LOCATION permission.
-            logSecurityException(securityException);
-        }
+        // Failed calls are retried with backoff; the final result is processed by
+        // GeofencesAddedCallback.
+        List<String> requestIds = getRequestIds(mGeofenceList);
+        GeofenceRetryScheduler.getInstance().submitRegistration("add", requestIds,
+                addGeofencesCall(mGoogleApiClient,
+                        // The GeofenceRequest object.
+                        getGeofencingRequest(),
+                        // A pending intent that that is reused when calling removeGeofences().
+                        // This pending intent is used to generate an intent when a matched
+                        // geofence transition is observed.
+                        getGeofencePendingIntent()),
+                GeofenceRenewalScheduler.getInstance(this).recordOnSuccess(requestIds,
+                        new GeofencesAddedCallback(getApplicationContext(), true)));
     }
 
     public void removeGeofenceById(String id ){
-        List<String> geofenceRequestIds=new ArrayList<>();
+        final List<String> geofenceRequestIds=new ArrayList<>();
         geofenceRequestIds.add(id);
         if (!mGoogleApiClient.isConnected()) {
             Toast.makeText(this, getString(R.string.not_connected), Toast.LENGTH_SHORT).show();
             return;
         }
-        try {
-            // Remove geofences.
-            LocationServices.GeofencingApi.removeGeofences(
-                    mGoogleApiClient,geofenceRequestIds
-                    // This is the same pending intent that was used in addGeofences().
+        // Remove the geofence. The Add Geofences flow below decides the added state.
+        GeofenceRetryScheduler.getInstance().submitRemoval(geofenceRequestIds,
+                removeGeofencesCall(mGoogleApiClient, geofenceRequestIds), mLogFailureCallback);
+        GeofenceRenewalScheduler.getInstance(this).onRemoved(geofenceRequestIds);
+        addGeoFence();
+        populateGeofenceList();
+    }
 
-            ).setResultCallback(this);
-            addGeoFence();
-            populateGeofenceList();
-            // Result processed in onResult().
-        } catch (SecurityException securityException) {
-            // Catch exception generated if the app does not use ACCESS_FINE_LOCATION permission.
-            logSecurityException(securityException);
+    /**
+     * Returns the request ids of a list of geofences.
+     */
+    static List<String> getRequestIds(List<Geofence> geofences) {
+        List<String> requestIds = new ArrayList<String>(geofences.size());
+        for (Geofence geofence : geofences) {
+            requestIds.add(geofence.getRequestId());
         }
-
+        return requestIds;
     }
 
 
@@ -265,60 +338,120 @@ public class MainActivity extends ActionBarActivity implements
             Toast.makeText(this, getString(R.string.not_connected), Toast.LENGTH_SHORT).show();
             return;
         }
-        try {
-            // Remove geofences.
-            LocationServices.GeofencingApi.removeGeofences(
-                    mGoogleApiClient,
-                    // This is the same pending intent that was used in addGeofences().
-                    getGeofencePendingIntent()
-            ).setResultCallback(this); // Result processed in onResult().
-        } catch (SecurityException securityException) {
-            // Catch exception generated if the app does not use ACCESS_FINE_LOCATION permission.
-            logSecurityException(securityException);
-        }
+        // Remove geofences. Result processed by GeofencesAddedCallback.
+        GeofenceRetryScheduler.getInstance().submitRemoval(null,
+                removeGeofencesCall(mGoogleApiClient,
+                        // This is the same pending intent that was used in addGeofences().
+                        getGeofencePendingIntent()),
+                new GeofencesAddedCallback(getApplicationContext(), false));
+        GeofenceRenewalScheduler.getInstance(this).onRemovedAll();
     }
 
-    private void logSecurityException(SecurityException securityException) {
-        Log.e(TAG, "Invalid location permission. " +
-                "You need to use ACCESS_FINE_LOCATION with geofences", securityException);
+    /**
+     * Updates the UI once geofences were added or removed. The state itself is already saved
+     * in shared preferences.
+     */
+    private void onGeofencesAddedChanged(boolean added) {
+        mGeofencesAdded = added;
+
+        // Update the UI. Adding geofences enables the Remove Geofences button, and removing
+        // geofences enables the Add Geofences button.
+        setButtonsEnabledState();
+
+        Toast.makeText(
+                this,
+                getString(mGeofencesAdded ? R.string.geofences_added :
+                        R.string.geofences_removed),
+                Toast.LENGTH_SHORT
+        ).show();
     }
 
     /**
-     * Runs when the result of calling addGeofences() and removeGeofences() becomes available.
-     * Either method can complete successfully or with an error.
-     *
-     * Since this activity implements the {@link ResultCallback} interface, we are required to
-     * define this method.
-     *
-     * @param status The Status returned through a PendingIntent when addGeofences() or
-     *               removeGeofences() get called.
+     * Runs when the result of calling addGeofences() or removeGeofences() in the Add or Remove
+     * Geofences flow becomes available. Either method can complete successfully or with an
+     * error. Holds only the application context, and updates whichever instance of the
+     * activity is current when the result arrives.
      */
-    public void onResult(Status status) {
-        if (status.isSuccess()) {
-            // Update state and save in shared preferences.
-            mGeofencesAdded = !mGeofencesAdded;
-            SharedPreferences.Editor editor = mSharedPreferences.edit();
-            editor.putBoolean(Constants.GEOFENCES_ADDED_KEY, mGeofencesAdded);
-            editor.apply();
+    private static final class GeofencesAddedCallback implements ResultCallback<Status> {
+        private final Context mContext;
+        private final boolean mAdded;
 
-            // Update the UI. Adding geofences enables the Remove Geofences button, and removing
-            // geofences enables the Add Geofences button.
-            setButtonsEnabledState();
+        /**
+         * @param added The added state once the call succeeds.
+         */
+        GeofencesAddedCallback(Context context, boolean added) {
+            mContext = context;
+            mAdded = added;
+        }
 
-            Toast.makeText(
-                    this,
-                    getString(mGeofencesAdded ? R.string.geofences_added :
-                            R.string.geofences_removed),
-                    Toast.LENGTH_SHORT
-            ).show();
+        @Override
+        public void onResult(Status status) {
+            if (status.isSuccess()) {
+                // Save the state in shared preferences.
+                mContext.getSharedPreferences(Constants.SHARED_PREFERENCES_NAME, MODE_PRIVATE)
+                        .edit()
+                        .putBoolean(Constants.GEOFENCES_ADDED_KEY, mAdded)
+                        .apply();
+                GeofencePolicyUpdater.getInstance(mContext).refresh();
+                if (sCurrent != null) {
+                    sCurrent.onGeofencesAddedChanged(mAdded);
+                }
+            } else if (status.getStatusCode() == CommonStatusCodes.CANCELED) {
+                // A newer call for the same fences, or a removal of some of them, replaced this
+                // one.
+                Log.i(TAG, "Geofence call cancelled");
+            } else {
+                // Get the status code for the error and log it using a user-friendly message.
+                // Retryable errors only get here once GeofenceRetryScheduler has given up.
+                String errorMessage = GeofenceErrorMessages.getErrorString(mContext,
+                        status.getStatusCode());
+                Log.e(TAG, errorMessage);
+            }
+        }
+    }
 
+    /**
+     * Returns a call that adds geofences. Static, like the calls below, so a call kept for a
+     * retry does not hold on to the activity.
+     */
+    private static GeofenceRetryScheduler.Call addGeofencesCall(
+            final GoogleApiClient googleApiClient, final GeofencingRequest request,
+            final PendingIntent pendingIntent) {
+        return new GeofenceRetryScheduler.Call() {
+            @Override
+            public PendingResult<Status> start() {
+                return LocationServices.GeofencingApi.addGeofences(googleApiClient, request,
+                        pendingIntent);
+            }
+        };
+    }
 
-        } else {
-            // Get the status code for the error and log it using a user-friendly message.
-            String errorMessage = GeofenceErrorMessages.getErrorString(this,
-                    status.getStatusCode());
-            Log.e(TAG, errorMessage);
-        }
+    /**
+     * Returns a call that removes geofences by request id.
+     */
+    private static GeofenceRetryScheduler.Call removeGeofencesCall(
+            final GoogleApiClient googleApiClient, final List<String> requestIds) {
+        return new GeofenceRetryScheduler.Call() {
+            @Override
+            public PendingResult<Status> start() {
+                return LocationServices.GeofencingApi.removeGeofences(googleApiClient,
+                        requestIds);
+            }
+        };
+    }
+
+    /**
+     * Returns a call that removes every geofence registered with a PendingIntent.
+     */
+    private static GeofenceRetryScheduler.Call removeGeofencesCall(
+            final GoogleApiClient googleApiClient, final PendingIntent pendingIntent) {
+        return new GeofenceRetryScheduler.Call() {
+            @Override
+            public PendingResult<Status> start() {
+                return LocationServices.GeofencingApi.removeGeofences(googleApiClient,
+                        pendingIntent);
+            }
+        };
     }
 
     /**
@@ -344,39 +477,138 @@ public class MainActivity extends ActionBarActivity implements
      * the user's location.
      */
     public void populateGeofenceList() {
-        for (Map.Entry<String, LatLng> entry : Constants.BAY_AREA_LANDMARKS.entrySet()) {
-
-            mGeofenceList.add(new Geofence.Builder()
-                    // Set the request ID of the geofence. This is a string to identify this
-                    // geofence.
-                    .setRequestId(entry.getKey())
-
-                    // Set the circular region of this geofence.
-                    .setCircularRegion(
-                            entry.getValue().latitude,
-                            entry.getValue().longitude,
-                            Constants.GEOFENCE_RADIUS_IN_METERS
-                    )
-
-                    // Set the expiration duration of the geofence. This geofence gets automatically
-                    // removed after this period of time.
-                    .setExpirationDuration(Constants.GEOFENCE_EXPIRATION_IN_MILLISECONDS)
-
-                    // Set the transition types of interest. Alerts are only generated for these
-                    // transition. We track entry and exit transitions in this sample.
-                  /*  .setTransitionTypes(Geofence.GEOFENCE_TRANSITION_ENTER |
-                            Geofence.GEOFENCE_TRANSITION_EXIT)*/
-                    .setTransitionTypes(Geofence.GEOFENCE_TRANSITION_DWELL |Geofence.GEOFENCE_TRANSITION_ENTER |
-                            Geofence.GEOFENCE_TRANSITION_EXIT)
-                    .setExpirationDuration(
-                            12 * 60 * 60 * 1000)  // 12 hours
-                    .setLoiteringDelay(1000*60*10)   // 10 minutes
-                    .setRequestId(entry.getKey())
-                    .setNotificationResponsiveness(5000)
-                    // Create the geofence.
-                    .build());
-
-            //.setNotificationResponsiveness(5000)
+        GeofencePolicyEngine policyEngine = GeofencePolicyEngine.getInstance();
+        for (int i = 0; i < policyEngine.getCatalog().size(); i++) {
+            // Responsiveness and loitering delay depend on how far away the fence is.
+            mGeofenceList.add(policyEngine.buildGeofence(i));
+        }
+    }
+
+    /**
+     * Feeds a foreground fix to {@link GeofencePolicyUpdater}, which re-registers the fences
+     * whose policy bucket changed, and keeps {@link #mGeofenceList} in step with their new
+     * policies for the next addGeofences() call.
+     */
+    private void updateGeofencePolicies(double latitude, double longitude) {
+        GeofencePolicyEngine policyEngine = GeofencePolicyEngine.getInstance();
+        int[] changed = GeofencePolicyUpdater.getInstance(this).onLocation(latitude, longitude,
+                null);
+        for (int fenceIndex : changed) {
+            Geofence geofence = policyEngine.buildGeofence(fenceIndex);
+            for (int i = 0; i < mGeofenceList.size(); i++) {
+                if (mGeofenceList.get(i).getRequestId().equals(geofence.getRequestId())) {
+                    mGeofenceList.set(i, geofence);
+                }
+            }
+        }
+    }
+
+    /**
+     * Pulls fence catalog changes from {@link Constants#CATALOG_SYNC_URL} on a background thread
+     * and applies them on the main thread.
+     */
+    private void syncCatalog() {
+        if (Constants.CATALOG_SYNC_URL.length() == 0 || mCatalogSyncRunning) {
+            return;
+        }
+        mCatalogSyncRunning = true;
+        final FenceStore store = FenceStore.getInstance(this);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                boolean changed = false;
+                try {
+                    changed = new CatalogSyncClient(Constants.CATALOG_SYNC_URL, store).sync();
+                } catch (IOException e) {
+                    Log.w(TAG, "Catalog sync failed", e);
+                }
+                final boolean catalogChanged = changed;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        mCatalogSyncRunning = false;
+                        if (catalogChanged) {
+                            applyCatalog(store.snapshot());
+                        }
+                    }
+                });
+            }
+        }, "CatalogSync").start();
+    }
+
+    /**
+     * Makes {@code catalog} the monitored catalog. Only the registrations it changed are sent
+     * to Location Services: new and moved ones are added, which replaces them, and dropped ones
+     * are removed.
+     */
+    private void applyCatalog(FenceCatalog catalog) {
+        FenceCatalog previous = GeofencePolicyEngine.getInstance().getCatalog();
+        FenceCatalog.setDefault(catalog);
+        GeofencePolicyEngine policyEngine = GeofencePolicyEngine.getInstance();
+        FenceCatalog registrations = policyEngine.getCatalog();
+        Log.i(TAG, "Fence catalog now at version " + catalog.getVersion());
+
+        mLocalFenceEvaluator = new LocalFenceEvaluator(catalog, 0, mTileCache);
+        mGeofenceList.clear();
+        populateGeofenceList();
+        if (!mGeofencesAdded) {
+            return;
+        }
+
+        List<String> removed = registrations.removedSince(previous);
+        if (!removed.isEmpty()) {
+            GeofenceRetryScheduler.getInstance().submitRemoval(removed,
+                    removeGeofencesCall(mGoogleApiClient, removed), mLogFailureCallback);
+            GeofenceRenewalScheduler.getInstance(this).onRemoved(removed);
+        }
+        int[] changed = registrations.changedSince(previous);
+        if (changed.length > 0) {
+            List<Geofence> updated = new ArrayList<Geofence>(changed.length);
+            for (int fenceIndex : changed) {
+                updated.add(policyEngine.buildGeofence(fenceIndex));
+            }
+            replaceGeofences("add", updated);
+        }
+    }
+
+    /**
+     * Adds geofences outside of the Add Geofences flow, replacing any registered under the same
+     * request ids.
+     */
+    private void replaceGeofences(String operation, List<Geofence> geofences) {
+        GeofencingRequest.Builder builder = new GeofencingRequest.Builder();
+        builder.setInitialTrigger(GeofencingRequest.INITIAL_TRIGGER_DWELL);
+        builder.addGeofences(geofences);
+        List<String> requestIds = getRequestIds(geofences);
+        GeofenceRetryScheduler.getInstance().submitRegistration(operation, requestIds,
+                addGeofencesCall(mGoogleApiClient, builder.build(), getGeofencePendingIntent()),
+                GeofenceRenewalScheduler.getInstance(this).recordOnSuccess(requestIds,
+                        mLogFailureCallback));
+    }
+
+    /**
+     * Logs failures of calls made outside of the Add and Remove Geofences flows, which do not
+     * change the added state.
+     */
+    private ResultCallback<Status> mLogFailureCallback;
+
+    /**
+     * Logs failures of a call. Holds only the application context, like
+     * {@link GeofencesAddedCallback}.
+     */
+    private static final class LogFailureCallback implements ResultCallback<Status> {
+        private final Context mContext;
+
+        LogFailureCallback(Context context) {
+            mContext = context;
+        }
+
+        @Override
+        public void onResult(Status status) {
+            if (!status.isSuccess() && status.getStatusCode() != CommonStatusCodes.CANCELED) {
+                Log.e(TAG, GeofenceErrorMessages.getErrorString(mContext,
+                        status.getStatusCode()));
+            }
         }
     }
 
@@ -405,13 +637,33 @@ public class MainActivity extends ActionBarActivity implements
 
         public PendingIntent mGeofencePendingIntent;
         public  ArrayList<Geofence> mGeofenceListt;
-        String tobeDeleted;
         public SharedPreferences mSharedPreferencesR;
 
+        /**
+         * Request ids of the registrations waiting to be re-armed.
+         */
+        private final LinkedHashSet<String> mToBeRearmed = new LinkedHashSet<String>();
+
+        private static boolean sRegistered;
+
         public ResponseReceiver() {
 
             // prevents instantiation by other packages.
         }
+
+        /**
+         * Registers a receiver for the in-process broadcasts of
+         * {@link GeofenceTransitionsIntentService}, unless one already is.
+         */
+        public static synchronized void register(Context context) {
+            if (sRegistered) {
+                return;
+            }
+            LocalBroadcastManager.getInstance(context).registerReceiver(new ResponseReceiver(),
+                    new IntentFilter(Constants.BROADCAST_ACTION));
+            sRegistered = true;
+        }
+
         // Called when the BroadcastReceiver gets an Intent it's registered to receive
 
         public void onReceive(Context context, Intent intent) {
@@ -419,17 +671,33 @@ public class MainActivity extends ActionBarActivity implements
             Log.v("YOYO","Broadcast Received");
 
             this.context = context;
-            if(! (intent.getAction() == null)){
-                Log.v("YOYO","Inside broadcxast");
-                mGeofenceListt = new ArrayList<Geofence>();
-                mGeofencePendingIntent = null;
-
-                tobeDeleted = intent.getStringExtra(Constants.ID_TO_BE_DELETED);
+            TransitionBatch batch;
+            try {
+                batch = TransitionBatch.fromByteArray(
+                        intent.getByteArrayExtra(Constants.TRANSITION_BATCH));
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Dropping malformed transition batch");
+                return;
+            }
+            FenceCatalog registrations = GeofencePolicyEngine.getInstance().getCatalog();
+            if (batch.getCatalogVersion() != registrations.getVersion()) {
+                // The catalog was synced since; its registrations were re-added then.
+                Log.w(TAG, "Dropping transition batch for catalog version "
+                        + batch.getCatalogVersion());
+                return;
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                if (batch.getTransition(i) == Geofence.GEOFENCE_TRANSITION_DWELL) {
+                    mToBeRearmed.add(registrations.getId(batch.getFenceIndex(i)));
+                }
+            }
 
+            if (mGoogleApiClient == null) {
                 buildGoogleApiClientR();
-
+            } else if (mGoogleApiClient.isConnected()) {
+                rearmGeofencesR();
             }
-
+            // Otherwise onConnected() picks them up.
         }
 
         protected synchronized void buildGoogleApiClientR() {
@@ -445,7 +713,7 @@ public class MainActivity extends ActionBarActivity implements
         @Override
         public void onConnected(Bundle bundle) {
             Log.v("YOYO","connected");
-            removeGeofenceByIdR(tobeDeleted);
+            rearmGeofencesR();
         }
 
         @Override
@@ -473,7 +741,7 @@ public class MainActivity extends ActionBarActivity implements
             if (status.isSuccess()) {
                 Log.v("YOYO","OnResult Success");
 
-            } else {
+            } else if (status.getStatusCode() != CommonStatusCodes.CANCELED) {
                 Log.v("YOYO","OnResultFailed");
                 // Get the status code for the error and log it using a user-friendly message.
                 String errorMessage = GeofenceErrorMessages.getErrorString(context,
@@ -501,85 +769,45 @@ public class MainActivity extends ActionBarActivity implements
             return PendingIntent.getService(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
         }
 
-        public void populateGeofenceListR() {
-            for (Map.Entry<String, LatLng> entry : Constants.BAY_AREA_LANDMARKS.entrySet()) {
-
-                mGeofenceListt.add(new Geofence.Builder()
-                        // Set the request ID of the geofence. This is a string to identify this
-                        // geofence.
-                        .setRequestId(entry.getKey())
-
-                        // Set the circular region of this geofence.
-                        .setCircularRegion(
-                                entry.getValue().latitude,
-                                entry.getValue().longitude,
-                                Constants.GEOFENCE_RADIUS_IN_METERS
-                        )
-
-                        // Set the expiration duration of the geofence. This geofence gets automatically
-                        // removed after this period of time.
-                        .setExpirationDuration(Constants.GEOFENCE_EXPIRATION_IN_MILLISECONDS)
-
-                        // Set the transition types of interest. Alerts are only generated for these
-                        // transition. We track entry and exit transitions in this sample.
-
-                        .setTransitionTypes(Geofence.GEOFENCE_TRANSITION_DWELL |Geofence.GEOFENCE_TRANSITION_ENTER |
-                                Geofence.GEOFENCE_TRANSITION_EXIT)
-                        .setExpirationDuration(
-                                12 * 60 * 60 * 1000)  // 12 hours
-                        .setLoiteringDelay(1000*60*10)   // 2 minutes
-                        .setRequestId(entry.getKey())
-                        .setNotificationResponsiveness(5000)
-                        // Create the geofence.
-                        .build());
-
-                //.setNotificationResponsiveness(5000)
+        /**
+         * Re-adds the registrations that reported DWELL, so they report it again on the next
+         * visit. Adding a geofence under a registered request id replaces it, so only these
+         * registrations are sent.
+         */
+        private void rearmGeofencesR() {
+            GeofencePolicyEngine policyEngine = GeofencePolicyEngine.getInstance();
+            mGeofenceListt = new ArrayList<Geofence>(mToBeRearmed.size());
+            for (String requestId : mToBeRearmed) {
+                int index = policyEngine.getCatalog().indexOf(requestId);
+                if (index >= 0) {
+                    mGeofenceListt.add(policyEngine.buildGeofence(index));
+                }
+            }
+            mToBeRearmed.clear();
+            if (!mGeofenceListt.isEmpty()) {
+                addGeoFenceR();
             }
         }
 
         public void addGeoFenceR(){
-             try {
-            LocationServices.GeofencingApi.addGeofences(
-                    mGoogleApiClient,
-                    // The GeofenceRequest object.
-                    getGeofencingRequestR(),
-                    // A pending intent that that is reused when calling removeGeofences(). This
-                    // pending intent is used to generate an intent when a matched geofence
-                    // transition is observed.
-                    getGeofencePendingIntentR()
-            ).setResultCallback(this); // Result processed in onResult().
+            // Failed calls are retried with backoff; the final result is processed in onResult().
+            List<String> requestIds = getRequestIds(mGeofenceListt);
+            GeofenceRetryScheduler.getInstance().submitRegistration("add", requestIds,
+                    new GeofenceRetryScheduler.Call() {
+                        @Override
+                        public PendingResult<Status> start() {
+                            return LocationServices.GeofencingApi.addGeofences(
+                                    mGoogleApiClient,
+                                    // The GeofenceRequest object.
+                                    getGeofencingRequestR(),
+                                    // A pending intent that that is reused when calling
+                                    // removeGeofences(). This pending intent is used to generate
+                                    // an intent when a matched geofence transition is observed.
+                                    getGeofencePendingIntentR());
+                        }
+                    }, GeofenceRenewalScheduler.getInstance(context).recordOnSuccess(requestIds,
+                            this));
             Log.v("YOYO","added fence");
-        } catch (SecurityException securityException) {
-            // Catch exception generated if the app does not use ACCESS_FINE_LOCATION permission.
-            //logSecurityException(securityException);
-        }
-        }
-
-        public void removeGeofenceByIdR(String id ){
-
-            List<String> geofenceRequestIds=new ArrayList<>();
-            geofenceRequestIds.add(id);
-            if (!mGoogleApiClient.isConnected()) {
-                Toast.makeText(context, "Not connected", Toast.LENGTH_SHORT).show();
-                return;
-            }
-            try {
-            // Remove geofences.
-            LocationServices.GeofencingApi.removeGeofences(
-                    mGoogleApiClient,geofenceRequestIds
-                    // This is the same pending intent that was used in addGeofences().
-
-            ).setResultCallback(this);
-            Log.v("YOYO","removing fence");
-            populateGeofenceListR();
-            addGeoFenceR();
-
-            // Result processed in onResult().
-        } catch (SecurityException securityException) {
-            // Catch exception generated if the app does not use ACCESS_FINE_LOCATION permission.
-            //logSecurityException(securityException);
-        }
-
         }
 
         private GeofencingRequest getGeofencingRequestR() {
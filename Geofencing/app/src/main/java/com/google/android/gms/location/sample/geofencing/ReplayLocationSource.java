@@ -0,0 +1,101 @@
+/**
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.android.gms.location.sample.geofencing;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * {@link LocationSource} that replays a recorded trace, for exercising local evaluation without
+ * a device. The trace is CSV with one fix per line:
+ *
+ * <pre>
+ * time_millis,latitude,longitude[,accuracy_meters]
+ * </pre>
+ *
+ * Blank lines and lines starting with {@code #} are skipped. {@link #start(Listener)} replays the
+ * whole trace synchronously on the calling thread, {@code batchSize} fixes per delivery.
+ */
+public class ReplayLocationSource implements LocationSource {
+
+    private final Reader mReader;
+    private final int mBatchSize;
+    private volatile boolean mStopped;
+
+    public ReplayLocationSource(File trace, int batchSize) throws IOException {
+        this(new FileReader(trace), batchSize);
+    }
+
+    public ReplayLocationSource(Reader trace, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be positive: " + batchSize);
+        }
+        mReader = trace;
+        mBatchSize = batchSize;
+    }
+
+    @Override
+    public void start(Listener listener) {
+        mStopped = false;
+        LocationBatch batch = new LocationBatch(mBatchSize);
+        BufferedReader reader = new BufferedReader(mReader);
+        try {
+            String line;
+            int lineNumber = 0;
+            while (!mStopped && (line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.length() == 0 || line.charAt(0) == '#') {
+                    continue;
+                }
+                String[] fields = line.split(",");
+                if (fields.length < 3) {
+                    throw new IllegalArgumentException(
+                            "Malformed trace line " + lineNumber + ": " + line);
+                }
+                batch.add(Double.parseDouble(fields[1].trim()),
+                        Double.parseDouble(fields[2].trim()),
+                        fields.length > 3 ? Float.parseFloat(fields[3].trim()) : 0f,
+                        Long.parseLong(fields[0].trim()));
+                if (batch.size() == mBatchSize) {
+                    listener.onLocationBatch(batch);
+                    batch.clear();
+                }
+            }
+            if (!mStopped && batch.size() > 0) {
+                listener.onLocationBatch(batch);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to read trace", e);
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException ignored) {
+                // Nothing useful to do if closing fails.
+            }
+        }
+    }
+
+    @Override
+    public void stop() {
+        mStopped = true;
+    }
+}
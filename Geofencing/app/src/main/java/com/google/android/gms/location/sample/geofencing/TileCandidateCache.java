@@ -0,0 +1,214 @@
+/**
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.location.sample.geofencing;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Caches, per geohash tile, the fences of a {@link FenceCatalog} that may contain a point in the
+ * tile, so consecutive fixes of a device that barely moves only test a handful of fences instead
+ * of the whole catalog.
+ *
+ * Tiles are geohash cells of a fixed number of characters, keyed by the bits of their geohash.
+ * A tile's candidates are every fence whose bounding box overlaps it, found by one scan of the
+ * catalog when the tile is first seen. Boxes are padded slightly and wrap around at 180 degrees
+ * of longitude, so a fence is never missed at its edge or across the antimeridian. Tiles are evicted least recently used first once their
+ * estimated size exceeds the budget, and all of them are dropped when the cache is asked about
+ * a different catalog or catalog version.
+ *
+ * Not thread safe.
+ */
+public class TileCandidateCache {
+
+    /**
+     * Estimated bytes of a cached tile besides its candidates: the map entry, the boxed key and
+     * the array header.
+     */
+    private static final int TILE_OVERHEAD_BYTES = 80;
+
+    private final int mBits;
+    private final long mMaxBytes;
+    private final LinkedHashMap<Long, int[]> mTiles =
+            new LinkedHashMap<Long, int[]>(16, 0.75f, true);
+
+    private FenceCatalog mCatalog;
+    private long mCatalogVersion;
+    private long mBytes;
+    private long mHits;
+    private long mMisses;
+    private long mEvictions;
+
+    /**
+     * @param precision Geohash characters per tile, 1 to 12. 6 gives tiles of about 1.2 km by
+     *                  0.6 km.
+     * @param maxBytes  Estimated memory the cached tiles may take.
+     */
+    public TileCandidateCache(int precision, long maxBytes) {
+        if (precision < 1 || precision > 12) {
+            throw new IllegalArgumentException("Geohash precision " + precision);
+        }
+        mBits = 5 * precision;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Returns, in increasing order, the fences of {@code catalog} that may contain the point;
+     * every fence that does is among them. The array is shared; do not modify it.
+     */
+    public int[] getCandidates(FenceCatalog catalog, double latitude, double longitude) {
+        if (catalog != mCatalog || catalog.getVersion() != mCatalogVersion) {
+            clear();
+            mCatalog = catalog;
+            mCatalogVersion = catalog.getVersion();
+        }
+        long latitudeIndex = index(latitude + 90, 180, mBits / 2);
+        long longitudeIndex = index(GeoMath.wrapLongitude(longitude) + 180, 360,
+                mBits - mBits / 2);
+        Long key = interleave(longitudeIndex, latitudeIndex);
+        int[] candidates = mTiles.get(key);
+        if (candidates != null) {
+            mHits++;
+            return candidates;
+        }
+        mMisses++;
+        candidates = scan(catalog, latitudeIndex, longitudeIndex);
+        mTiles.put(key, candidates);
+        mBytes += tileBytes(candidates);
+        evict();
+        return candidates;
+    }
+
+    /**
+     * Drops every cached tile.
+     */
+    public void clear() {
+        mTiles.clear();
+        mBytes = 0;
+    }
+
+    public int size() {
+        return mTiles.size();
+    }
+
+    /**
+     * Returns the estimated memory taken by the cached tiles.
+     */
+    public long getBytes() {
+        return mBytes;
+    }
+
+    public long getHitCount() {
+        return mHits;
+    }
+
+    public long getMissCount() {
+        return mMisses;
+    }
+
+    public long getEvictionCount() {
+        return mEvictions;
+    }
+
+    @Override
+    public String toString() {
+        return "TileCandidateCache{tiles=" + mTiles.size() + ", bytes=" + mBytes + ", hits="
+                + mHits + ", misses=" + mMisses + ", evictions=" + mEvictions + "}";
+    }
+
+    /**
+     * Finds the fences whose bounding box overlaps a tile.
+     */
+    private int[] scan(FenceCatalog catalog, long latitudeIndex, long longitudeIndex) {
+        double tileHeight = 180.0 / (1L << (mBits / 2));
+        double tileWidth = 360.0 / (1L << (mBits - mBits / 2));
+        double south = latitudeIndex * tileHeight - 90;
+        double north = south + tileHeight;
+        double west = longitudeIndex * tileWidth - 180;
+
+        int[] candidates = new int[8];
+        int count = 0;
+        for (int f = 0; f < catalog.size(); f++) {
+            double latitude = catalog.getLatitude(f);
+            float radius = catalog.getRadius(f);
+            double dLatitude = GeoMath.latitudeExtentDegrees(radius);
+            if (latitude + dLatitude < south || latitude - dLatitude > north) {
+                continue;
+            }
+            double dLongitude = GeoMath.longitudeExtentDegrees(latitude, radius);
+            if (longitudeGap(catalog.getLongitude(f), west, tileWidth) > dLongitude) {
+                continue;
+            }
+            if (count == candidates.length) {
+                candidates = Arrays.copyOf(candidates, 2 * count);
+            }
+            candidates[count++] = f;
+        }
+        return Arrays.copyOf(candidates, count);
+    }
+
+    /**
+     * Returns how many degrees of longitude separate a meridian from the band {@code width}
+     * degrees wide east of {@code west}, going the short way around; 0 if it is in the band.
+     */
+    private static double longitudeGap(double longitude, double west, double width) {
+        double offset = GeoMath.wrapLongitude(longitude - west);
+        if (offset >= 0 && offset <= width) {
+            return 0;
+        }
+        return Math.min(Math.abs(offset), Math.abs(GeoMath.wrapLongitude(offset - width)));
+    }
+
+    private void evict() {
+        while (mBytes > mMaxBytes && mTiles.size() > 1) {
+            Map.Entry<Long, int[]> eldest = mTiles.entrySet().iterator().next();
+            mBytes -= tileBytes(eldest.getValue());
+            mTiles.remove(eldest.getKey());
+            mEvictions++;
+        }
+    }
+
+    private static long tileBytes(int[] candidates) {
+        return TILE_OVERHEAD_BYTES + 4L * candidates.length;
+    }
+
+    /**
+     * Returns which of {@code 2^bits} equal parts of {@code [0, range)} a value falls in.
+     */
+    private static long index(double value, double range, int bits) {
+        long parts = 1L << bits;
+        long index = (long) Math.floor(value / range * parts);
+        return Math.max(0, Math.min(index, parts - 1));
+    }
+
+    /**
+     * Interleaves the bits of the two indices, longitude first, as geohash does.
+     */
+    private long interleave(long longitudeIndex, long latitudeIndex) {
+        long key = 0;
+        int longitudeBits = mBits - mBits / 2;
+        for (int i = mBits - 1; i >= 0; i--) {
+            int bit = (mBits - 1 - i) / 2;
+            long source = (mBits - 1 - i) % 2 == 0
+                    ? longitudeIndex >>> (longitudeBits - 1 - bit)
+                    : latitudeIndex >>> (mBits / 2 - 1 - bit);
+            key |= (source & 1) << i;
+        }
+        return key;
+    }
+}
@@ -0,0 +1,240 @@
+/**
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.android.gms.location.sample.geofencing;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+/**
+ * Reads recorded location traces into a {@link LocationBatch}. Supports:
+ * <ul>
+ *     <li>CSV, one {@code time_millis,latitude,longitude[,accuracy_meters]} fix per line, as
+ *     read by {@link ReplayLocationSource};</li>
+ *     <li>GPX track points ({@code trkpt}, with an optional {@code time} child);</li>
+ *     <li>NMEA 0183 {@code RMC} sentences, or {@code GGA} sentences if a log has no RMC.</li>
+ * </ul>
+ */
+public final class TraceReader {
+
+    /**
+     * Rough user equivalent range error, in meters, used to turn GGA HDOP into an accuracy.
+     */
+    private static final float NMEA_UERE_IN_METERS = 5;
+
+    /**
+     * Prevents instantiation.
+     */
+    private TraceReader() {}
+
+    /**
+     * Reads a trace, choosing the format from the file extension: {@code .gpx}, {@code .nmea}
+     * or {@code .txt} for NMEA logs, anything else for CSV.
+     */
+    public static LocationBatch read(File file) throws IOException {
+        String name = file.getName().toLowerCase(Locale.US);
+        Reader reader = new FileReader(file);
+        try {
+            if (name.endsWith(".gpx")) {
+                return readGpx(reader);
+            } else if (name.endsWith(".nmea") || name.endsWith(".txt")) {
+                return readNmea(reader);
+            }
+            return readCsv(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    public static LocationBatch readCsv(Reader reader) throws IOException {
+        final LocationBatch trace = new LocationBatch(256);
+        new ReplayLocationSource(reader, 256).start(new LocationSource.Listener() {
+            @Override
+            public void onLocationBatch(LocationBatch batch) {
+                for (int i = 0; i < batch.size(); i++) {
+                    trace.add(batch.getLatitudes()[i], batch.getLongitudes()[i],
+                            batch.getAccuracies()[i], batch.getTimes()[i]);
+                }
+            }
+        });
+        return trace;
+    }
+
+    public static LocationBatch readGpx(Reader reader) throws IOException {
+        final LocationBatch trace = new LocationBatch(256);
+        DefaultHandler handler = new DefaultHandler() {
+            private final StringBuilder mText = new StringBuilder();
+            private boolean mInPoint;
+            private double mLatitude;
+            private double mLongitude;
+            private long mTime;
+
+            @Override
+            public void startElement(String uri, String localName, String qName,
+                    Attributes attributes) {
+                String name = localName(localName, qName);
+                mText.setLength(0);
+                if ("trkpt".equals(name)) {
+                    mInPoint = true;
+                    mLatitude = Double.parseDouble(attributes.getValue("lat"));
+                    mLongitude = Double.parseDouble(attributes.getValue("lon"));
+                    mTime = 0;
+                }
+            }
+
+            @Override
+            public void characters(char[] ch, int start, int length) {
+                mText.append(ch, start, length);
+            }
+
+            @Override
+            public void endElement(String uri, String localName, String qName)
+                    throws SAXException {
+                String name = localName(localName, qName);
+                if (mInPoint && "time".equals(name)) {
+                    try {
+                        mTime = parseIsoTime(mText.toString().trim());
+                    } catch (ParseException e) {
+                        throw new SAXException("Bad GPX time " + mText, e);
+                    }
+                } else if ("trkpt".equals(name)) {
+                    mInPoint = false;
+                    trace.add(mLatitude, mLongitude, 0f, mTime);
+                }
+            }
+        };
+        try {
+            SAXParserFactory factory = SAXParserFactory.newInstance();
+            factory.setNamespaceAware(true);
+            factory.newSAXParser().parse(new InputSource(reader), handler);
+        } catch (ParserConfigurationException e) {
+            throw new IllegalStateException(e);
+        } catch (SAXException e) {
+            throw new IOException("Malformed GPX: " + e.getMessage());
+        }
+        return trace;
+    }
+
+    public static LocationBatch readNmea(Reader reader) throws IOException {
+        LocationBatch rmc = new LocationBatch(256);
+        LocationBatch gga = new LocationBatch(256);
+        BufferedReader lines = new BufferedReader(reader);
+        long dateMillis = 0;
+        String line;
+        while ((line = lines.readLine()) != null) {
+            line = line.trim();
+            int checksum = line.indexOf('*');
+            if (checksum >= 0) {
+                line = line.substring(0, checksum);
+            }
+            if (!line.startsWith("$") || line.length() < 6) {
+                continue;
+            }
+            String[] fields = line.split(",", -1);
+            String type = fields[0].substring(3);
+            try {
+                if ("RMC".equals(type) && fields.length > 9 && "A".equals(fields[2])) {
+                    dateMillis = parseNmeaDate(fields[9]);
+                    rmc.add(parseNmeaCoordinate(fields[3], fields[4]),
+                            parseNmeaCoordinate(fields[5], fields[6]), 0f,
+                            dateMillis + parseNmeaTimeOfDay(fields[1]));
+                } else if ("GGA".equals(type) && fields.length > 8 && !"0".equals(fields[6])
+                        && fields[6].length() > 0) {
+                    float hdop = fields[8].length() > 0 ? Float.parseFloat(fields[8]) : 0f;
+                    gga.add(parseNmeaCoordinate(fields[2], fields[3]),
+                            parseNmeaCoordinate(fields[4], fields[5]),
+                            hdop * NMEA_UERE_IN_METERS,
+                            dateMillis + parseNmeaTimeOfDay(fields[1]));
+                }
+            } catch (NumberFormatException e) {
+                // Skip corrupted sentences, as receivers do.
+            }
+        }
+        return rmc.size() > 0 ? rmc : gga;
+    }
+
+    private static String localName(String localName, String qName) {
+        return localName != null && localName.length() > 0 ? localName : qName;
+    }
+
+    /**
+     * Parses {@code yyyy-MM-ddTHH:mm:ss[.fraction]Z}.
+     */
+    private static long parseIsoTime(String text) throws ParseException {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        long millis = format.parse(text.substring(0, Math.min(19, text.length()))).getTime();
+        if (text.length() > 20 && text.charAt(19) == '.') {
+            int end = 20;
+            while (end < text.length() && Character.isDigit(text.charAt(end))) {
+                end++;
+            }
+            String fraction = (text.substring(20, end) + "000").substring(0, 3);
+            millis += Integer.parseInt(fraction);
+        }
+        return millis;
+    }
+
+    /**
+     * Parses {@code ddmmyy} into midnight UTC of that day.
+     */
+    private static long parseNmeaDate(String ddmmyy) {
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"), Locale.US);
+        calendar.clear();
+        calendar.set(2000 + Integer.parseInt(ddmmyy.substring(4, 6)),
+                Integer.parseInt(ddmmyy.substring(2, 4)) - 1,
+                Integer.parseInt(ddmmyy.substring(0, 2)));
+        return calendar.getTimeInMillis();
+    }
+
+    /**
+     * Parses {@code hhmmss[.ss]} into milliseconds since midnight.
+     */
+    private static long parseNmeaTimeOfDay(String hhmmss) {
+        int hours = Integer.parseInt(hhmmss.substring(0, 2));
+        int minutes = Integer.parseInt(hhmmss.substring(2, 4));
+        double seconds = Double.parseDouble(hhmmss.substring(4));
+        return ((hours * 60L + minutes) * 60) * 1000 + Math.round(seconds * 1000);
+    }
+
+    /**
+     * Parses {@code (d)ddmm.mmmm} plus a hemisphere letter into signed decimal degrees.
+     */
+    private static double parseNmeaCoordinate(String value, String hemisphere) {
+        int dot = value.indexOf('.');
+        int degreeDigits = (dot < 0 ? value.length() : dot) - 2;
+        double degrees = Integer.parseInt(value.substring(0, degreeDigits))
+                + Double.parseDouble(value.substring(degreeDigits)) / 60;
+        return "S".equals(hemisphere) || "W".equals(hemisphere) ? -degrees : degrees;
+    }
+}
@@ -0,0 +1,158 @@
+/**
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.location.sample.geofencing;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A batch of geofence transitions packed into a single byte array, so that one Intent extra
+ * carries every transition of an event.
+ *
+ * Each record is a fixed-size run of fence index, transition type, time and triggering
+ * location, so reading a field is a single absolute get from the buffer. Fence indices refer
+ * to the catalog whose version is in the header; a reader holding a different version should
+ * drop the batch.
+ */
+public final class TransitionBatch {
+
+    private static final int MAGIC = 0x47465442;
+
+    private static final int HEADER_SIZE = 4 + 8 + 4;
+
+    private static final int INDEX_OFFSET = 0;
+    private static final int TRANSITION_OFFSET = 4;
+    private static final int TIME_OFFSET = 5;
+    private static final int LATITUDE_OFFSET = 13;
+    private static final int LONGITUDE_OFFSET = 21;
+    private static final int ACCURACY_OFFSET = 29;
+    private static final int RECORD_SIZE = 33;
+
+    private ByteBuffer mBuffer;
+    private int mSize;
+
+    /**
+     * Starts an empty batch.
+     *
+     * @param catalogVersion Version of the catalog the fence indices refer to.
+     */
+    public TransitionBatch(long catalogVersion) {
+        this(ByteBuffer.allocate(HEADER_SIZE + 4 * RECORD_SIZE), 0);
+        mBuffer.putInt(0, MAGIC);
+        mBuffer.putLong(4, catalogVersion);
+    }
+
+    private TransitionBatch(ByteBuffer buffer, int size) {
+        mBuffer = buffer;
+        mSize = size;
+    }
+
+    /**
+     * Wraps a byte array produced by {@link #toByteArray()} without copying it.
+     *
+     * @throws IllegalArgumentException If the array is not a transition batch.
+     */
+    public static TransitionBatch fromByteArray(byte[] payload) {
+        if (payload == null || payload.length < HEADER_SIZE) {
+            throw new IllegalArgumentException("Not a transition batch");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        int size = buffer.getInt(12);
+        if (buffer.getInt(0) != MAGIC || size < 0
+                || (payload.length - HEADER_SIZE) / RECORD_SIZE < size) {
+            throw new IllegalArgumentException("Not a transition batch");
+        }
+        return new TransitionBatch(buffer, size);
+    }
+
+    /**
+     * Appends a transition.
+     *
+     * @param latitude  Latitude of the triggering location; NaN if there is none.
+     * @param longitude Longitude of the triggering location; NaN if there is none.
+     * @param accuracy  Accuracy of the triggering location in meters; 0 if unknown.
+     */
+    public TransitionBatch add(int fenceIndex, int transition, long time, double latitude,
+            double longitude, float accuracy) {
+        int offset = HEADER_SIZE + mSize * RECORD_SIZE;
+        if (offset + RECORD_SIZE > mBuffer.capacity()) {
+            ByteBuffer grown = ByteBuffer.allocate(mBuffer.capacity() * 2);
+            grown.put(mBuffer.array(), 0, offset);
+            mBuffer = grown;
+        }
+        mBuffer.putInt(offset + INDEX_OFFSET, fenceIndex);
+        mBuffer.put(offset + TRANSITION_OFFSET, (byte) transition);
+        mBuffer.putLong(offset + TIME_OFFSET, time);
+        mBuffer.putDouble(offset + LATITUDE_OFFSET, latitude);
+        mBuffer.putDouble(offset + LONGITUDE_OFFSET, longitude);
+        mBuffer.putFloat(offset + ACCURACY_OFFSET, accuracy);
+        mSize++;
+        mBuffer.putInt(12, mSize);
+        return this;
+    }
+
+    /**
+     * Returns the batch as a byte array, trimmed to its records.
+     */
+    public byte[] toByteArray() {
+        byte[] payload = new byte[HEADER_SIZE + mSize * RECORD_SIZE];
+        System.arraycopy(mBuffer.array(), 0, payload, 0, payload.length);
+        return payload;
+    }
+
+    public long getCatalogVersion() {
+        return mBuffer.getLong(4);
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public int getFenceIndex(int i) {
+        return mBuffer.getInt(offsetOf(i) + INDEX_OFFSET);
+    }
+
+    public int getTransition(int i) {
+        return mBuffer.get(offsetOf(i) + TRANSITION_OFFSET);
+    }
+
+    public long getTime(int i) {
+        return mBuffer.getLong(offsetOf(i) + TIME_OFFSET);
+    }
+
+    public double getLatitude(int i) {
+        return mBuffer.getDouble(offsetOf(i) + LATITUDE_OFFSET);
+    }
+
+    public double getLongitude(int i) {
+        return mBuffer.getDouble(offsetOf(i) + LONGITUDE_OFFSET);
+    }
+
+    public float getAccuracy(int i) {
+        return mBuffer.getFloat(offsetOf(i) + ACCURACY_OFFSET);
+    }
+
+    private int offsetOf(int i) {
+        if (i < 0 || i >= mSize) {
+            throw new IndexOutOfBoundsException("Index " + i + ", size " + mSize);
+        }
+        return HEADER_SIZE + i * RECORD_SIZE;
+    }
+}
@@ -0,0 +1,355 @@
+/**
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.location.sample.geofencing;
+
+import com.google.android.gms.location.Geofence;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Holds back spurious ENTER and EXIT transitions caused by inaccurate fixes near a fence
+ * boundary.
+ *
+ * A fence of radius r has an inner radius r * (1 - h) and an outer radius r * (1 + h), where h
+ * is the hysteresis fraction. An ENTER is believed if the fix is inside the inner radius and its
+ * accuracy circle is inside the outer radius; an EXIT if the fix is outside the outer radius and
+ * its accuracy circle is outside the inner radius. A transition repeating the state last
+ * reported is suppressed. DWELL is always believed, since Location Services only reports it
+ * after the loitering delay. Transitions without a location are only checked against the hold
+ * time.
+ *
+ * Location Services reports each crossing only once, so a transition that is not believed yet,
+ * or that flips the state within the minimum hold time of the last reported flip, is deferred
+ * rather than dropped. It is accepted once a later fix confirms it (see {@link #recheck}), or
+ * once it has stood for the hold time without being reversed (see {@link #pollDue}). A contrary
+ * transition reported meanwhile cancels it, which is how flapping is suppressed.
+ *
+ * Thread safe.
+ */
+public class TransitionFilter {
+
+    /**
+     * {@link #check} result: handle the transition now.
+     */
+    public static final int ACCEPT = 0;
+
+    /**
+     * {@link #check} result: the transition repeats the reported state, or cancelled a deferred
+     * one; drop it.
+     */
+    public static final int SUPPRESS = 1;
+
+    /**
+     * {@link #check} result: the transition was deferred; it comes back from {@link #recheck} or
+     * {@link #pollDue} if it stands.
+     */
+    public static final int DEFER = 2;
+
+    private static final int UNKNOWN = 0;
+    private static final int INSIDE = 1;
+    private static final int OUTSIDE = 2;
+
+    /**
+     * A deferred transition that has been accepted.
+     */
+    public static final class Deferred {
+        public final String requestId;
+        public final int transition;
+
+        /**
+         * When the transition was reported.
+         */
+        public final long time;
+
+        Deferred(String requestId, int transition, long time) {
+            this.requestId = requestId;
+            this.transition = transition;
+            this.time = time;
+        }
+    }
+
+    private final float mHysteresis;
+    private final long mMinHoldMillis;
+    private final HashMap<String, FenceState> mStates = new HashMap<String, FenceState>();
+    private long mSuppressedTotal;
+    private int mDeferredCount;
+
+    private static final class FenceState {
+        /**
+         * The state last reported downstream.
+         */
+        int mReported = UNKNOWN;
+        long mSince;
+        int mSuppressed;
+
+        /**
+         * The deferred transition, or 0 if none.
+         */
+        int mPending;
+        long mPendingTime;
+    }
+
+    /**
+     * @param hysteresis    Fraction of the radius the inner and outer radii are set apart from
+     *                      the boundary.
+     * @param minHoldMillis Time a fence must stay inside or outside before it may flip again,
+     *                      and time a deferred transition must stand before it is accepted.
+     */
+    public TransitionFilter(float hysteresis, long minHoldMillis) {
+        mHysteresis = hysteresis;
+        mMinHoldMillis = minHoldMillis;
+    }
+
+    /**
+     * Decides what to do with a transition reported by Location Services, and records it as
+     * reported if it is accepted.
+     *
+     * @param requestId Request id of the fence.
+     * @param distance  Distance in meters from the triggering location to the fence center;
+     *                  ignored when {@code hasLocation} is false.
+     * @param radius    Radius of the fence in meters.
+     * @param accuracy  Accuracy of the triggering location in meters; 0 if unknown.
+     * @return {@link #ACCEPT}, {@link #SUPPRESS} or {@link #DEFER}.
+     */
+    public synchronized int check(String requestId, int transition, long time,
+            boolean hasLocation, double distance, float radius, float accuracy) {
+        FenceState state = mStates.get(requestId);
+        if (state == null) {
+            state = new FenceState();
+            mStates.put(requestId, state);
+        }
+        if (transition == Geofence.GEOFENCE_TRANSITION_DWELL) {
+            return ACCEPT;
+        }
+
+        int newState = stateAfter(transition);
+        if (state.mPending != 0 && state.mPending != transition) {
+            // Reversed before it was believed: the deferred transition was flapping.
+            setPending(state, 0, 0);
+        }
+        if (state.mReported == newState) {
+            state.mSuppressed++;
+            mSuppressedTotal++;
+            return SUPPRESS;
+        }
+        if (isBelievable(state, transition, time, hasLocation, distance, radius, accuracy)) {
+            setPending(state, 0, 0);
+            report(state, newState, time);
+            return ACCEPT;
+        }
+        if (state.mPending == 0) {
+            setPending(state, transition, time);
+        }
+        return DEFER;
+    }
+
+    /**
+     * Checks the deferred transition of a fence against a new fix. Accepts it if the fix
+     * confirms it, and cancels it if the fix clearly contradicts it.
+     *
+     * @return The accepted transition, or null if it was not accepted.
+     */
+    public synchronized Deferred recheck(String requestId, long time, double distance,
+            float radius, float accuracy) {
+        FenceState state = mStates.get(requestId);
+        if (state == null || state.mPending == 0) {
+            return null;
+        }
+        int transition = state.mPending;
+        if (isBelievable(state, transition, time, true, distance, radius, accuracy)) {
+            Deferred accepted = new Deferred(requestId, transition, state.mPendingTime);
+            setPending(state, 0, 0);
+            report(state, stateAfter(transition), time);
+            return accepted;
+        }
+        int contrary = transition == Geofence.GEOFENCE_TRANSITION_ENTER
+                ? Geofence.GEOFENCE_TRANSITION_EXIT : Geofence.GEOFENCE_TRANSITION_ENTER;
+        if (isBelievable(null, contrary, time, true, distance, radius, accuracy)) {
+            setPending(state, 0, 0);
+            state.mSuppressed++;
+            mSuppressedTotal++;
+        }
+        return null;
+    }
+
+    /**
+     * Accepts every deferred transition that has stood for the hold time by {@code now}.
+     */
+    public synchronized List<Deferred> pollDue(long now) {
+        List<Deferred> due = new ArrayList<Deferred>();
+        if (mDeferredCount == 0) {
+            return due;
+        }
+        for (Map.Entry<String, FenceState> entry : mStates.entrySet()) {
+            FenceState state = entry.getValue();
+            if (state.mPending != 0 && state.mPendingTime + mMinHoldMillis <= now) {
+                due.add(new Deferred(entry.getKey(), state.mPending, state.mPendingTime));
+                report(state, stateAfter(state.mPending), now);
+                setPending(state, 0, 0);
+            }
+        }
+        return due;
+    }
+
+    /**
+     * Returns the request ids of the fences with a deferred transition.
+     */
+    public synchronized List<String> getDeferredFences() {
+        List<String> fences = new ArrayList<String>();
+        if (mDeferredCount == 0) {
+            return fences;
+        }
+        for (Map.Entry<String, FenceState> entry : mStates.entrySet()) {
+            if (entry.getValue().mPending != 0) {
+                fences.add(entry.getKey());
+            }
+        }
+        return fences;
+    }
+
+    /**
+     * Returns every deferred transition, sorted by request id, for example to save them.
+     */
+    public synchronized List<Deferred> getDeferred() {
+        TreeMap<String, Deferred> deferred = new TreeMap<String, Deferred>();
+        if (mDeferredCount == 0) {
+            return new ArrayList<Deferred>();
+        }
+        for (Map.Entry<String, FenceState> entry : mStates.entrySet()) {
+            FenceState state = entry.getValue();
+            if (state.mPending != 0) {
+                deferred.put(entry.getKey(),
+                        new Deferred(entry.getKey(), state.mPending, state.mPendingTime));
+            }
+        }
+        return new ArrayList<Deferred>(deferred.values());
+    }
+
+    /**
+     * Defers a transition saved with {@link #getDeferred()} again, after the process was
+     * restarted. Ignored if the fence already has state here, or the transition is not ENTER
+     * or EXIT.
+     */
+    public synchronized void restoreDeferred(String requestId, int transition, long time) {
+        if (mStates.containsKey(requestId)
+                || (transition != Geofence.GEOFENCE_TRANSITION_ENTER
+                        && transition != Geofence.GEOFENCE_TRANSITION_EXIT)) {
+            return;
+        }
+        FenceState state = new FenceState();
+        mStates.put(requestId, state);
+        setPending(state, transition, time);
+    }
+
+    /**
+     * Returns when the earliest deferred transition is due, or {@link Long#MAX_VALUE} if none
+     * is deferred.
+     */
+    public synchronized long getNextDueTime() {
+        long next = Long.MAX_VALUE;
+        if (mDeferredCount == 0) {
+            return next;
+        }
+        for (FenceState state : mStates.values()) {
+            if (state.mPending != 0) {
+                next = Math.min(next, state.mPendingTime + mMinHoldMillis);
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Returns the number of transitions of a fence suppressed so far.
+     */
+    public synchronized int getSuppressedCount(String requestId) {
+        FenceState state = mStates.get(requestId);
+        return state != null ? state.mSuppressed : 0;
+    }
+
+    /**
+     * Returns the number of suppressed transitions of every fence that had any, by request id.
+     */
+    public synchronized Map<String, Integer> getSuppressedCounts() {
+        TreeMap<String, Integer> counts = new TreeMap<String, Integer>();
+        for (Map.Entry<String, FenceState> entry : mStates.entrySet()) {
+            if (entry.getValue().mSuppressed > 0) {
+                counts.put(entry.getKey(), entry.getValue().mSuppressed);
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Forgets the state of a fence, e.g. after it was removed or re-registered.
+     */
+    public synchronized void reset(String requestId) {
+        FenceState state = mStates.remove(requestId);
+        if (state != null && state.mPending != 0) {
+            mDeferredCount--;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "TransitionFilter{suppressed=" + mSuppressedTotal + ", deferred=" + mDeferredCount
+                + ", byFence=" + getSuppressedCounts() + "}";
+    }
+
+    /**
+     * Returns true if a transition may be reported now: the hold time since the last reported
+     * flip has passed and, with a location, the fix is clearly on the new side.
+     *
+     * @param state The fence's state, or null to skip the hold time check.
+     */
+    private boolean isBelievable(FenceState state, int transition, long time,
+            boolean hasLocation, double distance, float radius, float accuracy) {
+        if (state != null && state.mReported != UNKNOWN
+                && time - state.mSince < mMinHoldMillis) {
+            return false;
+        }
+        if (!hasLocation) {
+            return true;
+        }
+        if (transition == Geofence.GEOFENCE_TRANSITION_ENTER) {
+            return distance <= radius * (1 - mHysteresis)
+                    && distance + accuracy <= radius * (1 + mHysteresis);
+        }
+        return distance >= radius * (1 + mHysteresis)
+                && distance - accuracy >= radius * (1 - mHysteresis);
+    }
+
+    private static int stateAfter(int transition) {
+        return transition == Geofence.GEOFENCE_TRANSITION_EXIT ? OUTSIDE : INSIDE;
+    }
+
+    private static void report(FenceState state, int newState, long time) {
+        state.mReported = newState;
+        state.mSince = time;
+    }
+
+    private void setPending(FenceState state, int transition, long time) {
+        if ((state.mPending != 0) != (transition != 0)) {
+            mDeferredCount += transition != 0 ? 1 : -1;
+        }
+        state.mPending = transition;
+        state.mPendingTime = time;
+    }
+}
@@ -0,0 +1,163 @@
+/**
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.location.sample.geofencing;
+
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+import android.support.v4.app.NotificationCompat;
+import android.support.v4.app.TaskStackBuilder;
+
+import com.google.android.gms.location.Geofence;
+
+/**
+ * Posts a notification for every transition published on the {@link GeofenceEventStream}.
+ */
+public class TransitionNotifier implements GeofenceEventStream.Subscriber {
+
+    /**
+     * Posts the notification of a transition. Stands in for the NotificationManager on the
+     * JVM, see {@code TraceReplaySimulator}.
+     */
+    public interface Poster {
+        void post(GeofenceEventStream.TransitionEvent event);
+    }
+
+    private static GeofenceEventStream.Subscription sSubscription;
+
+    private final Poster mPoster;
+
+    /**
+     * Subscribes the notifier to the app's event stream, unless it already is.
+     */
+    public static synchronized void subscribe(Context context) {
+        if (sSubscription == null) {
+            sSubscription = subscribe(GeofenceEventStream.getInstance(),
+                    new NotificationPoster(context.getApplicationContext()));
+        }
+    }
+
+    /**
+     * Subscribes a notifier posting through {@code poster} to a stream. The subscription is
+     * awaited, so a service publishing a transition stays started until it is posted.
+     */
+    public static GeofenceEventStream.Subscription subscribe(GeofenceEventStream stream,
+            Poster poster) {
+        return stream.subscribe("notifications", GeofenceEventStream.ALL,
+                Constants.TRANSITION_NOTIFICATION_QUEUE_CAPACITY, GeofenceEventStream.DROP_OLDEST,
+                true, new TransitionNotifier(poster));
+    }
+
+    private TransitionNotifier(Poster poster) {
+        mPoster = poster;
+    }
+
+    @Override
+    public void onEvent(GeofenceEventStream.TransitionEvent event) {
+        mPoster.post(event);
+    }
+
+    /**
+     * Posts transitions to the NotificationManager.
+     */
+    private static final class NotificationPoster implements Poster {
+
+        private final Context mContext;
+
+        NotificationPoster(Context context) {
+            mContext = context;
+        }
+
+        @Override
+        public void post(GeofenceEventStream.TransitionEvent event) {
+            sendNotification(getTransitionString(event.getTransition()) + ": "
+                    + event.getRequestId(),
+                    event.getTransition() == Geofence.GEOFENCE_TRANSITION_DWELL);
+        }
+
+        /**
+         * Posts a notification in the notification bar when a transition is detected.
+         * If the user clicks the notification, control goes to the MainActivity.
+         */
+        private void sendNotification(String notificationDetails, boolean isDwell) {
+            // Create an explicit content Intent that starts the main Activity.
+            Intent notificationIntent = new Intent(mContext, MainActivity.class);
+
+            // Construct a task stack.
+            TaskStackBuilder stackBuilder = TaskStackBuilder.create(mContext);
+
+            // Add the main Activity to the task stack as the parent.
+            stackBuilder.addParentStack(MainActivity.class);
+
+            // Push the content Intent onto the stack.
+            stackBuilder.addNextIntent(notificationIntent);
+
+            // Get a PendingIntent containing the entire back stack.
+            PendingIntent notificationPendingIntent =
+                    stackBuilder.getPendingIntent(0, PendingIntent.FLAG_UPDATE_CURRENT);
+
+            int notif_id = (int) (System.currentTimeMillis() & 0xFFL);
+
+            // Get a notification builder that's compatible with platform versions >= 4
+            NotificationCompat.Builder builder = new NotificationCompat.Builder(mContext);
+            int icon = isDwell ? R.drawable.common_signin_btn_icon_disabled_focus_dark
+                    : R.drawable.ic_launcher;
+            builder.setSmallIcon(icon)
+                    // In a real app, you may want to use a library like Volley
+                    // to decode the Bitmap.
+                    .setLargeIcon(BitmapFactory.decodeResource(mContext.getResources(), icon))
+                    .setColor(Color.RED)
+                    .setContentTitle(notificationDetails)
+                    .setContentText(
+                            mContext.getString(R.string.geofence_transition_notification_text))
+                    .setContentIntent(notificationPendingIntent);
+
+            // Dismiss notification once the user touches it.
+            builder.setAutoCancel(true);
+            builder.setOngoing(false);
+
+            // Get an instance of the Notification manager
+            NotificationManager mNotificationManager =
+                    (NotificationManager) mContext.getSystemService(Context.NOTIFICATION_SERVICE);
+
+            // Issue the notification
+            mNotificationManager.notify(notif_id, builder.build());
+        }
+
+        /**
+         * Maps geofence transition types to their human-readable equivalents.
+         *
+         * @param transitionType    A transition type constant defined in Geofence
+         * @return                  A String indicating the type of transition
+         */
+        private String getTransitionString(int transitionType) {
+            switch (transitionType) {
+                case Geofence.GEOFENCE_TRANSITION_ENTER:
+                    return mContext.getString(R.string.geofence_transition_entered);
+                case Geofence.GEOFENCE_TRANSITION_EXIT:
+                    return mContext.getString(R.string.geofence_transition_exited);
+                case Geofence.GEOFENCE_TRANSITION_DWELL:
+                    return "Dwelling:";
+                default:
+                    return mContext.getString(R.string.unknown_geofence_transition);
+            }
+        }
+    }
+}
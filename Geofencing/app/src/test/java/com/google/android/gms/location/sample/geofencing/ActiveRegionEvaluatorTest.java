@@ -0,0 +1,136 @@
+/**
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.android.gms.location.sample.geofencing;
+
+import com.google.android.gms.location.Geofence;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ActiveRegionEvaluatorTest {
+
+    private static final String PARENT = FenceHierarchy.REGION_ID_PREFIX + "p";
+
+    private static final int A = 0;
+    private static final int B = 1;
+
+    private static final FenceHierarchy HIERARCHY = FenceHierarchy.build(
+            new FenceCatalog.Builder().add(PARENT, 0, 0, 5000).build(),
+            new FenceCatalog.Builder()
+                    .add("a", 0, 0, 100)
+                    .add("b", 0.02, 0, 100)
+                    .add("outside", 1, 1, 100)
+                    .build(),
+            500);
+
+    private final ActiveRegionEvaluator mRegions = new ActiveRegionEvaluator(HIERARCHY, 0);
+    private final List<String> mTransitions = new ArrayList<String>();
+
+    private final LocalFenceEvaluator.TransitionListener mListener =
+            new LocalFenceEvaluator.TransitionListener() {
+                @Override
+                public void onTransition(int fenceIndex, int transition, long time,
+                        double latitude, double longitude) {
+                    mTransitions.add(HIERARCHY.getChildCatalog().getId(fenceIndex) + " "
+                            + (transition == Geofence.GEOFENCE_TRANSITION_ENTER ? "ENTER" : "EXIT"));
+                }
+            };
+
+    @Test
+    public void enteringLoadsTheChildrenAndChecksTheTriggeringFix() {
+        assertTrue(mRegions.enter(PARENT, 1000, true, 0, 0, mListener));
+
+        assertArrayEquals(new int[] {A, B}, mRegions.getLoadedFences());
+        assertEquals(Arrays.asList("a ENTER"), mTransitions);
+        assertTrue(mRegions.getActiveRegions().contains(PARENT));
+    }
+
+    @Test
+    public void onlyRegistrationsWithLocalFencesAreEntered() {
+        assertFalse(mRegions.enter("outside", 1000, true, 1, 1, mListener));
+        assertFalse(mRegions.enter(FenceHierarchy.REGION_ID_PREFIX + "unknown", 1000, true, 0, 0,
+                mListener));
+        assertTrue(mRegions.isEmpty());
+
+        assertTrue(mRegions.enter(PARENT, 1000, false, 0, 0, mListener));
+        assertFalse(mRegions.enter(PARENT, 2000, false, 0, 0, mListener));
+        assertTrue(mTransitions.isEmpty());
+    }
+
+    @Test
+    public void fixesMoveTheDeviceBetweenLoadedFences() {
+        mRegions.enter(PARENT, 1000, true, 0, 0, mListener);
+
+        LocationBatch batch = new LocationBatch(1);
+        batch.add(0.02, 0, 5, 2000);
+        mRegions.evaluate(batch, mListener);
+
+        assertEquals(Arrays.asList("a ENTER", "a EXIT", "b ENTER"), mTransitions);
+    }
+
+    @Test
+    public void exitingReportsExitOnlyForFencesTheDeviceWasIn() {
+        mRegions.enter(PARENT, 1000, true, 0, 0, mListener);
+        mTransitions.clear();
+
+        assertTrue(mRegions.exit(PARENT, 2000, false, 0, 0, mListener));
+
+        assertEquals(Arrays.asList("a EXIT"), mTransitions);
+        assertEquals(0, mRegions.getLoadedFences().length);
+        assertFalse(mRegions.exit(PARENT, 3000, false, 0, 0, mListener));
+    }
+
+    @Test
+    public void nearBoundaryFollowsTheLastFix() {
+        assertFalse(mRegions.isNearBoundary(3000));
+
+        // Loaded without a fix: the distance is unknown, so assume near.
+        mRegions.enter(PARENT, 1000, false, 0, 0, mListener);
+        assertTrue(mRegions.isNearBoundary(0));
+
+        // About 1010 m from the edges of both fences.
+        LocationBatch batch = new LocationBatch(1);
+        batch.add(0.01, 0, 5, 2000);
+        mRegions.evaluate(batch, mListener);
+        assertFalse(mRegions.isNearBoundary(500));
+        assertTrue(mRegions.isNearBoundary(1100));
+
+        // Inside "a", 100 m from its edge, counts too.
+        batch.clear();
+        batch.add(0, 0, 5, 3000);
+        mRegions.evaluate(batch, mListener);
+        assertTrue(mRegions.isNearBoundary(150));
+    }
+
+    @Test
+    public void restoreSkipsUnknownRegistrations() {
+        mRegions.restore(Arrays.asList(PARENT, FenceClusters.CLUSTER_ID_PREFIX + "gone", "a"));
+
+        assertEquals(1, mRegions.getActiveRegions().size());
+        assertArrayEquals(new int[] {A, B}, mRegions.getLoadedFences());
+        assertTrue(mTransitions.isEmpty());
+    }
+}
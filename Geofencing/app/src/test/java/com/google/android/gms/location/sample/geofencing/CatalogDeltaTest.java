@@ -0,0 +1,112 @@
+/**
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.android.gms.location.sample.geofencing;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CatalogDeltaTest {
+
+    private static final FenceCatalog V1 = new FenceCatalog.Builder()
+            .add("kept", 37.422, -122.084, 100)
+            .add("moved", 37.4, -122.1, 150)
+            .add("removed", -33.8688, 151.2093, 250.5f)
+            .setVersion(1)
+            .build();
+
+    private static final FenceCatalog V2 = new FenceCatalog.Builder()
+            .add("kept", 37.422, -122.084, 100)
+            .add("moved", 37.401234, -122.100001, 150)
+            .add("added", 51.5074, -0.1278, 1609.3f)
+            .setVersion(2)
+            .build();
+
+    @Test
+    public void snapshotRoundTrip() throws IOException {
+        CatalogDelta snapshot = CatalogDelta.between(null, V1);
+        assertTrue(snapshot.isSnapshot());
+
+        CatalogDelta decoded = CatalogDelta.decode(snapshot.encode());
+
+        assertEquals(0, decoded.getFromVersion());
+        assertEquals(1, decoded.getToVersion());
+        assertEntriesEqual(snapshot.getEntries(), decoded.getEntries());
+        assertEquals(3, decoded.getEntries().size());
+    }
+
+    @Test
+    public void deltaCarriesOnlyChangesAndTombstones() throws IOException {
+        CatalogDelta delta = CatalogDelta.decode(CatalogDelta.between(V1, V2).encode());
+
+        assertEquals(1, delta.getFromVersion());
+        assertEquals(2, delta.getToVersion());
+        List<CatalogDelta.Entry> entries = delta.getEntries();
+        assertEquals(3, entries.size());
+        // Changes sorted by center, then tombstones.
+        assertEquals("moved", entries.get(0).id);
+        assertEquals(CatalogDelta.OP_UPDATE, entries.get(0).op);
+        assertEquals(37.401234, entries.get(0).latitude, 1e-9);
+        assertEquals(-122.100001, entries.get(0).longitude, 1e-9);
+        assertEquals("added", entries.get(1).id);
+        assertEquals(CatalogDelta.OP_ADD, entries.get(1).op);
+        assertEquals(1609.3f, entries.get(1).radius, 0.05f);
+        assertEquals("removed", entries.get(2).id);
+        assertEquals(CatalogDelta.OP_TOMBSTONE, entries.get(2).op);
+    }
+
+    @Test
+    public void rejectsTruncatedAndForeignPayloads() {
+        byte[] payload = CatalogDelta.between(null, V2).encode();
+        for (int length = 0; length < payload.length; length++) {
+            try {
+                CatalogDelta.decode(Arrays.copyOf(payload, length));
+                fail("Decoded a payload truncated to " + length + " bytes");
+            } catch (IOException expected) {
+                // Expected.
+            }
+        }
+        try {
+            CatalogDelta.decode(new byte[] {'P', 'K', 3, 4, 0, 0, 0});
+            fail("Decoded a payload that is not a catalog delta");
+        } catch (IOException expected) {
+            // Expected.
+        }
+    }
+
+    private static void assertEntriesEqual(List<CatalogDelta.Entry> expected,
+            List<CatalogDelta.Entry> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            CatalogDelta.Entry e = expected.get(i);
+            CatalogDelta.Entry a = actual.get(i);
+            assertEquals(e.op, a.op);
+            assertEquals(e.id, a.id);
+            // Coordinates travel as microdegrees and radii as decimeters.
+            assertEquals(e.latitude, a.latitude, 1e-6);
+            assertEquals(e.longitude, a.longitude, 1e-6);
+            assertEquals(e.radius, a.radius, 0.05f);
+        }
+    }
+}
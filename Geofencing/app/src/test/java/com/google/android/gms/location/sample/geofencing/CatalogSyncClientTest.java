@@ -0,0 +1,124 @@
+/**
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.location.sample.geofencing;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CatalogSyncClientTest {
+
+    private static final FenceCatalog V1 = new FenceCatalog.Builder()
+            .add("kept", 37.422, -122.084, 100)
+            .add("moved", 37.4, -122.1, 150)
+            .add("removed", -33.8688, 151.2093, 250)
+            .build();
+
+    private static final FenceCatalog V2 = new FenceCatalog.Builder()
+            .add("kept", 37.422, -122.084, 100)
+            .add("moved", 37.41, -122.1, 150)
+            .add("added", 48.8584, 2.2945, 300)
+            .build();
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private LocalCatalogServer mServer;
+
+    @Before
+    public void startServer() throws IOException {
+        mServer = new LocalCatalogServer(0, 4);
+        mServer.start();
+    }
+
+    @After
+    public void stopServer() throws IOException {
+        mServer.close();
+    }
+
+    @Test
+    public void syncsSnapshotThenNotModifiedThenDelta() throws IOException {
+        File file = new File(mFolder.getRoot(), "catalog.bin");
+        FenceStore store = new FenceStore(file);
+        CatalogSyncClient client = new CatalogSyncClient(mServer.getUrl(), store);
+
+        mServer.publish(V1);
+        assertTrue(client.sync());
+        assertEquals(1, store.getVersion());
+        assertCatalog(V1, store.snapshot());
+        long snapshotBytes = mServer.getBytesSent();
+
+        assertFalse(client.sync());
+        assertEquals(2, mServer.getRequestCount());
+        assertEquals(snapshotBytes, mServer.getBytesSent());
+
+        mServer.publish(V2);
+        assertTrue(client.sync());
+        assertEquals(2, store.getVersion());
+        assertCatalog(V2, store.snapshot());
+
+        FenceStore reloaded = new FenceStore(file);
+        reloaded.load();
+        assertEquals(2, reloaded.getVersion());
+        assertEquals(store.getETag(), reloaded.getETag());
+        assertCatalog(V2, reloaded.snapshot());
+        assertFalse(new CatalogSyncClient(mServer.getUrl(), reloaded).sync());
+    }
+
+    @Test
+    public void failedSaveLeavesStoreUnchanged() throws IOException {
+        FenceStore store = new FenceStore(new File(mFolder.getRoot(), "missing/catalog.bin"));
+        CatalogSyncClient client = new CatalogSyncClient(mServer.getUrl(), store);
+        mServer.publish(V1);
+
+        try {
+            client.sync();
+            fail("Saved into a missing directory");
+        } catch (IOException expected) {
+            // The snapshot could not be saved.
+        }
+        assertEquals(0, store.getVersion());
+        assertNull(store.getETag());
+        assertEquals(0, store.snapshot().size());
+
+        assertTrue(new File(mFolder.getRoot(), "missing").mkdir());
+        assertTrue(client.sync());
+        assertCatalog(V1, store.snapshot());
+    }
+
+    private static void assertCatalog(FenceCatalog expected, FenceCatalog actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            int index = actual.indexOf(expected.getId(i));
+            assertTrue(expected.getId(i), index >= 0);
+            assertEquals(expected.getLatitude(i), actual.getLatitude(index), 1e-9);
+            assertEquals(expected.getLongitude(i), actual.getLongitude(index), 1e-9);
+            assertEquals(expected.getRadius(i), actual.getRadius(index), 1e-3);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.android.gms.location.sample.geofencing;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ExpiryQueueTest {
+
+    @Test
+    public void pollsDueFencesEarliestFirst() {
+        ExpiryQueue queue = new ExpiryQueue();
+        queue.schedule("c", 300);
+        queue.schedule("a", 100);
+        queue.schedule("b", 200);
+
+        assertEquals(100, queue.peekDeadline());
+        assertEquals(Collections.<String>emptyList(), queue.pollDue(99, 10));
+        assertEquals(Arrays.asList("a", "b"), queue.pollDue(250, 10));
+        assertEquals(1, queue.size());
+        assertEquals(300, queue.peekDeadline());
+    }
+
+    @Test
+    public void pollDueStopsAtMax() {
+        ExpiryQueue queue = new ExpiryQueue();
+        for (int i = 0; i < 10; i++) {
+            queue.schedule("fence-" + i, i);
+        }
+        assertEquals(Arrays.asList("fence-0", "fence-1", "fence-2"), queue.pollDue(100, 3));
+        assertEquals(7, queue.size());
+        assertEquals(3, queue.peekDeadline());
+    }
+
+    @Test
+    public void rescheduleReplacesAndRemoveForgets() {
+        ExpiryQueue queue = new ExpiryQueue();
+        queue.schedule("a", 100);
+        queue.schedule("b", 200);
+        queue.schedule("a", 500);
+        queue.remove("b");
+
+        assertEquals(1, queue.size());
+        assertEquals(500, queue.peekDeadline());
+        assertEquals(Collections.<String>emptyList(), queue.pollDue(400, 10));
+        assertEquals(Collections.singletonList("a"), queue.pollDue(500, 10));
+        assertTrue(queue.isEmpty());
+        assertEquals(Long.MAX_VALUE, queue.peekDeadline());
+    }
+
+    @Test
+    public void manyReschedulesKeepOnlyTheLatestDeadline() {
+        ExpiryQueue queue = new ExpiryQueue();
+        for (int round = 0; round < 1000; round++) {
+            for (int i = 0; i < 5; i++) {
+                queue.schedule("fence-" + i, 1000L * round + i);
+            }
+        }
+        assertEquals(5, queue.size());
+        assertEquals(999000, queue.peekDeadline());
+        assertEquals(Long.valueOf(999004), queue.getDeadlines().get("fence-4"));
+        assertEquals(5, queue.pollDue(Long.MAX_VALUE, 10).size());
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.android.gms.location.sample.geofencing;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FenceClustersTest {
+
+    private static final float MAX_RADIUS = 500;
+
+    @Test
+    public void overlappingFencesShareOneRegistration() {
+        FenceClusters clusters = FenceClusters.build(new FenceCatalog.Builder()
+                .add("a", 0, 0, 100)
+                .add("b", 0, 0.001, 100)
+                .add("alone", 1, 1, 100)
+                .build(), MAX_RADIUS);
+
+        assertEquals(2, clusters.size());
+        assertEquals(clusters.getClusterOf(0), clusters.getClusterOf(1));
+        assertArrayEquals(new int[] {0, 1}, clusters.getMembers(clusters.getClusterOf(0)));
+
+        FenceCatalog registrations = clusters.getRegistrationCatalog();
+        String clusterId = registrations.getId(clusters.getClusterOf(0));
+        assertTrue(clusterId.startsWith(FenceClusters.CLUSTER_ID_PREFIX));
+        // The enclosing circle covers both members.
+        int cluster = registrations.indexOf(clusterId);
+        assertTrue(registrations.getRadius(cluster) >= 100 + 111 / 2);
+        // A fence that overlaps nothing is registered as itself.
+        assertEquals(clusters.getClusterOf(2), clusters.indexOfRegistration("alone"));
+    }
+
+    @Test
+    public void fencesTooFarApartForOneCircleStaySeparate() {
+        FenceClusters clusters = FenceClusters.build(new FenceCatalog.Builder()
+                .add("a", 0, 0, 400)
+                .add("b", 0, 0.007, 400)
+                .build(), MAX_RADIUS);
+
+        assertEquals(2, clusters.size());
+        assertEquals(0, clusters.indexOfRegistration("a"));
+        assertEquals(1, clusters.indexOfRegistration("b"));
+    }
+
+    @Test
+    public void clusterIdsSurviveUnrelatedCatalogChanges() {
+        FenceClusters before = FenceClusters.build(new FenceCatalog.Builder()
+                .add("a", 0, 0, 100)
+                .add("b", 0, 0.001, 100)
+                .build(), MAX_RADIUS);
+        // New fences ahead of the cluster, including another cluster, used to shift its
+        // positional id.
+        FenceClusters after = FenceClusters.build(new FenceCatalog.Builder()
+                .add("x", 2, 2, 100)
+                .add("y", 2, 2.001, 100)
+                .add("alone", 1, 1, 100)
+                .add("b", 0, 0.001, 100)
+                .add("a", 0, 0, 100)
+                .build(), MAX_RADIUS);
+
+        String id = before.getRegistrationCatalog().getId(0);
+        int cluster = after.indexOfRegistration(id);
+        assertTrue(cluster >= 0);
+        assertArrayEquals(new int[] {3, 4}, after.getMembers(cluster));
+    }
+
+    @Test
+    public void clusterIdChangesWithItsMembers() {
+        FenceClusters two = FenceClusters.build(new FenceCatalog.Builder()
+                .add("a", 0, 0, 100)
+                .add("b", 0, 0.001, 100)
+                .build(), MAX_RADIUS);
+        FenceClusters three = FenceClusters.build(new FenceCatalog.Builder()
+                .add("a", 0, 0, 100)
+                .add("b", 0, 0.001, 100)
+                .add("c", 0.001, 0, 100)
+                .build(), MAX_RADIUS);
+
+        assertEquals(1, three.size());
+        assertNotEquals(two.getRegistrationCatalog().getId(0),
+                three.getRegistrationCatalog().getId(0));
+    }
+
+    @Test
+    public void resolveReturnsTheMembersContainingThePoint() {
+        FenceClusters clusters = FenceClusters.build(new FenceCatalog.Builder()
+                .add("a", 0, 0, 100)
+                .add("b", 0, 0.001, 100)
+                .build(), MAX_RADIUS);
+
+        assertArrayEquals(new int[] {0}, clusters.resolve(0, 0, -0.0005));
+        assertArrayEquals(new int[] {0, 1}, clusters.resolve(0, 0, 0.0005));
+        assertArrayEquals(new int[0], clusters.resolve(0, 0.01, 0));
+    }
+
+    @Test
+    public void deltasMayNotUseReservedPrefixes() {
+        assertTrue(CatalogDelta.isReservedId(FenceClusters.CLUSTER_ID_PREFIX + "0"));
+        assertTrue(CatalogDelta.isReservedId(FenceHierarchy.REGION_ID_PREFIX + "Bangalore"));
+        assertFalse(CatalogDelta.isReservedId("clusters"));
+
+        byte[] payload = new CatalogDelta(0, 1, Collections.singletonList(
+                new CatalogDelta.Entry(CatalogDelta.OP_ADD,
+                        FenceClusters.CLUSTER_ID_PREFIX + "0", 0, 0, 100))).encode();
+        try {
+            CatalogDelta.decode(payload);
+            fail("Reserved id accepted");
+        } catch (IOException expected) {
+        }
+    }
+}
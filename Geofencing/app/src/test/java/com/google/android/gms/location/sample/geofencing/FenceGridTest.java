@@ -0,0 +1,79 @@
+/**
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.location.sample.geofencing;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FenceGridTest {
+
+    @Test
+    public void fenceAcrossAntimeridianIsFoundFromBothSides() {
+        FenceCatalog catalog = new FenceCatalog.Builder()
+                .add("dateline", -16.5, 179.999, 1000)
+                .build();
+        FenceGrid grid = new FenceGrid(catalog, 200);
+        int[] out = new int[grid.getMaxOverlap()];
+
+        assertEquals(1, grid.containing(-16.5, 179.995, out));
+        assertEquals(1, grid.containing(-16.5, -179.995, out));
+        assertEquals(0, grid.containing(-16.5, -179.98, out));
+    }
+
+    @Test
+    public void fenceAtItsEdgeIsACandidate() {
+        // 111 195 m per degree of latitude; the old 111 320 left this edge outside the box.
+        FenceCatalog catalog = new FenceCatalog.Builder()
+                .add("edge", 0, 0, 100000)
+                .build();
+        FenceGrid grid = new FenceGrid(catalog, 100000);
+        double edge = Math.toDegrees(99999.0 / GeoMath.EARTH_RADIUS_IN_METERS);
+
+        assertArrayEquals(new int[] {0}, grid.candidatesAt(edge, 0));
+    }
+
+    @Test
+    public void maxOverlapBoundsEveryPoint() {
+        Random random = new Random(3);
+        FenceCatalog catalog = SyntheticCatalogs.generate(random, 5000);
+        FenceGrid grid = new FenceGrid(catalog, 500);
+        int[] out = new int[grid.getMaxOverlap()];
+        int deepest = 0;
+        for (int i = 0; i < 20000; i++) {
+            int fence = random.nextInt(catalog.size());
+            double latitude = catalog.getLatitude(fence) + (random.nextDouble() - 0.5) * 0.01;
+            double longitude = catalog.getLongitude(fence) + (random.nextDouble() - 0.5) * 0.01;
+            deepest = Math.max(deepest, grid.containing(latitude, longitude, out));
+        }
+        assertTrue(deepest > 1);
+        assertTrue(deepest <= grid.getMaxOverlap());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void containingRejectsTooSmallOutput() {
+        FenceCatalog catalog = new FenceCatalog.Builder()
+                .add("a", 10, 10, 500)
+                .add("b", 10, 10.001, 500)
+                .build();
+        new FenceGrid(catalog, 1000).containing(10, 10.0005, new int[1]);
+    }
+}
@@ -0,0 +1,55 @@
+/**
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.android.gms.location.sample.geofencing;
+
+import com.google.android.gms.common.api.CommonStatusCodes;
+import com.google.android.gms.location.GeofenceStatusCodes;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class GeofenceErrorMessagesTest {
+
+    @Test
+    public void transientFailuresAreRetryable() {
+        assertTrue(GeofenceErrorMessages.isRetryable(GeofenceStatusCodes.GEOFENCE_NOT_AVAILABLE));
+        assertTrue(GeofenceErrorMessages.isRetryable(CommonStatusCodes.TIMEOUT));
+        assertTrue(GeofenceErrorMessages.isRetryable(CommonStatusCodes.NETWORK_ERROR));
+        assertTrue(GeofenceErrorMessages.isRetryable(CommonStatusCodes.INTERNAL_ERROR));
+    }
+
+    @Test
+    public void limitsAndCallerErrorsAreFatal() {
+        assertFalse(GeofenceErrorMessages.isRetryable(
+                GeofenceStatusCodes.GEOFENCE_TOO_MANY_GEOFENCES));
+        assertFalse(GeofenceErrorMessages.isRetryable(
+                GeofenceStatusCodes.GEOFENCE_TOO_MANY_PENDING_INTENTS));
+        assertFalse(GeofenceErrorMessages.isRetryable(CommonStatusCodes.DEVELOPER_ERROR));
+        assertFalse(GeofenceErrorMessages.isRetryable(CommonStatusCodes.API_NOT_CONNECTED));
+        assertFalse(GeofenceErrorMessages.isRetryable(CommonStatusCodes.ERROR));
+        assertFalse(GeofenceErrorMessages.isRetryable(CommonStatusCodes.CANCELED));
+    }
+
+    @Test
+    public void unknownCodesAreFatal() {
+        assertFalse(GeofenceErrorMessages.isRetryable(-1));
+        assertFalse(GeofenceErrorMessages.isRetryable(99999));
+    }
+}
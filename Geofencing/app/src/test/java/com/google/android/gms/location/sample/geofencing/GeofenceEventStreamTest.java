@@ -0,0 +1,143 @@
+/**
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.location.sample.geofencing;
+
+import com.google.android.gms.location.Geofence;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class GeofenceEventStreamTest {
+
+    private final GeofenceEventStream mStream = new GeofenceEventStream();
+    private final CountDownLatch mRelease = new CountDownLatch(1);
+    private final AtomicInteger mDelivered = new AtomicInteger();
+
+    private final GeofenceEventStream.Subscriber mSlowSubscriber =
+            new GeofenceEventStream.Subscriber() {
+                @Override
+                public void onEvent(GeofenceEventStream.TransitionEvent event) {
+                    try {
+                        mRelease.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    mDelivered.incrementAndGet();
+                }
+            };
+
+    @After
+    public void release() {
+        mRelease.countDown();
+    }
+
+    @Test
+    public void publishCompletesOnlyOnceAwaitedSubscriberHasDelivered()
+            throws InterruptedException {
+        mStream.subscribe("awaited", GeofenceEventStream.ALL, 4, GeofenceEventStream.BLOCK, true,
+                mSlowSubscriber);
+        CountDownLatch done = new CountDownLatch(1);
+
+        mStream.publish(event("fence"), countDown(done));
+        assertFalse(done.await(200, TimeUnit.MILLISECONDS));
+
+        mRelease.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(1, mDelivered.get());
+    }
+
+    @Test
+    public void publishDoesNotWaitForOtherSubscribers() throws InterruptedException {
+        mStream.subscribe("not awaited", GeofenceEventStream.ALL, 4, GeofenceEventStream.BLOCK,
+                mSlowSubscriber);
+        mStream.subscribe("awaited, other fences", GeofenceEventStream.forFences("other"), 4,
+                GeofenceEventStream.BLOCK, true, mSlowSubscriber);
+        CountDownLatch done = new CountDownLatch(1);
+
+        mStream.publish(event("fence"), countDown(done));
+        assertEquals(0, done.getCount());
+    }
+
+    @Test
+    public void droppedAndDiscardedEventsComplete() throws InterruptedException {
+        GeofenceEventStream.Subscription subscription = mStream.subscribe("awaited",
+                GeofenceEventStream.ALL, 1, GeofenceEventStream.DROP_OLDEST, true,
+                mSlowSubscriber);
+        CountDownLatch done = new CountDownLatch(4);
+        for (int i = 0; i < 4; i++) {
+            mStream.publish(event("fence-" + i), countDown(done));
+        }
+        // One is being delivered, one is queued and two were dropped.
+        assertTrue(done.getCount() <= 2);
+
+        mStream.unsubscribe(subscription);
+        mRelease.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void fullBlockingSubscriptionDropsAfterMaxBlockTime() throws InterruptedException {
+        GeofenceEventStream stream = new GeofenceEventStream(200);
+        GeofenceEventStream.Subscription blocking = stream.subscribe("blocking",
+                GeofenceEventStream.ALL, 1, GeofenceEventStream.BLOCK, true, mSlowSubscriber);
+        final CountDownLatch later = new CountDownLatch(3);
+        stream.subscribe("later", GeofenceEventStream.ALL, 4, GeofenceEventStream.DROP_NEWEST,
+                new GeofenceEventStream.Subscriber() {
+                    @Override
+                    public void onEvent(GeofenceEventStream.TransitionEvent event) {
+                        later.countDown();
+                    }
+                });
+        CountDownLatch done = new CountDownLatch(3);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 3; i++) {
+            stream.publish(event("fence-" + i), countDown(done));
+        }
+        // One is being delivered, one is queued and the third gave up waiting for room.
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        assertEquals(1, blocking.getDroppedCount());
+        assertEquals(2, done.getCount());
+        assertTrue(later.await(5, TimeUnit.SECONDS));
+
+        mRelease.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(2, mDelivered.get());
+    }
+
+    private static GeofenceEventStream.TransitionEvent event(String requestId) {
+        return new GeofenceEventStream.TransitionEvent(requestId,
+                Geofence.GEOFENCE_TRANSITION_ENTER, 0, false, 0, 0, 0);
+    }
+
+    private static Runnable countDown(final CountDownLatch latch) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        };
+    }
+}
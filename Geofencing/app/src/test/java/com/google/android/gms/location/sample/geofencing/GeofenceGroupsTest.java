@@ -0,0 +1,187 @@
+/**
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.android.gms.location.sample.geofencing;
+
+import android.os.Handler;
+
+import com.google.android.gms.common.api.CommonStatusCodes;
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.common.api.Status;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks which GeofencingApi calls the group lifecycle leaves pending. The scheduler never
+ * starts a call, so every submitted call stays pending until it is superseded or cancelled.
+ */
+public class GeofenceGroupsTest {
+
+    private static final String GROUP = "shop";
+    private static final String LIFECYCLE_KEY = "group:" + GROUP;
+
+    private File mFile;
+    private GeofenceRetryScheduler mScheduler;
+    private GeofenceGroups mGroups;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("fence_groups", ".bin");
+        assertTrue(mFile.delete());
+        mScheduler = new GeofenceRetryScheduler(new Handler(), 0, 1, 1, 1, new Random(0));
+        mGroups = new GeofenceGroups(null, mFile, mScheduler);
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void swapAddsTheGroupAndPrunesDroppedFences() {
+        mGroups.swap(null, GROUP, fences("a", "b"), null);
+        assertTrue(mScheduler.isPending(LIFECYCLE_KEY));
+
+        mGroups.swap(null, GROUP, fences("a"), null);
+        assertTrue(mScheduler.isPending(LIFECYCLE_KEY));
+        assertTrue(mScheduler.isPending(pruneKey("b")));
+        assertEquals(1, mGroups.getFences(GROUP).size());
+    }
+
+    @Test
+    public void addingAFenceBackCancelsItsPendingPrune() {
+        mGroups.swap(null, GROUP, fences("a", "b"), null);
+        mGroups.swap(null, GROUP, fences("a"), null);
+        mGroups.swap(null, GROUP, fences("a", "b"), null);
+
+        assertFalse(mScheduler.isPending(pruneKey("b")));
+        assertTrue(mScheduler.isPending(LIFECYCLE_KEY));
+    }
+
+    @Test
+    public void aPartlyCancelledPruneStillRemovesTheOtherFences() {
+        mGroups.swap(null, GROUP, fences("a", "b", "c"), null);
+        mGroups.swap(null, GROUP, fences("a"), null);
+        assertTrue(mScheduler.isPending(pruneKey("b", "c")));
+
+        mGroups.swap(null, GROUP, fences("a", "b"), null);
+        assertFalse(mScheduler.isPending(pruneKey("b", "c")));
+        assertTrue(mScheduler.isPending(pruneKey("c")));
+    }
+
+    @Test
+    public void pauseSupersedesAPendingAdd() {
+        RecordingCallback add = new RecordingCallback();
+        mGroups.swap(null, GROUP, fences("a"), add);
+        mGroups.pause(null, GROUP, null);
+
+        assertEquals(Arrays.asList(CommonStatusCodes.CANCELED), add.mCodes);
+        assertTrue(mGroups.isPaused(GROUP));
+        assertTrue(mScheduler.isPending(LIFECYCLE_KEY));
+    }
+
+    @Test
+    public void aPausedGroupStaysPausedButDropsRemovedFences() {
+        mGroups.swap(null, GROUP, fences("a"), null);
+        RecordingCallback pause = new RecordingCallback();
+        mGroups.pause(null, GROUP, pause);
+
+        mGroups.swap(null, GROUP, fences("b"), null);
+        assertTrue(pause.mCodes.isEmpty());
+        assertEquals("b", mGroups.getFences(GROUP).getId(0));
+        // Resuming supersedes the pause, so "a" must go by id.
+        assertTrue(mScheduler.isPending(pruneKey("a")));
+
+        RecordingCallback resume = new RecordingCallback();
+        mGroups.resume(null, GROUP, resume);
+        assertEquals(Arrays.asList(CommonStatusCodes.CANCELED), pause.mCodes);
+        assertFalse(mGroups.isPaused(GROUP));
+        assertTrue(mScheduler.isPending(LIFECYCLE_KEY));
+    }
+
+    @Test
+    public void resumingAGroupThatIsNotPausedDoesNothing() {
+        RecordingCallback add = new RecordingCallback();
+        mGroups.swap(null, GROUP, fences("a"), add);
+        mGroups.resume(null, GROUP, null);
+
+        assertTrue(add.mCodes.isEmpty());
+    }
+
+    @Test
+    public void removeForgetsTheGroupAndAlwaysUnregisters() {
+        mGroups.swap(null, GROUP, fences("a"), null);
+        mGroups.remove(null, GROUP, null);
+        assertNull(mGroups.getFences(GROUP));
+        assertTrue(mScheduler.isPending(LIFECYCLE_KEY));
+
+        // Registrations left behind by an earlier process are cleared too.
+        mGroups.remove(null, "unknown", null);
+        assertTrue(mScheduler.isPending("group:unknown"));
+    }
+
+    @Test
+    public void groupsSurviveARestart() {
+        mGroups.swap(null, GROUP, fences("a", "b"), null);
+        mGroups.pause(null, GROUP, null);
+
+        GeofenceGroups restarted = new GeofenceGroups(null, mFile, mScheduler);
+        assertEquals(2, restarted.getFences(GROUP).size());
+        assertTrue(restarted.isPaused(GROUP));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void idsMustBeUniqueAcrossGroups() {
+        mGroups.swap(null, GROUP, fences("a"), null);
+        mGroups.swap(null, "other", fences("a"), null);
+    }
+
+    private static FenceCatalog fences(String... ids) {
+        FenceCatalog.Builder builder = new FenceCatalog.Builder();
+        for (int i = 0; i < ids.length; i++) {
+            builder.add(ids[i], 10 + i * 0.01, 10, 100);
+        }
+        return builder.build();
+    }
+
+    private static String pruneKey(String... ids) {
+        return GeofenceRetryScheduler.key("group-prune:" + GROUP, Arrays.asList(ids));
+    }
+
+    private static final class RecordingCallback implements ResultCallback<Status> {
+        final List<Integer> mCodes = new ArrayList<Integer>();
+
+        @Override
+        public void onResult(Status status) {
+            mCodes.add(status.getStatusCode());
+        }
+    }
+}
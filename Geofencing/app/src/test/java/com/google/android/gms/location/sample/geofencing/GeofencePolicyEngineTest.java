@@ -0,0 +1,120 @@
+/**
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.android.gms.location.sample.geofencing;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class GeofencePolicyEngineTest {
+
+    private static final float RADIUS = 100;
+
+    private static final GeofencePolicyEngine.Bucket[] BUCKETS = {
+            new GeofencePolicyEngine.Bucket(1000, 5000, 0),
+            new GeofencePolicyEngine.Bucket(5000, 60000, 0),
+            new GeofencePolicyEngine.Bucket(Float.MAX_VALUE, 900000, 0),
+    };
+
+    private final GeofencePolicyEngine mEngine = new GeofencePolicyEngine(
+            new FenceCatalog.Builder()
+                    .add("origin", 0, 0, RADIUS)
+                    .add("north", 1, 0, RADIUS)
+                    .build(),
+            BUCKETS);
+
+    @Test
+    public void fencesStartInTheNearestBucket() {
+        assertEquals(0, mEngine.getBucket(0));
+        assertEquals(0, mEngine.getBucket(1));
+    }
+
+    @Test
+    public void reportsOnlyFencesWhoseBucketChanged() {
+        // "north" is about 111 km away, "origin" right here.
+        assertArrayEquals(new int[] {1}, mEngine.update(0, 0));
+        assertEquals(0, mEngine.getBucket(0));
+        assertEquals(2, mEngine.getBucket(1));
+
+        assertArrayEquals(new int[0], mEngine.update(0, 0));
+    }
+
+    @Test
+    public void bucketFollowsTheDistanceToTheEdge() {
+        mEngine.update(latitudeAtEdgeDistance(3000), 0);
+        assertEquals(1, mEngine.getBucket(0));
+
+        mEngine.update(latitudeAtEdgeDistance(30000), 0);
+        assertEquals(2, mEngine.getBucket(0));
+
+        mEngine.update(latitudeAtEdgeDistance(500), 0);
+        assertEquals(0, mEngine.getBucket(0));
+    }
+
+    @Test
+    public void insideTheFenceCountsAsDistanceZero() {
+        mEngine.update(latitudeAtEdgeDistance(3000), 0);
+        mEngine.update(0, 0);
+        assertEquals(0, mEngine.getBucket(0));
+    }
+
+    @Test
+    public void movingAwayMustClearTheBoundaryByTheMargin() {
+        // The margin is 10%, so the 1000 m boundary is only left past 1100 m.
+        assertArrayEquals(new int[0], onlyOrigin(mEngine.update(latitudeAtEdgeDistance(1050), 0)));
+        assertEquals(0, mEngine.getBucket(0));
+
+        assertArrayEquals(new int[] {0},
+                onlyOrigin(mEngine.update(latitudeAtEdgeDistance(1150), 0)));
+        assertEquals(1, mEngine.getBucket(0));
+    }
+
+    @Test
+    public void movingCloserMustClearTheBoundaryByTheMargin() {
+        mEngine.update(latitudeAtEdgeDistance(3000), 0);
+        assertEquals(1, mEngine.getBucket(0));
+
+        // Back in bucket 0 only below 900 m.
+        mEngine.update(latitudeAtEdgeDistance(950), 0);
+        assertEquals(1, mEngine.getBucket(0));
+
+        mEngine.update(latitudeAtEdgeDistance(850), 0);
+        assertEquals(0, mEngine.getBucket(0));
+    }
+
+    /**
+     * Returns the latitude, due north of "origin", whose distance to its edge is
+     * {@code meters}.
+     */
+    private static double latitudeAtEdgeDistance(double meters) {
+        return Math.toDegrees((meters + RADIUS) / GeoMath.EARTH_RADIUS_IN_METERS);
+    }
+
+    /**
+     * Drops "north" from a list of changed fences.
+     */
+    private static int[] onlyOrigin(int[] changed) {
+        for (int fence : changed) {
+            if (fence == 0) {
+                return new int[] {0};
+            }
+        }
+        return new int[0];
+    }
+}
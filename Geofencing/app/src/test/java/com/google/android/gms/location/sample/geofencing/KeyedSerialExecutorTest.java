@@ -0,0 +1,97 @@
+/**
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.android.gms.location.sample.geofencing;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class KeyedSerialExecutorTest {
+
+    @Test
+    public void tasksWithTheSameKeyRunInSubmissionOrder() throws InterruptedException {
+        int keys = 20;
+        int tasksPerKey = 200;
+        KeyedSerialExecutor executor = new KeyedSerialExecutor("test", 4, 8, keys * tasksPerKey);
+        final List<List<Integer>> runs = new ArrayList<List<Integer>>();
+        for (int k = 0; k < keys; k++) {
+            runs.add(new ArrayList<Integer>());
+        }
+        final CountDownLatch done = new CountDownLatch(keys * tasksPerKey);
+        for (int i = 0; i < tasksPerKey; i++) {
+            for (int k = 0; k < keys; k++) {
+                final List<Integer> run = runs.get(k);
+                final int sequence = i;
+                assertTrue(executor.execute("fence-" + k, new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (run) {
+                            run.add(sequence);
+                        }
+                        done.countDown();
+                    }
+                }));
+            }
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        executor.shutdown();
+
+        for (List<Integer> run : runs) {
+            synchronized (run) {
+                assertEquals(tasksPerKey, run.size());
+                for (int i = 0; i < tasksPerKey; i++) {
+                    assertEquals(i, (int) run.get(i));
+                }
+            }
+        }
+        assertEquals(keys * tasksPerKey, executor.getSubmittedCount());
+    }
+
+    @Test
+    public void rejectsTasksBeyondCapacity() throws InterruptedException {
+        KeyedSerialExecutor executor = new KeyedSerialExecutor("test", 1, 2, 2);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(2);
+        Runnable blocked = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                finished.countDown();
+            }
+        };
+        assertTrue(executor.execute("a", blocked));
+        assertTrue(executor.execute("a", blocked));
+        assertFalse(executor.execute("b", blocked));
+        assertEquals(1, executor.getRejectedCount());
+
+        release.countDown();
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        executor.shutdown();
+    }
+}
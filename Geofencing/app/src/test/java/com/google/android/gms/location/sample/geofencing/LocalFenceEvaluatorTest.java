@@ -0,0 +1,185 @@
+/**
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.android.gms.location.sample.geofencing;
+
+import com.google.android.gms.location.Geofence;
+
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LocalFenceEvaluatorTest {
+
+    private static final long LOITERING_DELAY = 60000;
+
+    /**
+     * Two fences 100 m in radius, about 150 m apart along the equator.
+     */
+    private static final FenceCatalog CATALOG = new FenceCatalog.Builder()
+            .add("west", 0, 0, 100)
+            .add("east", 0, 0.00135, 100)
+            .build();
+
+    /**
+     * Starts outside both fences, walks into the west one, stays there past the loitering
+     * delay, crosses into the overlap-free east one and leaves it.
+     */
+    private static final String TRACE = "# time,latitude,longitude,accuracy\n"
+            + "0,0.01,0,5\n"
+            + "10000,0,0,5\n"
+            + "\n"
+            + "40000,0.0001,0,5\n"
+            + "75000,0,0.0001,5\n"
+            + "80000,0,0.00135,5\n"
+            + "90000,0.01,0.00135,5\n";
+
+    @Test
+    public void reportsEnterDwellAndExit() {
+        List<String> transitions = replay(new LocalFenceEvaluator(CATALOG, LOITERING_DELAY), 1);
+
+        assertEquals(6, transitions.size());
+        assertEquals("west ENTER 10000", transitions.get(0));
+        assertEquals("west DWELL 75000", transitions.get(1));
+        assertEquals("west EXIT 80000", transitions.get(2));
+        assertEquals("east ENTER 80000", transitions.get(3));
+        assertEquals("east EXIT 90000", transitions.get(4));
+        assertEquals("end", transitions.get(5));
+    }
+
+    @Test
+    public void batchingDoesNotChangeTransitions() {
+        List<String> single = replay(new LocalFenceEvaluator(CATALOG, LOITERING_DELAY), 1);
+        assertEquals(single, replay(new LocalFenceEvaluator(CATALOG, LOITERING_DELAY), 4));
+        assertEquals(single, replay(new LocalFenceEvaluator(CATALOG, LOITERING_DELAY), 100));
+    }
+
+    @Test
+    public void tileCacheDoesNotChangeTransitions() {
+        TileCandidateCache cache = new TileCandidateCache(7, 1024);
+        assertEquals(replay(new LocalFenceEvaluator(CATALOG, LOITERING_DELAY), 1),
+                replay(new LocalFenceEvaluator(CATALOG, LOITERING_DELAY, cache), 1));
+        assertTrue(cache.getMissCount() > 0);
+    }
+
+    @Test
+    public void tileCacheFindsFencesAtTheirEdge() {
+        // 111 195 m per degree of latitude; the old 111 320 left this edge out of the box.
+        FenceCatalog catalog = new FenceCatalog.Builder().add("big", 0, 0, 100000).build();
+        double edge = Math.toDegrees(99999.0 / GeoMath.EARTH_RADIUS_IN_METERS);
+        assertTrue(catalog.contains(0, edge, 0));
+
+        int[] candidates = new TileCandidateCache(7, 1 << 20).getCandidates(catalog, edge, 0);
+        assertEquals(1, candidates.length);
+    }
+
+    @Test
+    public void tileCacheFindsFencesAcrossTheAntimeridian() {
+        FenceCatalog catalog = new FenceCatalog.Builder().add("dateline", -16.5, 179.999, 1000)
+                .build();
+        TileCandidateCache cache = new TileCandidateCache(6, 1 << 20);
+        assertTrue(catalog.contains(0, -16.5, -179.995));
+
+        assertEquals(1, cache.getCandidates(catalog, -16.5, -179.995).length);
+        assertEquals(1, cache.getCandidates(catalog, -16.5, 180.005).length);
+        assertEquals(0, cache.getCandidates(catalog, -16.5, -179.9).length);
+    }
+
+    @Test
+    public void noDwellWithoutLoiteringDelay() {
+        for (String transition : replay(new LocalFenceEvaluator(CATALOG), 1)) {
+            assertFalse(transition, transition.contains("DWELL"));
+        }
+    }
+
+    @Test
+    public void exitReportsOnlyFencesTheDeviceIsIn() {
+        LocalFenceEvaluator evaluator = new LocalFenceEvaluator(CATALOG);
+        Recorder recorder = new Recorder(CATALOG);
+        LocationBatch batch = new LocationBatch(1);
+        batch.add(0, 0, 5, 1000);
+        evaluator.evaluate(batch, recorder);
+        assertTrue(evaluator.isInside(0));
+
+        evaluator.exit(0, 2000, 0, 0, recorder);
+        evaluator.exit(1, 2000, 0, 0, recorder);
+
+        assertFalse(evaluator.isInside(0));
+        assertEquals(2, recorder.mTransitions.size());
+        assertEquals("west EXIT 2000", recorder.mTransitions.get(1));
+    }
+
+    @Test
+    public void restoredStateContinuesWhereItWasSaved() {
+        LocalFenceEvaluator saved = new LocalFenceEvaluator(CATALOG, LOITERING_DELAY);
+        Recorder recorder = new Recorder(CATALOG);
+        LocationBatch batch = new LocationBatch(1);
+        batch.add(0, 0, 5, 10000);
+        saved.evaluate(batch, recorder);
+
+        LocalFenceEvaluator restored = new LocalFenceEvaluator(CATALOG, LOITERING_DELAY);
+        for (int fence : saved.getInsideFences()) {
+            restored.restoreInside(fence, saved.getEnteredAt(fence), saved.hasDwelled(fence));
+        }
+        recorder.mTransitions.clear();
+        batch.clear();
+        batch.add(0.0001, 0, 5, 75000);
+        batch.add(0.01, 0, 5, 80000);
+        restored.evaluate(batch, recorder);
+
+        assertEquals(2, recorder.mTransitions.size());
+        assertEquals("west DWELL 75000", recorder.mTransitions.get(0));
+        assertEquals("west EXIT 80000", recorder.mTransitions.get(1));
+    }
+
+    private static List<String> replay(LocalFenceEvaluator evaluator, int batchSize) {
+        final Recorder recorder = new Recorder(CATALOG);
+        final LocalFenceEvaluator target = evaluator;
+        new ReplayLocationSource(new StringReader(TRACE), batchSize).start(
+                new LocationSource.Listener() {
+                    @Override
+                    public void onLocationBatch(LocationBatch batch) {
+                        target.evaluate(batch, recorder);
+                    }
+                });
+        recorder.mTransitions.add("end");
+        return recorder.mTransitions;
+    }
+
+    private static final class Recorder implements LocalFenceEvaluator.TransitionListener {
+        final FenceCatalog mCatalog;
+        final List<String> mTransitions = new ArrayList<String>();
+
+        Recorder(FenceCatalog catalog) {
+            mCatalog = catalog;
+        }
+
+        @Override
+        public void onTransition(int fenceIndex, int transition, long time, double latitude,
+                double longitude) {
+            String name = transition == Geofence.GEOFENCE_TRANSITION_ENTER ? "ENTER"
+                    : transition == Geofence.GEOFENCE_TRANSITION_EXIT ? "EXIT" : "DWELL";
+            mTransitions.add(mCatalog.getId(fenceIndex) + " " + name + " " + time);
+        }
+    }
+}
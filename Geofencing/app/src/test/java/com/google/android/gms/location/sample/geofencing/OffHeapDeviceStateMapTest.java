@@ -0,0 +1,220 @@
+/**
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.location.sample.geofencing;
+
+import com.google.android.gms.location.Geofence;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class OffHeapDeviceStateMapTest {
+
+    private static final int ENTER = Geofence.GEOFENCE_TRANSITION_ENTER;
+    private static final int EXIT = Geofence.GEOFENCE_TRANSITION_EXIT;
+    private static final int DWELL = Geofence.GEOFENCE_TRANSITION_DWELL;
+
+    /**
+     * Records transitions as "fence:transition".
+     */
+    private static final class Recorder implements OffHeapDeviceStateMap.TransitionListener {
+        final List<String> mEvents = new ArrayList<String>();
+
+        @Override
+        public void onTransition(long deviceId, int fence, int transition, int timeSeconds) {
+            mEvents.add(fence + ":" + transition);
+        }
+    }
+
+    @Test
+    public void picksBitsetModeUpTo64Fences() {
+        assertEquals(OffHeapDeviceStateMap.MODE_BITSET,
+                new OffHeapDeviceStateMap(16, 64, 4).getMode());
+        assertEquals(OffHeapDeviceStateMap.MODE_SORTED,
+                new OffHeapDeviceStateMap(16, 65, 4).getMode());
+    }
+
+    @Test
+    public void bothModesTrackEnterAndExit() {
+        assertTracksEnterAndExit(new OffHeapDeviceStateMap(16, 64, 4));
+        assertTracksEnterAndExit(new OffHeapDeviceStateMap(16, 200, 4));
+    }
+
+    private static void assertTracksEnterAndExit(OffHeapDeviceStateMap map) {
+        Recorder recorder = new Recorder();
+        assertEquals(2, map.update(7, new int[] {1, 40}, 2, 100, 1000, recorder));
+        assertEquals(Arrays.asList("1:" + ENTER, "40:" + ENTER), recorder.mEvents);
+
+        recorder.mEvents.clear();
+        assertEquals(2, map.update(7, new int[] {40, 63}, 2, 110, 1000, recorder));
+        assertEquals(Arrays.asList("1:" + EXIT, "63:" + ENTER), recorder.mEvents);
+
+        int[] out = new int[8];
+        assertEquals(2, map.getMemberships(7, out));
+        assertEquals(40, out[0]);
+        assertEquals(63, out[1]);
+        assertTrue(map.isInside(7, 63));
+        assertFalse(map.isInside(7, 1));
+        assertEquals(110, map.getLastSeen(7));
+        assertEquals(-1, map.getLastSeen(8));
+        assertEquals(0, map.getMemberships(8, out));
+        assertEquals(0, map.getOverflowCount());
+    }
+
+    @Test
+    public void countsEntersBeyondMaxMembershipsAsOverflow() {
+        OffHeapDeviceStateMap map = new OffHeapDeviceStateMap(16, 100, 2);
+        Recorder recorder = new Recorder();
+        assertEquals(2, map.update(7, new int[] {1, 2, 3}, 3, 0, 1000, recorder));
+        assertEquals(Arrays.asList("1:" + ENTER, "2:" + ENTER), recorder.mEvents);
+        assertEquals(1, map.getOverflowCount());
+
+        // Fences the device stays inside keep their place; the freed room goes to an entered one.
+        recorder.mEvents.clear();
+        map.update(7, new int[] {2, 3, 4}, 3, 10, 1000, recorder);
+        assertEquals(Arrays.asList("1:" + EXIT, "3:" + ENTER), recorder.mEvents);
+        assertEquals(2, map.getOverflowCount());
+
+        int[] out = new int[4];
+        assertEquals(2, map.getMemberships(7, out));
+        assertEquals(2, out[0]);
+        assertEquals(3, out[1]);
+    }
+
+    @Test
+    public void reportsDwellExactlyOnce() {
+        assertDwellsOnce(new OffHeapDeviceStateMap(16, 64, 4));
+        assertDwellsOnce(new OffHeapDeviceStateMap(16, 200, 4));
+    }
+
+    private static void assertDwellsOnce(OffHeapDeviceStateMap map) {
+        Recorder recorder = new Recorder();
+        int[] inside = {5};
+        map.update(7, inside, 1, 0, 60, recorder);
+        map.update(7, inside, 1, 30, 60, recorder);
+        map.update(7, inside, 1, 60, 60, recorder);
+        map.update(7, inside, 1, 90, 60, recorder);
+        map.update(7, inside, 1, 500, 60, recorder);
+        assertEquals(Arrays.asList("5:" + ENTER, "5:" + DWELL), recorder.mEvents);
+
+        // Leaving and entering again restarts the dwell time.
+        recorder.mEvents.clear();
+        map.update(7, new int[0], 0, 510, 60, recorder);
+        map.update(7, inside, 1, 520, 60, recorder);
+        map.update(7, inside, 1, 570, 60, recorder);
+        map.update(7, inside, 1, 580, 60, recorder);
+        assertEquals(Arrays.asList("5:" + EXIT, "5:" + ENTER, "5:" + DWELL), recorder.mEvents);
+    }
+
+    @Test
+    public void rejectsNewDevicesOnceFull() {
+        OffHeapDeviceStateMap map = new OffHeapDeviceStateMap(2, 100, 4);
+        map.update(1, new int[] {1}, 1, 0, 60, null);
+        map.update(2, new int[] {1}, 1, 0, 60, null);
+        try {
+            map.update(3, new int[] {1}, 1, 0, 60, null);
+            fail("Expected the map to be full");
+        } catch (IllegalStateException expected) {
+            assertTrue(expected.getMessage().startsWith("Map is full"));
+        }
+        assertEquals(2, map.size());
+        assertEquals(-1, map.getLastSeen(3));
+
+        // Devices already in the map can still be updated.
+        assertEquals(1, map.update(1, new int[] {1, 2}, 2, 10, 60, null));
+    }
+
+    @Test
+    public void rejectsReservedDeviceIdAndUnknownFences() {
+        OffHeapDeviceStateMap map = new OffHeapDeviceStateMap(2, 100, 4);
+        try {
+            map.update(0, new int[] {1}, 1, 0, 60, null);
+            fail("Expected device id 0 to be rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            map.update(1, new int[] {100}, 1, 0, 60, null);
+            fail("Expected fence 100 to be rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void readersNeverSeeATornRecord() throws InterruptedException {
+        assertReadsAreConsistent(new OffHeapDeviceStateMap(4, 64, 8));
+        assertReadsAreConsistent(new OffHeapDeviceStateMap(4, 200, 8));
+    }
+
+    /**
+     * One writer flips a device between two disjoint membership sets while readers check that
+     * every read returns one set whole, never a mix of both.
+     */
+    private static void assertReadsAreConsistent(final OffHeapDeviceStateMap map)
+            throws InterruptedException {
+        final int[] even = {0, 2, 4, 6, 8, 10, 12, 14};
+        final int[] odd = {1, 3, 5, 7, 9, 11, 13, 15};
+        map.update(7, even, even.length, 0, Integer.MAX_VALUE, null);
+
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 1; i <= 200000 && failure.get() == null; i++) {
+                    int[] inside = (i & 1) == 0 ? even : odd;
+                    map.update(7, inside, inside.length, i, Integer.MAX_VALUE, null);
+                }
+                done.set(true);
+            }
+        });
+        Thread[] readers = new Thread[3];
+        for (int r = 0; r < readers.length; r++) {
+            readers[r] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    int[] out = new int[8];
+                    while (!done.get() && failure.get() == null) {
+                        int count = map.getMemberships(7, out);
+                        if (count != 8 || !(Arrays.equals(out, even) || Arrays.equals(out, odd))) {
+                            failure.compareAndSet(null, "Torn read: " + count + " fences "
+                                    + Arrays.toString(out));
+                        }
+                    }
+                }
+            });
+        }
+        for (Thread reader : readers) {
+            reader.start();
+        }
+        writer.start();
+        writer.join();
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertNull(failure.get());
+    }
+}
@@ -0,0 +1,89 @@
+/**
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.android.gms.location.sample.geofencing;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TransitionBatchTest {
+
+    @Test
+    public void encodesEveryFieldOfEveryRecord() {
+        TransitionBatch batch = new TransitionBatch(42);
+        assertTrue(batch.isEmpty());
+        // More records than the initial capacity, so the buffer grows.
+        for (int i = 0; i < 10; i++) {
+            batch.add(i * 1000, 1 << (i % 3), 1400000000000L + i, 37.4 + i * 1e-3,
+                    -122.1 - i * 1e-3, i * 1.5f);
+        }
+        batch.add(7, 2, 0, Double.NaN, Double.NaN, 0);
+
+        TransitionBatch decoded = TransitionBatch.fromByteArray(batch.toByteArray());
+
+        assertEquals(42, decoded.getCatalogVersion());
+        assertEquals(11, decoded.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i * 1000, decoded.getFenceIndex(i));
+            assertEquals(1 << (i % 3), decoded.getTransition(i));
+            assertEquals(1400000000000L + i, decoded.getTime(i));
+            assertEquals(37.4 + i * 1e-3, decoded.getLatitude(i), 0);
+            assertEquals(-122.1 - i * 1e-3, decoded.getLongitude(i), 0);
+            assertEquals(i * 1.5f, decoded.getAccuracy(i), 0);
+        }
+        assertTrue(Double.isNaN(decoded.getLatitude(10)));
+        assertTrue(Double.isNaN(decoded.getLongitude(10)));
+    }
+
+    @Test
+    public void toByteArrayIsTrimmedToTheRecords() {
+        byte[] empty = new TransitionBatch(1).toByteArray();
+        byte[] one = new TransitionBatch(1).add(0, 1, 0, 0, 0, 0).toByteArray();
+        assertEquals(0, TransitionBatch.fromByteArray(empty).size());
+        assertEquals(33, one.length - empty.length);
+    }
+
+    @Test
+    public void rejectsPayloadsThatAreNotBatches() {
+        byte[] payload = new TransitionBatch(1).add(0, 1, 0, 0, 0, 0).toByteArray();
+        assertRejected(null);
+        assertRejected(new byte[4]);
+        assertRejected(Arrays.copyOf(payload, payload.length - 1));
+        byte[] corrupt = payload.clone();
+        corrupt[0] ^= 1;
+        assertRejected(corrupt);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void rejectsIndicesPastTheEnd() {
+        new TransitionBatch(1).add(0, 1, 0, 0, 0, 0).getTime(1);
+    }
+
+    private static void assertRejected(byte[] payload) {
+        try {
+            TransitionBatch.fromByteArray(payload);
+            fail("Accepted " + Arrays.toString(payload));
+        } catch (IllegalArgumentException expected) {
+            // Expected.
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.location.sample.geofencing;
+
+import com.google.android.gms.location.Geofence;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TransitionFilterTest {
+
+    private static final int ENTER = Geofence.GEOFENCE_TRANSITION_ENTER;
+    private static final int EXIT = Geofence.GEOFENCE_TRANSITION_EXIT;
+    private static final long HOLD = 60000;
+    private static final float RADIUS = 100;
+
+    private final TransitionFilter mFilter = new TransitionFilter(0.1f, HOLD);
+
+    @Test
+    public void exitWithinHoldTimeIsDeferredNotLost() {
+        assertEquals(TransitionFilter.ACCEPT, check(ENTER, 0, 0));
+        assertEquals(TransitionFilter.DEFER, check(EXIT, 40000, 200));
+        assertEquals(100000, mFilter.getNextDueTime());
+
+        assertTrue(mFilter.pollDue(99999).isEmpty());
+        List<TransitionFilter.Deferred> due = mFilter.pollDue(100000);
+        assertEquals(1, due.size());
+        assertEquals(EXIT, due.get(0).transition);
+        assertEquals(40000, due.get(0).time);
+        assertEquals(Long.MAX_VALUE, mFilter.getNextDueTime());
+
+        // Two hours later the device comes back; that is not a repeat.
+        assertEquals(TransitionFilter.ACCEPT, check(ENTER, 7200000, 0));
+    }
+
+    @Test
+    public void reversedDeferredTransitionIsSuppressed() {
+        assertEquals(TransitionFilter.ACCEPT, check(ENTER, 0, 0));
+        assertEquals(TransitionFilter.DEFER, check(EXIT, 40000, 200));
+        assertEquals(TransitionFilter.SUPPRESS, check(ENTER, 50000, 0));
+
+        assertTrue(mFilter.pollDue(Long.MAX_VALUE).isEmpty());
+        assertEquals(TransitionFilter.SUPPRESS, check(ENTER, 200000, 0));
+    }
+
+    @Test
+    public void edgeEnterIsAcceptedWhenAFixConfirmsIt() {
+        assertEquals(TransitionFilter.DEFER, check(ENTER, 0, 95));
+        assertNull(mFilter.recheck("fence", 10000, 97, RADIUS, 5));
+
+        TransitionFilter.Deferred accepted = mFilter.recheck("fence", 20000, 40, RADIUS, 5);
+        assertEquals(ENTER, accepted.transition);
+        assertEquals(0, accepted.time);
+        assertEquals(TransitionFilter.SUPPRESS, check(ENTER, 30000, 0));
+    }
+
+    @Test
+    public void edgeEnterIsCancelledWhenAFixContradictsIt() {
+        assertEquals(TransitionFilter.DEFER, check(ENTER, 0, 95));
+        assertNull(mFilter.recheck("fence", 10000, 150, RADIUS, 5));
+
+        assertTrue(mFilter.getDeferredFences().isEmpty());
+        assertTrue(mFilter.pollDue(Long.MAX_VALUE).isEmpty());
+    }
+
+    @Test
+    public void unconfirmedEdgeEnterIsAcceptedAfterHoldTime() {
+        assertEquals(TransitionFilter.DEFER, check(ENTER, 0, 95));
+        assertEquals(1, mFilter.pollDue(HOLD).size());
+        assertEquals(TransitionFilter.SUPPRESS, check(ENTER, HOLD + 1, 0));
+    }
+
+    @Test
+    public void deferredTransitionsSurviveARestart() {
+        assertEquals(TransitionFilter.ACCEPT, check(ENTER, 0, 0));
+        assertEquals(TransitionFilter.DEFER, check(EXIT, 40000, 200));
+        List<TransitionFilter.Deferred> saved = mFilter.getDeferred();
+        assertEquals(1, saved.size());
+
+        TransitionFilter restarted = new TransitionFilter(0.1f, HOLD);
+        for (TransitionFilter.Deferred deferred : saved) {
+            restarted.restoreDeferred(deferred.requestId, deferred.transition, deferred.time);
+        }
+        assertEquals(100000, restarted.getNextDueTime());
+        List<TransitionFilter.Deferred> due = restarted.pollDue(100000);
+        assertEquals(1, due.size());
+        assertEquals("fence", due.get(0).requestId);
+        assertEquals(EXIT, due.get(0).transition);
+        assertEquals(40000, due.get(0).time);
+    }
+
+    @Test
+    public void restoreLeavesFencesWithStateAlone() {
+        assertEquals(TransitionFilter.ACCEPT, check(ENTER, 0, 0));
+        mFilter.restoreDeferred("fence", EXIT, 1000);
+        mFilter.restoreDeferred("dwell", Geofence.GEOFENCE_TRANSITION_DWELL, 1000);
+
+        assertTrue(mFilter.getDeferred().isEmpty());
+    }
+
+    private int check(int transition, long time, double distance) {
+        return mFilter.check("fence", transition, time, true, distance, RADIUS, 5);
+    }
+}
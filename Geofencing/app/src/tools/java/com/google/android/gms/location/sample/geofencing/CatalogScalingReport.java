@@ -0,0 +1,276 @@
+/**
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.android.gms.location.sample.geofencing;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Measures how the fence subsystem scales with catalog size, using catalogs from
+ * {@link SyntheticCatalogs}. For each size it reports:
+ * <ul>
+ *     <li>build time of the catalog and of the registrations (clustering and hierarchy);</li>
+ *     <li>heap retained by the catalog and by the registrations;</li>
+ *     <li>latency percentiles of request id lookups, of full-catalog containment queries as run
+ *     by {@link LocalFenceEvaluator}, and of cluster resolution;</li>
+ *     <li>the longest and total stalls seen by a pause detector thread while measuring. Stalls
+ *     are mostly GC pauses; the detector does not rely on management APIs, so it also runs on
+ *     a device.</li>
+ * </ul>
+ *
+ * Results are printed, and optionally written, as one JSON object per line for trend tracking.
+ */
+public class CatalogScalingReport {
+
+    private static final int[] DEFAULT_SIZES = {10000, 100000, 1000000};
+
+    /**
+     * Containment queries scan the whole catalog, so fewer are run on large catalogs.
+     */
+    private static final long CONTAINMENT_WORK_BUDGET = 20000000L;
+
+    private final Random mRandom;
+
+    public CatalogScalingReport(long seed) {
+        mRandom = new Random(seed);
+    }
+
+    /**
+     * Measures one catalog size and returns the result as a JSON object.
+     */
+    public String measure(int size) {
+        PauseDetector pauses = new PauseDetector();
+        pauses.start();
+        try {
+            long heapBefore = usedHeap();
+            long start = System.nanoTime();
+            FenceCatalog catalog = SyntheticCatalogs.generate(mRandom, size);
+            long catalogNanos = System.nanoTime() - start;
+            long catalogHeap = usedHeap() - heapBefore;
+
+            heapBefore = usedHeap();
+            start = System.nanoTime();
+            FenceHierarchy hierarchy = FenceHierarchy.build(new FenceCatalog.Builder().build(),
+                    catalog, Constants.CLUSTER_MAX_RADIUS_IN_METERS);
+            long registrationNanos = System.nanoTime() - start;
+            long registrationHeap = usedHeap() - heapBefore;
+            FenceClusters clusters = hierarchy.getClusters();
+
+            int lookups = 100000;
+            long[] lookupNanos = new long[lookups];
+            int found = 0;
+            for (int i = 0; i < lookups; i++) {
+                String id = "site-" + mRandom.nextInt(size);
+                long t = System.nanoTime();
+                found += catalog.indexOf(id) >= 0 ? 1 : 0;
+                lookupNanos[i] = System.nanoTime() - t;
+            }
+
+            int queries = (int) Math.max(20, Math.min(100000, CONTAINMENT_WORK_BUDGET / size));
+            long[] containmentNanos = new long[queries];
+            long[] resolveNanos = new long[queries];
+            int inside = 0;
+            for (int i = 0; i < queries; i++) {
+                // Query next to a random fence, so dense areas are sampled as often as they occur.
+                int fence = mRandom.nextInt(size);
+                double latitude =
+                        catalog.getLatitude(fence) + (mRandom.nextDouble() - 0.5) * 0.01;
+                double longitude =
+                        catalog.getLongitude(fence) + (mRandom.nextDouble() - 0.5) * 0.01;
+                long t = System.nanoTime();
+                for (int f = 0; f < size; f++) {
+                    if (catalog.contains(f, latitude, longitude)) {
+                        inside++;
+                    }
+                }
+                containmentNanos[i] = System.nanoTime() - t;
+                t = System.nanoTime();
+                inside += clusters.resolve(clusters.getClusterOf(fence), latitude,
+                        longitude).length;
+                resolveNanos[i] = System.nanoTime() - t;
+            }
+
+            StringBuilder json = new StringBuilder("{");
+            json.append("\"fences\":").append(size)
+                    .append(",\"registrations\":").append(hierarchy.getRegistrationCatalog().size())
+                    .append(",\"catalogBuildMillis\":").append(catalogNanos / 1000000)
+                    .append(",\"registrationBuildMillis\":").append(registrationNanos / 1000000)
+                    .append(",\"catalogHeapBytes\":").append(catalogHeap)
+                    .append(",\"registrationHeapBytes\":").append(registrationHeap)
+                    .append(",\"lookupMicros\":");
+            appendPercentiles(json, lookupNanos);
+            json.append(",\"containmentMicros\":");
+            appendPercentiles(json, containmentNanos);
+            json.append(",\"clusterResolveMicros\":");
+            appendPercentiles(json, resolveNanos);
+            json.append(",\"maxPauseMillis\":").append(pauses.getMaxPauseMillis())
+                    .append(",\"totalPauseMillis\":").append(pauses.getTotalPauseMillis())
+                    // Printed so the JIT cannot drop the measured work.
+                    .append(",\"checksum\":").append(found + inside)
+                    .append('}');
+            return json.toString();
+        } finally {
+            pauses.stop();
+        }
+    }
+
+    private static void appendPercentiles(StringBuilder json, long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        json.append("{\"p50\":").append(percentileMicros(sorted, 50))
+                .append(",\"p90\":").append(percentileMicros(sorted, 90))
+                .append(",\"p99\":").append(percentileMicros(sorted, 99))
+                .append(",\"max\":").append(percentileMicros(sorted, 100))
+                .append('}');
+    }
+
+    private static double percentileMicros(long[] sorted, double percentile) {
+        int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e3;
+    }
+
+    /**
+     * Returns the heap in use after encouraging a full collection.
+     */
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Sleeps in 1 ms steps and records by how much each sleep overshoots. An overshoot well
+     * beyond scheduling noise means every thread was stopped, almost always by the collector.
+     */
+    static final class PauseDetector implements Runnable {
+        private static final long RESOLUTION_MILLIS = 1;
+        private static final long THRESHOLD_NANOS = 2000000;
+
+        private volatile boolean mRunning;
+        private volatile long mMaxPauseNanos;
+        private volatile long mTotalPauseNanos;
+        private Thread mThread;
+
+        void start() {
+            mRunning = true;
+            mThread = new Thread(this, "PauseDetector");
+            mThread.setDaemon(true);
+            mThread.start();
+        }
+
+        void stop() {
+            mRunning = false;
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        long getMaxPauseMillis() {
+            return mMaxPauseNanos / 1000000;
+        }
+
+        long getTotalPauseMillis() {
+            return mTotalPauseNanos / 1000000;
+        }
+
+        @Override
+        public void run() {
+            long expected = RESOLUTION_MILLIS * 1000000;
+            while (mRunning) {
+                long start = System.nanoTime();
+                try {
+                    Thread.sleep(RESOLUTION_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long overshoot = System.nanoTime() - start - expected;
+                if (overshoot > THRESHOLD_NANOS) {
+                    mTotalPauseNanos += overshoot;
+                    if (overshoot > mMaxPauseNanos) {
+                        mMaxPauseNanos = overshoot;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Prints one JSON line per catalog size.
+     *
+     * <pre>
+     * --sizes N,N,...  catalog sizes (default 10000,100000,1000000)
+     * --seed N         random seed (default 1)
+     * --out FILE       also write the results to FILE
+     * </pre>
+     */
+    public static void main(String[] args) throws IOException {
+        int[] sizes = DEFAULT_SIZES;
+        long seed = 1;
+        File out = null;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + arg);
+            }
+            String value = args[++i];
+            if ("--sizes".equals(arg)) {
+                String[] parts = value.split(",");
+                sizes = new int[parts.length];
+                for (int s = 0; s < parts.length; s++) {
+                    sizes[s] = Integer.parseInt(parts[s].trim());
+                }
+            } else if ("--seed".equals(arg)) {
+                seed = Long.parseLong(value);
+            } else if ("--out".equals(arg)) {
+                out = new File(value);
+            } else {
+                throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+
+        CatalogScalingReport report = new CatalogScalingReport(seed);
+        StringBuilder results = new StringBuilder();
+        for (int size : sizes) {
+            String json = report.measure(size);
+            System.out.println(json);
+            results.append(json).append('\n');
+        }
+        if (out != null) {
+            Writer writer = new FileWriter(out);
+            try {
+                writer.write(results.toString());
+            } finally {
+                writer.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/**
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.location.sample.geofencing;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Evaluates location fixes of many devices against one {@link FenceCatalog} on a server, and
+ * reports ENTER, EXIT and DWELL transitions with the same meaning as those Location Services
+ * sends to {@link GeofenceTransitionsIntentService}. Fences containing a fix are found through a
+ * {@link FenceGrid}; the fences each device is inside are kept in an
+ * {@link OffHeapDeviceStateMap}, with room for as many fences as the catalog lets a point be
+ * inside at once (see {@link FenceGrid#getMaxOverlap()}), so no membership is ever dropped.
+ *
+ * {@link #onLocation} may be called from any number of threads.
+ */
+public class DeviceFenceEngine {
+
+    private final FenceCatalog mCatalog;
+    private final FenceGrid mGrid;
+    private final OffHeapDeviceStateMap mStates;
+    private final int mLoiteringDelaySeconds;
+    private final long mEpochMillis;
+
+    private final ThreadLocal<int[]> mInside = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[mGrid.getMaxOverlap()];
+        }
+    };
+
+    /**
+     * @param loiteringDelayMillis How long a device must stay inside a fence before DWELL.
+     * @param epochMillis          Fix times are stored in seconds since this time, and must be
+     *                             within 68 years after it.
+     */
+    public DeviceFenceEngine(FenceCatalog catalog, int maxDevices, int loiteringDelayMillis,
+            long epochMillis) {
+        mCatalog = catalog;
+        // Cells twice the mean radius; a few large fences then span many cells, rather than
+        // every cell holding many small fences.
+        double radii = 0;
+        for (int i = 0; i < catalog.size(); i++) {
+            radii += catalog.getRadius(i);
+        }
+        mGrid = new FenceGrid(catalog, Math.max(2 * radii / Math.max(catalog.size(), 1), 100));
+        mStates = new OffHeapDeviceStateMap(maxDevices, catalog.size(), mGrid.getMaxOverlap());
+        mLoiteringDelaySeconds = loiteringDelayMillis / 1000;
+        mEpochMillis = epochMillis;
+    }
+
+    public FenceCatalog getCatalog() {
+        return mCatalog;
+    }
+
+    public FenceGrid getGrid() {
+        return mGrid;
+    }
+
+    public OffHeapDeviceStateMap getStates() {
+        return mStates;
+    }
+
+    /**
+     * Evaluates one fix of a device and reports the transitions it causes.
+     *
+     * @param deviceId Any id except 0.
+     * @return The number of transitions.
+     */
+    public int onLocation(long deviceId, double latitude, double longitude, long timeMillis,
+            OffHeapDeviceStateMap.TransitionListener listener) {
+        int[] inside = mInside.get();
+        int count = mGrid.containing(latitude, longitude, inside);
+        return mStates.update(deviceId, inside, count,
+                (int) ((timeMillis - mEpochMillis) / 1000), mLoiteringDelaySeconds, listener);
+    }
+
+    /**
+     * Feeds random walks of many devices near the fences of a synthetic catalog through the
+     * engine from several threads, and prints throughput, memory and pauses as one JSON line.
+     *
+     * <pre>
+     * --devices N  devices (default 1000000)
+     * --fences N   catalog size (default 100000)
+     * --fixes N    fixes per device (default 20)
+     * --threads N  threads (default the number of processors)
+     * --seed N     random seed (default 1)
+     * </pre>
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int devices = 1000000;
+        int fences = 100000;
+        int fixes = 20;
+        int threads = Runtime.getRuntime().availableProcessors();
+        long seed = 1;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + arg);
+            }
+            String value = args[++i];
+            if ("--devices".equals(arg)) {
+                devices = Integer.parseInt(value);
+            } else if ("--fences".equals(arg)) {
+                fences = Integer.parseInt(value);
+            } else if ("--fixes".equals(arg)) {
+                fixes = Integer.parseInt(value);
+            } else if ("--threads".equals(arg)) {
+                threads = Integer.parseInt(value);
+            } else if ("--seed".equals(arg)) {
+                seed = Long.parseLong(value);
+            } else {
+                throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+
+        final FenceCatalog catalog = SyntheticCatalogs.generate(new Random(seed), fences);
+        final DeviceFenceEngine engine = new DeviceFenceEngine(catalog, devices,
+                Constants.GEOFENCE_LOITERING_DELAY_IN_MILLISECONDS, 0);
+        final AtomicLong[] transitions = {new AtomicLong(), new AtomicLong(), new AtomicLong()};
+        final OffHeapDeviceStateMap.TransitionListener listener =
+                new OffHeapDeviceStateMap.TransitionListener() {
+                    @Override
+                    public void onTransition(long deviceId, int fence, int transition,
+                            int timeSeconds) {
+                        // ENTER, EXIT and DWELL are 1, 2 and 4.
+                        transitions[Integer.numberOfTrailingZeros(transition)].incrementAndGet();
+                    }
+                };
+
+        CatalogScalingReport.PauseDetector pauses = new CatalogScalingReport.PauseDetector();
+        pauses.start();
+        long start = System.nanoTime();
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int first = (int) ((long) devices * t / threads);
+            final int last = (int) ((long) devices * (t + 1) / threads);
+            final int steps = fixes;
+            final Random random = new Random(seed + t + 1);
+            workers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    walk(engine, random, first, last, steps, listener);
+                }
+            }, "DeviceFenceEngine-" + t);
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long nanos = System.nanoTime() - start;
+        pauses.stop();
+
+        long total = (long) devices * fixes;
+        System.out.println("{\"devices\":" + devices
+                + ",\"fences\":" + fences
+                + ",\"mode\":\"" + (engine.getStates().getMode()
+                        == OffHeapDeviceStateMap.MODE_BITSET ? "bitset" : "sorted") + "\""
+                + ",\"maxMemberships\":" + engine.getGrid().getMaxOverlap()
+                + ",\"threads\":" + threads
+                + ",\"fixes\":" + total
+                + ",\"fixesPerSecond\":" + (long) (total / (nanos / 1e9))
+                + ",\"enter\":" + transitions[0].get()
+                + ",\"exit\":" + transitions[1].get()
+                + ",\"dwell\":" + transitions[2].get()
+                + ",\"overflow\":" + engine.getStates().getOverflowCount()
+                + ",\"offHeapBytes\":" + engine.getStates().getMemoryBytes()
+                + ",\"maxPauseMillis\":" + pauses.getMaxPauseMillis()
+                + ",\"totalPauseMillis\":" + pauses.getTotalPauseMillis()
+                + "}");
+    }
+
+    /**
+     * Walks devices {@code first} to {@code last - 1}, each starting next to a random fence and
+     * reporting one fix a minute.
+     */
+    private static void walk(DeviceFenceEngine engine, Random random, int first, int last,
+            int steps, OffHeapDeviceStateMap.TransitionListener listener) {
+        FenceCatalog catalog = engine.getCatalog();
+        double[] latitudes = new double[last - first];
+        double[] longitudes = new double[last - first];
+        for (int d = 0; d < latitudes.length; d++) {
+            int fence = random.nextInt(catalog.size());
+            latitudes[d] = catalog.getLatitude(fence);
+            longitudes[d] = catalog.getLongitude(fence);
+        }
+        for (int step = 0; step < steps; step++) {
+            long time = step * 60000L;
+            for (int d = 0; d < latitudes.length; d++) {
+                // Up to about 100 m per minute in each direction.
+                latitudes[d] += (random.nextDouble() - 0.5) * 0.002;
+                longitudes[d] += (random.nextDouble() - 0.5) * 0.002;
+                engine.onLocation(first + d + 1, latitudes[d], longitudes[d], time, listener);
+            }
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/**
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.location.sample.geofencing;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A uniform latitude/longitude grid over a {@link FenceCatalog}. Each cell lists, in increasing
+ * order, the fences whose bounding box overlaps it, so only those need a containment check for
+ * a point in the cell. Columns wrap around at 180 degrees of longitude, so fences crossing the
+ * antimeridian are found from both sides.
+ *
+ * Immutable once built; safe to query from any thread.
+ */
+public final class FenceGrid {
+
+    /**
+     * Parts per side each cell is split into by {@link #computeMaxOverlap()}; more give a
+     * tighter bound for a longer build.
+     */
+    private static final int OVERLAP_SUBDIVISIONS = 8;
+
+    /**
+     * Relative slack on fence radii in {@link #computeMaxOverlap()}, covering the error of
+     * measuring to the edge of a part along a parallel rather than a great circle.
+     */
+    private static final double OVERLAP_SLACK = 0.01;
+
+    private static final int[] NONE = new int[0];
+
+    private final FenceCatalog mCatalog;
+    private final double mCellDegrees;
+    private final int mColumns;
+    private final HashMap<Long, int[]> mCells;
+    private final int mMaxOverlap;
+
+    /**
+     * @param cellMeters Cell height in meters. About twice the typical fence radius keeps most
+     *                   fences in four cells or fewer.
+     */
+    public FenceGrid(FenceCatalog catalog, double cellMeters) {
+        mCatalog = catalog;
+        mCellDegrees = Math.toDegrees(cellMeters / GeoMath.EARTH_RADIUS_IN_METERS);
+        mColumns = (int) Math.ceil(360 / mCellDegrees);
+
+        // Count, then fill, so each cell is a single int[].
+        HashMap<Long, int[]> counts = new HashMap<Long, int[]>();
+        for (int i = 0; i < catalog.size(); i++) {
+            int[] box = cellBox(i);
+            for (int row = box[0]; row <= box[1]; row++) {
+                for (int column = box[2]; column <= box[3]; column++) {
+                    Long key = cellKey(row, column);
+                    int[] count = counts.get(key);
+                    if (count == null) {
+                        counts.put(key, new int[] {1});
+                    } else {
+                        count[0]++;
+                    }
+                }
+            }
+        }
+        mCells = new HashMap<Long, int[]>(counts.size() * 4 / 3 + 1);
+        for (Map.Entry<Long, int[]> entry : counts.entrySet()) {
+            mCells.put(entry.getKey(), new int[entry.getValue()[0]]);
+            entry.getValue()[0] = 0;
+        }
+        for (int i = 0; i < catalog.size(); i++) {
+            int[] box = cellBox(i);
+            for (int row = box[0]; row <= box[1]; row++) {
+                for (int column = box[2]; column <= box[3]; column++) {
+                    Long key = cellKey(row, column);
+                    mCells.get(key)[counts.get(key)[0]++] = i;
+                }
+            }
+        }
+        mMaxOverlap = computeMaxOverlap();
+    }
+
+    public FenceCatalog getCatalog() {
+        return mCatalog;
+    }
+
+    /**
+     * Returns the fences that may contain a point, in increasing order. The array is shared;
+     * do not modify it.
+     */
+    public int[] candidatesAt(double latitude, double longitude) {
+        int[] cell = mCells.get(cellKey(row(latitude), column(longitude)));
+        return cell != null ? cell : NONE;
+    }
+
+    /**
+     * Writes the fences containing a point to {@code out} in increasing order.
+     *
+     * @param out At least {@link #getMaxOverlap()} long.
+     * @return The number of fences written.
+     * @throws IllegalArgumentException If {@code out} cannot hold them all.
+     */
+    public int containing(double latitude, double longitude, int[] out) {
+        int count = 0;
+        for (int fence : candidatesAt(latitude, longitude)) {
+            if (mCatalog.contains(fence, latitude, longitude)) {
+                if (count == out.length) {
+                    throw new IllegalArgumentException("More than " + out.length
+                            + " fences contain " + latitude + "," + longitude);
+                }
+                out[count++] = fence;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns an upper bound on the fences any point can be inside at once; at least 1.
+     */
+    public int getMaxOverlap() {
+        return mMaxOverlap;
+    }
+
+    /**
+     * Returns the number of non-empty cells.
+     */
+    public int getCellCount() {
+        return mCells.size();
+    }
+
+    /**
+     * Splits every cell into {@link #OVERLAP_SUBDIVISIONS} by {@link #OVERLAP_SUBDIVISIONS}
+     * parts and counts, in each, the fences of the cell that reach into it. A point is inside
+     * no more fences than reach the part it lies in, so the largest count is the bound.
+     */
+    private int computeMaxOverlap() {
+        double step = mCellDegrees / OVERLAP_SUBDIVISIONS;
+        int max = 1;
+        for (Map.Entry<Long, int[]> entry : mCells.entrySet()) {
+            int[] fences = entry.getValue();
+            if (fences.length <= max) {
+                continue;
+            }
+            double south = (int) (entry.getKey() >> 32) * mCellDegrees - 90;
+            double west = (int) (entry.getKey() & 0xFFFFFFFFL) * mCellDegrees - 180;
+            for (int r = 0; r < OVERLAP_SUBDIVISIONS; r++) {
+                for (int c = 0; c < OVERLAP_SUBDIVISIONS; c++) {
+                    double partSouth = south + r * step;
+                    double partWest = west + c * step;
+                    int count = 0;
+                    for (int fence : fences) {
+                        if (reaches(fence, partSouth, partSouth + step, partWest,
+                                partWest + step)) {
+                            count++;
+                        }
+                    }
+                    max = Math.max(max, count);
+                }
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Returns whether a fence may reach into a latitude/longitude box.
+     */
+    private boolean reaches(int fence, double south, double north, double west, double east) {
+        double latitude = mCatalog.getLatitude(fence);
+        double longitude = mCatalog.getLongitude(fence);
+        double nearestLatitude = Math.max(south, Math.min(latitude, north));
+        double offset = GeoMath.wrapLongitude(longitude - west);
+        double distance;
+        if (offset >= 0 && offset <= east - west) {
+            distance = GeoMath.distanceMeters(latitude, longitude, nearestLatitude, longitude);
+        } else {
+            distance = Math.min(
+                    GeoMath.distanceMeters(latitude, longitude, nearestLatitude, west),
+                    GeoMath.distanceMeters(latitude, longitude, nearestLatitude, east));
+        }
+        return distance <= mCatalog.getRadius(fence) * (1 + OVERLAP_SLACK) + 1;
+    }
+
+    /**
+     * Returns the rows and columns, inclusive, covered by the bounding box of a fence. Columns
+     * may lie outside [0, columns) when the box crosses the antimeridian; {@link #cellKey}
+     * wraps them.
+     */
+    private int[] cellBox(int fence) {
+        double latitude = mCatalog.getLatitude(fence);
+        double longitude = GeoMath.wrapLongitude(mCatalog.getLongitude(fence));
+        float radius = mCatalog.getRadius(fence);
+        double dLatitude = GeoMath.latitudeExtentDegrees(radius);
+        double dLongitude = GeoMath.longitudeExtentDegrees(latitude, radius);
+        int firstColumn = unwrappedColumn(longitude - dLongitude);
+        int lastColumn = unwrappedColumn(longitude + dLongitude);
+        if (lastColumn - firstColumn + 1 >= mColumns) {
+            firstColumn = 0;
+            lastColumn = mColumns - 1;
+        }
+        return new int[] {row(latitude - dLatitude), row(latitude + dLatitude),
+                firstColumn, lastColumn};
+    }
+
+    private int row(double latitude) {
+        return (int) Math.floor((Math.max(-90, Math.min(latitude, 90)) + 90) / mCellDegrees);
+    }
+
+    private int column(double longitude) {
+        return unwrappedColumn(GeoMath.wrapLongitude(longitude));
+    }
+
+    private int unwrappedColumn(double longitude) {
+        return (int) Math.floor((longitude + 180) / mCellDegrees);
+    }
+
+    private Long cellKey(int row, int column) {
+        int wrapped = column % mColumns;
+        if (wrapped < 0) {
+            wrapped += mColumns;
+        }
+        return ((long) row << 32) | wrapped;
+    }
+}
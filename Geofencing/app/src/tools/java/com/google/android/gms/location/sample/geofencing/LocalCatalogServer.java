@@ -0,0 +1,285 @@
+/**
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.location.sample.geofencing;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A stand-in for the catalog server that {@link CatalogSyncClient} talks to, for tests and for
+ * trying catalog changes on a device without a backend. It runs on the JVM.
+ *
+ * The server keeps the last few published catalog versions. A request for the changes since
+ * one of them gets a {@link CatalogDelta} between the two; a request for an older or unknown
+ * version gets a full snapshot. The ETag is the current version, so an up-to-date client gets a
+ * 304 with no body.
+ */
+public class LocalCatalogServer {
+
+    private final ServerSocket mServerSocket;
+    private final int mHistorySize;
+    private final TreeMap<Long, FenceCatalog> mVersions = new TreeMap<Long, FenceCatalog>();
+    private Thread mThread;
+
+    private int mRequestCount;
+    private long mBytesSent;
+
+    /**
+     * Binds the server to the loopback interface.
+     *
+     * @param port        Port to listen on, or 0 for any free port.
+     * @param historySize Number of past versions deltas are served from.
+     */
+    public LocalCatalogServer(int port, int historySize) throws IOException {
+        mServerSocket = new ServerSocket(port, 16, InetAddress.getByName("127.0.0.1"));
+        mHistorySize = historySize;
+    }
+
+    /**
+     * Returns the URL to give {@link CatalogSyncClient}.
+     */
+    public String getUrl() {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/catalog";
+    }
+
+    /**
+     * Makes {@code catalog} the current version.
+     *
+     * @return The version assigned to it.
+     */
+    public synchronized long publish(FenceCatalog catalog) {
+        long version = mVersions.isEmpty() ? 1 : mVersions.lastKey() + 1;
+        FenceCatalog.Builder builder = new FenceCatalog.Builder(catalog.size());
+        for (int i = 0; i < catalog.size(); i++) {
+            builder.add(catalog.getId(i), catalog.getLatitude(i), catalog.getLongitude(i),
+                    catalog.getRadius(i));
+        }
+        mVersions.put(version, builder.setVersion(version).build());
+        while (mVersions.size() > mHistorySize) {
+            mVersions.remove(mVersions.firstKey());
+        }
+        return version;
+    }
+
+    public synchronized int getRequestCount() {
+        return mRequestCount;
+    }
+
+    /**
+     * Returns the number of response body bytes sent so far.
+     */
+    public synchronized long getBytesSent() {
+        return mBytesSent;
+    }
+
+    /**
+     * Starts serving requests on a background thread.
+     */
+    public synchronized void start() {
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!mServerSocket.isClosed()) {
+                    try {
+                        Socket socket = mServerSocket.accept();
+                        try {
+                            handle(socket);
+                        } finally {
+                            socket.close();
+                        }
+                    } catch (IOException e) {
+                        // Closed, or the client went away; either way move on.
+                    }
+                }
+            }
+        }, "LocalCatalogServer");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    public void close() throws IOException {
+        mServerSocket.close();
+    }
+
+    private void handle(Socket socket) throws IOException {
+        BufferedReader in = new BufferedReader(
+                new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+        String requestLine = in.readLine();
+        if (requestLine == null) {
+            return;
+        }
+        String ifNoneMatch = null;
+        String line;
+        while ((line = in.readLine()) != null && line.length() > 0) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && "If-None-Match".equalsIgnoreCase(line.substring(0, colon).trim())) {
+                ifNoneMatch = line.substring(colon + 1).trim();
+            }
+        }
+
+        String[] parts = requestLine.split(" ");
+        if (parts.length < 2 || !"GET".equals(parts[0])) {
+            send(socket.getOutputStream(), "405 Method Not Allowed", null, null);
+            return;
+        }
+        long since;
+        try {
+            since = parseSince(parts[1]);
+        } catch (NumberFormatException e) {
+            send(socket.getOutputStream(), "400 Bad Request", null, null);
+            return;
+        }
+
+        byte[] body;
+        String eTag;
+        synchronized (this) {
+            mRequestCount++;
+            if (mVersions.isEmpty()) {
+                send(socket.getOutputStream(), "404 Not Found", null, null);
+                return;
+            }
+            Map.Entry<Long, FenceCatalog> current = mVersions.lastEntry();
+            eTag = "\"" + current.getKey() + "\"";
+            if (eTag.equals(ifNoneMatch) || since == current.getKey()) {
+                send(socket.getOutputStream(), "304 Not Modified", eTag, null);
+                return;
+            }
+            body = CatalogDelta.between(mVersions.get(since), current.getValue()).encode();
+            mBytesSent += body.length;
+        }
+        send(socket.getOutputStream(), "200 OK", eTag, body);
+    }
+
+    private static long parseSince(String target) {
+        int query = target.indexOf('?');
+        if (query >= 0) {
+            for (String param : target.substring(query + 1).split("&")) {
+                if (param.startsWith("since=")) {
+                    return Long.parseLong(param.substring("since=".length()));
+                }
+            }
+        }
+        return 0;
+    }
+
+    private static void send(OutputStream out, String status, String eTag, byte[] body)
+            throws IOException {
+        StringBuilder header = new StringBuilder();
+        header.append("HTTP/1.1 ").append(status).append("\r\n");
+        if (eTag != null) {
+            header.append("ETag: ").append(eTag).append("\r\n");
+        }
+        if (body != null) {
+            header.append("Content-Type: application/octet-stream\r\n");
+        }
+        header.append("Content-Length: ").append(body != null ? body.length : 0).append("\r\n");
+        header.append("Connection: close\r\n\r\n");
+        out.write(header.toString().getBytes("ISO-8859-1"));
+        if (body != null) {
+            out.write(body);
+        }
+        out.flush();
+    }
+
+    /**
+     * Reads a catalog from CSV lines of {@code id,latitude,longitude,radius}.
+     */
+    static FenceCatalog readCatalog(File file) throws IOException {
+        FenceCatalog.Builder builder = new FenceCatalog.Builder();
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split(",");
+                if (fields.length != 4) {
+                    throw new IOException("Expected id,latitude,longitude,radius: " + line);
+                }
+                builder.add(fields[0].trim(), Double.parseDouble(fields[1].trim()),
+                        Double.parseDouble(fields[2].trim()), Float.parseFloat(fields[3].trim()));
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException(e.getMessage());
+        } finally {
+            in.close();
+        }
+        return builder.build();
+    }
+
+    /**
+     * Serves a catalog until killed. Without {@code --catalog} it serves the built-in landmarks.
+     * With it, the CSV file is re-read whenever it changes and published as a new version, so
+     * edits reach synced devices as deltas.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = 8080;
+        int history = 16;
+        File catalogFile = null;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + arg);
+            }
+            String value = args[++i];
+            if ("--port".equals(arg)) {
+                port = Integer.parseInt(value);
+            } else if ("--history".equals(arg)) {
+                history = Integer.parseInt(value);
+            } else if ("--catalog".equals(arg)) {
+                catalogFile = new File(value);
+            } else {
+                throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+
+        LocalCatalogServer server = new LocalCatalogServer(port, history);
+        server.start();
+        System.out.println("Serving fence catalog at " + server.getUrl());
+        if (catalogFile == null) {
+            server.publish(FenceCatalog.getDefault());
+            server.mThread.join();
+            return;
+        }
+        long lastModified = -1;
+        while (true) {
+            long modified = catalogFile.lastModified();
+            if (modified != lastModified) {
+                lastModified = modified;
+                try {
+                    FenceCatalog catalog = readCatalog(catalogFile);
+                    System.out.println("Published version " + server.publish(catalog) + " with "
+                            + catalog.size() + " fences");
+                } catch (IOException e) {
+                    System.err.println("Skipping " + catalogFile + ": " + e.getMessage());
+                }
+            }
+            Thread.sleep(1000);
+        }
+    }
+}
@@ -0,0 +1,512 @@
+/**
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.gms.location.sample.geofencing;
+
+import com.google.android.gms.location.Geofence;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fence memberships of many devices, kept in direct memory so that millions of devices add no
+ * objects for the collector to trace.
+ *
+ * Devices are found by open addressing with linear probing on their id. Each device owns one
+ * fixed-size record:
+ * <ul>
+ *     <li>{@link #MODE_BITSET}, for catalogs of up to 64 fences: the fences the device is inside
+ *     and has dwelled in as two bitsets, followed by the entry time of every fence;</li>
+ *     <li>{@link #MODE_SORTED}, for larger catalogs: up to {@code maxMemberships} fences the
+ *     device is inside, in increasing order, each with its entry time and a dwell flag. Further
+ *     fences entered at the same time are counted in {@link #getOverflowCount()} and ignored.</li>
+ * </ul>
+ * Both start with the membership count and the time the device was last updated.
+ *
+ * {@link #update} reports transitions the way Location Services reports them to
+ * {@link GeofenceTransitionsIntentService}: ENTER when a device comes inside a fence, EXIT when
+ * it leaves, and DWELL once it has stayed inside for the loitering delay. Updates of one device
+ * are serialized by one of a fixed set of lock stripes. Reads take no lock: each record carries
+ * a sequence number that is odd while it is written, and a read is retried until it sees the
+ * same even number before and after.
+ *
+ * Devices are never removed; size the map for every device that may report.
+ */
+public final class OffHeapDeviceStateMap {
+
+    public static final int MODE_BITSET = 0;
+    public static final int MODE_SORTED = 1;
+
+    /**
+     * Receives the transitions found by {@link #update}, in the order they happen for each
+     * device.
+     */
+    public interface TransitionListener {
+        /**
+         * @param transition One of the {@code Geofence.GEOFENCE_TRANSITION_*} constants.
+         */
+        void onTransition(long deviceId, int fence, int transition, int timeSeconds);
+    }
+
+    private static final int BITSET_MAX_FENCES = 64;
+    private static final float MAX_LOAD_FACTOR = 0.75f;
+    private static final int STRIPES = 256;
+    private static final int MAX_SEGMENT_BYTES = 1 << 30;
+
+    // Common header.
+    private static final int COUNT_OFFSET = 0;
+    private static final int LAST_SEEN_OFFSET = 4;
+    private static final int HEADER_BYTES = 8;
+    // MODE_BITSET body.
+    private static final int INSIDE_BITS_OFFSET = 8;
+    private static final int DWELLED_BITS_OFFSET = 16;
+    private static final int ENTERED_AT_OFFSET = 24;
+    // MODE_SORTED body: (fence, entered at) pairs; the dwell flag is the sign bit of the fence.
+    private static final int SLOT_BYTES = 8;
+    private static final int DWELLED_FLAG = 0x80000000;
+
+    private final int mMode;
+    private final int mCatalogSize;
+    private final int mMaxMemberships;
+    private final int mRecordBytes;
+    private final int mRecordsPerSegment;
+    private final int mMask;
+    private final int mMaxSize;
+
+    private final AtomicLongArray mKeys;
+    private final AtomicIntegerArray mSequences;
+    private final ByteBuffer[] mSegments;
+    private final Object[] mStripes = new Object[STRIPES];
+    private final AtomicInteger mSize = new AtomicInteger();
+    private final AtomicLong mOverflowCount = new AtomicLong();
+
+    private final ThreadLocal<Scratch> mScratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch(mMaxMemberships);
+        }
+    };
+
+    /**
+     * Per-thread working copies of a record, and the transitions found by an update.
+     */
+    private static final class Scratch {
+        final int[] mFences;
+        final int[] mEnteredAt;
+        final boolean[] mDwelled;
+        int mCount;
+
+        final int[] mNextFences;
+        final int[] mNextEnteredAt;
+        final boolean[] mNextDwelled;
+        int mNextCount;
+
+        final int[] mEventFences;
+        final int[] mEventTransitions;
+        int mEventCount;
+
+        Scratch(int maxMemberships) {
+            mFences = new int[maxMemberships];
+            mEnteredAt = new int[maxMemberships];
+            mDwelled = new boolean[maxMemberships];
+            mNextFences = new int[maxMemberships];
+            mNextEnteredAt = new int[maxMemberships];
+            mNextDwelled = new boolean[maxMemberships];
+            // Every old membership may exit and every new one enter.
+            mEventFences = new int[2 * maxMemberships];
+            mEventTransitions = new int[2 * maxMemberships];
+        }
+    }
+
+    /**
+     * @param maxDevices     The most devices the map will hold.
+     * @param catalogSize    The number of fences; fence indices are below it.
+     * @param maxMemberships The most fences a device is tracked inside at once. Ignored for
+     *                       catalogs of up to 64 fences, which track every fence.
+     */
+    public OffHeapDeviceStateMap(int maxDevices, int catalogSize, int maxMemberships) {
+        if (maxDevices <= 0 || catalogSize < 0 || maxMemberships <= 0) {
+            throw new IllegalArgumentException("maxDevices=" + maxDevices + ", catalogSize="
+                    + catalogSize + ", maxMemberships=" + maxMemberships);
+        }
+        mCatalogSize = catalogSize;
+        if (catalogSize <= BITSET_MAX_FENCES) {
+            mMode = MODE_BITSET;
+            mMaxMemberships = Math.max(catalogSize, 1);
+            mRecordBytes = align8(ENTERED_AT_OFFSET + 4 * catalogSize);
+        } else {
+            mMode = MODE_SORTED;
+            mMaxMemberships = maxMemberships;
+            mRecordBytes = HEADER_BYTES + SLOT_BYTES * maxMemberships;
+        }
+
+        int capacity = Integer.highestOneBit(
+                Math.max(2, (int) Math.ceil(maxDevices / MAX_LOAD_FACTOR)) - 1) << 1;
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("maxDevices too large: " + maxDevices);
+        }
+        mMask = capacity - 1;
+        mMaxSize = maxDevices;
+        mKeys = new AtomicLongArray(capacity);
+        mSequences = new AtomicIntegerArray(capacity);
+
+        mRecordsPerSegment = MAX_SEGMENT_BYTES / mRecordBytes;
+        int segments = (capacity + mRecordsPerSegment - 1) / mRecordsPerSegment;
+        mSegments = new ByteBuffer[segments];
+        for (int s = 0; s < segments; s++) {
+            int records = Math.min(mRecordsPerSegment, capacity - s * mRecordsPerSegment);
+            mSegments[s] = ByteBuffer.allocateDirect(records * mRecordBytes)
+                    .order(ByteOrder.nativeOrder());
+        }
+        for (int i = 0; i < STRIPES; i++) {
+            mStripes[i] = new Object();
+        }
+    }
+
+    /**
+     * Returns {@link #MODE_BITSET} or {@link #MODE_SORTED}.
+     */
+    public int getMode() {
+        return mMode;
+    }
+
+    /**
+     * Returns the number of devices seen so far.
+     */
+    public int size() {
+        return mSize.get();
+    }
+
+    /**
+     * Returns the direct memory taken by the records.
+     */
+    public long getMemoryBytes() {
+        long bytes = 0;
+        for (ByteBuffer segment : mSegments) {
+            bytes += segment.capacity();
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns how many times a device entered a fence that was not tracked because it was
+     * already inside {@code maxMemberships} fences.
+     */
+    public long getOverflowCount() {
+        return mOverflowCount.get();
+    }
+
+    /**
+     * Replaces the fences a device is inside and reports the resulting transitions. Fences kept
+     * since the last update whose entry time is at least {@code dwellSeconds} old are reported
+     * as DWELL once.
+     *
+     * @param inside      The fences the device is inside now, in increasing order.
+     * @param count       The number of fences in {@code inside}.
+     * @param nowSeconds  The time of the fix. Should not go backwards for a device.
+     * @param listener    Receives the transitions, while the device's stripe is locked; may be
+     *                    null.
+     * @return The number of transitions.
+     * @throws IllegalArgumentException If {@code deviceId} is 0, which marks an empty slot.
+     * @throws IllegalStateException    If the device is new and the map is full.
+     */
+    public int update(long deviceId, int[] inside, int count, int nowSeconds, int dwellSeconds,
+            TransitionListener listener) {
+        int slot = findSlot(deviceId, true);
+        Scratch scratch = mScratch.get();
+        synchronized (mStripes[(int) (mix(deviceId) >>> 32) & (STRIPES - 1)]) {
+            // Only this thread writes the record now, so it can be read without validation.
+            decode(slot, scratch);
+            merge(scratch, inside, count, nowSeconds, dwellSeconds);
+
+            mSequences.incrementAndGet(slot);
+            encode(slot, scratch, nowSeconds);
+            mSequences.incrementAndGet(slot);
+
+            if (listener != null) {
+                for (int i = 0; i < scratch.mEventCount; i++) {
+                    listener.onTransition(deviceId, scratch.mEventFences[i],
+                            scratch.mEventTransitions[i], nowSeconds);
+                }
+            }
+            return scratch.mEventCount;
+        }
+    }
+
+    /**
+     * Writes the fences a device is inside to {@code out} in increasing order, without locking.
+     *
+     * @return The number of fences written, or 0 for an unknown device.
+     */
+    public int getMemberships(long deviceId, int[] out) {
+        int slot = findSlot(deviceId, false);
+        if (slot < 0) {
+            return 0;
+        }
+        Scratch scratch = mScratch.get();
+        readConsistent(slot, scratch);
+        int count = Math.min(scratch.mCount, out.length);
+        System.arraycopy(scratch.mFences, 0, out, 0, count);
+        return count;
+    }
+
+    /**
+     * Returns whether a device is inside a fence, without locking.
+     */
+    public boolean isInside(long deviceId, int fence) {
+        int slot = findSlot(deviceId, false);
+        if (slot < 0) {
+            return false;
+        }
+        Scratch scratch = mScratch.get();
+        readConsistent(slot, scratch);
+        for (int i = 0; i < scratch.mCount; i++) {
+            if (scratch.mFences[i] == fence) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the time of the last update of a device, or -1 for an unknown device.
+     */
+    public int getLastSeen(long deviceId) {
+        int slot = findSlot(deviceId, false);
+        if (slot < 0) {
+            return -1;
+        }
+        while (true) {
+            int sequence = mSequences.get(slot);
+            int lastSeen = segment(slot).getInt(offset(slot) + LAST_SEEN_OFFSET);
+            if ((sequence & 1) == 0 && mSequences.compareAndSet(slot, sequence, sequence)) {
+                return lastSeen;
+            }
+        }
+    }
+
+    /**
+     * Computes the next memberships of a device from its current ones and the fences it is
+     * inside now, and the transitions between them.
+     */
+    private void merge(Scratch s, int[] inside, int count, int now, int dwellSeconds) {
+        s.mNextCount = 0;
+        s.mEventCount = 0;
+        // Fences the device stays inside are always kept; entered ones get the remaining room.
+        int room = mMaxMemberships - countCommon(s.mFences, s.mCount, inside, count);
+        int i = 0;
+        int j = 0;
+        while (i < s.mCount || j < count) {
+            int old = i < s.mCount ? s.mFences[i] : Integer.MAX_VALUE;
+            int current = j < count ? inside[j] : Integer.MAX_VALUE;
+            if (old < current) {
+                addEvent(s, old, Geofence.GEOFENCE_TRANSITION_EXIT);
+                i++;
+            } else if (current < old) {
+                if (current < 0 || current >= mCatalogSize) {
+                    throw new IllegalArgumentException("No fence " + current);
+                }
+                if (room > 0) {
+                    room--;
+                    addNext(s, current, now, false);
+                    addEvent(s, current, Geofence.GEOFENCE_TRANSITION_ENTER);
+                } else {
+                    mOverflowCount.incrementAndGet();
+                }
+                j++;
+            } else {
+                boolean dwelled = s.mDwelled[i];
+                if (!dwelled && now - s.mEnteredAt[i] >= dwellSeconds) {
+                    dwelled = true;
+                    addEvent(s, current, Geofence.GEOFENCE_TRANSITION_DWELL);
+                }
+                addNext(s, current, s.mEnteredAt[i], dwelled);
+                i++;
+                j++;
+            }
+        }
+    }
+
+    private static int countCommon(int[] a, int aCount, int[] b, int bCount) {
+        int common = 0;
+        int i = 0;
+        int j = 0;
+        while (i < aCount && j < bCount) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (b[j] < a[i]) {
+                j++;
+            } else {
+                common++;
+                i++;
+                j++;
+            }
+        }
+        return common;
+    }
+
+    private static void addNext(Scratch s, int fence, int enteredAt, boolean dwelled) {
+        s.mNextFences[s.mNextCount] = fence;
+        s.mNextEnteredAt[s.mNextCount] = enteredAt;
+        s.mNextDwelled[s.mNextCount] = dwelled;
+        s.mNextCount++;
+    }
+
+    private static void addEvent(Scratch s, int fence, int transition) {
+        s.mEventFences[s.mEventCount] = fence;
+        s.mEventTransitions[s.mEventCount] = transition;
+        s.mEventCount++;
+    }
+
+    /**
+     * Decodes a record until it is read between two equal, even sequence numbers. The second
+     * check is a compare-and-set rather than a plain read so the record reads cannot be moved
+     * after it.
+     */
+    private void readConsistent(int slot, Scratch scratch) {
+        while (true) {
+            int sequence = mSequences.get(slot);
+            if ((sequence & 1) == 0) {
+                decode(slot, scratch);
+                if (mSequences.compareAndSet(slot, sequence, sequence)) {
+                    return;
+                }
+            }
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Decodes a record into the current memberships of {@code s}. Tolerates a record torn by
+     * a concurrent write; the caller discards the result then.
+     */
+    private void decode(int slot, Scratch s) {
+        ByteBuffer segment = segment(slot);
+        int base = offset(slot);
+        int count = 0;
+        if (mMode == MODE_BITSET) {
+            long inside = segment.getLong(base + INSIDE_BITS_OFFSET);
+            long dwelled = segment.getLong(base + DWELLED_BITS_OFFSET);
+            while (inside != 0 && count < mMaxMemberships) {
+                int fence = Long.numberOfTrailingZeros(inside);
+                inside &= inside - 1;
+                s.mFences[count] = fence;
+                s.mEnteredAt[count] = segment.getInt(base + ENTERED_AT_OFFSET + 4 * fence);
+                s.mDwelled[count] = (dwelled & (1L << fence)) != 0;
+                count++;
+            }
+        } else {
+            int stored = Math.max(0, Math.min(segment.getInt(base + COUNT_OFFSET),
+                    mMaxMemberships));
+            for (; count < stored; count++) {
+                int position = base + HEADER_BYTES + SLOT_BYTES * count;
+                int fence = segment.getInt(position);
+                s.mFences[count] = fence & ~DWELLED_FLAG;
+                s.mEnteredAt[count] = segment.getInt(position + 4);
+                s.mDwelled[count] = (fence & DWELLED_FLAG) != 0;
+            }
+        }
+        s.mCount = count;
+    }
+
+    /**
+     * Writes the next memberships of {@code s} to a record.
+     */
+    private void encode(int slot, Scratch s, int now) {
+        ByteBuffer segment = segment(slot);
+        int base = offset(slot);
+        segment.putInt(base + COUNT_OFFSET, s.mNextCount);
+        segment.putInt(base + LAST_SEEN_OFFSET, now);
+        if (mMode == MODE_BITSET) {
+            long inside = 0;
+            long dwelled = 0;
+            for (int i = 0; i < s.mNextCount; i++) {
+                int fence = s.mNextFences[i];
+                inside |= 1L << fence;
+                if (s.mNextDwelled[i]) {
+                    dwelled |= 1L << fence;
+                }
+                segment.putInt(base + ENTERED_AT_OFFSET + 4 * fence, s.mNextEnteredAt[i]);
+            }
+            segment.putLong(base + INSIDE_BITS_OFFSET, inside);
+            segment.putLong(base + DWELLED_BITS_OFFSET, dwelled);
+        } else {
+            for (int i = 0; i < s.mNextCount; i++) {
+                int position = base + HEADER_BYTES + SLOT_BYTES * i;
+                segment.putInt(position,
+                        s.mNextDwelled[i] ? s.mNextFences[i] | DWELLED_FLAG : s.mNextFences[i]);
+                segment.putInt(position + 4, s.mNextEnteredAt[i]);
+            }
+        }
+    }
+
+    /**
+     * Returns the slot of a device, claiming an empty one if {@code create} is set, or -1 if
+     * the device is unknown and {@code create} is not set.
+     */
+    private int findSlot(long deviceId, boolean create) {
+        if (deviceId == 0) {
+            throw new IllegalArgumentException("Device id 0 is reserved");
+        }
+        int slot = (int) mix(deviceId) & mMask;
+        while (true) {
+            long key = mKeys.get(slot);
+            if (key == deviceId) {
+                return slot;
+            }
+            if (key == 0) {
+                if (!create) {
+                    return -1;
+                }
+                if (mSize.incrementAndGet() > mMaxSize) {
+                    mSize.decrementAndGet();
+                    throw new IllegalStateException("Map is full: " + mMaxSize + " devices");
+                }
+                if (mKeys.compareAndSet(slot, 0, deviceId)) {
+                    return slot;
+                }
+                // Lost the slot to another device, or to this one; look at it again.
+                mSize.decrementAndGet();
+                continue;
+            }
+            slot = (slot + 1) & mMask;
+        }
+    }
+
+    private ByteBuffer segment(int slot) {
+        return mSegments[slot / mRecordsPerSegment];
+    }
+
+    private int offset(int slot) {
+        return (slot % mRecordsPerSegment) * mRecordBytes;
+    }
+
+    private static int align8(int bytes) {
+        return (bytes + 7) & ~7;
+    }
+
+    /**
+     * Spreads device ids that differ in few bits, such as sequential ones, over the table.
+     */
+    private static long mix(long deviceId) {
+        long h = deviceId * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 29);
+    }
+}
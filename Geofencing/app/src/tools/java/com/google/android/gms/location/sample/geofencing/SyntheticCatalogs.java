@@ -0,0 +1,98 @@
+/**
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.android.gms.location.sample.geofencing;
+
+import java.util.Random;
+
+/**
+ * Generates realistic synthetic fence catalogs for scaling measurements: most sites cluster
+ * around a few cities with small radii, the rest are scattered sparsely across the countryside
+ * with large radii.
+ */
+public final class SyntheticCatalogs {
+
+    /**
+     * Fraction of the sites placed in cities.
+     */
+    public static final double URBAN_FRACTION = 0.8;
+
+    /**
+     * Number of sites per city, on average.
+     */
+    public static final int SITES_PER_CITY = 5000;
+
+    /**
+     * Standard deviation of site positions around a city center, in degrees (about 5.5 km).
+     */
+    private static final double CITY_SPREAD_DEGREES = 0.05;
+
+    // The area sites are spread over; roughly the Indian subcontinent, around the sample data.
+    private static final double MIN_LATITUDE = 8;
+    private static final double MAX_LATITUDE = 30;
+    private static final double MIN_LONGITUDE = 70;
+    private static final double MAX_LONGITUDE = 90;
+
+    /**
+     * Prevents instantiation.
+     */
+    private SyntheticCatalogs() {}
+
+    /**
+     * Generates a catalog of {@code size} fences with ids {@code site-0} and up.
+     * <ul>
+     *     <li>Urban sites: normally distributed around their city, radius 100 to 500 m.</li>
+     *     <li>Rural sites: uniform over the whole area, radius 1 to 5 km.</li>
+     *     <li>One site in twenty, urban or rural, gets the sample's 1609 m radius.</li>
+     * </ul>
+     */
+    public static FenceCatalog generate(Random random, int size) {
+        int cities = Math.max(1, (int) Math.round(size * URBAN_FRACTION / SITES_PER_CITY));
+        double[] cityLatitudes = new double[cities];
+        double[] cityLongitudes = new double[cities];
+        for (int c = 0; c < cities; c++) {
+            cityLatitudes[c] = uniform(random, MIN_LATITUDE, MAX_LATITUDE);
+            cityLongitudes[c] = uniform(random, MIN_LONGITUDE, MAX_LONGITUDE);
+        }
+
+        FenceCatalog.Builder builder = new FenceCatalog.Builder(size);
+        for (int i = 0; i < size; i++) {
+            double latitude;
+            double longitude;
+            float radius;
+            if (random.nextDouble() < URBAN_FRACTION) {
+                int city = random.nextInt(cities);
+                latitude = cityLatitudes[city] + random.nextGaussian() * CITY_SPREAD_DEGREES;
+                longitude = cityLongitudes[city] + random.nextGaussian() * CITY_SPREAD_DEGREES;
+                radius = (float) uniform(random, 100, 500);
+            } else {
+                latitude = uniform(random, MIN_LATITUDE, MAX_LATITUDE);
+                longitude = uniform(random, MIN_LONGITUDE, MAX_LONGITUDE);
+                radius = (float) uniform(random, 1000, 5000);
+            }
+            if (random.nextInt(20) == 0) {
+                radius = Constants.GEOFENCE_RADIUS_IN_METERS;
+            }
+            builder.add("site-" + i, latitude, longitude, radius);
+        }
+        return builder.build();
+    }
+
+    private static double uniform(Random random, double min, double max) {
+        return min + random.nextDouble() * (max - min);
+    }
+}
@@ -0,0 +1,55 @@
+/**
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.android.gms.location.sample.geofencing;
+
+import java.util.Random;
+
+/**
+ * Generates synthetic location traces for load testing.
+ */
+public final class SyntheticTraces {
+
+    /**
+     * Prevents instantiation.
+     */
+    private SyntheticTraces() {}
+
+    /**
+     * Returns a random walk: each step moves {@code stepMeters} in a heading that drifts by up
+     * to 30 degrees from the previous one, so the walk looks like travel rather than jitter.
+     *
+     * @param accuracy Accuracy reported for every fix, in meters.
+     */
+    public static LocationBatch randomWalk(Random random, double startLatitude,
+            double startLongitude, int steps, double stepMeters, float accuracy,
+            long startTime, long intervalMillis) {
+        LocationBatch trace = new LocationBatch(steps);
+        double latitude = startLatitude;
+        double longitude = startLongitude;
+        double heading = random.nextDouble() * 2 * Math.PI;
+        double metersPerDegree = GeoMath.EARTH_RADIUS_IN_METERS * Math.PI / 180;
+        for (int i = 0; i < steps; i++) {
+            trace.add(latitude, longitude, accuracy, startTime + i * intervalMillis);
+            heading += Math.toRadians((random.nextDouble() - 0.5) * 60);
+            latitude += stepMeters * Math.cos(heading) / metersPerDegree;
+            longitude += stepMeters * Math.sin(heading)
+                    / (metersPerDegree * Math.max(Math.cos(Math.toRadians(latitude)), 0.01));
+        }
+        return trace;
+    }
+}
@@ -0,0 +1,661 @@
+/**
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.android.gms.location.sample.geofencing;
+
+import com.google.android.gms.location.Geofence;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Replays location traces for many virtual devices through the fence evaluation and transition
+ * routing code on the JVM, without a device or Google Play services.
+ *
+ * Each virtual device has local stand-ins for the platform:
+ * <ul>
+ *     <li>Location Services is played by a {@link LocalFenceEvaluator} over the registration
+ *     catalog, and the {@code GeofencingEvent}s it sends by small stand-ins handed to a
+ *     {@link GeofenceTransitionHandler}, the code {@link GeofenceTransitionsIntentService} runs,
+ *     with its own {@link TransitionFilter}, {@link KeyedSerialExecutor} and
+ *     {@link GeofenceEventStream};</li>
+ *     <li>{@link HierarchicalFenceMonitor} is played by the same
+ *     {@link ActiveRegionEvaluator} it uses, over the children of the parent regions and the
+ *     members of the clusters the device is in;</li>
+ *     <li>notifications are posted by a {@link TransitionNotifier} whose
+ *     {@link TransitionNotifier.Poster} records them instead of calling the
+ *     NotificationManager.</li>
+ * </ul>
+ *
+ * Traces run in accelerated time: as fast as possible by default, or scaled with
+ * {@link #setTimeScale(double)}. The report gives throughput, the latency from each fix to the
+ * notifications it caused, and a diff against expected transitions. Unless expected transitions
+ * are supplied, they are computed by evaluating every fence directly, so the diff shows what
+ * clustering, the hierarchy and the transition filter lose.
+ *
+ * Transition records have the form {@code device,time_millis,request_id,TRANSITION}.
+ */
+public class TraceReplaySimulator {
+
+    private static final int MAX_DIFF_EXAMPLES = 20;
+
+    private final FenceHierarchy mHierarchy;
+    private final long mLoiteringDelay;
+    private final int mThreads;
+    private double mTimeScale;
+
+    /**
+     * @param loiteringDelay Loitering delay used for every fence, in milliseconds.
+     * @param threads        Number of devices simulated in parallel.
+     */
+    public TraceReplaySimulator(FenceHierarchy hierarchy, long loiteringDelay, int threads) {
+        mHierarchy = hierarchy;
+        mLoiteringDelay = loiteringDelay;
+        mThreads = threads;
+    }
+
+    /**
+     * Plays traces {@code scale} times faster than real time. 0, the default, plays them as fast
+     * as possible.
+     */
+    public void setTimeScale(double scale) {
+        mTimeScale = scale;
+    }
+
+    /**
+     * Replays one trace per virtual device.
+     *
+     * @param expected Expected transition records, or null to compute them from the traces.
+     */
+    public Report run(List<LocationBatch> traces, List<String> expected)
+            throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(mThreads);
+        // Shared like the service's; one queue's worth of capacity per device replayed at once.
+        KeyedSerialExecutor transitionExecutor = new KeyedSerialExecutor("TraceReplay",
+                Constants.TRANSITION_WORKER_THREADS, Constants.TRANSITION_LANES,
+                Constants.TRANSITION_QUEUE_CAPACITY * mThreads);
+        List<Future<Device>> futures = new ArrayList<Future<Device>>(traces.size());
+        long start = System.nanoTime();
+        try {
+            for (int i = 0; i < traces.size(); i++) {
+                final Device device = new Device(i, mHierarchy, transitionExecutor,
+                        expected == null);
+                final LocationBatch trace = traces.get(i);
+                futures.add(executor.submit(new Callable<Device>() {
+                    @Override
+                    public Device call() throws InterruptedException {
+                        device.replay(trace);
+                        return device;
+                    }
+                }));
+            }
+            Report report = new Report();
+            List<String> observed = new ArrayList<String>();
+            List<String> computed = new ArrayList<String>();
+            long[] latencies = new long[0];
+            for (Future<Device> future : futures) {
+                Device device = future.get();
+                report.mFixes += device.mFixes;
+                report.mDropped += device.mDropped;
+                observed.addAll(device.mObserved);
+                computed.addAll(device.mExpected);
+                int offset = latencies.length;
+                latencies = Arrays.copyOf(latencies, offset + device.mLatencyCount);
+                System.arraycopy(device.mLatencies, 0, latencies, offset, device.mLatencyCount);
+            }
+            report.mWallNanos = System.nanoTime() - start;
+            report.mDevices = traces.size();
+            report.mTransitions = observed.size();
+            Arrays.sort(latencies);
+            report.mLatencyNanos = latencies;
+            report.diff(expected != null ? expected : computed, observed);
+            return report;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Simulation failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+            transitionExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Formats a transition record.
+     */
+    public static String record(int device, long time, String requestId, int transition) {
+        return device + "," + time + "," + requestId + "," + transitionName(transition);
+    }
+
+    static String transitionName(int transition) {
+        switch (transition) {
+            case Geofence.GEOFENCE_TRANSITION_ENTER:
+                return "ENTER";
+            case Geofence.GEOFENCE_TRANSITION_EXIT:
+                return "EXIT";
+            case Geofence.GEOFENCE_TRANSITION_DWELL:
+                return "DWELL";
+            default:
+                return "UNKNOWN(" + transition + ")";
+        }
+    }
+
+    /**
+     * One virtual device, replayed by one thread. Notifications are posted, and recorded, on the
+     * delivery thread of its event stream.
+     */
+    private final class Device implements GeofenceTransitionHandler.Host,
+            TransitionNotifier.Poster {
+        final int mIndex;
+        final FenceHierarchy mHierarchy;
+        final KeyedSerialExecutor mExecutor;
+        final LocalFenceEvaluator mLocationServices;
+        final ActiveRegionEvaluator mRegions;
+        final LocalFenceEvaluator mGroundTruth;
+
+        final List<String> mObserved = new ArrayList<String>();
+        final List<String> mExpected = new ArrayList<String>();
+        long[] mLatencies = new long[64];
+        int mLatencyCount;
+        int mFixes;
+        int mDropped;
+
+        final LocationBatch mFix = new LocationBatch(1);
+        final ConcurrentHashMap<Long, Long> mFixStartNanos = new ConcurrentHashMap<Long, Long>();
+        final AtomicInteger mPendingTasks = new AtomicInteger();
+
+        /**
+         * Transitions of locally evaluated fences, handed to the handler once the event being
+         * handled is done, as the service receives them through {@code startService}.
+         */
+        final List<SimulatedEvent> mLocalTransitions = new ArrayList<SimulatedEvent>();
+
+        GeofenceTransitionHandler mHandler;
+
+        /**
+         * When the service's alarm for deferred transitions would go off.
+         */
+        long mNextDueTime = Long.MAX_VALUE;
+
+        Device(int index, FenceHierarchy hierarchy, KeyedSerialExecutor executor,
+                boolean computeExpected) {
+            mIndex = index;
+            mHierarchy = hierarchy;
+            mExecutor = executor;
+            mLocationServices = new LocalFenceEvaluator(mHierarchy.getRegistrationCatalog(),
+                    mLoiteringDelay);
+            mRegions = new ActiveRegionEvaluator(mHierarchy, mLoiteringDelay);
+            mGroundTruth = computeExpected
+                    ? new LocalFenceEvaluator(mHierarchy.getChildCatalog(), mLoiteringDelay)
+                    : null;
+        }
+
+        void replay(LocationBatch trace) throws InterruptedException {
+            GeofenceEventStream stream = new GeofenceEventStream();
+            GeofenceEventStream.Subscription notifications =
+                    TransitionNotifier.subscribe(stream, this);
+            mHandler = new GeofenceTransitionHandler(mHierarchy,
+                    new TransitionFilter(Constants.TRANSITION_HYSTERESIS_FRACTION,
+                            Constants.TRANSITION_MIN_HOLD_TIME_IN_MILLISECONDS),
+                    mExecutor, stream, this);
+            try {
+                for (int i = 0; i < trace.size(); i++) {
+                    if (mTimeScale > 0 && i > 0) {
+                        long delay = (long) ((trace.getTimes()[i] - trace.getTimes()[i - 1])
+                                / mTimeScale);
+                        if (delay > 0) {
+                            Thread.sleep(delay);
+                        }
+                    }
+                    mFix.clear();
+                    mFix.add(trace.getLatitudes()[i], trace.getLongitudes()[i],
+                            trace.getAccuracies()[i], trace.getTimes()[i]);
+                    mFixes++;
+
+                    mFixStartNanos.put(trace.getTimes()[i], System.nanoTime());
+                    publishDue(trace.getTimes()[i]);
+                    mLocationServices.evaluate(mFix, mLocationServicesListener);
+                    handleLocalTransitions();
+                    if (!mRegions.isEmpty()) {
+                        // The child location updates also reach the deferred transitions.
+                        mRegions.evaluate(mFix, mChildListener);
+                        handleLocalTransitions();
+                        mHandler.onLocation(trace.getTimes()[i], trace.getLatitudes()[i],
+                                trace.getLongitudes()[i], trace.getAccuracies()[i]);
+                    }
+                    if (mGroundTruth != null) {
+                        mGroundTruth.evaluate(mFix, mGroundTruthListener);
+                    }
+                }
+                publishDue(Long.MAX_VALUE - 1);
+                // Wait for queued transitions to be published and their notifications posted.
+                while (mPendingTasks.get() > 0 || notifications.getAcceptedCount()
+                        > notifications.getDeliveredCount() + notifications.getDroppedCount()) {
+                    Thread.sleep(1);
+                }
+            } finally {
+                stream.unsubscribe(notifications);
+            }
+            mDropped += notifications.getDroppedCount();
+        }
+
+        /**
+         * Fires the alarm for deferred transitions if it is due by {@code time}.
+         */
+        private void publishDue(long time) {
+            while (mNextDueTime <= time) {
+                mHandler.publishDue(mNextDueTime);
+            }
+        }
+
+        private void handleLocalTransitions() {
+            for (int i = 0; i < mLocalTransitions.size(); i++) {
+                mHandler.handleFences(mLocalTransitions.get(i));
+            }
+            mLocalTransitions.clear();
+        }
+
+        final LocalFenceEvaluator.TransitionListener mLocationServicesListener =
+                new LocalFenceEvaluator.TransitionListener() {
+                    @Override
+                    public void onTransition(int fenceIndex, int transition, long time,
+                            double latitude, double longitude) {
+                        mHandler.handle(new SimulatedEvent(
+                                mHierarchy.getRegistrationCatalog().getId(fenceIndex),
+                                transition, time, true, latitude, longitude,
+                                mFix.getAccuracies()[0]));
+                    }
+                };
+
+        final LocalFenceEvaluator.TransitionListener mChildListener =
+                new LocalFenceEvaluator.TransitionListener() {
+                    @Override
+                    public void onTransition(int fenceIndex, int transition, long time,
+                            double latitude, double longitude) {
+                        mLocalTransitions.add(new SimulatedEvent(
+                                mHierarchy.getChildCatalog().getId(fenceIndex), transition, time,
+                                false, 0, 0, 0));
+                    }
+                };
+
+        final LocalFenceEvaluator.TransitionListener mGroundTruthListener =
+                new LocalFenceEvaluator.TransitionListener() {
+                    @Override
+                    public void onTransition(int fenceIndex, int transition, long time,
+                            double latitude, double longitude) {
+                        mExpected.add(record(mIndex, time,
+                                mHierarchy.getChildCatalog().getId(fenceIndex), transition));
+                    }
+                };
+
+        @Override
+        public Runnable holdUntilDone() {
+            mPendingTasks.incrementAndGet();
+            final AtomicBoolean done = new AtomicBoolean();
+            return new Runnable() {
+                @Override
+                public void run() {
+                    if (done.compareAndSet(false, true)) {
+                        mPendingTasks.decrementAndGet();
+                    }
+                }
+            };
+        }
+
+        @Override
+        public void onRegionTransition(String registrationId, int transition,
+                GeofenceTransitionHandler.Event event) {
+            if (transition == Geofence.GEOFENCE_TRANSITION_EXIT) {
+                mRegions.exit(registrationId, event.getTime(), event.hasLocation(),
+                        event.getLatitude(), event.getLongitude(), mChildListener);
+            } else {
+                mRegions.enter(registrationId, event.getTime(), event.hasLocation(),
+                        event.getLatitude(), event.getLongitude(), mChildListener);
+            }
+        }
+
+        @Override
+        public void onRearm(TransitionBatch batch) {
+            // The simulated Location Services re-arms DWELL on the next entry by itself.
+        }
+
+        @Override
+        public void onDropped(String requestId, int transition, String reason) {
+            mDropped++;
+        }
+
+        @Override
+        public void onDeferredChanged(long nextDueTime) {
+            mNextDueTime = nextDueTime;
+        }
+
+        @Override
+        public void post(GeofenceEventStream.TransitionEvent event) {
+            long latency = System.nanoTime() - mFixStartNanos.get(event.getTime());
+            synchronized (this) {
+                if (mLatencyCount == mLatencies.length) {
+                    mLatencies = Arrays.copyOf(mLatencies, mLatencyCount * 2);
+                }
+                mLatencies[mLatencyCount++] = latency;
+                mObserved.add(record(mIndex, event.getTime(), event.getRequestId(),
+                        event.getTransition()));
+            }
+        }
+    }
+
+    /**
+     * Stands in for the {@code GeofencingEvent} of one triggering fence.
+     */
+    private static final class SimulatedEvent implements GeofenceTransitionHandler.Event {
+        private final String mRequestId;
+        private final int mTransition;
+        private final long mTime;
+        private final boolean mHasLocation;
+        private final double mLatitude;
+        private final double mLongitude;
+        private final float mAccuracy;
+
+        SimulatedEvent(String requestId, int transition, long time, boolean hasLocation,
+                double latitude, double longitude, float accuracy) {
+            mRequestId = requestId;
+            mTransition = transition;
+            mTime = time;
+            mHasLocation = hasLocation;
+            mLatitude = latitude;
+            mLongitude = longitude;
+            mAccuracy = accuracy;
+        }
+
+        @Override
+        public int getTransition() {
+            return mTransition;
+        }
+
+        @Override
+        public List<String> getRequestIds() {
+            return Collections.singletonList(mRequestId);
+        }
+
+        @Override
+        public boolean hasLocation() {
+            return mHasLocation;
+        }
+
+        @Override
+        public long getTime() {
+            return mTime;
+        }
+
+        @Override
+        public double getLatitude() {
+            return mLatitude;
+        }
+
+        @Override
+        public double getLongitude() {
+            return mLongitude;
+        }
+
+        @Override
+        public float getAccuracy() {
+            return mAccuracy;
+        }
+    }
+
+    /**
+     * Outcome of a simulation run.
+     */
+    public static final class Report {
+        int mDevices;
+        long mFixes;
+        long mTransitions;
+        /**
+         * Transitions suppressed by the filter, rejected by a full queue, not mapped to any
+         * fence, or whose notification was dropped.
+         */
+        long mDropped;
+        long mWallNanos;
+        long[] mLatencyNanos;
+        int mMissing;
+        int mUnexpected;
+        final List<String> mMissingExamples = new ArrayList<String>();
+        final List<String> mUnexpectedExamples = new ArrayList<String>();
+
+        public long getTransitionCount() {
+            return mTransitions;
+        }
+
+        public int getMissingCount() {
+            return mMissing;
+        }
+
+        public int getUnexpectedCount() {
+            return mUnexpected;
+        }
+
+        public double getTransitionsPerSecond() {
+            return mWallNanos == 0 ? 0 : mTransitions * 1e9 / mWallNanos;
+        }
+
+        public double getFixesPerSecond() {
+            return mWallNanos == 0 ? 0 : mFixes * 1e9 / mWallNanos;
+        }
+
+        /**
+         * Returns a latency percentile, in microseconds, measured from the start of processing a
+         * fix to the delivery of each transition it caused.
+         */
+        public double getLatencyPercentileMicros(double percentile) {
+            if (mLatencyNanos.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile / 100 * mLatencyNanos.length) - 1;
+            return mLatencyNanos[Math.max(0, Math.min(index, mLatencyNanos.length - 1))] / 1e3;
+        }
+
+        void diff(List<String> expected, List<String> observed) {
+            Map<String, Integer> counts = new HashMap<String, Integer>();
+            for (String record : expected) {
+                Integer count = counts.get(record);
+                counts.put(record, count == null ? 1 : count + 1);
+            }
+            for (String record : observed) {
+                Integer count = counts.get(record);
+                if (count == null || count == 0) {
+                    mUnexpected++;
+                    if (mUnexpectedExamples.size() < MAX_DIFF_EXAMPLES) {
+                        mUnexpectedExamples.add(record);
+                    }
+                } else {
+                    counts.put(record, count - 1);
+                }
+            }
+            for (String record : expected) {
+                Integer count = counts.get(record);
+                if (count != null && count > 0) {
+                    counts.put(record, count - 1);
+                    mMissing++;
+                    if (mMissingExamples.size() < MAX_DIFF_EXAMPLES) {
+                        mMissingExamples.add(record);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Returns the report as a JSON object.
+         */
+        public String toJson() {
+            StringBuilder json = new StringBuilder("{");
+            json.append("\"devices\":").append(mDevices)
+                    .append(",\"fixes\":").append(mFixes)
+                    .append(",\"transitions\":").append(mTransitions)
+                    .append(",\"dropped\":").append(mDropped)
+                    .append(",\"wallMillis\":").append(mWallNanos / 1000000)
+                    .append(",\"fixesPerSecond\":").append(Math.round(getFixesPerSecond()))
+                    .append(",\"transitionsPerSecond\":")
+                    .append(Math.round(getTransitionsPerSecond()))
+                    .append(",\"latencyMicros\":{\"p50\":")
+                    .append(getLatencyPercentileMicros(50))
+                    .append(",\"p90\":").append(getLatencyPercentileMicros(90))
+                    .append(",\"p99\":").append(getLatencyPercentileMicros(99))
+                    .append(",\"max\":").append(getLatencyPercentileMicros(100))
+                    .append("},\"missing\":").append(mMissing)
+                    .append(",\"unexpected\":").append(mUnexpected)
+                    .append(",\"missingExamples\":");
+            appendJsonArray(json, mMissingExamples);
+            json.append(",\"unexpectedExamples\":");
+            appendJsonArray(json, mUnexpectedExamples);
+            return json.append('}').toString();
+        }
+
+        private static void appendJsonArray(StringBuilder json, List<String> values) {
+            json.append('[');
+            for (int i = 0; i < values.size(); i++) {
+                if (i > 0) {
+                    json.append(',');
+                }
+                json.append('"').append(values.get(i).replace("\\", "\\\\").replace("\"", "\\\""))
+                        .append('"');
+            }
+            json.append(']');
+        }
+
+        @Override
+        public String toString() {
+            return toJson();
+        }
+    }
+
+    /**
+     * Runs a simulation over {@link FenceHierarchy#getDefault()} and prints the report as JSON.
+     *
+     * <pre>
+     * --trace FILE     replay a CSV, GPX or NMEA trace as one device (repeatable)
+     * --devices N      otherwise, number of synthetic random-walk devices (default 1000)
+     * --steps N        fixes per synthetic device (default 500)
+     * --seed N         random seed for synthetic traces (default 1)
+     * --threads N      devices simulated in parallel (default: available processors)
+     * --time-scale X   play X times faster than real time (default: as fast as possible)
+     * --expected FILE  expected transition records, one per line
+     * --out FILE       also write the report to FILE
+     * </pre>
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        List<File> traceFiles = new ArrayList<File>();
+        int devices = 1000;
+        int steps = 500;
+        long seed = 1;
+        int threads = Runtime.getRuntime().availableProcessors();
+        double timeScale = 0;
+        File expectedFile = null;
+        File out = null;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + arg);
+            }
+            String value = args[++i];
+            if ("--trace".equals(arg)) {
+                traceFiles.add(new File(value));
+            } else if ("--devices".equals(arg)) {
+                devices = Integer.parseInt(value);
+            } else if ("--steps".equals(arg)) {
+                steps = Integer.parseInt(value);
+            } else if ("--seed".equals(arg)) {
+                seed = Long.parseLong(value);
+            } else if ("--threads".equals(arg)) {
+                threads = Integer.parseInt(value);
+            } else if ("--time-scale".equals(arg)) {
+                timeScale = Double.parseDouble(value);
+            } else if ("--expected".equals(arg)) {
+                expectedFile = new File(value);
+            } else if ("--out".equals(arg)) {
+                out = new File(value);
+            } else {
+                throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+
+        FenceHierarchy hierarchy = FenceHierarchy.getDefault();
+        List<LocationBatch> traces = new ArrayList<LocationBatch>();
+        if (!traceFiles.isEmpty()) {
+            for (File file : traceFiles) {
+                traces.add(TraceReader.read(file));
+            }
+        } else {
+            // Start each walk near a random fence so the walks actually cross fences.
+            Random random = new Random(seed);
+            FenceCatalog fences = hierarchy.getChildCatalog();
+            for (int d = 0; d < devices; d++) {
+                int fence = random.nextInt(fences.size());
+                traces.add(SyntheticTraces.randomWalk(random,
+                        fences.getLatitude(fence) + (random.nextDouble() - 0.5) * 0.05,
+                        fences.getLongitude(fence) + (random.nextDouble() - 0.5) * 0.05,
+                        steps, 50, 10f, 0, 10 * 1000));
+            }
+        }
+
+        List<String> expected = null;
+        if (expectedFile != null) {
+            expected = new ArrayList<String>();
+            BufferedReader reader = new BufferedReader(new FileReader(expectedFile));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.trim().length() > 0) {
+                        expected.add(line.trim());
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+
+        TraceReplaySimulator simulator = new TraceReplaySimulator(hierarchy,
+                Constants.GEOFENCE_LOITERING_DELAY_IN_MILLISECONDS, threads);
+        simulator.setTimeScale(timeScale);
+        String json = simulator.run(traces, expected).toJson();
+        System.out.println(json);
+        if (out != null) {
+            Writer writer = new FileWriter(out);
+            try {
+                writer.write(json);
+                writer.write('\n');
+            } finally {
+                writer.close();
+            }
+        }
+    }
+}